@@ -0,0 +1,47 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, as the JMH launcher
+ * does, with the allocation profiler always enabled.
+ *
+ * Usage: java -jar target/benchmarks.jar [JMH options], for instance
+ * ReadBenchmark -p persons=1000000 -p passwordHash=plain -t 4
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {
+  }
+
+  public static void main(String[] args) throws RunnerException,
+          CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+  }
+}
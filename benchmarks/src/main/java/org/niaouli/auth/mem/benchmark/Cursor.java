@@ -0,0 +1,40 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread position in the sample of {@link Directory}, so that
+ * consecutive operations do not hit the same person.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@State(Scope.Thread)
+public class Cursor {
+
+  // Odd step, so that the threads go through the whole sample
+  private static final int STEP = 617;
+
+  private int position = (int) (Thread.currentThread().getId() * STEP);
+
+  public int next() {
+    position += STEP;
+    return position & (Directory.SAMPLE - 1);
+  }
+}
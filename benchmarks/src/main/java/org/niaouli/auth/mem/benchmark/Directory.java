@@ -0,0 +1,125 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Concurrent directory shared by the benchmark threads: persons spread over
+ * organizational units, a large group, and a small sample of persons with
+ * passwords whose system names are prepared so that the benchmarks do not
+ * measure string building.
+ *
+ * Group sizes larger than the directory are capped to its size.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@State(Scope.Benchmark)
+public class Directory {
+
+  public static final String LARGE_GROUP = "LARGE";
+  public static final String SCRATCH_GROUP = "SCRATCH";
+  public static final int SAMPLE = 1024;
+  public static final int ORG_UNITS = 100;
+
+  private static final int BATCH = 100000;
+
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int persons;
+
+  @Param({"1000", "100000", "1000000"})
+  public int groupSize;
+
+  @Param({MemAuthSystem.PASSWORD_HASH_PLAIN,
+    MemAuthSystem.PASSWORD_HASH_PBKDF2})
+  public String passwordHash;
+
+  public MemAuthSystem system;
+  public String[] sysNames = new String[SAMPLE];
+  public String[] passwords = new String[SAMPLE];
+  public String[] orgUnitNames = new String[ORG_UNITS];
+
+  @Setup(Level.Trial)
+  public void setUp() throws AppException {
+    system = new MemAuthSystem(true);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH, passwordHash);
+    system.configure(props);
+    for (int i = 0; i < ORG_UNITS; i++) {
+      OrgUnitBuilder builder = new OrgUnitBuilder();
+      builder.setName("OU" + i);
+      orgUnitNames[i] = "OU" + i;
+      system.createOrgUnit(builder.build());
+    }
+    for (String sysName : new String[]{LARGE_GROUP, SCRATCH_GROUP}) {
+      GroupBuilder builder = new GroupBuilder();
+      builder.setSysName(sysName);
+      system.createGroup(builder.build());
+    }
+    int members = Math.min(groupSize, persons);
+    List<Person> batch = new ArrayList<Person>(BATCH);
+    List<String> memberBatch = new ArrayList<String>(BATCH);
+    for (int i = 0; i < persons; i++) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName(i));
+      builder.setFullName("Person number " + i);
+      builder.setOrgUnitName(orgUnitNames[i % ORG_UNITS]);
+      batch.add(builder.build());
+      if (i < members) {
+        memberBatch.add(sysName(i));
+      }
+      if (batch.size() == BATCH || i == persons - 1) {
+        system.createPersons(batch);
+        system.attachGroupMembers(LARGE_GROUP, memberBatch);
+        batch.clear();
+        memberBatch.clear();
+      }
+    }
+    Map<String, String> newPasswords = new HashMap<String, String>();
+    for (int i = 0; i < SAMPLE; i++) {
+      // Spread the sample over the whole directory
+      sysNames[i] = sysName((int) ((long) i * persons / SAMPLE));
+      passwords[i] = "secret" + i;
+      newPasswords.put(sysNames[i], passwords[i]);
+    }
+    system.updatePersonPasswords(newPasswords);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    system = null;
+  }
+
+  private static String sysName(int i) {
+    return "person" + i;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.exception.AppException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi threaded read/write mixes on the same directory: readers measured
+ * while writers mutate the data they read.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MixedBenchmark {
+
+  @Benchmark
+  @Group("lookups")
+  @GroupThreads(3)
+  public Person lookupsLoadPerson(Directory directory, Cursor cursor)
+          throws AppException {
+    return directory.system.loadPerson(directory.sysNames[cursor.next()]);
+  }
+
+  @Benchmark
+  @Group("lookups")
+  @GroupThreads(1)
+  public void lookupsAttachGroupMember(Directory directory, Cursor cursor)
+          throws AppException {
+    String sysName = directory.sysNames[cursor.next()];
+    directory.system.detachGroupMember(Directory.LARGE_GROUP, sysName);
+    directory.system.attachGroupMember(Directory.LARGE_GROUP, sysName);
+  }
+
+  @Benchmark
+  @Group("memberships")
+  @GroupThreads(3)
+  public boolean membershipsIsGroupMember(Directory directory,
+          Cursor cursor) {
+    return directory.system.isGroupMember(Directory.LARGE_GROUP,
+            directory.sysNames[cursor.next()]);
+  }
+
+  @Benchmark
+  @Group("memberships")
+  @GroupThreads(1)
+  public Collection<String> membershipsFindGroupPersons(Directory directory)
+          throws AppException {
+    return directory.system.findGroupPersons(Directory.LARGE_GROUP);
+  }
+
+  @Benchmark
+  @Group("memberships")
+  @GroupThreads(1)
+  public void membershipsAttachGroupMember(Directory directory,
+          Cursor cursor) throws AppException {
+    String sysName = directory.sysNames[cursor.next()];
+    directory.system.attachGroupMember(Directory.SCRATCH_GROUP, sysName);
+    directory.system.detachGroupMember(Directory.SCRATCH_GROUP, sysName);
+  }
+
+  @Benchmark
+  @Group("credentials")
+  @GroupThreads(4)
+  public boolean credentialsCheck(Directory directory, Cursor cursor)
+          throws AppException {
+    int i = cursor.next();
+    return directory.system.checkCredentials(directory.sysNames[i],
+            directory.passwords[i]);
+  }
+
+  @Benchmark
+  @Group("credentials")
+  @GroupThreads(1)
+  public void credentialsUpdatePassword(Directory directory, Cursor cursor)
+          throws AppException {
+    int i = cursor.next();
+    directory.system.updatePersonPassword(directory.sysNames[i],
+            directory.passwords[i]);
+  }
+}
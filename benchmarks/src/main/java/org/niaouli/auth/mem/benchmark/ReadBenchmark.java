@@ -0,0 +1,87 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.exception.AppException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single threaded lookups. Run them with -t to measure concurrent readers.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+  @Benchmark
+  public boolean checkCredentials(Directory directory, Cursor cursor)
+          throws AppException {
+    int i = cursor.next();
+    return directory.system.checkCredentials(directory.sysNames[i],
+            directory.passwords[i]);
+  }
+
+  @Benchmark
+  public Person loadPerson(Directory directory, Cursor cursor)
+          throws AppException {
+    return directory.system.loadPerson(directory.sysNames[cursor.next()]);
+  }
+
+  @Benchmark
+  public Collection<String> findGroupPersons(Directory directory)
+          throws AppException {
+    return directory.system.findGroupPersons(Directory.LARGE_GROUP);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void iterateGroupPersons(Directory directory, Blackhole blackhole)
+          throws AppException {
+    for (String sysName
+            : directory.system.findGroupPersons(Directory.LARGE_GROUP)) {
+      blackhole.consume(sysName);
+    }
+  }
+
+  @Benchmark
+  public boolean isGroupMember(Directory directory, Cursor cursor) {
+    return directory.system.isGroupMember(Directory.LARGE_GROUP,
+            directory.sysNames[cursor.next()]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Collection<String> findOrgUnitPersons(Directory directory,
+          Cursor cursor) throws AppException {
+    return directory.system.findOrgUnitPersons(
+            directory.orgUnitNames[cursor.next() % Directory.ORG_UNITS]);
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the size and the write and load times of the compact serialized
+ * form of {@link MemAuthSystem} with the former default serialization of its
+ * maps. The size is reported in the bytes counter of the write benchmark.
+ *
+ * The default form holds the passwords of the sample of {@link Directory},
+ * in clear: the stored ones are not readable.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+  public static final String COMPACT = "compact";
+  public static final String DEFAULT = "default";
+
+  @Param({COMPACT, DEFAULT})
+  public String format;
+
+  private Object data;
+  private byte[] serialized;
+
+  @Setup(Level.Trial)
+  public void setUp(Directory directory) throws AppException, IOException {
+    if (DEFAULT.equals(format)) {
+      data = defaultForm(directory);
+    } else {
+      data = directory.system;
+    }
+    serialized = serialize(data);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    data = null;
+    serialized = null;
+  }
+
+  @Benchmark
+  public byte[] write(SerializedSize size) throws IOException {
+    byte[] bytes = serialize(data);
+    size.bytes = bytes.length;
+    return bytes;
+  }
+
+  @Benchmark
+  public Object load() throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(serialized));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  // The former default serialization wrote the five maps
+  private static Object defaultForm(Directory directory)
+          throws AppException {
+    MemAuthSystem system = directory.system;
+    Map<String, Person> persons = new HashMap<String, Person>();
+    for (Person person : system.findPersons()) {
+      persons.put(person.getSysName(), person);
+    }
+    Map<String, Group> groups = new HashMap<String, Group>();
+    Map<String, Set<String>> groupsPersons
+            = new HashMap<String, Set<String>>();
+    for (Group group : system.findGroups()) {
+      groups.put(group.getSysName(), group);
+      groupsPersons.put(group.getSysName(), new HashSet<String>(
+              system.findGroupPersons(group.getSysName())));
+    }
+    Map<String, OrgUnit> orgUnits = new HashMap<String, OrgUnit>();
+    for (OrgUnit orgUnit : system.findOrgUnits()) {
+      orgUnits.put(orgUnit.getName(), orgUnit);
+    }
+    Map<String, String> passwords = new HashMap<String, String>();
+    for (int i = 0; i < Directory.SAMPLE; i++) {
+      passwords.put(directory.sysNames[i], directory.passwords[i]);
+    }
+    List<Object> legacy = new ArrayList<Object>();
+    legacy.add(persons);
+    legacy.add(groups);
+    legacy.add(groupsPersons);
+    legacy.add(orgUnits);
+    legacy.add(passwords);
+    return legacy;
+  }
+
+  private static byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.niaouli.exception.AppException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single threaded mutations. Each operation attaches a person to a group and
+ * detaches it, so that the directory does not drift between iterations.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+
+  @Benchmark
+  public void attachGroupMember(Directory directory, Cursor cursor)
+          throws AppException {
+    String sysName = directory.sysNames[cursor.next()];
+    directory.system.attachGroupMember(Directory.SCRATCH_GROUP, sysName);
+    directory.system.detachGroupMember(Directory.SCRATCH_GROUP, sysName);
+  }
+
+  @Benchmark
+  public void attachLargeGroupMember(Directory directory, Cursor cursor)
+          throws AppException {
+    String sysName = directory.sysNames[cursor.next()];
+    directory.system.detachGroupMember(Directory.LARGE_GROUP, sysName);
+    directory.system.attachGroupMember(Directory.LARGE_GROUP, sysName);
+  }
+}
@@ -0,0 +1,696 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.niaouli.auth.AuthSystem;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.exception.AppException;
+
+/**
+ * Non blocking facade of an authentication system, for event loop based
+ * callers. Each operation runs on an executor and returns a future, which
+ * completes exceptionally with the {@link AppException} of the operation if
+ * any.
+ *
+ * Concurrent loads of the same person, and concurrent checks of the same
+ * credentials, are coalesced: while one is running, the identical requests
+ * share its result instead of running again. A joining request may thus see
+ * the data as it was when the shared operation started. A password update
+ * made through the facade ends the sharing of the running checks of the
+ * person, so that no request made after the update completed is answered
+ * with the previous password; updates made directly on the delegate do not.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class AsyncAuthSystem {
+
+  /**
+   * The synchronous system.
+   */
+  private final AuthSystem delegate;
+
+  /**
+   * Runs the operations.
+   */
+  private final Executor executor;
+
+  /**
+   * Whether the executor was created by this facade, and is shut down with
+   * it.
+   */
+  private final boolean ownExecutor;
+
+  /**
+   * Running person loads, by system name.
+   */
+  private final ConcurrentMap<String, CompletableFuture<Person>> loads =
+          new ConcurrentHashMap<String, CompletableFuture<Person>>();
+
+  /**
+   * Running credential checks.
+   */
+  private final ConcurrentMap<Credentials, CompletableFuture<Boolean>>
+          checks =
+          new ConcurrentHashMap<Credentials, CompletableFuture<Boolean>>();
+
+  /**
+   * Create a facade running on the default executor: virtual threads when
+   * the JDK has them, a pool of one daemon thread per processor otherwise.
+   *
+   * @param pDelegate the synchronous system
+   */
+  public AsyncAuthSystem(final AuthSystem pDelegate) {
+    this(pDelegate, newDefaultExecutor(), true);
+  }
+
+  /**
+   * Create a facade running on an executor.
+   *
+   * @param pDelegate the synchronous system
+   * @param pExecutor the executor, left running by {@link #shutdown()}
+   */
+  public AsyncAuthSystem(final AuthSystem pDelegate,
+          final Executor pExecutor) {
+    this(pDelegate, pExecutor, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pDelegate the synchronous system
+   * @param pExecutor the executor
+   * @param pOwnExecutor whether the executor is shut down with the facade
+   */
+  private AsyncAuthSystem(final AuthSystem pDelegate,
+          final Executor pExecutor, final boolean pOwnExecutor) {
+    delegate = Objects.requireNonNull(pDelegate, "delegate");
+    executor = Objects.requireNonNull(pExecutor, "executor");
+    ownExecutor = pOwnExecutor;
+  }
+
+  /**
+   * Get the synchronous system.
+   *
+   * @return the synchronous system
+   */
+  public final AuthSystem getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Shut down the default executor, letting the running operations finish.
+   * An executor given to the constructor is left running.
+   */
+  public final void shutdown() {
+    if (ownExecutor) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  /**
+   * See {@link AuthSystem#configure(Map)}.
+   *
+   * @param props the properties
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> configure(
+          final Map<String, String> props) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.configure(props);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#checkHealth()}.
+   *
+   * @return the future health
+   */
+  public final CompletableFuture<Boolean> checkHealth() {
+    return submit(new Call<Boolean>() {
+      @Override
+      public Boolean call() throws AppException {
+        return delegate.checkHealth();
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#checkCredentials(String, String)}.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @return the future check result
+   */
+  public final CompletableFuture<Boolean> checkCredentials(
+          final String sysName, final String password) {
+    return coalesce(checks, new Credentials(sysName, password),
+            new Call<Boolean>() {
+      @Override
+      public Boolean call() throws AppException {
+        return delegate.checkCredentials(sysName, password);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#loadPerson(String)}.
+   *
+   * @param sysName the person system name
+   * @return the future person
+   */
+  public final CompletableFuture<Person> loadPerson(final String sysName) {
+    if (sysName == null) {
+      return submit(new Call<Person>() {
+        @Override
+        public Person call() throws AppException {
+          return delegate.loadPerson(null);
+        }
+      });
+    }
+    return coalesce(loads, sysName, new Call<Person>() {
+      @Override
+      public Person call() throws AppException {
+        return delegate.loadPerson(sysName);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#findPersons()}.
+   *
+   * @return the future persons
+   */
+  public final CompletableFuture<Collection<Person>> findPersons() {
+    return submit(new Call<Collection<Person>>() {
+      @Override
+      public Collection<Person> call() throws AppException {
+        return delegate.findPersons();
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#canCreateOrUpdatePerson()}.
+   *
+   * @return the completed answer
+   */
+  public final CompletableFuture<Boolean> canCreateOrUpdatePerson() {
+    return CompletableFuture.completedFuture(
+            delegate.canCreateOrUpdatePerson());
+  }
+
+  /**
+   * See {@link AuthSystem#canUpdatePassword()}.
+   *
+   * @return the completed answer
+   */
+  public final CompletableFuture<Boolean> canUpdatePassword() {
+    return CompletableFuture.completedFuture(delegate.canUpdatePassword());
+  }
+
+  /**
+   * See {@link AuthSystem#createPerson(Person)}.
+   *
+   * @param person the person
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> createPerson(final Person person) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.createPerson(person);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#updatePerson(Person)}.
+   *
+   * @param person the person
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> updatePerson(final Person person) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.updatePerson(person);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#updatePersonPassword(String, String)}.
+   *
+   * @param sysName the person system name
+   * @param password the new password
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> updatePersonPassword(
+          final String sysName, final String password) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.updatePersonPassword(sysName, password);
+        // Later checks must not join one verifying the previous password
+        for (Credentials credentials : checks.keySet()) {
+          if (Objects.equals(sysName, credentials.sysName)) {
+            checks.remove(credentials);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#loadGroup(String)}.
+   *
+   * @param sysName the group system name
+   * @return the future group
+   */
+  public final CompletableFuture<Group> loadGroup(final String sysName) {
+    return submit(new Call<Group>() {
+      @Override
+      public Group call() throws AppException {
+        return delegate.loadGroup(sysName);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#findGroups()}.
+   *
+   * @return the future groups
+   */
+  public final CompletableFuture<Collection<Group>> findGroups() {
+    return submit(new Call<Collection<Group>>() {
+      @Override
+      public Collection<Group> call() throws AppException {
+        return delegate.findGroups();
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#findGroupPersons(String)}.
+   *
+   * @param sysName the group system name
+   * @return the future member system names
+   */
+  public final CompletableFuture<Collection<String>> findGroupPersons(
+          final String sysName) {
+    return submit(new Call<Collection<String>>() {
+      @Override
+      public Collection<String> call() throws AppException {
+        return delegate.findGroupPersons(sysName);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#attachGroupMember(String, String)}.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> attachGroupMember(
+          final String groupSysName, final String personSysName) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.attachGroupMember(groupSysName, personSysName);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#detachGroupMember(String, String)}.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> detachGroupMember(
+          final String groupSysName, final String personSysName) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.detachGroupMember(groupSysName, personSysName);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#canCreateOrUpdateGroup()}.
+   *
+   * @return the completed answer
+   */
+  public final CompletableFuture<Boolean> canCreateOrUpdateGroup() {
+    return CompletableFuture.completedFuture(
+            delegate.canCreateOrUpdateGroup());
+  }
+
+  /**
+   * See {@link AuthSystem#createGroup(Group)}.
+   *
+   * @param group the group
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> createGroup(final Group group) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.createGroup(group);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#updateGroup(Group)}.
+   *
+   * @param group the group
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> updateGroup(final Group group) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.updateGroup(group);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#loadOrgUnit(String)}.
+   *
+   * @param name the organizational unit name
+   * @return the future organizational unit
+   */
+  public final CompletableFuture<OrgUnit> loadOrgUnit(final String name) {
+    return submit(new Call<OrgUnit>() {
+      @Override
+      public OrgUnit call() throws AppException {
+        return delegate.loadOrgUnit(name);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#findOrgUnits()}.
+   *
+   * @return the future organizational units
+   */
+  public final CompletableFuture<Collection<OrgUnit>> findOrgUnits() {
+    return submit(new Call<Collection<OrgUnit>>() {
+      @Override
+      public Collection<OrgUnit> call() throws AppException {
+        return delegate.findOrgUnits();
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#findOrgUnitPersons(String)}.
+   *
+   * @param name the organizational unit name
+   * @return the future person system names
+   */
+  public final CompletableFuture<Collection<String>> findOrgUnitPersons(
+          final String name) {
+    return submit(new Call<Collection<String>>() {
+      @Override
+      public Collection<String> call() throws AppException {
+        return delegate.findOrgUnitPersons(name);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#canCreateOrUpdateOrgUnit()}.
+   *
+   * @return the completed answer
+   */
+  public final CompletableFuture<Boolean> canCreateOrUpdateOrgUnit() {
+    return CompletableFuture.completedFuture(
+            delegate.canCreateOrUpdateOrgUnit());
+  }
+
+  /**
+   * See {@link AuthSystem#createOrgUnit(OrgUnit)}.
+   *
+   * @param orgUnit the organizational unit
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> createOrgUnit(final OrgUnit orgUnit) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.createOrgUnit(orgUnit);
+      }
+    });
+  }
+
+  /**
+   * See {@link AuthSystem#updateOrgUnit(OrgUnit)}.
+   *
+   * @param orgUnit the organizational unit
+   * @return the future completion
+   */
+  public final CompletableFuture<Void> updateOrgUnit(final OrgUnit orgUnit) {
+    return run(new Action() {
+      @Override
+      public void run() throws AppException {
+        delegate.updateOrgUnit(orgUnit);
+      }
+    });
+  }
+
+  /**
+   * Run an operation on the executor.
+   *
+   * @param <T> the result type
+   * @param call the operation
+   * @return the future result
+   */
+  private <T> CompletableFuture<T> submit(final Call<T> call) {
+    CompletableFuture<T> future = new CompletableFuture<T>();
+    execute(future, call, null, null);
+    return future;
+  }
+
+  /**
+   * Run an operation without result on the executor.
+   *
+   * @param action the operation
+   * @return the future completion
+   */
+  private CompletableFuture<Void> run(final Action action) {
+    return submit(new Call<Void>() {
+      @Override
+      public Void call() throws AppException {
+        action.run();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Run an operation on the executor, unless an identical one is running.
+   *
+   * @param <K> the key type
+   * @param <T> the result type
+   * @param running the running operations
+   * @param key the operation key
+   * @param call the operation
+   * @return the future result, not shared with the other callers
+   */
+  private <K, T> CompletableFuture<T> coalesce(
+          final ConcurrentMap<K, CompletableFuture<T>> running, final K key,
+          final Call<T> call) {
+    CompletableFuture<T> future = new CompletableFuture<T>();
+    CompletableFuture<T> shared = running.putIfAbsent(key, future);
+    if (shared == null) {
+      shared = future;
+      execute(future, call, running, key);
+    }
+    // A caller cancelling or completing its future must not affect others
+    return shared.thenApply(Function.<T>identity());
+  }
+
+  /**
+   * Run an operation on the executor and complete its future.
+   *
+   * @param <K> the key type
+   * @param <T> the result type
+   * @param future the future
+   * @param call the operation
+   * @param running the running operations, or null when not coalesced
+   * @param key the operation key, or null when not coalesced
+   */
+  private <K, T> void execute(final CompletableFuture<T> future,
+          final Call<T> call,
+          final ConcurrentMap<K, CompletableFuture<T>> running,
+          final K key) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        T result = null;
+        Throwable failure = null;
+        try {
+          result = call.call();
+        } catch (Throwable ex) {
+          failure = ex;
+        }
+        // Forget the operation first: later callers must run their own
+        if (running != null) {
+          running.remove(key, future);
+        }
+        if (failure == null) {
+          future.complete(result);
+        } else {
+          future.completeExceptionally(failure);
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RuntimeException ex) {
+      if (running != null) {
+        running.remove(key, future);
+      }
+      future.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * Create the default executor.
+   *
+   * @return the executor
+   */
+  private static ExecutorService newDefaultExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException ex) {
+      // No virtual threads before Java 21
+    } catch (IllegalAccessException | InvocationTargetException ex) {
+      // Virtual threads unavailable, e.g. disabled preview on Java 19-20
+    }
+    return Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable,
+                "auth-async-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Operation with a result.
+   *
+   * @param <T> the result type
+   */
+  private interface Call<T> {
+
+    /**
+     * Run the operation.
+     *
+     * @return the result
+     * @throws AppException on operation failure
+     */
+    T call() throws AppException;
+  }
+
+  /**
+   * Operation without result.
+   */
+  private interface Action {
+
+    /**
+     * Run the operation.
+     *
+     * @throws AppException on operation failure
+     */
+    void run() throws AppException;
+  }
+
+  /**
+   * Key of a credential check.
+   */
+  private static final class Credentials {
+
+    /**
+     * The person system name.
+     */
+    private final String sysName;
+
+    /**
+     * The password.
+     */
+    private final String password;
+
+    /**
+     * Constructor.
+     *
+     * @param pSysName the person system name
+     * @param pPassword the password
+     */
+    Credentials(final String pSysName, final String pPassword) {
+      sysName = pSysName;
+      password = pPassword;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Credentials)) {
+        return false;
+      }
+      Credentials other = (Credentials) obj;
+      return Objects.equals(sysName, other.sysName)
+              && Objects.equals(password, other.password);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sysName, password);
+    }
+  }
+
+}
@@ -0,0 +1,496 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import org.niaouli.auth.AuthSystem;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.exception.AppException;
+
+/**
+ * Read-through cache in front of a slower authentication system, such as a
+ * directory server.
+ *
+ * Persons, groups, organizational units, and the members of the groups and
+ * units are loaded from the delegate on first request, then kept until
+ * their time to live expires. Unknown system names are cached too, for a
+ * shorter time, so that repeated requests of an unknown name do not reach
+ * the delegate. Concurrent requests of an entity that is not cached share a
+ * single delegate call.
+ *
+ * Mutations go through to the delegate, then evict the entities they change.
+ * Changes made directly on the delegate are seen once the cached entities
+ * expire, or after {@link #invalidateAll()}. Credential checks and full
+ * listings are never cached.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class CachingAuthSystem implements AuthSystem {
+
+  /**
+   * Configuration key of the maximum number of cached entities of each kind.
+   */
+  public static final String CACHE_SIZE = "cache.size";
+
+  /**
+   * Configuration key of the default time to live of the cached entities, in
+   * seconds.
+   */
+  public static final String CACHE_TTL = "cache.ttl";
+
+  /**
+   * Configuration key of the time to live of the cached persons, in seconds.
+   */
+  public static final String CACHE_PERSON_TTL = "cache.person.ttl";
+
+  /**
+   * Configuration key of the time to live of the cached groups and their
+   * members, in seconds.
+   */
+  public static final String CACHE_GROUP_TTL = "cache.group.ttl";
+
+  /**
+   * Configuration key of the time to live of the cached organizational units
+   * and their members, in seconds.
+   */
+  public static final String CACHE_ORG_UNIT_TTL = "cache.orgUnit.ttl";
+
+  /**
+   * Configuration key of the time to live of the cached unknown system names,
+   * in seconds.
+   */
+  public static final String CACHE_NEGATIVE_TTL = "cache.negative.ttl";
+
+  /**
+   * Default maximum number of cached entities of each kind.
+   */
+  private static final int DEFAULT_SIZE = 10000;
+
+  /**
+   * Default time to live of the cached entities, in seconds.
+   */
+  private static final int DEFAULT_TTL = 60;
+
+  /**
+   * Default time to live of the cached unknown system names, in seconds.
+   */
+  private static final int DEFAULT_NEGATIVE_TTL = 5;
+
+  /**
+   * The cached system.
+   */
+  private final AuthSystem delegate;
+
+  /**
+   * The caches, replaced on configuration.
+   */
+  private volatile Caches caches;
+
+  /**
+   * The caches of each kind of entity.
+   */
+  private final class Caches {
+
+    /**
+     * Persons by system name.
+     */
+    private final LoadingCache<Person> persons;
+
+    /**
+     * Groups by system name.
+     */
+    private final LoadingCache<Group> groups;
+
+    /**
+     * Group members system names by group system name.
+     */
+    private final LoadingCache<Collection<String>> groupsPersons;
+
+    /**
+     * Organizational units by name.
+     */
+    private final LoadingCache<OrgUnit> orgUnits;
+
+    /**
+     * Organizational unit members system names by unit name.
+     */
+    private final LoadingCache<Collection<String>> orgUnitsPersons;
+
+    /**
+     * Constructor.
+     *
+     * @param props the configuration properties
+     */
+    Caches(final Map<String, String> props) {
+      int size = intProperty(props, CACHE_SIZE, DEFAULT_SIZE);
+      int ttl = intProperty(props, CACHE_TTL, DEFAULT_TTL);
+      int personTtl = intProperty(props, CACHE_PERSON_TTL, ttl);
+      int groupTtl = intProperty(props, CACHE_GROUP_TTL, ttl);
+      int orgUnitTtl = intProperty(props, CACHE_ORG_UNIT_TTL, ttl);
+      int negativeTtl = intProperty(props, CACHE_NEGATIVE_TTL,
+              DEFAULT_NEGATIVE_TTL);
+      persons = new LoadingCache<Person>(new LoadingCache.Loader<Person>() {
+        @Override
+        public Person load(final String key) throws AppException {
+          return delegate.loadPerson(key);
+        }
+      }, size, personTtl, negativeTtl);
+      groups = new LoadingCache<Group>(new LoadingCache.Loader<Group>() {
+        @Override
+        public Group load(final String key) throws AppException {
+          return delegate.loadGroup(key);
+        }
+      }, size, groupTtl, negativeTtl);
+      groupsPersons = new LoadingCache<Collection<String>>(
+              new LoadingCache.Loader<Collection<String>>() {
+        @Override
+        public Collection<String> load(final String key)
+                throws AppException {
+          return copy(delegate.findGroupPersons(key));
+        }
+      }, size, groupTtl, negativeTtl);
+      orgUnits = new LoadingCache<OrgUnit>(
+              new LoadingCache.Loader<OrgUnit>() {
+        @Override
+        public OrgUnit load(final String key) throws AppException {
+          return delegate.loadOrgUnit(key);
+        }
+      }, size, orgUnitTtl, negativeTtl);
+      orgUnitsPersons = new LoadingCache<Collection<String>>(
+              new LoadingCache.Loader<Collection<String>>() {
+        @Override
+        public Collection<String> load(final String key)
+                throws AppException {
+          return copy(delegate.findOrgUnitPersons(key));
+        }
+      }, size, orgUnitTtl, negativeTtl);
+    }
+  }
+
+  /**
+   * Create a cache with the default configuration.
+   *
+   * @param pDelegate the cached system
+   */
+  public CachingAuthSystem(final AuthSystem pDelegate) {
+    delegate = Objects.requireNonNull(pDelegate, "delegate");
+    caches = new Caches(Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Get the cached system.
+   *
+   * @return the cached system
+   */
+  public final AuthSystem getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Configure the cache and the cached system. The cached entities are
+   * dropped.
+   *
+   * Up to {@link #CACHE_SIZE} entities of each kind are cached (default:
+   * 10000). Persons are kept {@link #CACHE_PERSON_TTL} seconds, groups and
+   * their members {@link #CACHE_GROUP_TTL} seconds, organizational units and
+   * their members {@link #CACHE_ORG_UNIT_TTL} seconds, all defaulting to
+   * {@link #CACHE_TTL} seconds (default: 60). Unknown system names are kept
+   * {@link #CACHE_NEGATIVE_TTL} seconds (default: 5).
+   *
+   * @param props the configuration properties
+   */
+  @Override
+  public final void configure(final Map<String, String> props) {
+    Caches configured = new Caches(props);
+    delegate.configure(props);
+    caches = configured;
+  }
+
+  /**
+   * Drop all the cached entities, so that they are loaded again from the
+   * cached system.
+   */
+  public final void invalidateAll() {
+    Caches current = caches;
+    current.persons.invalidateAll();
+    current.groups.invalidateAll();
+    current.groupsPersons.invalidateAll();
+    current.orgUnits.invalidateAll();
+    current.orgUnitsPersons.invalidateAll();
+  }
+
+  /**
+   * Get the number of requests answered from the cache.
+   *
+   * @return the hits count
+   */
+  public final long getHits() {
+    Caches current = caches;
+    return current.persons.getHits() + current.groups.getHits()
+            + current.groupsPersons.getHits() + current.orgUnits.getHits()
+            + current.orgUnitsPersons.getHits();
+  }
+
+  /**
+   * Get the number of requests that waited for the cached system, alone or
+   * sharing a call with concurrent identical requests.
+   *
+   * @return the misses count
+   */
+  public final long getMisses() {
+    Caches current = caches;
+    return current.persons.getMisses() + current.groups.getMisses()
+            + current.groupsPersons.getMisses()
+            + current.orgUnits.getMisses()
+            + current.orgUnitsPersons.getMisses();
+  }
+
+  /**
+   * Get the number of calls made to the cached system to load entities.
+   *
+   * @return the loads count
+   */
+  public final long getLoads() {
+    Caches current = caches;
+    return current.persons.getLoads() + current.groups.getLoads()
+            + current.groupsPersons.getLoads() + current.orgUnits.getLoads()
+            + current.orgUnitsPersons.getLoads();
+  }
+
+  @Override
+  public final boolean checkHealth() {
+    return delegate.checkHealth();
+  }
+
+  @Override
+  public final boolean checkCredentials(final String sysName,
+          final String password) throws AppException {
+    return delegate.checkCredentials(sysName, password);
+  }
+
+  @Override
+  public final Person loadPerson(final String sysName) throws AppException {
+    if (sysName == null) {
+      return delegate.loadPerson(null);
+    }
+    return caches.persons.get(sysName);
+  }
+
+  @Override
+  public final Collection<Person> findPersons() {
+    return delegate.findPersons();
+  }
+
+  @Override
+  public final boolean canCreateOrUpdatePerson() {
+    return delegate.canCreateOrUpdatePerson();
+  }
+
+  @Override
+  public final boolean canUpdatePassword() {
+    return delegate.canUpdatePassword();
+  }
+
+  @Override
+  public final void createPerson(final Person person) throws AppException {
+    delegate.createPerson(person);
+    evictPerson(person, true);
+  }
+
+  @Override
+  public final void updatePerson(final Person person) throws AppException {
+    delegate.updatePerson(person);
+    evictPerson(person, false);
+  }
+
+  @Override
+  public final void updatePersonPassword(final String sysName,
+          final String password) throws AppException {
+    delegate.updatePersonPassword(sysName, password);
+  }
+
+  @Override
+  public final Group loadGroup(final String sysName) throws AppException {
+    if (sysName == null) {
+      return delegate.loadGroup(null);
+    }
+    return caches.groups.get(sysName);
+  }
+
+  @Override
+  public final Collection<Group> findGroups() {
+    return delegate.findGroups();
+  }
+
+  @Override
+  public final Collection<String> findGroupPersons(final String sysName)
+          throws AppException {
+    if (sysName == null) {
+      return delegate.findGroupPersons(null);
+    }
+    return caches.groupsPersons.get(sysName);
+  }
+
+  @Override
+  public final void attachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    delegate.attachGroupMember(groupSysName, personSysName);
+    evict(caches.groupsPersons, groupSysName);
+  }
+
+  @Override
+  public final void detachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    delegate.detachGroupMember(groupSysName, personSysName);
+    evict(caches.groupsPersons, groupSysName);
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateGroup() {
+    return delegate.canCreateOrUpdateGroup();
+  }
+
+  @Override
+  public final void createGroup(final Group group) throws AppException {
+    delegate.createGroup(group);
+    Caches current = caches;
+    evict(current.groups, group.getSysName());
+    evict(current.groupsPersons, group.getSysName());
+  }
+
+  @Override
+  public final void updateGroup(final Group group) throws AppException {
+    delegate.updateGroup(group);
+    evict(caches.groups, group.getSysName());
+  }
+
+  @Override
+  public final OrgUnit loadOrgUnit(final String name) throws AppException {
+    if (name == null) {
+      return delegate.loadOrgUnit(null);
+    }
+    return caches.orgUnits.get(name);
+  }
+
+  @Override
+  public final Collection<OrgUnit> findOrgUnits() {
+    return delegate.findOrgUnits();
+  }
+
+  @Override
+  public final Collection<String> findOrgUnitPersons(final String name)
+          throws AppException {
+    if (name == null) {
+      return delegate.findOrgUnitPersons(null);
+    }
+    return caches.orgUnitsPersons.get(name);
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateOrgUnit() {
+    return delegate.canCreateOrUpdateOrgUnit();
+  }
+
+  @Override
+  public final void createOrgUnit(final OrgUnit orgUnit) throws AppException {
+    delegate.createOrgUnit(orgUnit);
+    Caches current = caches;
+    evict(current.orgUnits, orgUnit.getName());
+    evict(current.orgUnitsPersons, orgUnit.getName());
+  }
+
+  @Override
+  public final void updateOrgUnit(final OrgUnit orgUnit) throws AppException {
+    delegate.updateOrgUnit(orgUnit);
+    evict(caches.orgUnits, orgUnit.getName());
+  }
+
+  /**
+   * Evict a created or updated person, and the members of the
+   * organizational units it may have left or joined. When the previous unit
+   * of an updated person is not cached, the members of all the units are
+   * evicted.
+   *
+   * @param person the person
+   * @param created true if the person was created
+   */
+  private void evictPerson(final Person person, final boolean created) {
+    String sysName = person.getSysName();
+    if (sysName == null) {
+      return;
+    }
+    Caches current = caches;
+    Person previous = current.persons.peek(sysName);
+    current.persons.invalidate(sysName);
+    if (previous != null) {
+      evict(current.orgUnitsPersons, previous.getOrgUnitName());
+    } else if (!created) {
+      current.orgUnitsPersons.invalidateAll();
+    }
+    evict(current.orgUnitsPersons, person.getOrgUnitName());
+  }
+
+  /**
+   * Evict an entry of a cache.
+   *
+   * @param cache the cache
+   * @param key the key, may be null
+   */
+  private static void evict(final LoadingCache<?> cache, final String key) {
+    if (key != null) {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Copy a collection of system names, so that the cached copy is neither
+   * changed by the cached system nor by the callers.
+   *
+   * @param sysNames the system names
+   * @return the copy
+   */
+  private static Collection<String> copy(final Collection<String> sysNames) {
+    if (sysNames == null) {
+      return null;
+    }
+    return Collections.unmodifiableList(new ArrayList<String>(sysNames));
+  }
+
+  /**
+   * Read an integer property.
+   *
+   * @param props the properties
+   * @param key the property key
+   * @param defaultValue the value when the property is not set
+   * @return the property value
+   */
+  private static int intProperty(final Map<String, String> props,
+          final String key, final int defaultValue) {
+    String value = props.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
+
+}
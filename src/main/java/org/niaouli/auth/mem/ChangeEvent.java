@@ -0,0 +1,301 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+
+/**
+ * A change applied to a {@link MemAuthSystem}, as delivered to its
+ * {@link ChangeListener}s. Password changes tell which person changed, never
+ * the password.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class ChangeEvent {
+
+  /**
+   * Change types.
+   */
+  public enum Type {
+    /**
+     * Person created.
+     */
+    PERSON_CREATED,
+    /**
+     * Person updated.
+     */
+    PERSON_UPDATED,
+    /**
+     * Password updated.
+     */
+    PASSWORD_UPDATED,
+    /**
+     * Group created.
+     */
+    GROUP_CREATED,
+    /**
+     * Group updated.
+     */
+    GROUP_UPDATED,
+    /**
+     * Person attached to a group.
+     */
+    MEMBER_ATTACHED,
+    /**
+     * Person detached from a group.
+     */
+    MEMBER_DETACHED,
+    /**
+     * Organizational unit created.
+     */
+    ORG_UNIT_CREATED,
+    /**
+     * Organizational unit updated.
+     */
+    ORG_UNIT_UPDATED,
+    /**
+     * Group attached to a parent group.
+     */
+    SUB_GROUP_ATTACHED,
+    /**
+     * Group detached from a parent group.
+     */
+    SUB_GROUP_DETACHED,
+    /**
+     * Organizational unit moved under another one.
+     */
+    ORG_UNIT_MOVED
+  }
+
+  /**
+   * The sequence number.
+   */
+  private final long sequence;
+
+  /**
+   * The change type.
+   */
+  private final Type type;
+
+  /**
+   * The system name or the name of the changed entity.
+   */
+  private final String key;
+
+  /**
+   * The person or sub-group member system name, or the new parent unit
+   * name, if relevant.
+   */
+  private final String related;
+
+  /**
+   * The new state of the changed entity, if relevant.
+   */
+  private final Object entity;
+
+  /**
+   * The mutation, for the replication.
+   */
+  private final Mutation mutation;
+
+  /**
+   * Constructor.
+   *
+   * @param pSequence the sequence number
+   * @param pType the change type
+   * @param pKey the system name or the name of the changed entity
+   * @param pRelated the member system name or the parent unit name
+   * @param pEntity the new state of the changed entity
+   * @param pMutation the mutation
+   */
+  private ChangeEvent(final long pSequence, final Type pType,
+          final String pKey, final String pRelated,
+          final Object pEntity, final Mutation pMutation) {
+    sequence = pSequence;
+    type = pType;
+    key = pKey;
+    related = pRelated;
+    entity = pEntity;
+    mutation = pMutation;
+  }
+
+  /**
+   * Create the event of a mutation.
+   *
+   * @param sequence the sequence number
+   * @param mutation the mutation
+   * @return the event
+   */
+  static ChangeEvent of(final long sequence, final Mutation mutation) {
+    switch (mutation.getType()) {
+      case CREATE_PERSON:
+        return entity(sequence, Type.PERSON_CREATED, mutation);
+      case UPDATE_PERSON:
+        return entity(sequence, Type.PERSON_UPDATED, mutation);
+      case UPDATE_PASSWORD:
+        return new ChangeEvent(sequence, Type.PASSWORD_UPDATED,
+                mutation.getKey(), null, null, mutation);
+      case CREATE_GROUP:
+        return entity(sequence, Type.GROUP_CREATED, mutation);
+      case UPDATE_GROUP:
+        return entity(sequence, Type.GROUP_UPDATED, mutation);
+      case ATTACH_MEMBER:
+        return new ChangeEvent(sequence, Type.MEMBER_ATTACHED,
+                mutation.getKey(), mutation.getValue(), null, mutation);
+      case DETACH_MEMBER:
+        return new ChangeEvent(sequence, Type.MEMBER_DETACHED,
+                mutation.getKey(), mutation.getValue(), null, mutation);
+      case ATTACH_SUB_GROUP:
+        return new ChangeEvent(sequence, Type.SUB_GROUP_ATTACHED,
+                mutation.getKey(), mutation.getValue(), null, mutation);
+      case DETACH_SUB_GROUP:
+        return new ChangeEvent(sequence, Type.SUB_GROUP_DETACHED,
+                mutation.getKey(), mutation.getValue(), null, mutation);
+      case MOVE_ORG_UNIT:
+        return new ChangeEvent(sequence, Type.ORG_UNIT_MOVED,
+                mutation.getKey(), mutation.getValue(), null, mutation);
+      case CREATE_ORG_UNIT:
+        return entity(sequence, Type.ORG_UNIT_CREATED, mutation);
+      case UPDATE_ORG_UNIT:
+        return entity(sequence, Type.ORG_UNIT_UPDATED, mutation);
+      default:
+        throw new IllegalArgumentException("Unknown mutation "
+                + mutation.getType());
+    }
+  }
+
+  /**
+   * Create the event of a mutation carrying an entity.
+   *
+   * @param sequence the sequence number
+   * @param type the change type
+   * @param mutation the mutation
+   * @return the event
+   */
+  private static ChangeEvent entity(final long sequence, final Type type,
+          final Mutation mutation) {
+    return new ChangeEvent(sequence, type, mutation.getKey(), null,
+            mutation.getEntity(), mutation);
+  }
+
+  /**
+   * Get the sequence number, increasing by one with each change of the
+   * system.
+   *
+   * @return the sequence number
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Get the change type.
+   *
+   * @return the type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Get the system name of the changed person or group, or the name of the
+   * changed organizational unit.
+   *
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Get the system name of the attached or detached person, or sub-group.
+   *
+   * @return the member system name, null for other changes
+   */
+  public String getMemberSysName() {
+    if (type == Type.ORG_UNIT_MOVED) {
+      return null;
+    }
+    return related;
+  }
+
+  /**
+   * Get the new parent of a moved organizational unit.
+   *
+   * @return the parent unit name, null for other changes or when the unit
+   * was moved to the top level
+   */
+  public String getParentName() {
+    if (type == Type.ORG_UNIT_MOVED) {
+      return related;
+    }
+    return null;
+  }
+
+  /**
+   * Get the created or updated person.
+   *
+   * @return the person, null for other changes
+   */
+  public Person getPerson() {
+    if (entity instanceof Person) {
+      return (Person) entity;
+    }
+    return null;
+  }
+
+  /**
+   * Get the created or updated group.
+   *
+   * @return the group, null for other changes
+   */
+  public Group getGroup() {
+    if (entity instanceof Group) {
+      return (Group) entity;
+    }
+    return null;
+  }
+
+  /**
+   * Get the created or updated organizational unit.
+   *
+   * @return the organizational unit, null for other changes
+   */
+  public OrgUnit getOrgUnit() {
+    if (entity instanceof OrgUnit) {
+      return (OrgUnit) entity;
+    }
+    return null;
+  }
+
+  /**
+   * Get the mutation, including the stored password of a password change.
+   *
+   * @return the mutation
+   */
+  Mutation getMutation() {
+    return mutation;
+  }
+
+  @Override
+  public String toString() {
+    return "ChangeEvent{" + sequence + " " + type + " " + key + "}";
+  }
+
+}
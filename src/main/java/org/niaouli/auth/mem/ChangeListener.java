@@ -0,0 +1,46 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.List;
+
+/**
+ * Receives the changes of a {@link MemAuthSystem}, on the delivery thread of
+ * its {@link ChangeSubscription}.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public interface ChangeListener {
+
+  /**
+   * Receive a batch of changes.
+   *
+   * @param events the changes, with consecutive sequence numbers
+   */
+  void onChanges(List<ChangeEvent> events);
+
+  /**
+   * Learn that changes were dropped from the buffer before being delivered,
+   * because the listener was too slow or resumed too far back. The listener
+   * should reload whatever it keeps, the delivery then goes on with the
+   * oldest buffered change.
+   *
+   * @param firstLost the sequence number of the first lost change
+   * @param lastLost the sequence number of the last lost change
+   */
+  void onChangesLost(long firstLost, long lastLost);
+}
@@ -0,0 +1,238 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer of the last changes of a {@link MemAuthSystem}.
+ *
+ * Writers never wait for the subscriptions, nor for each other: a change
+ * claims its sequence number atomically and overwrites the oldest one in the
+ * ring, and the monitor is only taken to wake up the subscriptions waiting
+ * for it. A subscription that falls behind is told which changes it lost.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class ChangeStream {
+
+  /**
+   * Maximum number of changes delivered in a batch.
+   */
+  private static final int MAX_BATCH = 256;
+
+  /**
+   * The buffered changes, the change of sequence number n being at index n
+   * modulo the capacity. A slot holding an older change than expected is
+   * not written yet.
+   */
+  private volatile AtomicReferenceArray<ChangeEvent> ring;
+
+  /**
+   * Sequence number of the last claimed change, 0 before the first one.
+   */
+  private final AtomicLong lastSequence = new AtomicLong();
+
+  /**
+   * Number of subscriptions waiting for a change.
+   */
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  /**
+   * Random non-zero identifier of the stream, telling apart the sequence
+   * numbers of different instances.
+   */
+  private final long epoch;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the number of changes to keep
+   */
+  ChangeStream(final int capacity) {
+    ring = new AtomicReferenceArray<ChangeEvent>(capacity);
+    long random = new Random().nextLong();
+    if (random == 0L) {
+      random = 1L;
+    }
+    epoch = random;
+  }
+
+  /**
+   * Get the identifier of the stream.
+   *
+   * @return the non-zero identifier
+   */
+  long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Change the number of changes to keep, keeping the latest ones. The
+   * caller must hold all the system locks, so that no change is published
+   * meanwhile.
+   *
+   * @param capacity the number of changes to keep, 0 to keep none
+   */
+  synchronized void setCapacity(final int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    AtomicReferenceArray<ChangeEvent> current = ring;
+    if (capacity == current.length()) {
+      return;
+    }
+    AtomicReferenceArray<ChangeEvent> resized =
+            new AtomicReferenceArray<ChangeEvent>(capacity);
+    long last = lastSequence.get();
+    long first = Math.max(firstBuffered(current, last),
+            last - capacity + 1);
+    for (long seq = first; seq <= last; seq++) {
+      resized.set(index(seq, resized), current.get(index(seq, current)));
+    }
+    ring = resized;
+  }
+
+  /**
+   * Publish a mutation. The caller must hold the system locks guarding the
+   * mutation, so that the sequence order matches the application order.
+   *
+   * @param mutation the applied mutation
+   */
+  void publish(final Mutation mutation) {
+    long seq = lastSequence.incrementAndGet();
+    AtomicReferenceArray<ChangeEvent> current = ring;
+    if (current.length() > 0) {
+      int index = index(seq, current);
+      ChangeEvent event = ChangeEvent.of(seq, mutation);
+      ChangeEvent previous = current.get(index);
+      // A publisher delayed past a full turn must not overwrite a newer one
+      while ((previous == null || previous.getSequence() < seq)
+              && !current.compareAndSet(index, previous, event)) {
+        previous = current.get(index);
+      }
+    }
+    // Read after the write: a waiter missed here sees the change itself
+    if (waiters.get() > 0) {
+      wakeUp();
+    }
+  }
+
+  /**
+   * Get the sequence number of the last change.
+   *
+   * @return the sequence number, 0 before the first change
+   */
+  long getLastSequence() {
+    return lastSequence.get();
+  }
+
+  /**
+   * Wait for the changes to deliver to a subscription.
+   *
+   * @param subscription the subscription, stops the wait when closed
+   * @param next the sequence number of the next change to deliver
+   * @param batch receives the changes
+   * @return the sequence number of the first change added to the batch,
+   * greater than next if older changes were lost
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized long take(final ChangeSubscription subscription,
+          final long next, final List<ChangeEvent> batch)
+          throws InterruptedException {
+    while (!subscription.isClosed()) {
+      AtomicReferenceArray<ChangeEvent> current = ring;
+      long last = lastSequence.get();
+      long first = Math.max(next, firstBuffered(current, last));
+      for (long seq = first; seq <= last && batch.size() < MAX_BATCH;
+              seq++) {
+        ChangeEvent event = current.get(index(seq, current));
+        // Stop at a change not written yet, or overwritten meanwhile
+        if (event == null || event.getSequence() != seq) {
+          break;
+        }
+        batch.add(event);
+      }
+      if (first > next || !batch.isEmpty()) {
+        return first;
+      }
+      waiters.incrementAndGet();
+      try {
+        if (!subscription.isClosed() && !isWritten(next)) {
+          wait();
+        }
+      } finally {
+        waiters.decrementAndGet();
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Wake up the subscriptions waiting for changes.
+   */
+  synchronized void wakeUp() {
+    notifyAll();
+  }
+
+  /**
+   * Tell if a change was written, or overwritten by a later one.
+   *
+   * @param seq the change sequence number
+   * @return true if written
+   */
+  private boolean isWritten(final long seq) {
+    if (seq > lastSequence.get()) {
+      return false;
+    }
+    AtomicReferenceArray<ChangeEvent> current = ring;
+    if (current.length() == 0) {
+      return true;
+    }
+    ChangeEvent event = current.get(index(seq, current));
+    return event != null && event.getSequence() >= seq;
+  }
+
+  /**
+   * Get the sequence number of the oldest buffered change.
+   *
+   * @param current the ring
+   * @param last the sequence number of the last change
+   * @return the sequence number, last + 1 when none is buffered
+   */
+  private static long firstBuffered(
+          final AtomicReferenceArray<ChangeEvent> current, final long last) {
+    return Math.max(1L, last - current.length() + 1);
+  }
+
+  /**
+   * Get the index of a change in a ring.
+   *
+   * @param seq the change sequence number
+   * @param current the ring
+   * @return the index
+   */
+  private static int index(final long seq,
+          final AtomicReferenceArray<ChangeEvent> current) {
+    return (int) (seq % current.length());
+  }
+
+}
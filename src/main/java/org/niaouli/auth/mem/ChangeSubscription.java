@@ -0,0 +1,158 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Subscription of a {@link ChangeListener} to the changes of a
+ * {@link MemAuthSystem}. Each subscription delivers the changes on its own
+ * daemon thread, so that a slow listener only delays itself.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class ChangeSubscription implements Runnable {
+
+  /**
+   * The changes buffer.
+   */
+  private final ChangeStream stream;
+
+  /**
+   * The listener.
+   */
+  private final ChangeListener listener;
+
+  /**
+   * The delivery thread.
+   */
+  private final Thread deliverer;
+
+  /**
+   * Sequence number of the next change to deliver.
+   */
+  private volatile long nextSequence;
+
+  /**
+   * Whether the subscription is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Exception thrown by the listener, which closed the subscription.
+   */
+  private volatile RuntimeException failure;
+
+  /**
+   * Constructor. The delivery starts with {@link #start()}.
+   *
+   * @param pStream the changes buffer
+   * @param pListener the listener
+   * @param fromSequence the sequence number of the first change to deliver
+   */
+  ChangeSubscription(final ChangeStream pStream,
+          final ChangeListener pListener, final long fromSequence) {
+    stream = pStream;
+    listener = pListener;
+    nextSequence = Math.max(1L, fromSequence);
+    deliverer = new Thread(this, "niaouli-auth-mem-changes");
+    deliverer.setDaemon(true);
+  }
+
+  /**
+   * Start the delivery.
+   */
+  void start() {
+    deliverer.start();
+  }
+
+  /**
+   * Get the sequence number of the next change to deliver, to resume from
+   * after closing the subscription.
+   *
+   * @return the sequence number
+   */
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  /**
+   * Tell if the subscription is closed.
+   *
+   * @return true once closed, or after the listener failed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Get the exception thrown by the listener, which closed the subscription.
+   *
+   * @return the exception, null if the listener did not fail
+   */
+  public RuntimeException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Stop the delivery, once the batch being delivered is done. Waits for the
+   * delivery thread, unless called from the listener.
+   */
+  public void close() {
+    closed = true;
+    stream.wakeUp();
+    if (Thread.currentThread() != deliverer) {
+      try {
+        deliverer.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Delivery thread loop.
+   */
+  @Override
+  public void run() {
+    List<ChangeEvent> batch = new ArrayList<ChangeEvent>();
+    try {
+      while (!closed) {
+        batch.clear();
+        long next = nextSequence;
+        long first = stream.take(this, next, batch);
+        if (first > next) {
+          listener.onChangesLost(next, first - 1);
+          nextSequence = first;
+        }
+        if (!batch.isEmpty()) {
+          listener.onChanges(Collections.unmodifiableList(
+                  new ArrayList<ChangeEvent>(batch)));
+          nextSequence = first + batch.size();
+        }
+      }
+    } catch (InterruptedException ex) {
+      closed = true;
+    } catch (RuntimeException ex) {
+      failure = ex;
+      closed = true;
+    }
+  }
+
+}
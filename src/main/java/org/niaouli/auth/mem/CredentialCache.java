@@ -0,0 +1,282 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short-lived cache of successfully verified credentials.
+ *
+ * Each entry holds a HMAC of the system name and password, computed with a
+ * random key that never leaves the instance, so that no password is kept in
+ * memory. An entry is only honoured while the stored password it was verified
+ * against is still the current one, so a password update can never be
+ * bypassed even by a verification racing with it.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class CredentialCache implements Serializable {
+
+  /**
+   * JCE algorithm name of the digest.
+   */
+  private static final String ALGORITHM = "HmacSHA256";
+
+  /**
+   * Digest key length, in bytes.
+   */
+  private static final int KEY_LENGTH = 32;
+
+  /**
+   * Divisor of the maximum size giving the number of entries evicted at once
+   * when the cache is full.
+   */
+  private static final int EVICTION_DIVISOR = 16;
+
+  /**
+   * Maximum number of entries.
+   */
+  private final int maxSize;
+
+  /**
+   * Entries time to live, in nanoseconds.
+   */
+  private final long ttl;
+
+  /**
+   * Number of credential checks answered by the cache.
+   */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Number of credential checks not answered by the cache.
+   */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Entries, mapped by person system name.
+   */
+  private transient ConcurrentHashMap<String, Entry> entries;
+
+  /**
+   * Digest key.
+   */
+  private transient SecretKeySpec key;
+
+  /**
+   * Constructor.
+   *
+   * @param pMaxSize maximum number of entries
+   * @param pTtl entries time to live, in seconds
+   */
+  CredentialCache(final int pMaxSize, final long pTtl) {
+    if (pMaxSize < 1 || pTtl < 1) {
+      throw new IllegalArgumentException(
+              "Size and time to live must be positive");
+    }
+    maxSize = pMaxSize;
+    ttl = TimeUnit.SECONDS.toNanos(pTtl);
+    init();
+  }
+
+  /**
+   * Tell if credentials were recently verified.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @param stored the currently stored password
+   * @return true if the credentials were verified against the same stored
+   * password less than the time to live ago
+   */
+  boolean isVerified(final String sysName, final String password,
+          final String stored) {
+    Entry entry = entries.get(sysName);
+    // Stores holding their values off the heap decode a new copy on each
+    // lookup, so the stored passwords are compared by value
+    if (entry != null && entry.stored.equals(stored)) {
+      if (System.nanoTime() - entry.expiresAt >= 0) {
+        entries.remove(sysName, entry);
+      } else if (MessageDigest.isEqual(entry.digest,
+              digest(sysName, password))) {
+        hits.incrementAndGet();
+        return true;
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Remember verified credentials.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @param stored the stored password they were verified against
+   */
+  void put(final String sysName, final String password,
+          final String stored) {
+    long now = System.nanoTime();
+    if (entries.size() >= maxSize) {
+      evict(now);
+    }
+    entries.put(sysName, new Entry(stored, digest(sysName, password),
+            now + ttl));
+  }
+
+  /**
+   * Forget the credentials of a person.
+   *
+   * @param sysName the person system name
+   */
+  void invalidate(final String sysName) {
+    entries.remove(sysName);
+  }
+
+  /**
+   * Get the number of credential checks answered by the cache.
+   *
+   * @return the hits count
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of credential checks not answered by the cache.
+   *
+   * @return the misses count
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Make room for new entries: drop the expired ones, or a batch of
+   * arbitrary ones if none has expired.
+   *
+   * @param now the current time, in nanoseconds
+   */
+  private void evict(final long now) {
+    boolean expired = false;
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      if (now - it.next().expiresAt >= 0) {
+        it.remove();
+        expired = true;
+      }
+    }
+    if (!expired) {
+      int count = Math.max(1, maxSize / EVICTION_DIVISOR);
+      Iterator<Entry> it = entries.values().iterator();
+      while (count > 0 && it.hasNext()) {
+        it.next();
+        it.remove();
+        count--;
+      }
+    }
+  }
+
+  /**
+   * Compute the digest of credentials.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @return the digest
+   */
+  private byte[] digest(final String sysName, final String password) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      mac.update(sysName.getBytes("UTF-8"));
+      mac.update((byte) 0);
+      return mac.doFinal(String.valueOf(password).getBytes("UTF-8"));
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException(ALGORITHM + " is not available", ex);
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException("UTF-8 is not available", ex);
+    }
+  }
+
+  /**
+   * Create the entries map and a new digest key.
+   */
+  private void init() {
+    entries = new ConcurrentHashMap<String, Entry>();
+    byte[] keyBytes = new byte[KEY_LENGTH];
+    new SecureRandom().nextBytes(keyBytes);
+    key = new SecretKeySpec(keyBytes, ALGORITHM);
+  }
+
+  /**
+   * Restore a deserialized cache, empty and with a new digest key.
+   *
+   * @param in the stream
+   * @throws IOException on read error
+   * @throws ClassNotFoundException on unknown class
+   */
+  private void readObject(final ObjectInputStream in) throws IOException,
+          ClassNotFoundException {
+    in.defaultReadObject();
+    init();
+  }
+
+  /**
+   * A verified credential.
+   */
+  private static final class Entry {
+
+    /**
+     * The stored password the credential was verified against.
+     */
+    private final String stored;
+
+    /**
+     * The credential digest.
+     */
+    private final byte[] digest;
+
+    /**
+     * The expiration time, in nanoseconds.
+     */
+    private final long expiresAt;
+
+    /**
+     * Constructor.
+     *
+     * @param pStored the stored password
+     * @param pDigest the credential digest
+     * @param pExpiresAt the expiration time, in nanoseconds
+     */
+    Entry(final String pStored, final byte[] pDigest, final long pExpiresAt) {
+      stored = pStored;
+      digest = pDigest;
+      expiresAt = pExpiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,935 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.exception.AppException;
+
+/**
+ * Bulk loader of a {@link MemAuthSystem} from CSV or LDIF exports.
+ *
+ * The file is memory-mapped and split into chunks ending on record
+ * boundaries, parsed in parallel on a fork-join pool, a bounded window of
+ * chunks at a time, while the previous window is applied in file order
+ * through the batch operations of the system. Passwords are hashed by the
+ * parsing threads. Only the window is held in memory, whatever the size of
+ * the file.
+ *
+ * The file is read twice: the first pass creates the organizational units,
+ * persons, passwords and groups, the second one places the units in their
+ * parents and attaches the members, so that the records may come in any
+ * order. An invalid record stops the import with an {@link IOException}, and
+ * a record rejected by the system with its {@link AppException}; the records
+ * applied before are kept.
+ *
+ * CSV files hold one record per line, without line breaks in the quoted
+ * values, and empty values stand for none:
+ * <ul>
+ * <li>{@code orgUnit,name[,parentName]}</li>
+ * <li>{@code person,sysName[,fullName[,orgUnitName[,password]]]}</li>
+ * <li>{@code group,sysName[,description]}</li>
+ * <li>{@code member,groupSysName,personSysName}</li>
+ * <li>{@code subGroup,parentSysName,childSysName}</li>
+ * </ul>
+ * Blank lines and lines starting with {@code #} are skipped.
+ *
+ * LDIF entries are read by object class: organizational units named by
+ * {@code ou}, persons by {@code uid} with their {@code cn} full name and
+ * {@code userPassword}, and groups of names by {@code cn} with their
+ * {@code description}. A unit or person is placed in the unit of the
+ * {@code ou} parent of its DN. Group members are resolved by the first RDN
+ * of their DN: {@code uid} RDNs name persons, others name sub-groups;
+ * {@code memberUid} values name persons. Only clear-text passwords can be
+ * imported: the {@code userPassword} values hashed by the directory, with a
+ * {@code {scheme}} prefix such as {@code {SSHA}}, are skipped, and those
+ * persons are left without password; {@code {CLEARTEXT}} values are
+ * imported without their prefix.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class DirectoryImporter {
+
+  /**
+   * Default size of the parsed chunks.
+   */
+  private static final int DEFAULT_CHUNK_BYTES = 1 << 23;
+
+  /**
+   * Size of the reads looking for the record boundaries.
+   */
+  private static final int SCAN_BYTES = 1 << 16;
+
+  /**
+   * Number of chunks parsed at a time per thread of the pool.
+   */
+  private static final int WINDOW_PER_THREAD = 2;
+
+  /**
+   * Number of passes over the file.
+   */
+  private static final int PASSES = 2;
+
+  /**
+   * Record types of the CSV format.
+   */
+  private static final List<String> CSV_TYPES = Arrays.asList("orgUnit",
+          "person", "group", "member", "subGroup");
+
+  /**
+   * Receives the progress of an import.
+   */
+  public interface Progress {
+
+    /**
+     * Report the progress after a chunk is applied.
+     *
+     * @param readBytes number of bytes applied, over both passes
+     * @param totalBytes twice the size of the file
+     * @param records number of records read by the first pass so far
+     */
+    void onProgress(long readBytes, long totalBytes, long records);
+  }
+
+  /**
+   * Supported file formats.
+   */
+  private enum Format {
+    /**
+     * Comma separated values.
+     */
+    CSV,
+    /**
+     * LDAP data interchange format.
+     */
+    LDIF
+  }
+
+  /**
+   * The loaded system.
+   */
+  private final MemAuthSystem system;
+
+  /**
+   * Size of the parsed chunks.
+   */
+  private final int chunkBytes;
+
+  /**
+   * Pool parsing the chunks.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Create an importer using the common fork-join pool.
+   *
+   * @param pSystem the loaded system
+   */
+  public DirectoryImporter(final MemAuthSystem pSystem) {
+    this(pSystem, DEFAULT_CHUNK_BYTES, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Create an importer.
+   *
+   * @param pSystem the loaded system
+   * @param pChunkBytes size of the parsed chunks
+   * @param pPool pool parsing the chunks
+   */
+  public DirectoryImporter(final MemAuthSystem pSystem, final int pChunkBytes,
+          final ForkJoinPool pPool) {
+    if (pChunkBytes < 1) {
+      throw new IllegalArgumentException("Invalid chunk size: "
+              + pChunkBytes);
+    }
+    system = Objects.requireNonNull(pSystem, "system");
+    chunkBytes = pChunkBytes;
+    pool = Objects.requireNonNull(pPool, "pool");
+  }
+
+  /**
+   * Import a CSV file.
+   *
+   * @param file the file, in UTF-8
+   * @param progress receives the progress, may be null
+   * @return the number of records
+   * @throws IOException on read error or invalid record
+   * @throws AppException if a record is rejected by the system
+   */
+  public final long importCsv(final File file, final Progress progress)
+          throws IOException, AppException {
+    return importFile(file, Format.CSV, progress);
+  }
+
+  /**
+   * Import a LDIF file.
+   *
+   * @param file the file, in UTF-8
+   * @param progress receives the progress, may be null
+   * @return the number of entries
+   * @throws IOException on read error or invalid entry
+   * @throws AppException if an entry is rejected by the system
+   */
+  public final long importLdif(final File file, final Progress progress)
+          throws IOException, AppException {
+    return importFile(file, Format.LDIF, progress);
+  }
+
+  /**
+   * Import a file.
+   *
+   * @param file the file
+   * @param format the file format
+   * @param progress receives the progress, may be null
+   * @return the number of records
+   * @throws IOException on read error or invalid record
+   * @throws AppException if a record is rejected by the system
+   */
+  private long importFile(final File file, final Format format,
+          final Progress progress) throws IOException, AppException {
+    RandomAccessFile access = new RandomAccessFile(file, "r");
+    ForkJoinTask<List<Batch>> next = null;
+    boolean completed = false;
+    try {
+      FileChannel channel = access.getChannel();
+      long[] bounds = boundaries(channel, format);
+      long total = PASSES * channel.size();
+      int window = Math.max(1, pool.getParallelism() * WINDOW_PER_THREAD);
+      int chunks = bounds.length - 1;
+      long records = 0L;
+      for (int pass = 1; pass <= PASSES; pass++) {
+        long done = (pass - 1) * channel.size();
+        next = pool.submit(parseTask(channel, bounds, format, pass, 0,
+                Math.min(window, chunks)));
+        for (int from = 0; from < chunks; from += window) {
+          List<Batch> batches = join(next);
+          int to = from + window;
+          if (to < chunks) {
+            next = pool.submit(parseTask(channel, bounds, format, pass,
+                    to, Math.min(to + window, chunks)));
+          }
+          for (int i = 0; i < batches.size(); i++) {
+            Batch batch = batches.get(i);
+            apply(batch, pass);
+            if (pass == 1) {
+              records += batch.records;
+            }
+            done += bounds[from + i + 1] - bounds[from + i];
+            if (progress != null) {
+              progress.onProgress(done, total, records);
+            }
+          }
+        }
+      }
+      completed = true;
+      return records;
+    } finally {
+      if (!completed && next != null) {
+        // Do not parse the next window of a failed import
+        next.cancel(true);
+      }
+      access.close();
+    }
+  }
+
+  /**
+   * Wait for the parsing of a window of chunks.
+   *
+   * @param task the parsing task
+   * @return the batches of the chunks, in file order
+   * @throws IOException on read error or invalid record
+   */
+  private static List<Batch> join(final ForkJoinTask<List<Batch>> task)
+          throws IOException {
+    try {
+      return task.join();
+    } catch (RangeTask.JobException ex) {
+      throw (IOException) ex.getCause();
+    }
+  }
+
+  /**
+   * Create the task parsing a range of chunks.
+   *
+   * @param channel the file
+   * @param bounds the chunks offsets
+   * @param format the file format
+   * @param pass the pass number
+   * @param from first chunk index of the range
+   * @param to index after the last chunk of the range
+   * @return the task, whose results are the batches of the chunks, in file
+   * order
+   */
+  private RangeTask<Batch> parseTask(final FileChannel channel,
+          final long[] bounds, final Format format, final int pass,
+          final int from, final int to) {
+    return new RangeTask<Batch>(new RangeTask.Job<Batch>() {
+      @Override
+      public void run(final int index, final List<Batch> results)
+              throws IOException {
+        results.add(parse(channel, bounds[index], bounds[index + 1], format,
+                pass));
+      }
+    }, from, to);
+  }
+
+  /**
+   * Apply the records of a chunk.
+   *
+   * @param batch the records
+   * @param pass the pass number
+   * @throws AppException if a record is rejected by the system
+   */
+  private void apply(final Batch batch, final int pass) throws AppException {
+    if (pass == 1) {
+      for (OrgUnit orgUnit : batch.orgUnits) {
+        system.createOrgUnit(orgUnit);
+      }
+      if (!batch.persons.isEmpty()) {
+        system.createPersons(batch.persons);
+      }
+      if (!batch.passwords.isEmpty()) {
+        system.updateStoredPasswords(batch.passwords);
+      }
+      if (!batch.groups.isEmpty()) {
+        system.createGroups(batch.groups);
+      }
+    } else {
+      for (Map.Entry<String, String> entry : batch.parents.entrySet()) {
+        system.moveOrgUnit(entry.getKey(), entry.getValue());
+      }
+      for (Map.Entry<String, List<String>> entry
+              : batch.subGroups.entrySet()) {
+        for (String child : entry.getValue()) {
+          system.attachSubGroup(entry.getKey(), child);
+        }
+      }
+      for (Map.Entry<String, List<String>> entry
+              : batch.members.entrySet()) {
+        system.attachGroupMembers(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Split a file into chunks of about the chunk size, ending on record
+   * boundaries.
+   *
+   * @param channel the file
+   * @param format the file format
+   * @return the chunks offsets, starting with 0 and ending with the size
+   * @throws IOException on read error
+   */
+  private long[] boundaries(final FileChannel channel, final Format format)
+          throws IOException {
+    long size = channel.size();
+    List<Long> bounds = new ArrayList<Long>();
+    bounds.add(0L);
+    long position = chunkBytes;
+    while (position < size) {
+      long bound = nextBoundary(channel, position, format);
+      if (bound >= size) {
+        break;
+      }
+      bounds.add(bound);
+      position = bound + chunkBytes;
+    }
+    bounds.add(size);
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Find the start of the first record after a position: after a line break
+   * in CSV, after an empty line in LDIF.
+   *
+   * @param channel the file
+   * @param from the position
+   * @param format the file format
+   * @return the record start, the file size if none
+   * @throws IOException on read error
+   */
+  private static long nextBoundary(final FileChannel channel, final long from,
+          final Format format) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BYTES);
+    long position = from;
+    // Mid-line at first: the current line is not known to be empty
+    boolean emptyLine = false;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        return channel.size();
+      }
+      for (int i = 0; i < read; i++) {
+        byte b = buffer.get(i);
+        if (b == '\n') {
+          if (format == Format.CSV || emptyLine) {
+            return position + i + 1;
+          }
+          emptyLine = true;
+        } else if (b != '\r') {
+          emptyLine = false;
+        }
+      }
+      position += read;
+    }
+  }
+
+  /**
+   * Records of a chunk, to apply.
+   */
+  private static final class Batch {
+
+    /**
+     * Number of records.
+     */
+    private int records;
+
+    /**
+     * Organizational units to create.
+     */
+    private final List<OrgUnit> orgUnits = new ArrayList<OrgUnit>();
+
+    /**
+     * Persons to create.
+     */
+    private final List<Person> persons = new ArrayList<Person>();
+
+    /**
+     * Stored passwords to set, by person system name.
+     */
+    private final Map<String, String> passwords =
+            new HashMap<String, String>();
+
+    /**
+     * Groups to create.
+     */
+    private final List<Group> groups = new ArrayList<Group>();
+
+    /**
+     * Parent unit name by organizational unit name.
+     */
+    private final Map<String, String> parents =
+            new LinkedHashMap<String, String>();
+
+    /**
+     * Sub-groups system names by parent group system name.
+     */
+    private final Map<String, List<String>> subGroups =
+            new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Members system names by group system name.
+     */
+    private final Map<String, List<String>> members =
+            new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Add a member.
+     *
+     * @param index the members or sub-groups index
+     * @param group the group system name
+     * @param member the member system name
+     */
+    static void add(final Map<String, List<String>> index,
+            final String group, final String member) {
+      List<String> values = index.get(group);
+      if (values == null) {
+        values = new ArrayList<String>();
+        index.put(group, values);
+      }
+      values.add(member);
+    }
+  }
+
+  /**
+   * Parse a chunk.
+   *
+   * @param channel the file
+   * @param start the chunk start offset
+   * @param end the chunk end offset
+   * @param format the file format
+   * @param pass the pass number
+   * @return the records
+   * @throws IOException on read error or invalid record
+   */
+  private Batch parse(final FileChannel channel, final long start,
+          final long end, final Format format, final int pass)
+          throws IOException {
+    CharBuffer text = StandardCharsets.UTF_8.decode(channel.map(
+            FileChannel.MapMode.READ_ONLY, start, end - start));
+    if (start == 0L && text.length() > 0 && text.charAt(0) == '\uFEFF') {
+      text.position(1);
+    }
+    Batch batch = new Batch();
+    List<String> lines = new ArrayList<String>();
+    int lineNumber = 0;
+    int entryLine = 0;
+    while (text.hasRemaining()) {
+      String line = readLine(text);
+      lineNumber++;
+      if (format == Format.CSV) {
+        parseCsv(line, batch, pass, start, lineNumber);
+      } else if (!line.isEmpty()) {
+        if (line.charAt(0) == ' ' && !lines.isEmpty()) {
+          int last = lines.size() - 1;
+          lines.set(last, lines.get(last) + line.substring(1));
+        } else if (line.charAt(0) != '#') {
+          if (lines.isEmpty()) {
+            entryLine = lineNumber;
+          }
+          lines.add(line);
+        }
+      } else if (!lines.isEmpty()) {
+        parseLdif(lines, batch, pass, start, entryLine);
+        lines.clear();
+      }
+    }
+    if (!lines.isEmpty()) {
+      parseLdif(lines, batch, pass, start, entryLine);
+    }
+    return batch;
+  }
+
+  /**
+   * Read a line, without its line break.
+   *
+   * @param text the text, positioned at the line start
+   * @return the line
+   */
+  private static String readLine(final CharBuffer text) {
+    int begin = text.position();
+    int end = begin;
+    while (end < text.limit() && text.get(end) != '\n') {
+      end++;
+    }
+    text.position(Math.min(end + 1, text.limit()));
+    if (end > begin && text.get(end - 1) == '\r') {
+      end--;
+    }
+    CharBuffer line = text.duplicate();
+    line.limit(end);
+    line.position(begin);
+    return line.toString();
+  }
+
+  /**
+   * Parse a CSV line.
+   *
+   * @param line the line
+   * @param batch the records to complete
+   * @param pass the pass number
+   * @param chunk the chunk offset, for error messages
+   * @param lineNumber the line number in the chunk, for error messages
+   * @throws IOException on invalid record
+   */
+  private void parseCsv(final String line, final Batch batch,
+          final int pass, final long chunk, final int lineNumber)
+          throws IOException {
+    if (line.trim().isEmpty() || line.charAt(0) == '#') {
+      return;
+    }
+    List<String> fields = csvFields(line, chunk, lineNumber);
+    String type = fields.get(0);
+    String first = field(fields, 1);
+    String second = field(fields, 2);
+    if (first == null) {
+      throw invalid(chunk, lineNumber, csvType(type) + " record");
+    }
+    if ("orgUnit".equals(type)) {
+      if (pass == 1) {
+        OrgUnitBuilder builder = new OrgUnitBuilder();
+        builder.setName(first);
+        batch.orgUnits.add(builder.build());
+      } else if (second != null) {
+        batch.parents.put(first, second);
+      }
+    } else if ("person".equals(type)) {
+      if (pass == 1) {
+        addPerson(batch, first, second, field(fields, 3), field(fields, 4));
+      }
+    } else if ("group".equals(type)) {
+      if (pass == 1) {
+        GroupBuilder builder = new GroupBuilder();
+        builder.setSysName(first);
+        builder.setDescription(second);
+        batch.groups.add(builder.build());
+      }
+    } else if ("member".equals(type) || "subGroup".equals(type)) {
+      if (second == null) {
+        throw invalid(chunk, lineNumber, type + " record");
+      }
+      if (pass == 2) {
+        Batch.add("member".equals(type) ? batch.members : batch.subGroups,
+                first, second);
+      }
+    } else {
+      throw invalid(chunk, lineNumber, "record type");
+    }
+    batch.records++;
+  }
+
+  /**
+   * Split a CSV line into fields, unquoting the quoted ones.
+   *
+   * @param line the line
+   * @param chunk the chunk offset, for error messages
+   * @param lineNumber the line number in the chunk, for error messages
+   * @return the fields
+   * @throws IOException on unbalanced quotes
+   */
+  private static List<String> csvFields(final String line, final long chunk,
+          final int lineNumber) throws IOException {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c != '"') {
+          field.append(c);
+        } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (quoted) {
+      throw invalid(chunk, lineNumber, "quoting");
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  /**
+   * Get a field value.
+   *
+   * @param fields the fields
+   * @param index the field index
+   * @return the value, null if missing or empty
+   */
+  private static String field(final List<String> fields, final int index) {
+    if (index >= fields.size() || fields.get(index).isEmpty()) {
+      return null;
+    }
+    return fields.get(index);
+  }
+
+  /**
+   * Parse a LDIF entry.
+   *
+   * @param lines the unfolded lines of the entry
+   * @param batch the records to complete
+   * @param pass the pass number
+   * @param chunk the chunk offset, for error messages
+   * @param lineNumber the line number of the entry in the chunk, for error
+   * messages
+   * @throws IOException on invalid entry
+   */
+  private void parseLdif(final List<String> lines, final Batch batch,
+          final int pass, final long chunk, final int lineNumber)
+          throws IOException {
+    Map<String, List<String>> attributes =
+            new HashMap<String, List<String>>();
+    for (String line : lines) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw invalid(chunk, lineNumber, "LDIF attribute");
+      }
+      String name = line.substring(0, colon).toLowerCase(Locale.ROOT);
+      String value;
+      if (line.startsWith("::", colon)) {
+        try {
+          value = new String(Base64.getMimeDecoder().decode(
+                  line.substring(colon + 2).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+          throw invalid(chunk, lineNumber, "base64 value of " + name);
+        }
+      } else {
+        value = line.substring(colon + 1).trim();
+      }
+      Batch.add(attributes, name, value);
+    }
+    String dn = first(attributes, "dn");
+    List<String> classes = attributes.get("objectclass");
+    if (dn == null || classes == null) {
+      return;
+    }
+    List<String[]> rdns = rdns(dn);
+    String parentOu = null;
+    if (rdns.size() > 1 && "ou".equals(rdns.get(1)[0])) {
+      parentOu = rdns.get(1)[1];
+    }
+    String rdnValue = rdns.isEmpty() ? null : rdns.get(0)[1];
+    boolean known = true;
+    if (hasClass(classes, "organizationalunit")) {
+      String name = firstOr(attributes, "ou", rdnValue);
+      if (pass == 1) {
+        OrgUnitBuilder builder = new OrgUnitBuilder();
+        builder.setName(name);
+        batch.orgUnits.add(builder.build());
+      } else if (parentOu != null) {
+        batch.parents.put(name, parentOu);
+      }
+    } else if (hasClass(classes, "person")
+            || hasClass(classes, "organizationalperson")
+            || hasClass(classes, "inetorgperson")) {
+      if (pass == 1) {
+        addPerson(batch, firstOr(attributes, "uid", rdnValue),
+                first(attributes, "cn"),
+                parentOu != null ? parentOu : first(attributes, "ou"),
+                clearPassword(first(attributes, "userpassword")));
+      }
+    } else if (hasClass(classes, "groupofnames")
+            || hasClass(classes, "groupofuniquenames")
+            || hasClass(classes, "posixgroup")) {
+      String sysName = firstOr(attributes, "cn", rdnValue);
+      if (pass == 1) {
+        GroupBuilder builder = new GroupBuilder();
+        builder.setSysName(sysName);
+        builder.setDescription(first(attributes, "description"));
+        batch.groups.add(builder.build());
+      } else {
+        addMembers(batch, sysName, attributes.get("member"));
+        addMembers(batch, sysName, attributes.get("uniquemember"));
+        List<String> uids = attributes.get("memberuid");
+        if (uids != null) {
+          for (String uid : uids) {
+            Batch.add(batch.members, sysName, uid);
+          }
+        }
+      }
+    } else {
+      known = false;
+    }
+    if (known) {
+      batch.records++;
+    }
+  }
+
+  /**
+   * Add the members of a group given by DN.
+   *
+   * @param batch the records to complete
+   * @param sysName the group system name
+   * @param dns the members DNs, may be null
+   */
+  private static void addMembers(final Batch batch, final String sysName,
+          final List<String> dns) {
+    if (dns == null) {
+      return;
+    }
+    for (String dn : dns) {
+      List<String[]> rdns = rdns(dn);
+      if (!rdns.isEmpty()) {
+        String[] rdn = rdns.get(0);
+        Batch.add("uid".equals(rdn[0]) ? batch.members : batch.subGroups,
+                sysName, rdn[1]);
+      }
+    }
+  }
+
+  /**
+   * Add a person, and its password if any.
+   *
+   * @param batch the records to complete
+   * @param sysName the system name
+   * @param fullName the full name
+   * @param orgUnitName the organizational unit name
+   * @param password the password
+   */
+  private void addPerson(final Batch batch, final String sysName,
+          final String fullName, final String orgUnitName,
+          final String password) {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    builder.setFullName(fullName);
+    builder.setOrgUnitName(orgUnitName);
+    batch.persons.add(builder.build());
+    if (password != null && sysName != null) {
+      batch.passwords.put(sysName, system.toStoredPassword(password));
+    }
+  }
+
+  /**
+   * Split a DN into its RDNs, unescaping the values.
+   *
+   * @param dn the DN
+   * @return the lower case attribute name and the value of each RDN
+   */
+  private static List<String[]> rdns(final String dn) {
+    List<String[]> rdns = new ArrayList<String[]>();
+    StringBuilder part = new StringBuilder();
+    String name = null;
+    for (int i = 0; i <= dn.length(); i++) {
+      char c = i < dn.length() ? dn.charAt(i) : ',';
+      if (c == '\\' && i + 1 < dn.length()) {
+        part.append(dn.charAt(++i));
+      } else if (c == '=' && name == null) {
+        name = part.toString().trim().toLowerCase(Locale.ROOT);
+        part.setLength(0);
+      } else if (c == ',' || (c == '+' && name != null)) {
+        if (name != null) {
+          rdns.add(new String[]{name, part.toString().trim()});
+        }
+        name = null;
+        part.setLength(0);
+      } else {
+        part.append(c);
+      }
+    }
+    return rdns;
+  }
+
+  /**
+   * Tell if an entry has an object class.
+   *
+   * @param classes the entry object classes
+   * @param name the lower case class name
+   * @return true if the entry has the class
+   */
+  private static boolean hasClass(final List<String> classes,
+          final String name) {
+    for (String value : classes) {
+      if (value.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the first value of an attribute.
+   *
+   * @param attributes the entry attributes
+   * @param name the lower case attribute name
+   * @return the value, null if none
+   */
+  private static String first(final Map<String, List<String>> attributes,
+          final String name) {
+    return firstOr(attributes, name, null);
+  }
+
+  /**
+   * Get the first value of an attribute, or a default.
+   *
+   * @param attributes the entry attributes
+   * @param name the lower case attribute name
+   * @param defaultValue the value if the attribute is missing
+   * @return the value
+   */
+  private static String firstOr(final Map<String, List<String>> attributes,
+          final String name, final String defaultValue) {
+    List<String> values = attributes.get(name);
+    if (values == null || values.get(0).isEmpty()) {
+      return defaultValue;
+    }
+    return values.get(0);
+  }
+
+  /**
+   * Get a LDIF password if it is in clear text. A value hashed by the
+   * directory would be hashed again, and could never be verified.
+   *
+   * @param value the {@code userPassword} value, may be null
+   * @return the clear-text password, null if none or hashed
+   */
+  private static String clearPassword(final String value) {
+    if (value == null || !value.startsWith("{")) {
+      return value;
+    }
+    int end = value.indexOf('}');
+    if (end < 2) {
+      return value;
+    }
+    for (int i = 1; i < end; i++) {
+      char c = value.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '-' && c != '.') {
+        return value;
+      }
+    }
+    if ("cleartext".equalsIgnoreCase(value.substring(1, end))) {
+      return value.substring(end + 1);
+    }
+    return null;
+  }
+
+  /**
+   * Get the type of a CSV record to name in an error message: the records
+   * of an unknown type may hold anything, passwords included.
+   *
+   * @param type the first field of the record
+   * @return the type, or a placeholder if unknown
+   */
+  private static String csvType(final String type) {
+    if (CSV_TYPES.contains(type)) {
+      return type;
+    }
+    return "unknown";
+  }
+
+  /**
+   * Create the exception of an invalid record. The message locates the
+   * record without quoting it, since it may hold a clear-text password.
+   *
+   * @param chunk the offset of the chunk holding the record
+   * @param lineNumber the line number of the record in the chunk
+   * @param what the invalid part of the record
+   * @return the exception
+   */
+  private static IOException invalid(final long chunk, final int lineNumber,
+          final String what) {
+    return new IOException("Invalid " + what + " at line " + lineNumber
+            + " of the chunk at offset " + chunk);
+  }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+
+/**
+ * Immutable point-in-time version of the persons, groups, group members and
+ * organizational units of a {@link MemAuthSystem}.
+ *
+ * Reading a version never locks nor fails, whatever the concurrent
+ * mutations: they publish new versions sharing all the unchanged parts of
+ * the previous one.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class DirectoryVersion {
+
+  /**
+   * Dictionary of the persons system names of the members.
+   */
+  private final SysNameDictionary dictionary;
+
+  /**
+   * All persons, mapped by their system names.
+   */
+  private final PersistentMap<String, Person> persons;
+
+  /**
+   * All groups, mapped by their system names.
+   */
+  private final PersistentMap<String, Group> groups;
+
+  /**
+   * Persons identifiers set per group system name.
+   */
+  private final PersistentMap<String, IntBitmap> members;
+
+  /**
+   * All organizational units, mapped by their names.
+   */
+  private final PersistentMap<String, OrgUnit> orgUnits;
+
+  /**
+   * Constructor.
+   *
+   * @param pDictionary the dictionary of the persons system names
+   * @param pPersons the persons
+   * @param pGroups the groups
+   * @param pMembers the group members
+   * @param pOrgUnits the organizational units
+   */
+  private DirectoryVersion(final SysNameDictionary pDictionary,
+          final PersistentMap<String, Person> pPersons,
+          final PersistentMap<String, Group> pGroups,
+          final PersistentMap<String, IntBitmap> pMembers,
+          final PersistentMap<String, OrgUnit> pOrgUnits) {
+    dictionary = pDictionary;
+    persons = pPersons;
+    groups = pGroups;
+    members = pMembers;
+    orgUnits = pOrgUnits;
+  }
+
+  /**
+   * Create an empty version.
+   *
+   * @param dictionary the dictionary of the persons system names
+   * @return the version
+   */
+  static DirectoryVersion empty(final SysNameDictionary dictionary) {
+    return new DirectoryVersion(dictionary,
+            PersistentMap.<String, Person>empty(),
+            PersistentMap.<String, Group>empty(),
+            PersistentMap.<String, IntBitmap>empty(),
+            PersistentMap.<String, OrgUnit>empty());
+  }
+
+  /**
+   * Get a person.
+   *
+   * @param sysName the person system name
+   * @return the person, null if it does not exist in this version
+   */
+  public Person getPerson(final String sysName) {
+    return persons.get(sysName);
+  }
+
+  /**
+   * Get all the persons.
+   *
+   * @return the persons
+   */
+  public Collection<Person> findPersons() {
+    return persons.values();
+  }
+
+  /**
+   * Get a group.
+   *
+   * @param sysName the group system name
+   * @return the group, null if it does not exist in this version
+   */
+  public Group getGroup(final String sysName) {
+    return groups.get(sysName);
+  }
+
+  /**
+   * Get all the groups.
+   *
+   * @return the groups
+   */
+  public Collection<Group> findGroups() {
+    return groups.values();
+  }
+
+  /**
+   * Get the persons directly attached to a group.
+   *
+   * @param sysName the group system name
+   * @return the persons system names, empty if the group does not exist in
+   * this version
+   */
+  public Collection<String> findGroupPersons(final String sysName) {
+    IntBitmap groupMembers = members.get(sysName);
+    if (groupMembers == null) {
+      return Collections.emptySet();
+    }
+    return dictionary.names(groupMembers);
+  }
+
+  /**
+   * Get an organizational unit.
+   *
+   * @param name the organizational unit name
+   * @return the organizational unit, null if it does not exist in this
+   * version
+   */
+  public OrgUnit getOrgUnit(final String name) {
+    return orgUnits.get(name);
+  }
+
+  /**
+   * Get all the organizational units.
+   *
+   * @return the organizational units
+   */
+  public Collection<OrgUnit> findOrgUnits() {
+    return orgUnits.values();
+  }
+
+  /**
+   * Derive the version with a person created or updated.
+   *
+   * @param person the person
+   * @return the new version
+   */
+  DirectoryVersion withPerson(final Person person) {
+    return new DirectoryVersion(dictionary,
+            persons.put(person.getSysName(), person), groups, members,
+            orgUnits);
+  }
+
+  /**
+   * Derive the version with a group created or updated.
+   *
+   * @param group the group
+   * @return the new version
+   */
+  DirectoryVersion withGroup(final Group group) {
+    return new DirectoryVersion(dictionary, persons,
+            groups.put(group.getSysName(), group), members, orgUnits);
+  }
+
+  /**
+   * Derive the version with the members of a group changed.
+   *
+   * @param groupSysName the group system name
+   * @param groupMembers the persons identifiers
+   * @return the new version
+   */
+  DirectoryVersion withMembers(final String groupSysName,
+          final IntBitmap groupMembers) {
+    return new DirectoryVersion(dictionary, persons, groups,
+            members.put(groupSysName, groupMembers), orgUnits);
+  }
+
+  /**
+   * Derive the version with an organizational unit created or updated.
+   *
+   * @param orgUnit the organizational unit
+   * @return the new version
+   */
+  DirectoryVersion withOrgUnit(final OrgUnit orgUnit) {
+    return new DirectoryVersion(dictionary, persons, groups, members,
+            orgUnits.put(orgUnit.getName(), orgUnit));
+  }
+
+}
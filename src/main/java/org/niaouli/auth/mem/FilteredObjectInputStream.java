@@ -0,0 +1,167 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Object stream only deserializing the entities of the directory and the
+ * JDK value and collection classes they may hold, so that data received
+ * from the network cannot instantiate arbitrary classes.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class FilteredObjectInputStream extends ObjectInputStream {
+
+  /**
+   * Package of the entities.
+   */
+  private static final String ENTITIES_PACKAGE = "org.niaouli.auth.";
+
+  /**
+   * Allowed JDK classes.
+   */
+  private static final Set<String> ALLOWED = Collections.unmodifiableSet(
+          new HashSet<String>(Arrays.asList(
+                  "java.lang.String",
+                  "java.lang.Boolean",
+                  "java.lang.Character",
+                  "java.lang.Number",
+                  "java.lang.Byte",
+                  "java.lang.Short",
+                  "java.lang.Integer",
+                  "java.lang.Long",
+                  "java.lang.Float",
+                  "java.lang.Double",
+                  "java.lang.Enum",
+                  "java.math.BigInteger",
+                  "java.math.BigDecimal",
+                  "java.util.Date",
+                  "java.util.Locale",
+                  "java.util.ArrayList",
+                  "java.util.LinkedList",
+                  "java.util.HashMap",
+                  "java.util.LinkedHashMap",
+                  "java.util.TreeMap",
+                  "java.util.HashSet",
+                  "java.util.LinkedHashSet",
+                  "java.util.TreeSet",
+                  "java.util.Arrays$ArrayList",
+                  "java.util.Collections$EmptyList",
+                  "java.util.Collections$EmptyMap",
+                  "java.util.Collections$EmptySet",
+                  "java.util.Collections$SingletonList",
+                  "java.util.Collections$SingletonMap",
+                  "java.util.Collections$SingletonSet",
+                  "java.util.Collections$UnmodifiableCollection",
+                  "java.util.Collections$UnmodifiableList",
+                  "java.util.Collections$UnmodifiableRandomAccessList",
+                  "java.util.Collections$UnmodifiableMap",
+                  "java.util.Collections$UnmodifiableSet",
+                  "java.util.Collections$UnmodifiableSortedMap",
+                  "java.util.Collections$UnmodifiableSortedSet")));
+
+  /**
+   * Classes of the serialized form of a {@link MemAuthSystem}, beyond the
+   * entities it holds, including the counters of its caches.
+   */
+  private static final Set<String> SYSTEM_CLASSES =
+          Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                  MemAuthSystem.class.getName() + "$SerializedForm",
+                  PasswordHasher.class.getName(),
+                  CredentialCache.class.getName(),
+                  TokenStore.class.getName(),
+                  "java.util.concurrent.atomic.AtomicLong")));
+
+  /**
+   * Whether whole systems may be deserialized.
+   */
+  private final boolean systems;
+
+  /**
+   * Constructor.
+   *
+   * @param in the source
+   * @throws IOException on read error
+   */
+  FilteredObjectInputStream(final InputStream in) throws IOException {
+    this(in, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param in the source
+   * @param pSystems whether whole systems may be deserialized, in the form
+   * written by {@link MemAuthSystem}
+   * @throws IOException on read error
+   */
+  FilteredObjectInputStream(final InputStream in, final boolean pSystems)
+          throws IOException {
+    super(in);
+    systems = pSystems;
+  }
+
+  @Override
+  protected Class<?> resolveClass(final ObjectStreamClass desc)
+          throws IOException, ClassNotFoundException {
+    if (!isAllowed(desc.getName())
+            && !(systems && SYSTEM_CLASSES.contains(desc.getName()))) {
+      throw new InvalidClassException(desc.getName(),
+              "Not allowed in directory data");
+    }
+    return super.resolveClass(desc);
+  }
+
+  @Override
+  protected Class<?> resolveProxyClass(final String[] interfaces)
+          throws IOException, ClassNotFoundException {
+    throw new InvalidClassException("Proxy classes are not allowed");
+  }
+
+  /**
+   * Tell if a class may be deserialized.
+   *
+   * @param name the class name, or array class descriptor
+   * @return true if allowed
+   */
+  static boolean isAllowed(final String name) {
+    String element = name;
+    while (element.startsWith("[")) {
+      element = element.substring(1);
+    }
+    if (element.length() == 1) {
+      // Array of primitives
+      return name.length() > 1;
+    }
+    if (element.startsWith("L") && element.endsWith(";")) {
+      element = element.substring(1, element.length() - 1);
+    }
+    return ALLOWED.contains(element)
+            || element.startsWith(ENTITIES_PACKAGE)
+            && element.indexOf('.', ENTITIES_PACKAGE.length()) < 0;
+  }
+
+}
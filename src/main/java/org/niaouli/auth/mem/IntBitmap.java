@@ -0,0 +1,675 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable compressed set of positive integers, in the Roaring layout: the
+ * integers are partitioned by their high 16 bits into containers holding
+ * their low 16 bits, either as a sorted array when sparse (up to 4096
+ * values, 2 bytes each), or as a bitmap of 65536 bits when dense.
+ *
+ * Updates return a new set sharing all the containers but the changed one,
+ * so a set can be read by any number of threads while it is being replaced.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class IntBitmap {
+
+  /**
+   * Maximum number of values of an array container.
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  /**
+   * Number of words of a bitmap container.
+   */
+  private static final int BITMAP_WORDS = 1024;
+
+  /**
+   * Number of bits of the low part of the integers.
+   */
+  private static final int LOW_BITS = 16;
+
+  /**
+   * Mask of the low part of the integers.
+   */
+  private static final int LOW_MASK = 0xFFFF;
+
+  /**
+   * Number of bits addressing a bit in a word.
+   */
+  private static final int WORD_BITS = 6;
+
+  /**
+   * The empty set.
+   */
+  static final IntBitmap EMPTY = new IntBitmap(new char[0], new Object[0],
+          new int[0], 0);
+
+  /**
+   * The high parts of the containers, sorted.
+   */
+  private final char[] keys;
+
+  /**
+   * The containers: sorted char arrays or 1024 long bitmaps.
+   */
+  private final Object[] containers;
+
+  /**
+   * The number of values of each container.
+   */
+  private final int[] counts;
+
+  /**
+   * The number of values.
+   */
+  private final int cardinality;
+
+  /**
+   * Constructor.
+   *
+   * @param pKeys the high parts of the containers
+   * @param pContainers the containers
+   * @param pCounts the number of values of each container
+   * @param pCardinality the number of values
+   */
+  private IntBitmap(final char[] pKeys, final Object[] pContainers,
+          final int[] pCounts, final int pCardinality) {
+    keys = pKeys;
+    containers = pContainers;
+    counts = pCounts;
+    cardinality = pCardinality;
+  }
+
+  /**
+   * Create a set.
+   *
+   * @param values the values, in any order and possibly duplicated
+   * @return the set
+   */
+  static IntBitmap of(final int[] values) {
+    int[] sorted = values.clone();
+    Arrays.sort(sorted);
+    char[] newKeys = new char[sorted.length];
+    Object[] newContainers = new Object[sorted.length];
+    int[] newCounts = new int[sorted.length];
+    int size = 0;
+    int total = 0;
+    char[] buffer = new char[Math.min(sorted.length, LOW_MASK + 1)];
+    int start = 0;
+    while (start < sorted.length) {
+      char high = high(sorted[start]);
+      int count = 0;
+      int end = start;
+      while (end < sorted.length && high(sorted[end]) == high) {
+        char low = low(sorted[end]);
+        if (count == 0 || buffer[count - 1] != low) {
+          buffer[count++] = low;
+        }
+        end++;
+      }
+      newKeys[size] = high;
+      newContainers[size] = container(buffer, count);
+      newCounts[size] = count;
+      size++;
+      total += count;
+      start = end;
+    }
+    if (size == 0) {
+      return EMPTY;
+    }
+    return new IntBitmap(Arrays.copyOf(newKeys, size),
+            Arrays.copyOf(newContainers, size), Arrays.copyOf(newCounts, size),
+            total);
+  }
+
+  /**
+   * Create a set of a single value.
+   *
+   * @param value the positive value
+   * @return the set
+   */
+  static IntBitmap singleton(final int value) {
+    return new IntBitmap(new char[]{high(value)},
+            new Object[]{container(new char[]{low(value)}, 1)},
+            new int[]{1}, 1);
+  }
+
+  /**
+   * Get the number of values.
+   *
+   * @return the cardinality
+   */
+  int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * Tell if a value belongs to the set.
+   *
+   * @param value the value
+   * @return true if it belongs to the set
+   */
+  boolean contains(final int value) {
+    if (value < 0) {
+      return false;
+    }
+    int index = Arrays.binarySearch(keys, high(value));
+    return index >= 0 && containerContains(containers[index], low(value));
+  }
+
+  /**
+   * Add a value.
+   *
+   * @param value the positive value
+   * @return the updated set
+   */
+  IntBitmap add(final int value) {
+    char high = high(value);
+    char low = low(value);
+    int index = Arrays.binarySearch(keys, high);
+    if (index < 0) {
+      int at = -index - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Object[] newContainers = new Object[keys.length + 1];
+      int[] newCounts = new int[keys.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, at);
+      System.arraycopy(containers, 0, newContainers, 0, at);
+      System.arraycopy(counts, 0, newCounts, 0, at);
+      newKeys[at] = high;
+      newContainers[at] = new char[]{low};
+      newCounts[at] = 1;
+      System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+      System.arraycopy(containers, at, newContainers, at + 1,
+              keys.length - at);
+      System.arraycopy(counts, at, newCounts, at + 1, keys.length - at);
+      return new IntBitmap(newKeys, newContainers, newCounts,
+              cardinality + 1);
+    }
+    Object container = containers[index];
+    if (containerContains(container, low)) {
+      return this;
+    }
+    Object added;
+    if (container instanceof char[] && counts[index] < ARRAY_MAX) {
+      char[] values = (char[]) container;
+      int at = -Arrays.binarySearch(values, low) - 1;
+      char[] copy = new char[values.length + 1];
+      System.arraycopy(values, 0, copy, 0, at);
+      copy[at] = low;
+      System.arraycopy(values, at, copy, at + 1, values.length - at);
+      added = copy;
+    } else {
+      long[] words = toWords(container);
+      words[low >>> WORD_BITS] |= 1L << low;
+      added = words;
+    }
+    return replace(index, added, counts[index] + 1, cardinality + 1);
+  }
+
+  /**
+   * Remove a value.
+   *
+   * @param value the value
+   * @return the updated set
+   */
+  IntBitmap remove(final int value) {
+    if (!contains(value)) {
+      return this;
+    }
+    int index = Arrays.binarySearch(keys, high(value));
+    char low = low(value);
+    int count = counts[index] - 1;
+    if (count == 0) {
+      char[] newKeys = new char[keys.length - 1];
+      Object[] newContainers = new Object[keys.length - 1];
+      int[] newCounts = new int[keys.length - 1];
+      System.arraycopy(keys, 0, newKeys, 0, index);
+      System.arraycopy(containers, 0, newContainers, 0, index);
+      System.arraycopy(counts, 0, newCounts, 0, index);
+      int tail = keys.length - index - 1;
+      System.arraycopy(keys, index + 1, newKeys, index, tail);
+      System.arraycopy(containers, index + 1, newContainers, index, tail);
+      System.arraycopy(counts, index + 1, newCounts, index, tail);
+      return new IntBitmap(newKeys, newContainers, newCounts,
+              cardinality - 1);
+    }
+    Object container = containers[index];
+    Object removed;
+    if (container instanceof char[]) {
+      char[] values = (char[]) container;
+      int at = Arrays.binarySearch(values, low);
+      char[] copy = new char[values.length - 1];
+      System.arraycopy(values, 0, copy, 0, at);
+      System.arraycopy(values, at + 1, copy, at, values.length - at - 1);
+      removed = copy;
+    } else {
+      long[] words = ((long[]) container).clone();
+      words[low >>> WORD_BITS] &= ~(1L << low);
+      if (count <= ARRAY_MAX) {
+        removed = toValues(words, count);
+      } else {
+        removed = words;
+      }
+    }
+    return replace(index, removed, count, cardinality - 1);
+  }
+
+  /**
+   * Compute the union with another set.
+   *
+   * @param other the other set
+   * @return the union
+   */
+  IntBitmap or(final IntBitmap other) {
+    if (other.cardinality == 0) {
+      return this;
+    }
+    if (cardinality == 0) {
+      return other;
+    }
+    int capacity = keys.length + other.keys.length;
+    char[] newKeys = new char[capacity];
+    Object[] newContainers = new Object[capacity];
+    int[] newCounts = new int[capacity];
+    int size = 0;
+    int total = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length
+              || i < keys.length && keys[i] < other.keys[j]) {
+        newKeys[size] = keys[i];
+        newContainers[size] = containers[i];
+        newCounts[size] = counts[i];
+        i++;
+      } else if (i == keys.length || other.keys[j] < keys[i]) {
+        newKeys[size] = other.keys[j];
+        newContainers[size] = other.containers[j];
+        newCounts[size] = other.counts[j];
+        j++;
+      } else {
+        newKeys[size] = keys[i];
+        newContainers[size] = orContainers(containers[i],
+                other.containers[j]);
+        newCounts[size] = countOf(newContainers[size]);
+        i++;
+        j++;
+      }
+      total += newCounts[size];
+      size++;
+    }
+    return new IntBitmap(Arrays.copyOf(newKeys, size),
+            Arrays.copyOf(newContainers, size), Arrays.copyOf(newCounts, size),
+            total);
+  }
+
+  /**
+   * Compute the intersection with another set.
+   *
+   * @param other the other set
+   * @return the intersection
+   */
+  IntBitmap and(final IntBitmap other) {
+    int capacity = Math.min(keys.length, other.keys.length);
+    char[] newKeys = new char[capacity];
+    Object[] newContainers = new Object[capacity];
+    int[] newCounts = new int[capacity];
+    int size = 0;
+    int total = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length && j < other.keys.length) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (other.keys[j] < keys[i]) {
+        j++;
+      } else {
+        Object container = andContainers(containers[i], other.containers[j]);
+        int count = countOf(container);
+        if (count > 0) {
+          newKeys[size] = keys[i];
+          newContainers[size] = container;
+          newCounts[size] = count;
+          total += count;
+          size++;
+        }
+        i++;
+        j++;
+      }
+    }
+    if (size == 0) {
+      return EMPTY;
+    }
+    return new IntBitmap(Arrays.copyOf(newKeys, size),
+            Arrays.copyOf(newContainers, size), Arrays.copyOf(newCounts, size),
+            total);
+  }
+
+  /**
+   * Iterate over the values, in ascending order.
+   *
+   * @return the iterator
+   */
+  Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Copy the set with a container replaced.
+   *
+   * @param index the container index
+   * @param container the new container
+   * @param count the number of values of the new container
+   * @param newCardinality the number of values of the new set
+   * @return the new set
+   */
+  private IntBitmap replace(final int index, final Object container,
+          final int count, final int newCardinality) {
+    Object[] newContainers = containers.clone();
+    newContainers[index] = container;
+    int[] newCounts = counts.clone();
+    newCounts[index] = count;
+    return new IntBitmap(keys, newContainers, newCounts, newCardinality);
+  }
+
+  /**
+   * Get the high part of an integer.
+   *
+   * @param value the integer
+   * @return the high 16 bits
+   */
+  private static char high(final int value) {
+    return (char) (value >>> LOW_BITS);
+  }
+
+  /**
+   * Get the low part of an integer.
+   *
+   * @param value the integer
+   * @return the low 16 bits
+   */
+  private static char low(final int value) {
+    return (char) (value & LOW_MASK);
+  }
+
+  /**
+   * Tell if a low part belongs to a container.
+   *
+   * @param container the container
+   * @param low the low part
+   * @return true if it belongs to the container
+   */
+  private static boolean containerContains(final Object container,
+          final char low) {
+    if (container instanceof char[]) {
+      return Arrays.binarySearch((char[]) container, low) >= 0;
+    }
+    return (((long[]) container)[low >>> WORD_BITS] & (1L << low)) != 0;
+  }
+
+  /**
+   * Count the values of a container.
+   *
+   * @param container the container
+   * @return the number of values
+   */
+  private static int countOf(final Object container) {
+    if (container instanceof char[]) {
+      return ((char[]) container).length;
+    }
+    int count = 0;
+    for (long word : (long[]) container) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+
+  /**
+   * Create the container of sorted distinct low parts.
+   *
+   * @param values the low parts buffer
+   * @param count the number of low parts in the buffer
+   * @return an array container if small enough, a bitmap container otherwise
+   */
+  private static Object container(final char[] values, final int count) {
+    if (count <= ARRAY_MAX) {
+      return Arrays.copyOf(values, count);
+    }
+    long[] words = new long[BITMAP_WORDS];
+    for (int i = 0; i < count; i++) {
+      words[values[i] >>> WORD_BITS] |= 1L << values[i];
+    }
+    return words;
+  }
+
+  /**
+   * Copy a container as a bitmap.
+   *
+   * @param container the container
+   * @return a new bitmap container
+   */
+  private static long[] toWords(final Object container) {
+    if (container instanceof long[]) {
+      return ((long[]) container).clone();
+    }
+    long[] words = new long[BITMAP_WORDS];
+    for (char value : (char[]) container) {
+      words[value >>> WORD_BITS] |= 1L << value;
+    }
+    return words;
+  }
+
+  /**
+   * Convert a bitmap container to an array container.
+   *
+   * @param words the bitmap
+   * @param count the number of set bits
+   * @return the array container
+   */
+  private static char[] toValues(final long[] words, final int count) {
+    char[] values = new char[count];
+    int size = 0;
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      while (word != 0) {
+        values[size++] = (char) ((w << WORD_BITS)
+                + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Compute the union of two containers.
+   *
+   * @param a the first container
+   * @param b the second container
+   * @return the union
+   */
+  private static Object orContainers(final Object a, final Object b) {
+    if (a instanceof char[] && b instanceof char[]) {
+      char[] x = (char[]) a;
+      char[] y = (char[]) b;
+      char[] merged = new char[x.length + y.length];
+      int size = 0;
+      int i = 0;
+      int j = 0;
+      while (i < x.length || j < y.length) {
+        if (j == y.length || i < x.length && x[i] < y[j]) {
+          merged[size++] = x[i++];
+        } else if (i == x.length || y[j] < x[i]) {
+          merged[size++] = y[j++];
+        } else {
+          merged[size++] = x[i++];
+          j++;
+        }
+      }
+      return container(merged, size);
+    }
+    long[] words;
+    Object other;
+    if (a instanceof long[]) {
+      words = toWords(a);
+      other = b;
+    } else {
+      words = toWords(b);
+      other = a;
+    }
+    if (other instanceof char[]) {
+      for (char value : (char[]) other) {
+        words[value >>> WORD_BITS] |= 1L << value;
+      }
+    } else {
+      long[] otherWords = (long[]) other;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        words[w] |= otherWords[w];
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Compute the intersection of two containers.
+   *
+   * @param a the first container
+   * @param b the second container
+   * @return the intersection, possibly empty
+   */
+  private static Object andContainers(final Object a, final Object b) {
+    if (a instanceof long[] && b instanceof long[]) {
+      long[] x = (long[]) a;
+      long[] y = (long[]) b;
+      long[] words = new long[BITMAP_WORDS];
+      int count = 0;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        words[w] = x[w] & y[w];
+        count += Long.bitCount(words[w]);
+      }
+      if (count <= ARRAY_MAX) {
+        return toValues(words, count);
+      }
+      return words;
+    }
+    char[] values;
+    Object other;
+    if (a instanceof char[]) {
+      values = (char[]) a;
+      other = b;
+    } else {
+      values = (char[]) b;
+      other = a;
+    }
+    char[] common = new char[values.length];
+    int size = 0;
+    for (char value : values) {
+      if (containerContains(other, value)) {
+        common[size++] = value;
+      }
+    }
+    return Arrays.copyOf(common, size);
+  }
+
+  /**
+   * Iterator over the values of the set, without boxing.
+   */
+  final class Cursor {
+
+    /**
+     * Index of the current container.
+     */
+    private int container;
+
+    /**
+     * Position in the current container: array index, or bit index.
+     */
+    private int position;
+
+    /**
+     * Constructor.
+     */
+    Cursor() {
+      seek();
+    }
+
+    /**
+     * Tell if there are more values.
+     *
+     * @return true if there are more values
+     */
+    boolean hasNext() {
+      return container < keys.length;
+    }
+
+    /**
+     * Get the next value.
+     *
+     * @return the value
+     */
+    int next() {
+      if (container >= keys.length) {
+        throw new NoSuchElementException();
+      }
+      Object current = containers[container];
+      int low;
+      if (current instanceof char[]) {
+        low = ((char[]) current)[position];
+      } else {
+        low = position;
+      }
+      int value = (keys[container] << LOW_BITS) | low;
+      position++;
+      seek();
+      return value;
+    }
+
+    /**
+     * Move to the next value, from the current position.
+     */
+    private void seek() {
+      while (container < keys.length) {
+        Object current = containers[container];
+        if (current instanceof char[]) {
+          if (position < ((char[]) current).length) {
+            return;
+          }
+        } else {
+          long[] words = (long[]) current;
+          int w = position >>> WORD_BITS;
+          if (w < BITMAP_WORDS) {
+            long word = words[w] & (-1L << position);
+            while (word == 0 && ++w < BITMAP_WORDS) {
+              word = words[w];
+            }
+            if (word != 0) {
+              position = (w << WORD_BITS) + Long.numberOfTrailingZeros(word);
+              return;
+            }
+          }
+        }
+        container++;
+        position = 0;
+      }
+    }
+  }
+
+}
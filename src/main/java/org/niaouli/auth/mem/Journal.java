@@ -0,0 +1,608 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.niaouli.exception.AppException;
+
+/**
+ * Durable journal of a {@link MemAuthSystem}: a snapshot of its data plus an
+ * append-only log of the mutations applied since.
+ *
+ * Mutations are appended to an in-memory buffer and written by a single
+ * flusher thread, which syncs the log once per batch: concurrent writers
+ * waiting for their mutations to be durable share the cost of a single
+ * fsync. Each log record holds its sequence number and a CRC, so that a torn
+ * tail left by a crash is detected and dropped on recovery, and the records
+ * already part of the snapshot are skipped.
+ *
+ * A snapshot only holds the system locks while the data is copied: it is
+ * written without them, then the log is replaced by its records following
+ * the snapshot.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class Journal implements Runnable {
+
+  /**
+   * Log file name.
+   */
+  static final String LOG_FILE = "journal.log";
+
+  /**
+   * Snapshot file name.
+   */
+  static final String SNAPSHOT_FILE = "snapshot.bin";
+
+  /**
+   * Name of the snapshot file while it is written.
+   */
+  private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+
+  /**
+   * Name of the log file while it is rewritten after a snapshot.
+   */
+  private static final String LOG_TEMP_FILE = "journal.tmp";
+
+  /**
+   * Snapshot file magic number.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x4E414D53;
+
+  /**
+   * Size of a log record header: payload length and sequence number.
+   */
+  private static final int RECORD_HEADER = 12;
+
+  /**
+   * Size of a log record trailer: CRC.
+   */
+  private static final int RECORD_TRAILER = 4;
+
+  /**
+   * Maximum size of a log record payload. A larger length can only come
+   * from a torn or corrupt header.
+   */
+  static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The journaled system.
+   */
+  private final MemAuthSystem system;
+
+  /**
+   * The journal directory.
+   */
+  private final File directory;
+
+  /**
+   * Number of logged mutations triggering a snapshot, 0 to never take one
+   * automatically.
+   */
+  private final int snapshotRecords;
+
+  /**
+   * Held while writing the log file.
+   */
+  private final Lock ioLock = new ReentrantLock();
+
+  /**
+   * Held while taking a snapshot, so that snapshots are written in order.
+   */
+  private final Lock snapshotLock = new ReentrantLock();
+
+  /**
+   * Encoded records not written yet.
+   */
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  /**
+   * The log file.
+   */
+  private RandomAccessFile logFile;
+
+  /**
+   * The log file channel.
+   */
+  private FileChannel logChannel;
+
+  /**
+   * The flusher thread.
+   */
+  private Thread flusher;
+
+  /**
+   * Sequence number of the last appended mutation.
+   */
+  private long appendedSeq;
+
+  /**
+   * Sequence number of the last durable mutation.
+   */
+  private long flushedSeq;
+
+  /**
+   * Number of mutations logged since the last snapshot.
+   */
+  private int logged;
+
+  /**
+   * Write failure, after which the journal refuses new mutations.
+   */
+  private IOException failure;
+
+  /**
+   * Whether the journal is closed.
+   */
+  private boolean closed;
+
+  /**
+   * Sequence number of the last mutation held by the snapshot being taken.
+   * Guarded by the snapshot lock.
+   */
+  private long snapshotSeq;
+
+  /**
+   * Constructor.
+   *
+   * @param pSystem the journaled system
+   * @param pDirectory the journal directory
+   * @param pSnapshotRecords number of logged mutations triggering a
+   * snapshot, 0 to never take one automatically
+   */
+  Journal(final MemAuthSystem pSystem, final File pDirectory,
+          final int pSnapshotRecords) {
+    system = pSystem;
+    directory = pDirectory;
+    snapshotRecords = pSnapshotRecords;
+  }
+
+  /**
+   * Load the snapshot and replay the log into the system, then start
+   * logging.
+   *
+   * @throws IOException on read error or inconsistent journal
+   */
+  void open() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    long seq = readSnapshot();
+    File log = new File(directory, LOG_FILE);
+    long validLength = 0L;
+    if (log.exists()) {
+      InputStream stream = new BufferedInputStream(new FileInputStream(log));
+      try {
+        validLength = replay(new DataInputStream(stream), log.length(),
+                seq);
+      } finally {
+        stream.close();
+      }
+    }
+    logFile = new RandomAccessFile(log, "rw");
+    logChannel = logFile.getChannel();
+    logChannel.truncate(validLength);
+    logChannel.position(validLength);
+    appendedSeq = Math.max(seq, appendedSeq);
+    flushedSeq = appendedSeq;
+    flusher = new Thread(this, "niaouli-auth-mem-journal");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Append a mutation to the log. The caller must hold the system locks
+   * guarding the mutation, so that the log order matches the application
+   * order.
+   *
+   * @param mutation the mutation
+   * @return the mutation sequence number, to wait for with
+   * {@link #await(long)}
+   */
+  long append(final Mutation mutation) {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    try {
+      mutation.writeTo(new DataOutputStream(payload));
+    } catch (IOException ex) {
+      throw new IllegalStateException("Cannot encode " + mutation.getType(),
+              ex);
+    }
+    byte[] bytes = payload.toByteArray();
+    if (bytes.length > MAX_RECORD_BYTES) {
+      throw new IllegalStateException("Cannot log " + mutation.getType()
+              + " of " + bytes.length + " bytes");
+    }
+    synchronized (this) {
+      checkUsable();
+      appendedSeq++;
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+      header.putInt(bytes.length).putLong(appendedSeq);
+      CRC32 crc = new CRC32();
+      crc.update(header.array(), 0, RECORD_HEADER);
+      crc.update(bytes, 0, bytes.length);
+      ByteBuffer trailer = ByteBuffer.allocate(RECORD_TRAILER);
+      trailer.putInt((int) crc.getValue());
+      pending.write(header.array(), 0, RECORD_HEADER);
+      pending.write(bytes, 0, bytes.length);
+      pending.write(trailer.array(), 0, RECORD_TRAILER);
+      logged++;
+      notifyAll();
+      return appendedSeq;
+    }
+  }
+
+  /**
+   * Wait until a mutation is durable.
+   *
+   * @param seq the mutation sequence number
+   */
+  synchronized void await(final long seq) {
+    boolean interrupted = false;
+    while (flushedSeq < seq && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (flushedSeq < seq) {
+      throw new IllegalStateException("Journal write failed", failure);
+    }
+  }
+
+  /**
+   * Write a snapshot of the system, then drop the log records it holds. The
+   * system locks are only held while the data is copied.
+   *
+   * @throws IOException on write error
+   */
+  void snapshot() throws IOException {
+    snapshotLock.lock();
+    try {
+      MemAuthSystem.DataCopy copy = system.copySnapshot(this);
+      if (copy == null) {
+        return;
+      }
+      long seq = snapshotSeq;
+      File temp = new File(directory, SNAPSHOT_TEMP_FILE);
+      FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        DataOutputStream header = new DataOutputStream(stream);
+        header.writeInt(SNAPSHOT_MAGIC);
+        header.writeLong(seq);
+        ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(stream));
+        copy.writeTo(out);
+        out.flush();
+        stream.getFD().sync();
+      } finally {
+        stream.close();
+      }
+      File target = new File(directory, SNAPSHOT_FILE);
+      if (!temp.renameTo(target)
+              && !(target.delete() && temp.renameTo(target))) {
+        throw new IOException("Cannot replace " + target);
+      }
+      // A crash before this point replays records the snapshot holds:
+      // their sequence numbers make them skipped
+      ioLock.lock();
+      try {
+        if (logChannel.isOpen()) {
+          flush();
+          dropLogged(seq);
+        }
+      } finally {
+        ioLock.unlock();
+      }
+    } finally {
+      snapshotLock.unlock();
+    }
+  }
+
+  /**
+   * Record the last appended mutation as the last one of the snapshot being
+   * taken. The caller must hold all the system locks, while copying the
+   * data, and the snapshot lock.
+   */
+  void markSnapshot() {
+    synchronized (this) {
+      checkUsable();
+      snapshotSeq = appendedSeq;
+    }
+  }
+
+  /**
+   * Replace the log by its records following a snapshot. The caller must
+   * hold the I/O lock, with no pending record.
+   *
+   * @param seq the sequence number of the last mutation held by the snapshot
+   * @throws IOException on read or write error
+   */
+  private void dropLogged(final long seq) throws IOException {
+    long size = logChannel.size();
+    long offset = 0L;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    while (offset < size) {
+      header.clear();
+      while (header.hasRemaining()) {
+        if (logChannel.read(header, offset + header.position()) < 0) {
+          throw new EOFException("Truncated log");
+        }
+      }
+      if (header.getLong(RECORD_HEADER - 8) > seq) {
+        break;
+      }
+      offset += RECORD_HEADER + header.getInt(0) + RECORD_TRAILER;
+    }
+    File temp = new File(directory, LOG_TEMP_FILE);
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      FileChannel target = stream.getChannel();
+      long copied = offset;
+      while (copied < size) {
+        copied += logChannel.transferTo(copied, size - copied, target);
+      }
+      target.force(true);
+    } finally {
+      stream.close();
+    }
+    logFile.close();
+    File log = new File(directory, LOG_FILE);
+    if (!temp.renameTo(log) && !(log.delete() && temp.renameTo(log))) {
+      throw new IOException("Cannot replace " + log);
+    }
+    logFile = new RandomAccessFile(log, "rw");
+    logChannel = logFile.getChannel();
+    logChannel.position(logChannel.size());
+    synchronized (this) {
+      logged = (int) (appendedSeq - seq);
+    }
+  }
+
+  /**
+   * Stop logging, once the pending mutations are durable.
+   *
+   * @throws IOException on write error
+   */
+  void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    ioLock.lock();
+    try {
+      logFile.close();
+    } finally {
+      ioLock.unlock();
+    }
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Flusher thread loop.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      synchronized (this) {
+        while (pending.size() == 0 && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            closed = true;
+          }
+        }
+        if (pending.size() == 0 || failure != null) {
+          return;
+        }
+      }
+      try {
+        ioLock.lock();
+        try {
+          flush();
+        } finally {
+          ioLock.unlock();
+        }
+        if (isSnapshotDue()) {
+          snapshot();
+        }
+      } catch (IOException ex) {
+        synchronized (this) {
+          failure = ex;
+          notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Write and sync the pending records. The caller must hold the I/O lock.
+   *
+   * @throws IOException on write error
+   */
+  private void flush() throws IOException {
+    ByteBuffer batch;
+    long batchSeq;
+    synchronized (this) {
+      if (pending.size() == 0) {
+        return;
+      }
+      batch = ByteBuffer.wrap(pending.toByteArray());
+      pending.reset();
+      batchSeq = appendedSeq;
+    }
+    while (batch.hasRemaining()) {
+      logChannel.write(batch);
+    }
+    logChannel.force(false);
+    synchronized (this) {
+      flushedSeq = batchSeq;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Tell if enough mutations were logged to take a snapshot.
+   *
+   * @return true if a snapshot is due
+   */
+  private synchronized boolean isSnapshotDue() {
+    return snapshotRecords > 0 && logged >= snapshotRecords && !closed;
+  }
+
+  /**
+   * Tell if a write failed, after which no mutation can be logged.
+   *
+   * @return true if a write failed
+   */
+  synchronized boolean isFailed() {
+    return failure != null;
+  }
+
+  /**
+   * Check that mutations can still be logged.
+   */
+  private void checkUsable() {
+    if (failure != null) {
+      throw new IllegalStateException("Journal write failed", failure);
+    }
+    if (closed) {
+      throw new IllegalStateException("Journal closed");
+    }
+  }
+
+  /**
+   * Load the snapshot, if any, into the system.
+   *
+   * @return the sequence number of the last mutation held by the snapshot
+   * @throws IOException on read error
+   */
+  private long readSnapshot() throws IOException {
+    File file = new File(directory, SNAPSHOT_FILE);
+    if (!file.exists()) {
+      return 0L;
+    }
+    InputStream stream = new BufferedInputStream(new FileInputStream(file));
+    try {
+      DataInputStream header = new DataInputStream(stream);
+      if (header.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a snapshot: " + file);
+      }
+      long seq = header.readLong();
+      system.readData(new ObjectInputStream(stream));
+      return seq;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Apply the logged mutations that are not part of the snapshot.
+   *
+   * A record whose length does not fit in the log, or whose CRC does not
+   * match, is a torn tail. The sequence numbers of the valid records must
+   * follow each other, from at most the one following the snapshot.
+   *
+   * @param in the log
+   * @param logLength the length of the log
+   * @param snapshotSeq the sequence number of the last mutation held by the
+   * snapshot
+   * @return the length of the valid part of the log
+   * @throws IOException on read error, sequence gap or mutation rejected by
+   * the system
+   */
+  private long replay(final DataInputStream in, final long logLength,
+          final long snapshotSeq) throws IOException {
+    long position = 0L;
+    long expectedSeq = snapshotSeq + 1;
+    while (true) {
+      byte[] header = new byte[RECORD_HEADER];
+      byte[] payload;
+      int crc;
+      try {
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header).getInt();
+        if (length < 0 || length > MAX_RECORD_BYTES || length > logLength
+                - position - RECORD_HEADER - RECORD_TRAILER) {
+          return position;
+        }
+        payload = new byte[length];
+        in.readFully(payload);
+        crc = in.readInt();
+      } catch (EOFException ex) {
+        // Torn tail
+        return position;
+      }
+      CRC32 expected = new CRC32();
+      expected.update(header, 0, RECORD_HEADER);
+      expected.update(payload, 0, payload.length);
+      if ((int) expected.getValue() != crc) {
+        return position;
+      }
+      long seq = ByteBuffer.wrap(header).getLong(RECORD_HEADER - 8);
+      if (position == 0L ? seq > expectedSeq : seq != expectedSeq) {
+        throw new IOException("Log record " + seq + " found instead of "
+                + expectedSeq);
+      }
+      expectedSeq = seq + 1;
+      if (seq > snapshotSeq) {
+        Mutation mutation = Mutation.readFrom(new DataInputStream(
+                new ByteArrayInputStream(payload)));
+        try {
+          system.apply(mutation);
+        } catch (AppException ex) {
+          throw new IOException("Mutation " + seq + " rejected", ex);
+        }
+      }
+      appendedSeq = seq;
+      position += RECORD_HEADER + payload.length + RECORD_TRAILER;
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of operation latencies, in power of two buckets of nanoseconds,
+ * striped like {@link StripedCounter} so that recording never contends.
+ *
+ * Readers take snapshots: the counts of each bucket followed by the total
+ * latency, that can be subtracted from each other to get the latencies of a
+ * period.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class LatencyHistogram {
+
+  /**
+   * Number of buckets: bucket i counts the latencies from 2^(i-1) to 2^i - 1
+   * nanoseconds, bucket 0 the null ones.
+   */
+  static final int BUCKETS = Long.SIZE;
+
+  /**
+   * Index of the total latency in the snapshots.
+   */
+  static final int TOTAL = BUCKETS;
+
+  /**
+   * Number of longs of a stripe: the buckets and the total, rounded to whole
+   * cache lines.
+   */
+  private static final int ROW = BUCKETS + StripedCounter.LINE_LONGS;
+
+  /**
+   * The stripes.
+   */
+  private final AtomicLongArray cells;
+
+  /**
+   * Mask of the stripe indexes.
+   */
+  private final int mask;
+
+  /**
+   * Constructor.
+   */
+  LatencyHistogram() {
+    mask = StripedCounter.stripes() - 1;
+    cells = new AtomicLongArray((mask + 1) * ROW);
+  }
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos the latency, in nanoseconds
+   */
+  void record(final long nanos) {
+    long latency = Math.max(nanos, 0L);
+    int row = StripedCounter.stripe(mask) * ROW;
+    cells.incrementAndGet(row + BUCKETS - Long.numberOfLeadingZeros(latency));
+    cells.addAndGet(row + TOTAL, latency);
+  }
+
+  /**
+   * Read the counts of the buckets and the total latency.
+   *
+   * @return the snapshot
+   */
+  long[] snapshot() {
+    long[] snapshot = new long[BUCKETS + 1];
+    for (int row = 0; row < cells.length(); row += ROW) {
+      for (int i = 0; i <= BUCKETS; i++) {
+        snapshot[i] += cells.get(row + i);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Subtract a snapshot from a later one.
+   *
+   * @param later the later snapshot
+   * @param earlier the earlier snapshot
+   * @return the latencies recorded in between
+   */
+  static long[] minus(final long[] later, final long[] earlier) {
+    long[] delta = new long[BUCKETS + 1];
+    for (int i = 0; i <= BUCKETS; i++) {
+      delta[i] = later[i] - earlier[i];
+    }
+    return delta;
+  }
+
+  /**
+   * Count the latencies of a snapshot.
+   *
+   * @param snapshot the snapshot
+   * @return the number of latencies
+   */
+  static long count(final long[] snapshot) {
+    long count = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += snapshot[i];
+    }
+    return count;
+  }
+
+  /**
+   * Estimate a percentile of the latencies of a snapshot, by the upper bound
+   * of its bucket.
+   *
+   * @param snapshot the snapshot
+   * @param fraction the percentile, between 0 and 1
+   * @return the latency in nanoseconds, 0 when there is none
+   */
+  static long percentile(final long[] snapshot, final double fraction) {
+    int bucket = percentileBucket(snapshot, fraction);
+    if (bucket < 0) {
+      return 0L;
+    }
+    return upperBound(bucket);
+  }
+
+  /**
+   * Get a latency that a percentile of the latencies of a snapshot is known
+   * to reach: the lower bound of its bucket. Comparing it with a limit never
+   * reports a percentile under the limit as over it.
+   *
+   * @param snapshot the snapshot
+   * @param fraction the percentile, between 0 and 1
+   * @return the latency in nanoseconds, 0 when there is none
+   */
+  static long percentileFloor(final long[] snapshot, final double fraction) {
+    int bucket = percentileBucket(snapshot, fraction);
+    if (bucket < 1) {
+      return 0L;
+    }
+    return 1L << (bucket - 1);
+  }
+
+  /**
+   * Find the bucket of a percentile of the latencies of a snapshot.
+   *
+   * @param snapshot the snapshot
+   * @param fraction the percentile, between 0 and 1
+   * @return the bucket index, -1 when there is no latency
+   */
+  private static int percentileBucket(final long[] snapshot,
+          final double fraction) {
+    long count = count(snapshot);
+    long rank = (long) Math.ceil(count * fraction);
+    long seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen > 0L && seen >= rank) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Estimate the maximum latency of a snapshot, by the upper bound of its
+   * bucket.
+   *
+   * @param snapshot the snapshot
+   * @return the latency in nanoseconds, 0 when there is none
+   */
+  static long max(final long[] snapshot) {
+    for (int i = BUCKETS - 1; i > 0; i--) {
+      if (snapshot[i] > 0L) {
+        return upperBound(i);
+      }
+    }
+    return 0L;
+  }
+
+  /**
+   * Get the highest latency of a bucket.
+   *
+   * @param bucket the bucket index
+   * @return the latency in nanoseconds
+   */
+  private static long upperBound(final int bucket) {
+    if (bucket == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    return (1L << bucket) - 1L;
+  }
+
+}
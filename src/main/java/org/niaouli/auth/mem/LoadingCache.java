@@ -0,0 +1,366 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.niaouli.exception.AppException;
+
+/**
+ * Size bounded cache of values loaded on demand, keyed by system name.
+ *
+ * The outcome of a load is cached whether it is a value, null, or an
+ * {@link AppException}; null and exceptions, which mostly mean an unknown
+ * key, are kept for a shorter time. Concurrent requests of a key that is not
+ * cached share a single load. A key invalidated during its load is not
+ * cached with the loaded value, which may predate the invalidation.
+ *
+ * @param <V> values type
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class LoadingCache<V> {
+
+  /**
+   * Divisor of the maximum size giving the number of entries evicted at once
+   * when the cache is full.
+   */
+  private static final int EVICTION_DIVISOR = 16;
+
+  /**
+   * Loads the values missing from a cache.
+   *
+   * @param <V> values type
+   */
+  interface Loader<V> {
+
+    /**
+     * Load a value.
+     *
+     * @param key the key
+     * @return the value, may be null
+     * @throws AppException if the value cannot be loaded
+     */
+    V load(String key) throws AppException;
+  }
+
+  /**
+   * Loads the values.
+   */
+  private final Loader<V> loader;
+
+  /**
+   * Maximum number of entries.
+   */
+  private final int maxSize;
+
+  /**
+   * Time to live of the values, in nanoseconds.
+   */
+  private final long ttl;
+
+  /**
+   * Time to live of the null values and exceptions, in nanoseconds.
+   */
+  private final long negativeTtl;
+
+  /**
+   * Entries, loaded or being loaded, by key.
+   */
+  private final ConcurrentMap<String, Entry<V>> entries =
+          new ConcurrentHashMap<String, Entry<V>>();
+
+  /**
+   * Number of requests answered by a loaded entry.
+   */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Number of requests that waited for a load.
+   */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Number of loads.
+   */
+  private final AtomicLong loads = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param pLoader loads the values
+   * @param pMaxSize maximum number of entries
+   * @param pTtl time to live of the values, in seconds
+   * @param pNegativeTtl time to live of the null values and exceptions, in
+   * seconds
+   */
+  LoadingCache(final Loader<V> pLoader, final int pMaxSize, final long pTtl,
+          final long pNegativeTtl) {
+    if (pMaxSize < 1 || pTtl < 1 || pNegativeTtl < 1) {
+      throw new IllegalArgumentException(
+              "Size and times to live must be positive");
+    }
+    loader = pLoader;
+    maxSize = pMaxSize;
+    ttl = TimeUnit.SECONDS.toNanos(pTtl);
+    negativeTtl = TimeUnit.SECONDS.toNanos(pNegativeTtl);
+  }
+
+  /**
+   * Get a value, loading it if it is not cached or has expired.
+   *
+   * @param key the key
+   * @return the value, may be null
+   * @throws AppException if the value cannot be loaded
+   */
+  V get(final String key) throws AppException {
+    while (true) {
+      Entry<V> entry = entries.get(key);
+      if (entry == null) {
+        Entry<V> created = new Entry<V>();
+        entry = entries.putIfAbsent(key, created);
+        if (entry == null) {
+          return load(key, created);
+        }
+      }
+      if (!entry.isLoaded()) {
+        misses.incrementAndGet();
+        entry.await();
+      } else if (System.nanoTime() - entry.expiresAt < 0) {
+        hits.incrementAndGet();
+      } else {
+        Entry<V> created = new Entry<V>();
+        if (entries.replace(key, entry, created)) {
+          return load(key, created);
+        }
+        continue;
+      }
+      if (entry.abandoned) {
+        continue;
+      }
+      if (entry.failure != null) {
+        throw entry.failure;
+      }
+      return entry.value;
+    }
+  }
+
+  /**
+   * Get a cached value without loading it, even if it has expired.
+   *
+   * @param key the key
+   * @return the value, null if not loaded
+   */
+  V peek(final String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null || !entry.isLoaded()) {
+      return null;
+    }
+    return entry.value;
+  }
+
+  /**
+   * Forget a value, so that the next request loads it again.
+   *
+   * @param key the key
+   */
+  void invalidate(final String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Forget all the values.
+   */
+  void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * Get the number of requests answered by a loaded entry.
+   *
+   * @return the hits count
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of requests that waited for a load.
+   *
+   * @return the misses count
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Get the number of loads.
+   *
+   * @return the loads count
+   */
+  long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * Run the load of an entry registered by the calling thread.
+   *
+   * @param key the key
+   * @param entry the entry
+   * @return the value
+   * @throws AppException if the value cannot be loaded
+   */
+  private V load(final String key, final Entry<V> entry)
+          throws AppException {
+    misses.incrementAndGet();
+    loads.incrementAndGet();
+    if (entries.size() > maxSize) {
+      evict(System.nanoTime());
+    }
+    boolean loaded = false;
+    try {
+      V value = loader.load(key);
+      entry.complete(value, null, System.nanoTime()
+              + (value == null ? negativeTtl : ttl));
+      loaded = true;
+      return value;
+    } catch (AppException ex) {
+      entry.complete(null, ex, System.nanoTime() + negativeTtl);
+      loaded = true;
+      throw ex;
+    } finally {
+      if (!loaded) {
+        // Unexpected failure: let the waiting requests load again
+        entries.remove(key, entry);
+        entry.abandon();
+      }
+    }
+  }
+
+  /**
+   * Make room for new entries: drop the expired ones, then arbitrary loaded
+   * ones until a batch of {@code maxSize / EVICTION_DIVISOR} entries is
+   * dropped, so that the scan runs once per batch of loads rather than on
+   * each load.
+   *
+   * @param now the current time, in nanoseconds
+   */
+  private void evict(final long now) {
+    int count = Math.max(1, maxSize / EVICTION_DIVISOR);
+    for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+      Entry<V> entry = it.next();
+      if (entry.isLoaded() && now - entry.expiresAt >= 0) {
+        it.remove();
+        count--;
+      }
+    }
+    Iterator<Entry<V>> it = entries.values().iterator();
+    while (count > 0 && it.hasNext()) {
+      if (it.next().isLoaded()) {
+        it.remove();
+        count--;
+      }
+    }
+  }
+
+  /**
+   * The outcome of a load, or a load in progress.
+   *
+   * @param <V> values type
+   */
+  private static final class Entry<V> {
+
+    /**
+     * Released when the load ends.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The loaded value.
+     */
+    private volatile V value;
+
+    /**
+     * The load failure.
+     */
+    private volatile AppException failure;
+
+    /**
+     * Whether the load failed unexpectedly.
+     */
+    private volatile boolean abandoned;
+
+    /**
+     * Expiration time, in nanoseconds.
+     */
+    private volatile long expiresAt;
+
+    /**
+     * Tell if the load ended.
+     *
+     * @return true if loaded
+     */
+    boolean isLoaded() {
+      return done.getCount() == 0L;
+    }
+
+    /**
+     * End the load.
+     *
+     * @param pValue the loaded value
+     * @param pFailure the load failure
+     * @param pExpiresAt the expiration time, in nanoseconds
+     */
+    void complete(final V pValue, final AppException pFailure,
+            final long pExpiresAt) {
+      value = pValue;
+      failure = pFailure;
+      expiresAt = pExpiresAt;
+      done.countDown();
+    }
+
+    /**
+     * End the load without outcome.
+     */
+    void abandon() {
+      abandoned = true;
+      done.countDown();
+    }
+
+    /**
+     * Wait for the end of the load. An interruption is deferred until then.
+     */
+    void await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
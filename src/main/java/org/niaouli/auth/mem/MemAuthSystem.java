@@ -16,17 +16,41 @@
  */
 package org.niaouli.auth.mem;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import org.niaouli.auth.AuthSystem;
 import org.niaouli.auth.Group;
 import org.niaouli.auth.OrgUnit;
 import org.niaouli.auth.Person;
+import org.niaouli.auth.mem.Metrics.Operation;
 import org.niaouli.exception.AppException;
 import org.niaouli.validation.Validation;
 
@@ -34,250 +58,3335 @@ import org.niaouli.validation.Validation;
  *
  * @author Arnaud Rolly <github@niaouli.org>
  */
-public class MemAuthSystem implements AuthSystem, Serializable {
+public class MemAuthSystem implements AuthSystem, MemAuthSystemMXBean,
+        Serializable {
+
+  /**
+   * Configuration key of the password storage: "plain" (default) or
+   * "pbkdf2". It must be set before any password is stored.
+   */
+  public static final String PASSWORD_HASH = "password.hash";
+
+  /**
+   * Configuration key of the number of PBKDF2 iterations of the new hashes.
+   */
+  public static final String PASSWORD_HASH_ITERATIONS
+          = "password.hash.iterations";
+
+  /**
+   * Configuration key of the number of threads verifying hashed passwords.
+   */
+  public static final String PASSWORD_VERIFY_THREADS
+          = "password.verify.threads";
+
+  /**
+   * Configuration key of the maximum number of hashed password verifications
+   * waiting for a thread. Verifications beyond it are rejected.
+   */
+  public static final String PASSWORD_VERIFY_QUEUE = "password.verify.queue";
+
+  /**
+   * Configuration key of the maximum number of verified credentials kept in
+   * cache. The cache is disabled when it is not set.
+   */
+  public static final String CREDENTIAL_CACHE_SIZE = "credential.cache.size";
+
+  /**
+   * Configuration key of the time verified credentials are kept in cache, in
+   * seconds.
+   */
+  public static final String CREDENTIAL_CACHE_TTL = "credential.cache.ttl";
+
+  /**
+   * Configuration key of the time a session token lives without being
+   * validated, in seconds. The tokens are disabled when it is not set.
+   */
+  public static final String TOKEN_IDLE_TTL = "token.idle.ttl";
+
+  /**
+   * Configuration key of the maximum time a session token lives, in seconds.
+   */
+  public static final String TOKEN_MAX_TTL = "token.max.ttl";
+
+  /**
+   * Configuration key of the interval between two sweeps of the expired
+   * session tokens, in seconds.
+   */
+  public static final String TOKEN_SWEEP_INTERVAL = "token.sweep.interval";
+
+  /**
+   * Configuration key of the number of journaled mutations after which a
+   * snapshot is taken, 0 to only take snapshots on demand.
+   */
+  public static final String JOURNAL_SNAPSHOT_RECORDS
+          = "journal.snapshot.records";
+
+  /**
+   * Configuration key of the snapshot mode: when "true", the listings are
+   * read from immutable point-in-time versions of the data.
+   */
+  public static final String READ_SNAPSHOTS = "read.snapshots";
+
+  /**
+   * Configuration key of the operation metrics: "true" (default) or "false".
+   */
+  public static final String METRICS = "metrics";
+
+  /**
+   * Configuration key of the maximum 99th percentile latency of every kind of
+   * operation for the system to be healthy, in milliseconds.
+   */
+  public static final String HEALTH_MAX_LATENCY = "health.max.latency";
+
+  /**
+   * Configuration key of the maximum percentage of credential checks
+   * rejected for the system to be healthy.
+   */
+  public static final String HEALTH_MAX_REJECTED = "health.max.rejected";
+
+  /**
+   * Configuration key of the number of changes kept for the change
+   * subscriptions.
+   */
+  public static final String CHANGES_CAPACITY = "changes.capacity";
+
+  /**
+   * Configuration key of the storage of the persons and passwords.
+   */
+  public static final String PERSONS_STORE = "persons.store";
+
+  /**
+   * Configuration key of the directory of the files mapping the off-heap
+   * persons store.
+   */
+  public static final String PERSONS_STORE_DIRECTORY =
+          "persons.store.directory";
+
+  /**
+   * Password storage value for plain text passwords.
+   */
+  public static final String PASSWORD_HASH_PLAIN = "plain";
+
+  /**
+   * Password storage value for PBKDF2 hashed passwords.
+   */
+  public static final String PASSWORD_HASH_PBKDF2 = "pbkdf2";
+
+  /**
+   * Persons storage value for heap maps.
+   */
+  public static final String PERSONS_STORE_HEAP = "heap";
+
+  /**
+   * Persons storage value for off-heap records.
+   */
+  public static final String PERSONS_STORE_OFF_HEAP = "off-heap";
+
+  /**
+   * Default number of PBKDF2 iterations.
+   */
+  private static final int DEFAULT_HASH_ITERATIONS = 600000;
+
+  /**
+   * Default number of hashed password verifications waiting per thread.
+   */
+  private static final int DEFAULT_VERIFY_QUEUE_PER_THREAD = 16;
+
+  /**
+   * Default time verified credentials are kept in cache, in seconds.
+   */
+  private static final int DEFAULT_CREDENTIAL_CACHE_TTL = 60;
+
+  /**
+   * Default maximum time a session token lives, in seconds.
+   */
+  private static final int DEFAULT_TOKEN_MAX_TTL = 8 * 60 * 60;
+
+  /**
+   * Default interval between two sweeps of the expired session tokens, in
+   * seconds.
+   */
+  private static final int DEFAULT_TOKEN_SWEEP_INTERVAL = 1;
+
+  /**
+   * Default number of journaled mutations after which a snapshot is taken.
+   */
+  private static final int DEFAULT_JOURNAL_SNAPSHOT_RECORDS = 100000;
+
+  /**
+   * Default maximum 99th percentile latency of a healthy system, in
+   * milliseconds.
+   */
+  private static final int DEFAULT_HEALTH_MAX_LATENCY = 1000;
+
+  /**
+   * Default maximum percentage of credential checks rejected by a healthy
+   * system.
+   */
+  private static final int DEFAULT_HEALTH_MAX_REJECTED = 1;
+
+  /**
+   * Default number of changes kept for the change subscriptions.
+   */
+  private static final int DEFAULT_CHANGES_CAPACITY = 4096;
+
+  /**
+   * Number of nanoseconds per millisecond.
+   */
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * Rough heap size of a person, its system names and its map entries.
+   */
+  private static final long PERSON_BYTES = 240L;
+
+  /**
+   * Rough heap size of a password and its map entry.
+   */
+  private static final long PASSWORD_BYTES = 160L;
+
+  /**
+   * Rough heap size of the system names of a person stored off-heap.
+   */
+  private static final long OFF_HEAP_PERSON_BYTES = 120L;
+
+  /**
+   * Rough heap size of a group, an organizational unit, and their map
+   * entries.
+   */
+  private static final long ENTITY_BYTES = 160L;
+
+  /**
+   * Rough heap size of a group membership: its bitmap bits and its entry in
+   * the reverse index.
+   */
+  private static final long MEMBERSHIP_BYTES = 48L;
+
+  /**
+   * Domain of the names of the published management beans.
+   */
+  private static final String MBEAN_DOMAIN = "org.niaouli.auth.mem";
+
+  /**
+   * Version of the layout written by {@link #writeData(ObjectOutput)}.
+   */
+  private static final int DATA_VERSION = 1;
+
+  /**
+   * Number of value bits per byte of the variable length integers.
+   */
+  private static final int VAR_INT_BITS = 7;
+
+  /**
+   * Mask of the value bits of a variable length integer byte.
+   */
+  private static final int VAR_INT_MASK = 0x7F;
+
+  /**
+   * Flag of the variable length integer bytes followed by another one.
+   */
+  private static final int VAR_INT_MORE = 0x80;
+
+  /**
+   * Maximum initial capacity of the pages lists, so that a huge limit does not
+   * allocate a huge array.
+   */
+  private static final int PAGE_CAPACITY = 1024;
+
+  /**
+   * Number of lock stripes of a concurrent system.
+   */
+  private static final int CONCURRENT_LOCK_STRIPES = 64;
+
+  /**
+   * Whether the system can be shared between threads.
+   */
+  private final boolean concurrent;
+
+  /**
+   * Locks serializing the compound mutations, per system name.
+   */
+  private final StripedLocks locks;
 
   /**
    * All persons, mapped by their system names.
    */
-  private final Map<String, Person> persons = new HashMap<String, Person>();
+  private volatile Map<String, Person> persons;
+  /**
+   * All persons system names, sorted.
+   */
+  private final NavigableSet<String> personsSysNames;
+
+  /**
+   * All groups, mapped by their system names.
+   */
+  private final Map<String, Group> groups;
+
+  /**
+   * All groups system names, sorted.
+   */
+  private final NavigableSet<String> groupsSysNames;
+
+  /**
+   * Dense integer identifiers of the persons system names.
+   */
+  private final SysNameDictionary personIds;
+
+  /**
+   * Inverted index of the persons full names, reading them from the persons
+   * store when it is off heap.
+   */
+  private volatile NameIndex nameIndex = new NameIndex();
+
+  /**
+   * Persons identifiers set per group system name, as compressed bitmaps.
+   */
+  private final Map<String, IntBitmap> groupsPersons;
+
+  /**
+   * Groups system names set per person system name, the reverse index of
+   * {@link #groupsPersons}.
+   */
+  private final Map<String, Set<String>> personsGroups;
+
+  /**
+   * Sub-groups system names set per group system name.
+   */
+  private final Map<String, Set<String>> groupsSubGroups;
+
+  /**
+   * Parent groups system names set per group system name, the reverse index
+   * of {@link #groupsSubGroups}.
+   */
+  private final Map<String, Set<String>> groupsParents;
+
+  /**
+   * Effective members of the groups having sub-groups, that is their direct
+   * members and the effective members of their sub-groups, kept up to date
+   * by every membership change. The effective members of the other groups
+   * are their direct members.
+   */
+  private final Map<String, IntBitmap> groupsEffectivePersons;
+
+  /**
+   * Serializes the updates of the effective members of the nested groups,
+   * whose mutations hold different lock stripes.
+   */
+  private final Object nestingLock = new Object();
+
+  /**
+   * All organizational units, mapped by their names.
+   */
+  private final Map<String, OrgUnit> orgUnits;
+
+  /**
+   * Persons system names set per organizational unit name.
+   */
+  private final Map<String, Set<String>> orgUnitsPersons;
+
+  /**
+   * Hierarchy of the organizational units.
+   */
+  private final OrgUnitTree orgUnitTree = new OrgUnitTree();
+
+  /**
+   * All passwords, mapped by their person system names.
+   */
+  private volatile Map<String, String> passwords;
+
+  /**
+   * Directory of the files mapping the off-heap persons store, null for
+   * direct memory or a heap store.
+   */
+  private volatile File personsStoreDirectory;
+
+  /**
+   * Hashes and verifies the passwords, null when they are stored in plain
+   * text.
+   */
+  private volatile PasswordHasher passwordHasher;
+
+  /**
+   * Recently verified credentials, null when disabled.
+   */
+  private volatile CredentialCache credentialCache;
+
+  /**
+   * Issued session tokens, null when disabled.
+   */
+  private volatile TokenStore tokenStore;
+
+  /**
+   * Source of the current time of the session tokens and of the operation
+   * latencies.
+   */
+  private volatile Ticker ticker = Ticker.SYSTEM;
+
+  /**
+   * Number of journaled mutations after which a snapshot is taken.
+   */
+  private volatile int journalSnapshotRecords
+          = DEFAULT_JOURNAL_SNAPSHOT_RECORDS;
+
+  /**
+   * Durable journal of the mutations, null when not journaled.
+   */
+  private transient volatile Journal journal;
+
+  /**
+   * Operation metrics, null when disabled.
+   */
+  private transient volatile Metrics metrics = new Metrics();
+
+  /**
+   * Maximum 99th percentile latency of a healthy system, in nanoseconds.
+   */
+  private volatile long healthMaxLatencyNanos
+          = DEFAULT_HEALTH_MAX_LATENCY * NANOS_PER_MILLI;
+
+  /**
+   * Maximum percentage of credential checks rejected by a healthy system.
+   */
+  private volatile int healthMaxRejected = DEFAULT_HEALTH_MAX_REJECTED;
+
+  /**
+   * Name of the published management bean, null when not published.
+   */
+  private transient volatile ObjectName mbeanName;
+
+  /**
+   * Current version of the data published for the readers, null when the
+   * snapshot mode is off.
+   */
+  private volatile DirectoryVersion version;
+
+  /**
+   * Serializes the publications of new versions by mutations holding
+   * different lock stripes.
+   */
+  private final Object versionLock = new Object();
+
+  /**
+   * The last changes, for the change subscriptions.
+   */
+  private final transient ChangeStream changes
+          = new ChangeStream(DEFAULT_CHANGES_CAPACITY);
+
+  /**
+   * Create a system meant to be used by a single thread at a time.
+   */
+  public MemAuthSystem() {
+    this(false);
+  }
+
+  /**
+   * Create a system.
+   *
+   * In concurrent mode, the data is held in concurrent maps: lookups and
+   * credential checks never lock, and the check-then-act mutations are
+   * serialized per system name by striped locks.
+   *
+   * @param pConcurrent true to allow sharing the system between threads
+   * without external synchronization
+   */
+  public MemAuthSystem(final boolean pConcurrent) {
+    concurrent = pConcurrent;
+    if (concurrent) {
+      locks = new StripedLocks(CONCURRENT_LOCK_STRIPES);
+    } else {
+      locks = new StripedLocks(1);
+    }
+    personIds = new SysNameDictionary(concurrent);
+    persons = newMap();
+    personsSysNames = newSortedSet();
+    groups = newMap();
+    groupsSysNames = newSortedSet();
+    groupsPersons = newMap();
+    personsGroups = newMap();
+    groupsSubGroups = newMap();
+    groupsParents = newMap();
+    groupsEffectivePersons = newMap();
+    orgUnits = newMap();
+    orgUnitsPersons = newMap();
+    passwords = newMap();
+  }
+
+  /**
+   * Tell if the system can be shared between threads.
+   *
+   * @return true in concurrent mode
+   */
+  public final boolean isConcurrent() {
+    return concurrent;
+  }
+
+  /**
+   * Configure the system.
+   *
+   * The {@link #PASSWORD_HASH} key selects the password storage. Hashed
+   * passwords are derived by PBKDF2 with HMAC-SHA256, in
+   * {@link #PASSWORD_HASH_ITERATIONS} iterations (default: 600000), and
+   * verified by {@link #PASSWORD_VERIFY_THREADS} threads
+   * (default: one per processor), and when more than
+   * {@link #PASSWORD_VERIFY_QUEUE} verifications are waiting,
+   * {@link #checkCredentials(String, String)} sheds the load by throwing a
+   * {@link java.util.concurrent.RejectedExecutionException}.
+   *
+   * Setting {@link #CREDENTIAL_CACHE_SIZE} enables a cache of the
+   * successfully verified credentials, kept {@link #CREDENTIAL_CACHE_TTL}
+   * seconds (default: 60), so that clients sending their credentials with
+   * every request do not pay a password verification each time.
+   *
+   * Setting {@link #TOKEN_IDLE_TTL} enables the session tokens of
+   * {@link #issueToken(String, String)}: a token expires when it has not been
+   * validated for this number of seconds, or {@link #TOKEN_MAX_TTL} seconds
+   * (default: 8 hours) after it was issued. The expired tokens are swept
+   * every {@link #TOKEN_SWEEP_INTERVAL} seconds (default: 1). Configuring the
+   * system again revokes all the tokens.
+   *
+   * {@link #JOURNAL_SNAPSHOT_RECORDS} sets how often the journal opened by
+   * {@link #openJournal(File)} is compacted into a snapshot.
+   *
+   * Setting {@link #READ_SNAPSHOTS} to "true" enables the snapshot mode: every
+   * mutation publishes a new immutable version of the data, sharing all the
+   * unchanged parts of the previous one, and {@link #findPersons()},
+   * {@link #findGroups()}, {@link #findGroupPersons(String)} and
+   * {@link #findOrgUnits()} return consistent point-in-time collections that
+   * can be iterated while the data changes.
+   *
+   * Operations are counted and timed unless {@link #METRICS} is "false". The
+   * system is healthy while the 99th percentile latency of every kind of
+   * operation stays under {@link #HEALTH_MAX_LATENCY} milliseconds (default:
+   * 1000) and at most {@link #HEALTH_MAX_REJECTED} percents (default: 1) of
+   * the credential checks are rejected.
+   *
+   * The last {@link #CHANGES_CAPACITY} changes (default: 4096) are kept for
+   * the subscriptions of {@link #subscribe(ChangeListener, long)}.
+   *
+   * Setting {@link #PERSONS_STORE} to "off-heap" keeps the persons and the
+   * passwords outside of the heap, so that huge directories do not slow the
+   * garbage collections down: their records are decoded on each lookup. The
+   * records are held in direct memory, or in files memory-mapped from the
+   * {@link #PERSONS_STORE_DIRECTORY} directory, which lets the operating
+   * system page them out. The store can only be changed on an empty system.
+   * It is kept by the serialization, which then requires the directory to
+   * exist where the system is deserialized.
+   *
+   * @param props the configuration properties
+   */
+  @Override
+  public final void configure(final Map<String, String> props) {
+    String hash = props.get(PASSWORD_HASH);
+    if (hash == null || PASSWORD_HASH_PLAIN.equals(hash)) {
+      passwordHasher = null;
+    } else if (PASSWORD_HASH_PBKDF2.equals(hash)) {
+      int threads = intProperty(props, PASSWORD_VERIFY_THREADS,
+              Runtime.getRuntime().availableProcessors());
+      passwordHasher = new PasswordHasher(
+              intProperty(props, PASSWORD_HASH_ITERATIONS,
+                      DEFAULT_HASH_ITERATIONS),
+              threads,
+              intProperty(props, PASSWORD_VERIFY_QUEUE,
+                      threads * DEFAULT_VERIFY_QUEUE_PER_THREAD));
+    } else {
+      throw new IllegalArgumentException("Unknown " + PASSWORD_HASH + ": "
+              + hash);
+    }
+    if (props.containsKey(CREDENTIAL_CACHE_SIZE)) {
+      credentialCache = new CredentialCache(
+              intProperty(props, CREDENTIAL_CACHE_SIZE, 0),
+              intProperty(props, CREDENTIAL_CACHE_TTL,
+                      DEFAULT_CREDENTIAL_CACHE_TTL));
+    } else {
+      credentialCache = null;
+    }
+    TokenStore previousTokens = tokenStore;
+    if (props.containsKey(TOKEN_IDLE_TTL)) {
+      tokenStore = new TokenStore(intProperty(props, TOKEN_IDLE_TTL, 0),
+              intProperty(props, TOKEN_MAX_TTL, DEFAULT_TOKEN_MAX_TTL),
+              intProperty(props, TOKEN_SWEEP_INTERVAL,
+                      DEFAULT_TOKEN_SWEEP_INTERVAL), ticker);
+    } else {
+      tokenStore = null;
+    }
+    if (previousTokens != null) {
+      previousTokens.close();
+    }
+    journalSnapshotRecords = intProperty(props, JOURNAL_SNAPSHOT_RECORDS,
+            DEFAULT_JOURNAL_SNAPSHOT_RECORDS);
+    setReadSnapshots(Boolean.parseBoolean(props.get(READ_SNAPSHOTS)));
+    if ("false".equals(props.get(METRICS))) {
+      metrics = null;
+    } else if (metrics == null) {
+      metrics = new Metrics();
+    }
+    healthMaxLatencyNanos = intProperty(props, HEALTH_MAX_LATENCY,
+            DEFAULT_HEALTH_MAX_LATENCY) * NANOS_PER_MILLI;
+    healthMaxRejected = intProperty(props, HEALTH_MAX_REJECTED,
+            DEFAULT_HEALTH_MAX_REJECTED);
+    int changesCapacity = intProperty(props, CHANGES_CAPACITY,
+            DEFAULT_CHANGES_CAPACITY);
+    locks.lockAll();
+    try {
+      changes.setCapacity(changesCapacity);
+    } finally {
+      locks.unlockAll();
+    }
+    setPersonsStore(props.get(PERSONS_STORE),
+            props.get(PERSONS_STORE_DIRECTORY));
+  }
+
+  /**
+   * Set the source of the current time of the session tokens and of the
+   * operation latencies, the system one by default, so that tests need not
+   * wait for their expiry. It applies to the tokens store created by the
+   * next {@link #configure(Map)}, and to the latencies right away.
+   *
+   * @param pTicker the time source
+   */
+  public final void setTicker(final Ticker pTicker) {
+    if (pTicker == null) {
+      throw new IllegalArgumentException("Ticker required");
+    }
+    ticker = pTicker;
+  }
+
+  /**
+   * Use the password hasher, the verified credentials cache and the session
+   * tokens store of another system, so that systems splitting a directory
+   * between them are bounded as a whole by a single configuration.
+   *
+   * @param source the system to share with
+   */
+  final void shareCredentialsOf(final MemAuthSystem source) {
+    TokenStore previousTokens = tokenStore;
+    passwordHasher = source.passwordHasher;
+    credentialCache = source.credentialCache;
+    tokenStore = source.tokenStore;
+    if (previousTokens != null && previousTokens != tokenStore) {
+      previousTokens.close();
+    }
+  }
+
+  /**
+   * Publish the metrics of the system in the platform MBean server.
+   *
+   * @param name the name of the system, unique in the JVM
+   * @throws JMException if the bean cannot be registered
+   */
+  public final void registerMBean(final String name) throws JMException {
+    if (mbeanName != null) {
+      throw new IllegalStateException("Already registered as " + mbeanName);
+    }
+    ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type="
+            + MemAuthSystem.class.getSimpleName() + ",name="
+            + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(this, MemAuthSystemMXBean.class, true),
+            objectName);
+    mbeanName = objectName;
+  }
+
+  /**
+   * Stop publishing the metrics of the system, if they are.
+   *
+   * @throws JMException if the bean cannot be unregistered
+   */
+  public final void unregisterMBean() throws JMException {
+    ObjectName objectName = mbeanName;
+    if (objectName != null) {
+      mbeanName = null;
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+  }
+
+  /**
+   * Get the current immutable version of the data, to run several reads on
+   * the same point in time.
+   *
+   * @return the current version
+   * @throws IllegalStateException if the snapshot mode is off
+   */
+  public final DirectoryVersion getDirectoryVersion() {
+    DirectoryVersion current = version;
+    if (current == null) {
+      throw new IllegalStateException("The snapshot mode is off");
+    }
+    return current;
+  }
+
+  /**
+   * Subscribe to the next changes of the system.
+   *
+   * @param listener the listener
+   * @return the subscription, to close when done
+   */
+  public final ChangeSubscription subscribe(final ChangeListener listener) {
+    return subscribe(listener, changes.getLastSequence() + 1);
+  }
+
+  /**
+   * Subscribe to the changes of the system, starting from a sequence number,
+   * typically the {@link ChangeSubscription#getNextSequence()} of a previous
+   * subscription. Changes no longer buffered are reported to
+   * {@link ChangeListener#onChangesLost(long, long)}. Sequence numbers start
+   * at 1 with each instance of the system.
+   *
+   * @param listener the listener
+   * @param fromSequence the sequence number of the first change to deliver
+   * @return the subscription, to close when done
+   */
+  public final ChangeSubscription subscribe(final ChangeListener listener,
+          final long fromSequence) {
+    if (listener == null) {
+      throw new IllegalArgumentException("No listener");
+    }
+    ChangeSubscription subscription = new ChangeSubscription(changes,
+            listener, fromSequence);
+    subscription.start();
+    return subscription;
+  }
+
+  /**
+   * Get the sequence number of the last change of the system.
+   *
+   * @return the sequence number, 0 before the first change
+   */
+  public final long getLastChangeSequence() {
+    return changes.getLastSequence();
+  }
+
+  /**
+   * Get the identifier of the change sequence numbers of this instance.
+   *
+   * @return the non-zero identifier
+   */
+  final long getChangeEpoch() {
+    return changes.getEpoch();
+  }
+
+  /**
+   * Write all the data, as of a change sequence number. The mutations only
+   * wait while the data is copied, not while it is written.
+   *
+   * @param out the destination
+   * @return the sequence number of the last change written
+   * @throws IOException on write error
+   */
+  final long writeSnapshot(final ObjectOutput out) throws IOException {
+    DataCopy copy;
+    long seq;
+    // Only copy the references under the locks: writing takes much longer
+    locks.lockAll();
+    try {
+      copy = copyData();
+      seq = changes.getLastSequence();
+    } finally {
+      locks.unlockAll();
+    }
+    copy.writeTo(out);
+    return seq;
+  }
+
+  /**
+   * Make the system durable: load the data saved in a directory, then save
+   * every following mutation there.
+   *
+   * The directory holds a snapshot and a log of the mutations applied since.
+   * Each mutation method returns once its mutation is written and synced to
+   * the log; concurrent mutations share the same sync. Snapshots are taken
+   * every {@link #JOURNAL_SNAPSHOT_RECORDS} mutations, or on
+   * {@link #snapshot()}.
+   *
+   * @param directory the journal directory, created if needed
+   * @throws IOException on read error or inconsistent journal
+   */
+  public final void openJournal(final File directory) throws IOException {
+    locks.lockAll();
+    try {
+      if (journal != null) {
+        throw new IllegalStateException("Journal already open");
+      }
+      if (!persons.isEmpty() || !groups.isEmpty() || !orgUnits.isEmpty()) {
+        throw new IllegalStateException(
+                "The journal must be opened on an empty system");
+      }
+      Journal opened = new Journal(this, directory, journalSnapshotRecords);
+      opened.open();
+      journal = opened;
+    } finally {
+      locks.unlockAll();
+    }
+  }
+
+  /**
+   * Save a snapshot of the data in the journal directory, and empty the log.
+   *
+   * @throws IOException on write error
+   */
+  public final void snapshot() throws IOException {
+    Journal current = journal;
+    if (current == null) {
+      throw new IllegalStateException("No journal is open");
+    }
+    current.snapshot();
+  }
+
+  /**
+   * Copy the data to snapshot in a journal, unless it was closed. Only the
+   * copy is made under the locks: the journal writes it without them.
+   *
+   * @param expected the journal
+   * @return the copy, null if the journal was closed
+   */
+  final DataCopy copySnapshot(final Journal expected) {
+    locks.lockAll();
+    try {
+      if (journal != expected) {
+        return null;
+      }
+      expected.markSnapshot();
+      return copyData();
+    } finally {
+      locks.unlockAll();
+    }
+  }
+
+  /**
+   * Stop saving the mutations, once the pending ones are durable.
+   *
+   * @throws IOException on write error
+   */
+  public final void closeJournal() throws IOException {
+    Journal current;
+    locks.lockAll();
+    try {
+      current = journal;
+      journal = null;
+    } finally {
+      locks.unlockAll();
+    }
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  /**
+   * Check the health of the system: its journal, if any, must be writable,
+   * and since the previous check the latencies and the rejected credential
+   * checks must have stayed under the configured limits.
+   *
+   * @return true if healthy
+   */
+  @Override
+  public final boolean checkHealth() {
+    return evaluateHealth(true);
+  }
+
+  /**
+   * Tell if the system is healthy, as {@link #checkHealth()} but without
+   * starting a new period: polling it does not hide the latencies and the
+   * rejections from the next check.
+   *
+   * @return true if healthy
+   */
+  @Override
+  public final boolean isHealthy() {
+    return evaluateHealth(false);
+  }
+
+  /**
+   * Evaluate the health of the system.
+   *
+   * @param advance true to start a new period for the next check
+   * @return true if healthy
+   */
+  private boolean evaluateHealth(final boolean advance) {
+    Journal current = journal;
+    if (current != null && current.isFailed()) {
+      return false;
+    }
+    Metrics currentMetrics = metrics;
+    return currentMetrics == null || currentMetrics.isHealthy(
+            healthMaxLatencyNanos, healthMaxRejected, advance);
+  }
+
+  @Override
+  public final int getPersonCount() {
+    return persons.size();
+  }
+
+  @Override
+  public final int getGroupCount() {
+    return groups.size();
+  }
+
+  @Override
+  public final int getOrgUnitCount() {
+    return orgUnits.size();
+  }
+
+  @Override
+  public final long getMembershipCount() {
+    long count = 0L;
+    for (IntBitmap members : groupsPersons.values()) {
+      count += members.cardinality();
+    }
+    return count;
+  }
+
+  @Override
+  public final long getEstimatedHeapBytes() {
+    long personsBytes;
+    if (persons instanceof OffHeapStore) {
+      personsBytes = persons.size() * OFF_HEAP_PERSON_BYTES;
+    } else {
+      personsBytes = persons.size() * PERSON_BYTES
+              + passwords.size() * PASSWORD_BYTES;
+    }
+    return personsBytes + (groups.size() + orgUnits.size()) * ENTITY_BYTES
+            + getMembershipCount() * MEMBERSHIP_BYTES;
+  }
+
+  @Override
+  public final long getOffHeapBytes() {
+    return reservedBytes(persons) + reservedBytes(passwords);
+  }
+
+  /**
+   * Get the size of the memory held outside of the heap by a map.
+   *
+   * @param map the map
+   * @return the size in bytes, 0 for a heap map
+   */
+  private static long reservedBytes(final Map<String, ?> map) {
+    if (map instanceof OffHeapStore) {
+      return ((OffHeapStore<?>) map).getReservedBytes();
+    }
+    return 0L;
+  }
+
+  @Override
+  public final long getRejectedCredentialChecks() {
+    Metrics current = metrics;
+    if (current == null) {
+      return 0L;
+    }
+    return current.getRejected();
+  }
+
+  @Override
+  public final OperationStats getSuccessfulCredentialChecks() {
+    return getStats(Operation.CREDENTIALS_SUCCESS);
+  }
+
+  @Override
+  public final OperationStats getFailedCredentialChecks() {
+    return getStats(Operation.CREDENTIALS_FAILURE);
+  }
+
+  @Override
+  public final OperationStats getLoads() {
+    return getStats(Operation.LOAD);
+  }
+
+  @Override
+  public final OperationStats getFinds() {
+    return getStats(Operation.FIND);
+  }
+
+  @Override
+  public final OperationStats getMutations() {
+    return getStats(Operation.MUTATION);
+  }
+
+  @Override
+  public final OperationStats getMembershipChanges() {
+    return getStats(Operation.MEMBERSHIP);
+  }
+
+  @Override
+  public final boolean checkCredentials(final String sysName,
+          final String password) throws AppException {
+    long start = startTimer();
+    boolean verified = false;
+    try {
+      verified = verifyCredentials(sysName, password);
+      return verified;
+    } catch (RejectedExecutionException ex) {
+      Metrics current = metrics;
+      if (current != null) {
+        current.recordRejected();
+      }
+      throw ex;
+    } finally {
+      if (verified) {
+        stopTimer(Operation.CREDENTIALS_SUCCESS, start);
+      } else {
+        stopTimer(Operation.CREDENTIALS_FAILURE, start);
+      }
+    }
+  }
+
+  /**
+   * Check credentials, without measuring it.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @return true if the credentials are valid
+   * @throws AppException if the system name is empty
+   */
+  private boolean verifyCredentials(final String sysName,
+          final String password) throws AppException {
+    if (sysName == null || sysName.length() == 0) {
+      Validation validation = new Validation();
+      validation.verifyThat(sysName).inField("sysName").isNotEmpty();
+      validation.finish();
+    }
+    String stored = passwords.get(sysName);
+    PasswordHasher hasher = passwordHasher;
+    if (stored == null) {
+      if (hasher != null) {
+        // Cost as much as a wrong password, not to reveal unknown persons
+        hasher.verifyInPool(password, hasher.getDummy());
+      }
+      return false;
+    }
+    CredentialCache cache = credentialCache;
+    if (cache != null && cache.isVerified(sysName, password, stored)) {
+      return true;
+    }
+    boolean verified;
+    if (hasher == null) {
+      verified = stored.equals(password);
+    } else {
+      verified = hasher.verifyInPool(password, stored);
+    }
+    if (verified && cache != null) {
+      cache.put(sysName, password, stored);
+    }
+    return verified;
+  }
+
+  /**
+   * Get the number of credential checks answered by the verified credentials
+   * cache.
+   *
+   * @return the hits count, 0 when the cache is disabled
+   */
+  @Override
+  public final long getCredentialCacheHits() {
+    CredentialCache cache = credentialCache;
+    if (cache == null) {
+      return 0L;
+    }
+    return cache.getHits();
+  }
+
+  /**
+   * Get the number of credential checks not answered by the verified
+   * credentials cache.
+   *
+   * @return the misses count, 0 when the cache is disabled
+   */
+  @Override
+  public final long getCredentialCacheMisses() {
+    CredentialCache cache = credentialCache;
+    if (cache == null) {
+      return 0L;
+    }
+    return cache.getMisses();
+  }
+
+  /**
+   * Check credentials and, when they are valid, issue a session token that
+   * {@link #validateToken(String)} resolves to the person without verifying
+   * the password again. Updating the password of the person revokes all its
+   * tokens.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @return the token, null if the credentials are not valid
+   * @throws AppException if the system name is empty
+   * @throws IllegalStateException if the tokens are not enabled
+   */
+  public final String issueToken(final String sysName,
+          final String password) throws AppException {
+    TokenStore store = tokenStore;
+    if (store == null) {
+      throw new IllegalStateException("Session tokens are not enabled");
+    }
+    String stored = sysName == null ? null : passwords.get(sysName);
+    if (!checkCredentials(sysName, password)) {
+      return null;
+    }
+    String token = store.issue(sysName);
+    // A password update racing with the issue may have missed the token
+    if (stored == null || !stored.equals(passwords.get(sysName))) {
+      store.revoke(token);
+      return null;
+    }
+    return token;
+  }
+
+  /**
+   * Resolve a session token to the person it was issued to, and extend its
+   * idle time to live.
+   *
+   * @param token the token
+   * @return the person system name, null if the token is unknown, revoked or
+   * expired, or if the tokens are not enabled
+   */
+  public final String validateToken(final String token) {
+    long start = startTimer();
+    try {
+      TokenStore store = tokenStore;
+      if (store == null || token == null) {
+        return null;
+      }
+      return store.validate(token);
+    } finally {
+      stopTimer(Operation.LOAD, start);
+    }
+  }
+
+  /**
+   * Revoke a session token. Unknown tokens are ignored.
+   *
+   * @param token the token
+   */
+  public final void revokeToken(final String token) {
+    long start = startTimer();
+    try {
+      TokenStore store = tokenStore;
+      if (store != null && token != null) {
+        store.revoke(token);
+      }
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final long getTokenCount() {
+    TokenStore store = tokenStore;
+    if (store == null) {
+      return 0L;
+    }
+    return store.size();
+  }
+
+  @Override
+  public final Person loadPerson(final String sysName) throws AppException {
+    long start = startTimer();
+    try {
+      Person person = sysName == null ? null : persons.get(sysName);
+      if (person == null || sysName.length() == 0) {
+        Validation validation = new Validation();
+        validation.verifyThat(sysName).inField("sysName")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(persons, sysName));
+        validation.finish();
+        // Created in between
+        person = persons.get(sysName);
+      }
+      return person;
+    } finally {
+      stopTimer(Operation.LOAD, start);
+    }
+  }
+
+  @Override
+  public final Collection<Person> findPersons() {
+    long start = startTimer();
+    try {
+      DirectoryVersion current = version;
+      if (current != null) {
+        return current.findPersons();
+      }
+      return Collections.unmodifiableCollection(persons.values());
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find a page of persons, in system name order, without going through the
+   * other persons.
+   *
+   * @param prefix the start of the system names, null or empty for all
+   * @param afterSysName the last system name of the previous page, null for
+   * the first page
+   * @param limit the maximum number of persons
+   * @return the persons
+   */
+  public final List<Person> findPersons(final String prefix,
+          final String afterSysName, final int limit) {
+    long start = startTimer();
+    try {
+      List<Person> page = new ArrayList<Person>(
+              Math.min(limit, PAGE_CAPACITY));
+      for (String sysName
+              : page(personsSysNames, prefix, afterSysName, limit)) {
+        Person person = persons.get(sysName);
+        if (person != null) {
+          page.add(person);
+        }
+      }
+      return page;
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Search the persons by full name. Accents and case are ignored; every
+   * word of the query must be found in the full name, as a word start for
+   * words of one or two characters, anywhere for longer words. The persons
+   * whose full name is the query come first, then those whose full name
+   * starts with it, then those matching the most query words at word
+   * starts, the shorter names first.
+   *
+   * @param query the searched words
+   * @param limit the maximum number of persons
+   * @return the best matching persons, best first
+   */
+  public final List<Person> searchPersons(final String query,
+          final int limit) {
+    long start = startTimer();
+    try {
+      if (limit <= 0) {
+        throw new IllegalArgumentException("Invalid search limit: " + limit);
+      }
+      List<NameIndex.Match> matches = nameIndex.search(query, limit);
+      List<Person> found = new ArrayList<Person>(matches.size());
+      for (NameIndex.Match match : matches) {
+        Person person = persons.get(personIds.nameOf(match.getId()));
+        if (person != null) {
+          found.add(person);
+        }
+      }
+      return found;
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final boolean canCreateOrUpdatePerson() {
+    return true;
+  }
+
+  @Override
+  public final boolean canUpdatePassword() {
+    return true;
+  }
+
+  @Override
+  public final void createPerson(final Person person) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(person.getSysName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(person.getSysName()).inField("person.sysName")
+                .isNotEmpty()
+                .isNotInMapKeys(keysOf(persons, person.getSysName()));
+        validation.finish();
+        nameIndex.update(personIds.intern(person.getSysName()), null,
+                person.getFullName());
+        persons.put(person.getSysName(), person);
+        personsSysNames.add(person.getSysName());
+        if (person.getOrgUnitName() != null) {
+          addToIndex(orgUnitsPersons, person.getOrgUnitName(),
+                  person.getSysName());
+        }
+        publishPerson(person);
+        seq = journal(Mutation.createPerson(person));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final void updatePerson(final Person person) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(person.getSysName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(person.getSysName()).inField("person.sysName")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(persons, person.getSysName()));
+        validation.finish();
+        Person previous = persons.put(person.getSysName(), person);
+        nameIndex.update(personIds.idOf(person.getSysName()),
+                previous.getFullName(), person.getFullName());
+        moveOrgUnitPerson(person.getSysName(), previous.getOrgUnitName(),
+                person.getOrgUnitName());
+        publishPerson(person);
+        seq = journal(Mutation.updatePerson(person));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Create several persons at once. The whole batch is validated before any
+   * person is created: either all the persons are created, or none.
+   *
+   * @param newPersons the persons to create
+   * @throws AppException if a system name is empty, already used, or
+   * duplicated in the batch
+   */
+  public final void createPersons(final Collection<Person> newPersons)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Map<String, Person> batch = new HashMap<String, Person>(
+              capacityFor(newPersons.size()));
+      long seq = 0L;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        int index = 0;
+        for (Person person : newPersons) {
+          validation.verifyThat(person.getSysName())
+                  .inField("persons[" + index + "].sysName")
+                  .isNotEmpty()
+                  .isNotInMapKeys(keysOf(persons, person.getSysName()))
+                  .isNotInMapKeys(batch);
+          batch.put(person.getSysName(), person);
+          index++;
+        }
+        validation.finish();
+        int[] ids = new int[batch.size()];
+        String[] fullNames = new String[ids.length];
+        int count = 0;
+        for (Person person : batch.values()) {
+          ids[count] = personIds.intern(person.getSysName());
+          fullNames[count++] = person.getFullName();
+        }
+        nameIndex.addAll(ids, fullNames);
+        persons.putAll(batch);
+        personsSysNames.addAll(batch.keySet());
+        DirectoryVersion next = version;
+        for (Person person : batch.values()) {
+          if (person.getOrgUnitName() != null) {
+            addToIndex(orgUnitsPersons, person.getOrgUnitName(),
+                    person.getSysName());
+          }
+          if (next != null) {
+            next = next.withPerson(person);
+          }
+          seq = journal(Mutation.createPerson(person));
+        }
+        version = next;
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final void updatePersonPassword(final String sysName,
+          final String password) throws AppException {
+    long start = startTimer();
+    try {
+      // Hashing is slow on purpose, keep it out of the lock
+      awaitJournal(storePassword(sysName, toStoredPassword(password)));
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Update the passwords of several persons at once. The whole batch is
+   * validated before any password is updated: either all the passwords are
+   * updated, or none.
+   *
+   * @param newPasswords the passwords, mapped by person system name
+   * @throws AppException if a person does not exist
+   */
+  public final void updatePersonPasswords(
+          final Map<String, String> newPasswords) throws AppException {
+    long start = startTimer();
+    try {
+      // Hashing is slow on purpose, keep it out of the locks
+      Map<String, String> batch = new HashMap<String, String>(
+              capacityFor(newPasswords.size()));
+      for (Map.Entry<String, String> entry : newPasswords.entrySet()) {
+        batch.put(entry.getKey(), toStoredPassword(entry.getValue()));
+      }
+      awaitJournal(storePasswords(batch));
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Update the passwords of several persons at once, with values already
+   * converted by {@link #toStoredPassword(String)}, so that the slow hashing
+   * can be spread over several threads beforehand.
+   *
+   * @param storedPasswords the values to store, mapped by person system name
+   * @throws AppException if a person does not exist
+   */
+  final void updateStoredPasswords(final Map<String, String> storedPasswords)
+          throws AppException {
+    long start = startTimer();
+    try {
+      awaitJournal(storePasswords(storedPasswords));
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Convert a password to the value stored for it, hashed if the system
+   * hashes passwords.
+   *
+   * @param password the password, may be null
+   * @return the value to store
+   */
+  final String toStoredPassword(final String password) {
+    PasswordHasher hasher = passwordHasher;
+    if (hasher == null || password == null) {
+      return password;
+    }
+    return hasher.hash(password);
+  }
+
+  @Override
+  public final Group loadGroup(final String sysName) throws AppException {
+    long start = startTimer();
+    try {
+      Group group = sysName == null ? null : groups.get(sysName);
+      if (group == null || sysName.length() == 0) {
+        Validation validation = new Validation();
+        validation.verifyThat(sysName).inField("sysName")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(groups, sysName));
+        validation.finish();
+        // Created in between
+        group = groups.get(sysName);
+      }
+      return group;
+    } finally {
+      stopTimer(Operation.LOAD, start);
+    }
+  }
+
+  @Override
+  public final Collection<Group> findGroups() {
+    long start = startTimer();
+    try {
+      DirectoryVersion current = version;
+      if (current != null) {
+        return current.findGroups();
+      }
+      return Collections.unmodifiableCollection(groups.values());
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find a page of groups, in system name order, without going through the
+   * other groups.
+   *
+   * @param prefix the start of the system names, null or empty for all
+   * @param afterSysName the last system name of the previous page, null for
+   * the first page
+   * @param limit the maximum number of groups
+   * @return the groups
+   */
+  public final List<Group> findGroups(final String prefix,
+          final String afterSysName, final int limit) {
+    long start = startTimer();
+    try {
+      List<Group> page = new ArrayList<Group>(
+              Math.min(limit, PAGE_CAPACITY));
+      for (String sysName
+              : page(groupsSysNames, prefix, afterSysName, limit)) {
+        Group group = groups.get(sysName);
+        if (group != null) {
+          page.add(group);
+        }
+      }
+      return page;
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final Collection<String> findGroupPersons(final String sysName)
+          throws AppException {
+    long start = startTimer();
+    try {
+      if (!hasText(sysName) || groups.get(sysName) == null) {
+        Validation validation = new Validation();
+        validation.verifyThat(sysName).inField("sysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, sysName));
+        validation.finish();
+      }
+      DirectoryVersion current = version;
+      if (current != null) {
+        return current.findGroupPersons(sysName);
+      }
+      IntBitmap members = groupsPersons.get(sysName);
+      if (members == null) {
+        return Collections.emptySet();
+      }
+      return personIds.names(members);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find the persons directly attached to all the given groups, by
+   * intersecting their members bitmaps.
+   *
+   * @param groupSysNames the groups system names
+   * @return the persons system names
+   * @throws AppException if a group does not exist
+   */
+  public final Collection<String> findPersonsInAllGroups(
+          final String... groupSysNames) throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      for (String groupSysName : groupSysNames) {
+        validation.verifyThat(groupSysName).inField("groupSysNames")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, groupSysName));
+      }
+      validation.finish();
+      IntBitmap common = null;
+      for (String groupSysName : groupSysNames) {
+        IntBitmap members = groupMembers(groupSysName);
+        if (common == null) {
+          common = members;
+        } else {
+          common = common.and(members);
+        }
+      }
+      if (common == null) {
+        common = IntBitmap.EMPTY;
+      }
+      return personIds.names(common);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find the groups a person is a direct member of.
+   *
+   * @param sysName the person system name
+   * @return the groups system names
+   * @throws AppException if the person does not exist
+   */
+  public final Collection<String> findPersonGroups(final String sysName)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(sysName).inField("sysName")
+              .isNotBlank()
+              .isInMapKeys(keysOf(persons, sysName));
+      validation.finish();
+      if (personsGroups.containsKey(sysName)) {
+        return Collections.unmodifiableSet(personsGroups.get(sysName));
+      } else {
+        return Collections.unmodifiableSet(new HashSet<String>());
+      }
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Tell if a person is a direct member of a group, without validating nor
+   * allocating anything.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return true if the person is a member of the group, false otherwise
+   * including when the group or the person does not exist
+   */
+  public final boolean isGroupMember(final String groupSysName,
+          final String personSysName) {
+    long start = startTimer();
+    try {
+      IntBitmap members = groupSysName == null ? null
+              : groupsPersons.get(groupSysName);
+      return members != null
+              && members.contains(personIds.idOf(personSysName));
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final void attachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      locks.lock(groupSysName, personSysName);
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(groupSysName).inField("groupSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, groupSysName));
+        validation.verifyThat(personSysName).inField("personSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(persons, personSysName));
+        validation.finish();
+        int id = personIds.idOf(personSysName);
+        IntBitmap members = groupMembers(groupSysName).add(id);
+        groupsPersons.put(groupSysName, members);
+        addToIndex(personsGroups, personSysName, groupSysName);
+        if (isNested(groupSysName)) {
+          synchronized (nestingLock) {
+            for (String related : nestingBottomUp(groupSysName)) {
+              IntBitmap effective = groupsEffectivePersons.get(related);
+              if (effective != null) {
+                groupsEffectivePersons.put(related, effective.add(id));
+              }
+            }
+          }
+        }
+        publishMembers(groupSysName, members);
+        seq = journal(Mutation.attachMember(groupSysName, personSysName));
+      } finally {
+        locks.unlock(groupSysName, personSysName);
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MEMBERSHIP, start);
+    }
+  }
+
+  /**
+   * Attach several persons to a group at once. The whole batch is validated
+   * before any person is attached: either all the persons are attached, or
+   * none.
+   *
+   * @param groupSysName the group system name
+   * @param personSysNames the persons system names
+   * @throws AppException if the group or a person does not exist
+   */
+  public final void attachGroupMembers(final String groupSysName,
+          final Collection<String> personSysNames) throws AppException {
+    long start = startTimer();
+    try {
+      long seq = 0L;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(groupSysName).inField("groupSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, groupSysName));
+        for (String personSysName : personSysNames) {
+          validation.verifyThat(personSysName).inField("personSysNames")
+                  .isNotBlank()
+                  .isInMapKeys(keysOf(persons, personSysName));
+        }
+        validation.finish();
+        int[] ids = new int[personSysNames.size()];
+        int index = 0;
+        for (String personSysName : personSysNames) {
+          ids[index++] = personIds.idOf(personSysName);
+          addToIndex(personsGroups, personSysName, groupSysName);
+          seq = journal(Mutation.attachMember(groupSysName, personSysName));
+        }
+        IntBitmap members = groupMembers(groupSysName).or(IntBitmap.of(ids));
+        groupsPersons.put(groupSysName, members);
+        refreshEffectivePersons(groupSysName);
+        if (version != null) {
+          version = version.withMembers(groupSysName, members);
+        }
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MEMBERSHIP, start);
+    }
+  }
+
+  @Override
+  public final void detachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      locks.lock(groupSysName, personSysName);
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(groupSysName).inField("groupSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, groupSysName));
+        validation.verifyThat(personSysName).inField("personSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(persons, personSysName));
+        validation.finish();
+        int id = personIds.idOf(personSysName);
+        IntBitmap members = groupMembers(groupSysName).remove(id);
+        groupsPersons.put(groupSysName, members);
+        removeFromIndex(personsGroups, personSysName, groupSysName);
+        if (isNested(groupSysName)) {
+          synchronized (nestingLock) {
+            // Sub-groups first: a group keeps the person if any still has it
+            for (String related : nestingBottomUp(groupSysName)) {
+              IntBitmap effective = groupsEffectivePersons.get(related);
+              if (effective != null && !isEffectiveMember(related, id)) {
+                groupsEffectivePersons.put(related, effective.remove(id));
+              }
+            }
+          }
+        }
+        publishMembers(groupSysName, members);
+        seq = journal(Mutation.detachMember(groupSysName, personSysName));
+      } finally {
+        locks.unlock(groupSysName, personSysName);
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MEMBERSHIP, start);
+    }
+  }
+
+  /**
+   * Make a group a sub-group of another one: the effective members of the
+   * sub-group become effective members of the parent group.
+   *
+   * @param parentSysName the parent group system name
+   * @param childSysName the sub-group system name
+   * @throws AppException if a group does not exist, or if the parent group
+   * is the sub-group or one of its sub-groups, which would make a cycle
+   */
+  public final void attachSubGroup(final String parentSysName,
+          final String childSysName) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(parentSysName).inField("parentSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, parentSysName));
+        validation.verifyThat(childSysName).inField("childSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, childSysName));
+        validation.finish();
+        validation.verifyThat(parentSysName).inField("parentSysName")
+                .isNotInMapKeys(subGroupsClosure(childSysName));
+        validation.finish();
+        addToIndex(groupsSubGroups, parentSysName, childSysName);
+        addToIndex(groupsParents, childSysName, parentSysName);
+        refreshEffectivePersons(parentSysName);
+        seq = journal(Mutation.attachSubGroup(parentSysName, childSysName));
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MEMBERSHIP, start);
+    }
+  }
+
+  /**
+   * Remove a sub-group from a group.
+   *
+   * @param parentSysName the parent group system name
+   * @param childSysName the sub-group system name
+   * @throws AppException if a group does not exist
+   */
+  public final void detachSubGroup(final String parentSysName,
+          final String childSysName) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(parentSysName).inField("parentSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, parentSysName));
+        validation.verifyThat(childSysName).inField("childSysName")
+                .isNotBlank()
+                .isInMapKeys(keysOf(groups, childSysName));
+        validation.finish();
+        removeFromIndex(groupsSubGroups, parentSysName, childSysName);
+        removeFromIndex(groupsParents, childSysName, parentSysName);
+        refreshEffectivePersons(parentSysName);
+        seq = journal(Mutation.detachSubGroup(parentSysName, childSysName));
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MEMBERSHIP, start);
+    }
+  }
+
+  /**
+   * Find the direct sub-groups of a group.
+   *
+   * @param sysName the group system name
+   * @return the sub-groups system names
+   * @throws AppException if the group does not exist
+   */
+  public final Collection<String> findSubGroups(final String sysName)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(sysName).inField("sysName")
+              .isNotBlank()
+              .isInMapKeys(keysOf(groups, sysName));
+      validation.finish();
+      Set<String> children = groupsSubGroups.get(sysName);
+      if (children == null) {
+        return Collections.emptySet();
+      }
+      return Collections.unmodifiableSet(children);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find the effective members of a group: its members and the effective
+   * members of its sub-groups.
+   *
+   * @param sysName the group system name
+   * @return the persons system names
+   * @throws AppException if the group does not exist
+   */
+  public final Collection<String> findEffectiveGroupPersons(
+          final String sysName) throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(sysName).inField("sysName")
+              .isNotBlank()
+              .isInMapKeys(keysOf(groups, sysName));
+      validation.finish();
+      return personIds.names(effectiveMembers(sysName));
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Tell if a person is an effective member of a group, directly or through
+   * sub-groups, without validating nor allocating anything. The effective
+   * members are precomputed, so that the answer does not depend on the
+   * nesting depth.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return true if the person is an effective member of the group, false
+   * otherwise including when the group or the person does not exist
+   */
+  public final boolean isEffectiveGroupMember(final String groupSysName,
+          final String personSysName) {
+    long start = startTimer();
+    try {
+      if (groupSysName == null) {
+        return false;
+      }
+      IntBitmap members = effectiveMembers(groupSysName);
+      return members.contains(personIds.idOf(personSysName));
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateGroup() {
+    return true;
+  }
+
+  @Override
+  public final void createGroup(final Group group) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(group.getSysName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(group.getSysName()).inField("group.sysName")
+                .isNotEmpty()
+                .isNotInMapKeys(keysOf(groups, group.getSysName()));
+        validation.finish();
+        groups.put(group.getSysName(), group);
+        groupsSysNames.add(group.getSysName());
+        publishGroup(group);
+        seq = journal(Mutation.createGroup(group));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Create several groups at once. The whole batch is validated before any
+   * group is created: either all the groups are created, or none.
+   *
+   * @param newGroups the groups to create
+   * @throws AppException if a system name is empty, already used, or
+   * duplicated in the batch
+   */
+  public final void createGroups(final Collection<Group> newGroups)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Map<String, Group> batch = new HashMap<String, Group>(
+              capacityFor(newGroups.size()));
+      long seq = 0L;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        int index = 0;
+        for (Group group : newGroups) {
+          validation.verifyThat(group.getSysName())
+                  .inField("groups[" + index + "].sysName")
+                  .isNotEmpty()
+                  .isNotInMapKeys(keysOf(groups, group.getSysName()))
+                  .isNotInMapKeys(batch);
+          batch.put(group.getSysName(), group);
+          index++;
+        }
+        validation.finish();
+        groups.putAll(batch);
+        groupsSysNames.addAll(batch.keySet());
+        DirectoryVersion next = version;
+        for (Group group : batch.values()) {
+          if (next != null) {
+            next = next.withGroup(group);
+          }
+          seq = journal(Mutation.createGroup(group));
+        }
+        version = next;
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final void updateGroup(final Group group) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(group.getSysName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(group.getSysName()).inField("group.sysName")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(groups, group.getSysName()));
+        validation.finish();
+        groups.put(group.getSysName(), group);
+        publishGroup(group);
+        seq = journal(Mutation.updateGroup(group));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final OrgUnit loadOrgUnit(final String name) throws AppException {
+    long start = startTimer();
+    try {
+      OrgUnit orgUnit = name == null ? null : orgUnits.get(name);
+      if (orgUnit == null || name.length() == 0) {
+        Validation validation = new Validation();
+        validation.verifyThat(name).inField("name")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(orgUnits, name));
+        validation.finish();
+        // Created in between
+        orgUnit = orgUnits.get(name);
+      }
+      return orgUnit;
+    } finally {
+      stopTimer(Operation.LOAD, start);
+    }
+  }
+
+  @Override
+  public final Collection<OrgUnit> findOrgUnits() {
+    long start = startTimer();
+    try {
+      DirectoryVersion current = version;
+      if (current != null) {
+        return current.findOrgUnits();
+      }
+      return Collections.unmodifiableCollection(orgUnits.values());
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final Collection<String> findOrgUnitPersons(final String name)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Set<String> attachedPersons = name == null ? null
+              : orgUnitsPersons.get(name);
+      if (attachedPersons == null) {
+        return Collections.unmodifiableSet(new HashSet<String>());
+      }
+      return Collections.unmodifiableSet(
+              new HashSet<String>(attachedPersons));
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateOrgUnit() {
+    return true;
+  }
+
+  @Override
+  public final void createOrgUnit(final OrgUnit orgUnit) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(orgUnit.getName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(orgUnit.getName()).inField("orgUnit.name")
+                .isNotEmpty()
+                .isNotInMapKeys(keysOf(orgUnits, orgUnit.getName()));
+        validation.finish();
+        orgUnits.put(orgUnit.getName(), orgUnit);
+        orgUnitTree.add(orgUnit.getName());
+        publishOrgUnit(orgUnit);
+        seq = journal(Mutation.createOrgUnit(orgUnit));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  @Override
+  public final void updateOrgUnit(final OrgUnit orgUnit) throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      Lock lock = locks.lockFor(orgUnit.getName());
+      lock.lock();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(orgUnit.getName()).inField("orgUnit.name")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(orgUnits, orgUnit.getName()));
+        validation.finish();
+        orgUnits.put(orgUnit.getName(), orgUnit);
+        publishOrgUnit(orgUnit);
+        seq = journal(Mutation.updateOrgUnit(orgUnit));
+      } finally {
+        lock.unlock();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Move an organizational unit, with its sub-units, under another one.
+   *
+   * @param name the organizational unit name
+   * @param parentName the new parent unit name, null for none
+   * @throws AppException if a unit does not exist, or if the new parent is
+   * the unit or one of its sub-units
+   */
+  public final void moveOrgUnit(final String name, final String parentName)
+          throws AppException {
+    long start = startTimer();
+    try {
+      long seq;
+      locks.lockAll();
+      try {
+        Validation validation = new Validation();
+        validation.verifyThat(name).inField("name")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(orgUnits, name));
+        validation.finish();
+        if (parentName != null) {
+          Map<String, Boolean> subtree = new HashMap<String, Boolean>();
+          for (String unit : orgUnitTree.subtree(name)) {
+            subtree.put(unit, Boolean.TRUE);
+          }
+          validation.verifyThat(parentName).inField("parentName")
+                  .isNotEmpty()
+                  .isInMapKeys(keysOf(orgUnits, parentName))
+                  .isNotInMapKeys(subtree);
+          validation.finish();
+        }
+        orgUnitTree.move(name, parentName);
+        seq = journal(Mutation.moveOrgUnit(name, parentName));
+      } finally {
+        locks.unlockAll();
+      }
+      awaitJournal(seq);
+    } finally {
+      stopTimer(Operation.MUTATION, start);
+    }
+  }
+
+  /**
+   * Find the parent of an organizational unit.
+   *
+   * @param name the organizational unit name
+   * @return the parent unit name, null if none
+   * @throws AppException if the unit does not exist
+   */
+  public final String findOrgUnitParent(final String name)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(name).inField("name")
+              .isNotEmpty()
+              .isInMapKeys(keysOf(orgUnits, name));
+      validation.finish();
+      return orgUnitTree.parentOf(name);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find the direct sub-units of an organizational unit.
+   *
+   * @param name the organizational unit name
+   * @return the sub-units names
+   * @throws AppException if the unit does not exist
+   */
+  public final Collection<String> findOrgUnitChildren(final String name)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(name).inField("name")
+              .isNotEmpty()
+              .isInMapKeys(keysOf(orgUnits, name));
+      validation.finish();
+      return orgUnitTree.childrenOf(name);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Find the persons of an organizational unit and of all its sub-units.
+   * The sub-units are a range of the unit hierarchy labels: the time taken
+   * depends on the size of the subtree, not on the total number of units.
+   *
+   * @param name the organizational unit name
+   * @return the persons system names
+   * @throws AppException if the unit does not exist
+   */
+  public final Collection<String> findOrgUnitTreePersons(final String name)
+          throws AppException {
+    long start = startTimer();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(name).inField("name")
+              .isNotEmpty()
+              .isInMapKeys(keysOf(orgUnits, name));
+      validation.finish();
+      Set<String> result = new HashSet<String>();
+      for (String unit : orgUnitTree.subtree(name)) {
+        Set<String> unitPersons = orgUnitsPersons.get(unit);
+        if (unitPersons != null) {
+          result.addAll(unitPersons);
+        }
+      }
+      return Collections.unmodifiableSet(result);
+    } finally {
+      stopTimer(Operation.FIND, start);
+    }
+  }
+
+  /**
+   * Store a password, already hashed if needed.
+   *
+   * @param sysName the person system name
+   * @param stored the value to store
+   * @return the journal sequence number of the mutation
+   * @throws AppException if the person does not exist
+   */
+  private long storePassword(final String sysName, final String stored)
+          throws AppException {
+    Lock lock = locks.lockFor(sysName);
+    lock.lock();
+    try {
+      Validation validation = new Validation();
+      validation.verifyThat(sysName).inField("sysName")
+              .isNotEmpty()
+              .isInMapKeys(keysOf(persons, sysName));
+      validation.finish();
+      putPassword(sysName, stored);
+      CredentialCache cache = credentialCache;
+      if (cache != null) {
+        cache.invalidate(sysName);
+      }
+      TokenStore store = tokenStore;
+      if (store != null) {
+        store.revokeAll(sysName);
+      }
+      return journal(Mutation.updatePassword(sysName, stored));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the stored password of a person, or remove it: the concurrent maps
+   * hold no null values. The caller must hold the lock of the person.
+   *
+   * @param sysName the person system name
+   * @param stored the value to store, null for none
+   */
+  private void putPassword(final String sysName, final String stored) {
+    if (stored == null) {
+      passwords.remove(sysName);
+    } else {
+      passwords.put(sysName, stored);
+    }
+  }
+
+  /**
+   * Store several passwords, already hashed if needed. The whole batch is
+   * validated before any password is stored.
+   *
+   * @param batch the values to store, mapped by person system name
+   * @return the journal sequence number of the last mutation
+   * @throws AppException if a person does not exist
+   */
+  private long storePasswords(final Map<String, String> batch)
+          throws AppException {
+    long seq = 0L;
+    locks.lockAll();
+    try {
+      Validation validation = new Validation();
+      for (String sysName : batch.keySet()) {
+        validation.verifyThat(sysName).inField("passwords.sysName")
+                .isNotEmpty()
+                .isInMapKeys(keysOf(persons, sysName));
+      }
+      validation.finish();
+      CredentialCache cache = credentialCache;
+      TokenStore store = tokenStore;
+      for (Map.Entry<String, String> entry : batch.entrySet()) {
+        putPassword(entry.getKey(), entry.getValue());
+        if (cache != null) {
+          cache.invalidate(entry.getKey());
+        }
+        if (store != null) {
+          store.revokeAll(entry.getKey());
+        }
+        seq = journal(Mutation.updatePassword(entry.getKey(),
+                entry.getValue()));
+      }
+    } finally {
+      locks.unlockAll();
+    }
+    return seq;
+  }
+
+  /**
+   * Change the storage of the persons and passwords.
+   *
+   * @param store the storage, null for the heap
+   * @param directory the directory of the mapped files, null for direct
+   * memory
+   */
+  private void setPersonsStore(final String store, final String directory) {
+    boolean offHeap;
+    if (store == null || PERSONS_STORE_HEAP.equals(store)) {
+      offHeap = false;
+    } else if (PERSONS_STORE_OFF_HEAP.equals(store)) {
+      offHeap = true;
+    } else {
+      throw new IllegalArgumentException("Unknown " + PERSONS_STORE + ": "
+              + store);
+    }
+    File mapped = null;
+    if (offHeap && directory != null) {
+      mapped = new File(directory);
+      if (!mapped.isDirectory()) {
+        throw new IllegalArgumentException("Not a directory: " + directory);
+      }
+    }
+    locks.lockAll();
+    try {
+      if (offHeap == persons instanceof OffHeapStore
+              && (mapped == null ? personsStoreDirectory == null
+                      : mapped.equals(personsStoreDirectory))) {
+        return;
+      }
+      if (!persons.isEmpty()) {
+        throw new IllegalStateException(
+                "The persons store must be changed on an empty system");
+      }
+      if (offHeap) {
+        persons = new OffHeapStore<Person>(OffHeapStore.PERSONS, mapped);
+        passwords = new OffHeapStore<String>(OffHeapStore.STRINGS, mapped);
+        // Keep the full names off heap too
+        nameIndex = new NameIndex(new NameIndex.Source() {
+          @Override
+          public String fullNameOf(final int id) {
+            Person person = persons.get(personIds.nameOf(id));
+            return person == null ? null : person.getFullName();
+          }
+        });
+      } else {
+        persons = newMap();
+        passwords = newMap();
+        nameIndex = new NameIndex();
+      }
+      personsStoreDirectory = mapped;
+    } finally {
+      locks.unlockAll();
+    }
+  }
+
+  /**
+   * Turn the snapshot mode on or off.
+   *
+   * @param enabled true to publish versions of the data
+   */
+  private void setReadSnapshots(final boolean enabled) {
+    locks.lockAll();
+    try {
+      if (!enabled) {
+        version = null;
+      } else if (version == null) {
+        version = buildVersion();
+      }
+    } finally {
+      locks.unlockAll();
+    }
+  }
+
+  /**
+   * Build a version of the current data. The caller must hold all the locks.
+   *
+   * @return the version
+   */
+  private DirectoryVersion buildVersion() {
+    DirectoryVersion built = DirectoryVersion.empty(personIds);
+    for (Person person : persons.values()) {
+      built = built.withPerson(person);
+    }
+    for (Group group : groups.values()) {
+      built = built.withGroup(group);
+    }
+    for (Map.Entry<String, IntBitmap> entry : groupsPersons.entrySet()) {
+      built = built.withMembers(entry.getKey(), entry.getValue());
+    }
+    for (OrgUnit orgUnit : orgUnits.values()) {
+      built = built.withOrgUnit(orgUnit);
+    }
+    return built;
+  }
+
+  /**
+   * Publish a version with a person created or updated, in snapshot mode.
+   * The caller must hold the lock of the person.
+   *
+   * @param person the person
+   */
+  private void publishPerson(final Person person) {
+    if (version != null) {
+      synchronized (versionLock) {
+        version = version.withPerson(person);
+      }
+    }
+  }
+
   /**
-   * All groups, mapped by their system names.
+   * Publish a version with a group created or updated, in snapshot mode. The
+   * caller must hold the lock of the group.
+   *
+   * @param group the group
    */
-  private final Map<String, Group> groups = new HashMap<String, Group>();
+  private void publishGroup(final Group group) {
+    if (version != null) {
+      synchronized (versionLock) {
+        version = version.withGroup(group);
+      }
+    }
+  }
 
   /**
-   * Persons system names set per group system name.
+   * Publish a version with the members of a group changed, in snapshot mode.
+   * The caller must hold the lock of the group.
+   *
+   * @param groupSysName the group system name
+   * @param members the persons identifiers
    */
-  private final Map<String, Set<String>> groupsPersons
-          = new HashMap<String, Set<String>>();
+  private void publishMembers(final String groupSysName,
+          final IntBitmap members) {
+    if (version != null) {
+      synchronized (versionLock) {
+        version = version.withMembers(groupSysName, members);
+      }
+    }
+  }
 
   /**
-   * All organizational units, mapped by their names.
+   * Publish a version with an organizational unit created or updated, in
+   * snapshot mode. The caller must hold the lock of the organizational unit.
+   *
+   * @param orgUnit the organizational unit
    */
-  private final Map<String, OrgUnit> orgUnits
-          = new HashMap<String, OrgUnit>();
+  private void publishOrgUnit(final OrgUnit orgUnit) {
+    if (version != null) {
+      synchronized (versionLock) {
+        version = version.withOrgUnit(orgUnit);
+      }
+    }
+  }
 
   /**
-   * All passwords, mapped by their person system names.
+   * Start measuring an operation.
+   *
+   * @return the start time, 0 when the metrics are disabled
    */
-  private final Map<String, String> passwords = new HashMap<String, String>();
+  private long startTimer() {
+    if (metrics == null) {
+      return 0L;
+    }
+    return ticker.read();
+  }
 
-  @Override
-  public final void configure(final Map<String, String> props) {
+  /**
+   * Record a measured operation.
+   *
+   * @param operation the operation kind
+   * @param start the start time returned by {@link #startTimer()}
+   */
+  private void stopTimer(final Operation operation, final long start) {
+    Metrics current = metrics;
+    if (current != null && start != 0L) {
+      current.record(operation, ticker.read() - start);
+    }
   }
 
-  @Override
-  public final boolean checkHealth() {
-    return true;
+  /**
+   * Get the statistics of a kind of operation.
+   *
+   * @param operation the operation kind
+   * @return the statistics, all zero when the metrics are disabled
+   */
+  private OperationStats getStats(final Operation operation) {
+    Metrics current = metrics;
+    if (current == null) {
+      return new OperationStats(0L, 0L, 0L, 0L, 0L, 0L);
+    }
+    return current.getStats(operation);
   }
 
-  @Override
-  public final boolean checkCredentials(final String sysName,
-          final String password) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(sysName).inField("sysName").isNotEmpty();
-    validation.finish();
-    return passwords.containsKey(sysName)
-            && passwords.get(sysName).equals(password);
+  /**
+   * Publish a mutation to the change subscriptions, and append it to the
+   * journal, if any. The caller must hold the locks guarding the mutation.
+   *
+   * @param mutation the applied mutation
+   * @return the mutation sequence number, 0 when not journaled
+   */
+  private long journal(final Mutation mutation) {
+    changes.publish(mutation);
+    Journal current = journal;
+    if (current == null) {
+      return 0L;
+    }
+    return current.append(mutation);
   }
 
-  @Override
-  public final Person loadPerson(final String sysName) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(sysName).inField("sysName")
-            .isNotEmpty()
-            .isInMapKeys(persons);
-    validation.finish();
-    return persons.get(sysName);
+  /**
+   * Wait until a journaled mutation is durable. The caller must not hold any
+   * lock, so that other mutations can join the same sync.
+   *
+   * @param seq the mutation sequence number, 0 when not journaled
+   */
+  private void awaitJournal(final long seq) {
+    Journal current = journal;
+    if (current != null && seq > 0L) {
+      current.await(seq);
+    }
   }
 
-  @Override
-  public final Collection<Person> findPersons() {
-    return Collections.unmodifiableCollection(persons.values());
+  /**
+   * Apply a journaled mutation.
+   *
+   * @param mutation the mutation
+   * @throws AppException if the mutation is not valid for the current data
+   */
+  final void apply(final Mutation mutation) throws AppException {
+    switch (mutation.getType()) {
+      case CREATE_PERSON:
+        createPerson((Person) mutation.getEntity());
+        break;
+      case UPDATE_PERSON:
+        updatePerson((Person) mutation.getEntity());
+        break;
+      case UPDATE_PASSWORD:
+        storePassword(mutation.getKey(), mutation.getValue());
+        break;
+      case CREATE_GROUP:
+        createGroup((Group) mutation.getEntity());
+        break;
+      case UPDATE_GROUP:
+        updateGroup((Group) mutation.getEntity());
+        break;
+      case ATTACH_MEMBER:
+        attachGroupMember(mutation.getKey(), mutation.getValue());
+        break;
+      case DETACH_MEMBER:
+        detachGroupMember(mutation.getKey(), mutation.getValue());
+        break;
+      case ATTACH_SUB_GROUP:
+        attachSubGroup(mutation.getKey(), mutation.getValue());
+        break;
+      case DETACH_SUB_GROUP:
+        detachSubGroup(mutation.getKey(), mutation.getValue());
+        break;
+      case MOVE_ORG_UNIT:
+        moveOrgUnit(mutation.getKey(), mutation.getValue());
+        break;
+      case CREATE_ORG_UNIT:
+        createOrgUnit((OrgUnit) mutation.getEntity());
+        break;
+      case UPDATE_ORG_UNIT:
+        updateOrgUnit((OrgUnit) mutation.getEntity());
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown mutation "
+                + mutation.getType());
+    }
   }
 
-  @Override
-  public final boolean canCreateOrUpdatePerson() {
-    return true;
+  /**
+   * Write all the data. The caller must hold all the locks.
+   *
+   * The layout is versioned and compact: each person is written once, and
+   * passwords and group members refer to persons by their index in the
+   * persons list, member lists being length-prefixed arrays of indexes.
+   * Persons are written in identifier order, so that their indexes are their
+   * identifiers. Sub-groups follow, by parent group, then the parents of the
+   * organizational units.
+   *
+   * @param out the destination
+   * @throws IOException on write error
+   */
+  final void writeData(final ObjectOutput out) throws IOException {
+    copyData().writeTo(out);
   }
 
-  @Override
-  public final boolean canUpdatePassword() {
-    return true;
+  /**
+   * Copy the references to all the data, to write them without holding the
+   * locks. The caller must hold all the locks.
+   *
+   * @return the copy
+   */
+  private DataCopy copyData() {
+    DataCopy copy = new DataCopy();
+    int count = personIds.size();
+    copy.persons = new Person[count];
+    for (int id = 0; id < count; id++) {
+      copy.persons[id] = persons.get(personIds.nameOf(id));
+    }
+    copy.passwordIds = new int[passwords.size()];
+    copy.passwords = new String[copy.passwordIds.length];
+    int index = 0;
+    for (Map.Entry<String, String> entry : passwords.entrySet()) {
+      copy.passwordIds[index] = personIds.idOf(entry.getKey());
+      copy.passwords[index] = entry.getValue();
+      index++;
+    }
+    copy.groups = groups.values().toArray(new Group[groups.size()]);
+    copy.members = new IntBitmap[copy.groups.length];
+    for (int i = 0; i < copy.groups.length; i++) {
+      copy.members[i] = groupMembers(copy.groups[i].getSysName());
+    }
+    copy.orgUnits = orgUnits.values().toArray(new OrgUnit[orgUnits.size()]);
+    copy.subGroups = new LinkedHashMap<String, String[]>(
+            capacityFor(groupsSubGroups.size()));
+    for (Map.Entry<String, Set<String>> entry : groupsSubGroups.entrySet()) {
+      copy.subGroups.put(entry.getKey(), entry.getValue().toArray(
+              new String[entry.getValue().size()]));
+    }
+    copy.orgUnitsParents = new LinkedHashMap<String, String>(
+            orgUnitTree.parents());
+    return copy;
   }
 
-  @Override
-  public final void createPerson(final Person person) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(person.getSysName()).inField("person.sysName")
-            .isNotEmpty()
-            .isNotInMapKeys(persons);
-    validation.finish();
-    persons.put(person.getSysName(), person);
+  /**
+   * Read data written by {@link #writeData(ObjectOutput)} into an empty
+   * system. The caller must hold all the locks.
+   *
+   * @param in the source
+   * @throws IOException on read error
+   */
+  final void readData(final ObjectInput in) throws IOException {
+    int dataVersion = in.readInt();
+    if (dataVersion != DATA_VERSION) {
+      throw new InvalidObjectException("Unknown data version "
+              + dataVersion);
+    }
+    try {
+      String[] sysNames = new String[readVarInt(in)];
+      Map<String, Person> personsBatch = new HashMap<String, Person>(
+              capacityFor(sysNames.length));
+      int[] interned = new int[sysNames.length];
+      String[] fullNames = new String[sysNames.length];
+      for (int i = 0; i < sysNames.length; i++) {
+        Person person = (Person) in.readObject();
+        sysNames[i] = person.getSysName();
+        interned[i] = personIds.intern(sysNames[i]);
+        fullNames[i] = person.getFullName();
+        personsBatch.put(sysNames[i], person);
+        if (person.getOrgUnitName() != null) {
+          addToIndex(orgUnitsPersons, person.getOrgUnitName(), sysNames[i]);
+        }
+      }
+      nameIndex.addAll(interned, fullNames);
+      persons.putAll(personsBatch);
+      personsSysNames.addAll(personsBatch.keySet());
+      int count = readVarInt(in);
+      Map<String, String> passwordsBatch = new HashMap<String, String>(
+              capacityFor(count));
+      for (int i = 0; i < count; i++) {
+        String sysName = sysNames[readVarInt(in)];
+        String stored = (String) in.readObject();
+        if (stored != null) {
+          passwordsBatch.put(sysName, stored);
+        }
+      }
+      passwords.putAll(passwordsBatch);
+      count = readVarInt(in);
+      for (int i = 0; i < count; i++) {
+        Group group = (Group) in.readObject();
+        groups.put(group.getSysName(), group);
+        groupsSysNames.add(group.getSysName());
+        int[] ids = new int[readVarInt(in)];
+        for (int j = 0; j < ids.length; j++) {
+          ids[j] = readVarInt(in);
+          addToIndex(personsGroups, sysNames[ids[j]], group.getSysName());
+        }
+        if (ids.length > 0) {
+          groupsPersons.put(group.getSysName(), IntBitmap.of(ids));
+        }
+      }
+      count = readVarInt(in);
+      for (int i = 0; i < count; i++) {
+        OrgUnit orgUnit = (OrgUnit) in.readObject();
+        orgUnits.put(orgUnit.getName(), orgUnit);
+        orgUnitTree.add(orgUnit.getName());
+      }
+      count = readVarInt(in);
+      for (int i = 0; i < count; i++) {
+        String parent = in.readUTF();
+        int children = readVarInt(in);
+        for (int j = 0; j < children; j++) {
+          String child = in.readUTF();
+          addToIndex(groupsSubGroups, parent, child);
+          addToIndex(groupsParents, child, parent);
+        }
+      }
+      for (String parent : groupsSubGroups.keySet()) {
+        refreshEffectivePersons(parent);
+      }
+      count = readVarInt(in);
+      for (int i = 0; i < count; i++) {
+        String child = in.readUTF();
+        orgUnitTree.move(child, in.readUTF());
+      }
+      if (version != null) {
+        version = buildVersion();
+      }
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Unknown class in data", ex);
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      throw new InvalidObjectException("Unknown person index");
+    }
   }
 
-  @Override
-  public final void updatePerson(final Person person) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(person.getSysName()).inField("person.sysName")
-            .isNotEmpty()
-            .isInMapKeys(persons);
-    validation.finish();
-    persons.put(person.getSysName(), person);
+  /**
+   * Replace the system by its compact serialized form.
+   *
+   * @return the serialized form
+   */
+  private Object writeReplace() {
+    return new SerializedForm(this);
   }
 
-  @Override
-  public final void updatePersonPassword(final String sysName,
-          final String password) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(sysName).inField("sysName")
-            .isNotEmpty()
-            .isInMapKeys(persons);
-    validation.finish();
-    passwords.put(sysName, password);
+  /**
+   * Refuse to deserialize the system without its serialized form.
+   *
+   * @param in the stream
+   * @throws InvalidObjectException always
+   */
+  private void readObject(final ObjectInputStream in)
+          throws InvalidObjectException {
+    throw new InvalidObjectException("Serialized form required");
   }
 
-  @Override
-  public final Group loadGroup(final String sysName) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(sysName).inField("sysName")
-            .isNotEmpty()
-            .isInMapKeys(groups);
-    validation.finish();
-    return groups.get(sysName);
+  /**
+   * Write a positive integer on 1 to 5 bytes, 7 bits at a time.
+   *
+   * @param out the destination
+   * @param value the integer
+   * @throws IOException on write error
+   */
+  private static void writeVarInt(final ObjectOutput out, final int value)
+          throws IOException {
+    int remaining = value;
+    while ((remaining & ~VAR_INT_MASK) != 0) {
+      out.writeByte((remaining & VAR_INT_MASK) | VAR_INT_MORE);
+      remaining >>>= VAR_INT_BITS;
+    }
+    out.writeByte(remaining);
   }
 
-  @Override
-  public final Collection<Group> findGroups() {
-    return Collections.unmodifiableCollection(groups.values());
+  /**
+   * Read an integer written by {@link #writeVarInt(ObjectOutput, int)}.
+   *
+   * @param in the source
+   * @return the integer
+   * @throws IOException on read error
+   */
+  private static int readVarInt(final ObjectInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += VAR_INT_BITS) {
+      int b = in.readUnsignedByte();
+      value |= (b & VAR_INT_MASK) << shift;
+      if ((b & VAR_INT_MORE) == 0) {
+        return value;
+      }
+    }
+    throw new InvalidObjectException("Malformed integer");
   }
 
-  @Override
-  public final Collection<String> findGroupPersons(final String sysName)
-          throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(sysName).inField("sysName")
-            .isNotBlank()
-            .isInMapKeys(groups);
-    validation.finish();
-    if (groupsPersons.containsKey(sysName)) {
-      return Collections.unmodifiableSet(groupsPersons.get(sysName));
-    } else {
-      return Collections.unmodifiableSet(new HashSet<String>());
+  /**
+   * Tell if a string has a character that no definition of blank would
+   * ignore, without allocating anything. A false answer does not mean that
+   * the string is blank.
+   *
+   * @param value the string, may be null
+   * @return true if the string is surely not blank
+   */
+  private static boolean hasText(final String value) {
+    if (value == null) {
+      return false;
     }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c > ' ' && !Character.isWhitespace(c)
+              && !Character.isSpaceChar(c)) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  @Override
-  public final void attachGroupMember(final String groupSysName,
-          final String personSysName) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(groupSysName).inField("groupSysName")
-            .isNotBlank()
-            .isInMapKeys(groups);
-    validation.verifyThat(personSysName).inField("personSysName")
-            .isNotBlank()
-            .isInMapKeys(persons);
-    validation.finish();
-    if (groupsPersons.containsKey(groupSysName)) {
-      groupsPersons.get(groupSysName).add(personSysName);
+  /**
+   * Compute the initial capacity of a hash map so that it holds a number of
+   * entries without rehashing. Adding such a map to another one with
+   * {@link Map#putAll(Map)} also resizes the target only once.
+   *
+   * @param size the number of entries
+   * @return the initial capacity
+   */
+  private static int capacityFor(final int size) {
+    return size + size / 3 + 1;
+  }
+
+  /**
+   * Read an integer configuration property.
+   *
+   * @param props the configuration properties
+   * @param key the property key
+   * @param defaultValue the value when the property is not set
+   * @return the property value
+   */
+  private static int intProperty(final Map<String, String> props,
+          final String key, final int defaultValue) {
+    String value = props.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Move a person between organizational units in the persons per
+   * organizational unit index. The caller must hold the lock of the person.
+   *
+   * @param sysName the person system name
+   * @param from the previous organizational unit name, may be null
+   * @param to the new organizational unit name, may be null
+   */
+  private void moveOrgUnitPerson(final String sysName, final String from,
+          final String to) {
+    if (from == null ? to == null : from.equals(to)) {
+      return;
+    }
+    if (from != null) {
+      removeFromIndex(orgUnitsPersons, from, sysName);
+    }
+    if (to != null) {
+      addToIndex(orgUnitsPersons, to, sysName);
+    }
+  }
+
+  /**
+   * Read a page of a sorted names index.
+   *
+   * @param index the index
+   * @param prefix the start of the names, null or empty for all
+   * @param after the last name of the previous page, null for the first page
+   * @param limit the maximum number of names
+   * @return the names
+   */
+  private static List<String> page(final NavigableSet<String> index,
+          final String prefix, final String after, final int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Invalid page limit: " + limit);
+    }
+    String start = prefix;
+    if (start == null) {
+      start = "";
+    }
+    NavigableSet<String> tail;
+    if (after != null && after.compareTo(start) >= 0) {
+      tail = index.tailSet(after, false);
     } else {
-      Set<String> initMembers = new HashSet<String>();
-      initMembers.add(personSysName);
-      groupsPersons.put(groupSysName, initMembers);
+      tail = index.tailSet(start, true);
+    }
+    List<String> names = new ArrayList<String>(Math.min(limit, PAGE_CAPACITY));
+    for (String name : tail) {
+      if (names.size() == limit || !name.startsWith(start)) {
+        break;
+      }
+      names.add(name);
     }
+    return names;
   }
 
-  @Override
-  public final void detachGroupMember(final String groupSysName,
-          final String personSysName) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(groupSysName).inField("groupSysName")
-            .isNotBlank()
-            .isInMapKeys(groups);
-    validation.verifyThat(personSysName).inField("personSysName")
-            .isNotBlank()
-            .isInMapKeys(persons);
-    validation.finish();
-    if (groupsPersons.containsKey(groupSysName)) {
-      groupsPersons.get(groupSysName).remove(personSysName);
+  /**
+   * Get the members of a group.
+   *
+   * @param groupSysName the group system name
+   * @return the persons identifiers, empty if none
+   */
+  private IntBitmap groupMembers(final String groupSysName) {
+    IntBitmap members = groupsPersons.get(groupSysName);
+    if (members == null) {
+      return IntBitmap.EMPTY;
     }
+    return members;
   }
 
-  @Override
-  public final boolean canCreateOrUpdateGroup() {
-    return true;
+  /**
+   * Get the effective members of a group.
+   *
+   * @param groupSysName the group system name
+   * @return the persons identifiers, empty if none
+   */
+  private IntBitmap effectiveMembers(final String groupSysName) {
+    IntBitmap members = groupsEffectivePersons.get(groupSysName);
+    if (members == null) {
+      return groupMembers(groupSysName);
+    }
+    return members;
   }
 
-  @Override
-  public final void createGroup(final Group group) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(group.getSysName()).inField("group.sysName")
-            .isNotEmpty()
-            .isNotInMapKeys(groups);
-    validation.finish();
-    groups.put(group.getSysName(), group);
+  /**
+   * Tell if a group has sub-groups or parent groups. The caller must hold
+   * the lock of the group, so that the answer stays valid.
+   *
+   * @param groupSysName the group system name
+   * @return true if the group is nested
+   */
+  private boolean isNested(final String groupSysName) {
+    return hasValues(groupsSubGroups, groupSysName)
+            || hasValues(groupsParents, groupSysName);
   }
 
-  @Override
-  public final void updateGroup(final Group group) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(group.getSysName()).inField("group.sysName")
-            .isNotEmpty()
-            .isInMapKeys(groups);
-    validation.finish();
-    groups.put(group.getSysName(), group);
+  /**
+   * Tell if a person is a direct member of a group or an effective member of
+   * one of its sub-groups.
+   *
+   * @param groupSysName the group system name
+   * @param id the person identifier
+   * @return true if the person is an effective member
+   */
+  private boolean isEffectiveMember(final String groupSysName, final int id) {
+    if (groupMembers(groupSysName).contains(id)) {
+      return true;
+    }
+    Set<String> children = groupsSubGroups.get(groupSysName);
+    if (children != null) {
+      for (String child : children) {
+        if (effectiveMembers(child).contains(id)) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
-  @Override
-  public final OrgUnit loadOrgUnit(final String name) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(name).inField("name")
-            .isNotEmpty()
-            .isInMapKeys(orgUnits);
-    validation.finish();
-    return orgUnits.get(name);
+  /**
+   * Recompute the effective members of a group and of its ancestors. The
+   * caller must hold all the locks.
+   *
+   * @param groupSysName the group system name
+   */
+  private void refreshEffectivePersons(final String groupSysName) {
+    synchronized (nestingLock) {
+      for (String related : nestingBottomUp(groupSysName)) {
+        Set<String> children = groupsSubGroups.get(related);
+        if (children == null || children.isEmpty()) {
+          groupsEffectivePersons.remove(related);
+        } else {
+          IntBitmap effective = groupMembers(related);
+          for (String child : children) {
+            effective = effective.or(effectiveMembers(child));
+          }
+          groupsEffectivePersons.put(related, effective);
+        }
+      }
+    }
   }
 
-  @Override
-  public final Collection<OrgUnit> findOrgUnits() {
-    return Collections.unmodifiableCollection(orgUnits.values());
+  /**
+   * List a group and its ancestors, each after all its sub-groups among
+   * them, so that the effective members can be updated in this order.
+   *
+   * @param groupSysName the group system name
+   * @return the group and its ancestors
+   */
+  private List<String> nestingBottomUp(final String groupSysName) {
+    Set<String> related = new HashSet<String>();
+    Deque<String> pending = new ArrayDeque<String>();
+    pending.add(groupSysName);
+    while (!pending.isEmpty()) {
+      String current = pending.poll();
+      if (related.add(current)) {
+        Set<String> parents = groupsParents.get(current);
+        if (parents != null) {
+          pending.addAll(parents);
+        }
+      }
+    }
+    List<String> order = new ArrayList<String>(related.size());
+    Set<String> visited = new HashSet<String>();
+    for (String group : related) {
+      visitBottomUp(group, related, visited, order);
+    }
+    return order;
   }
 
-  @Override
-  public final Collection<String> findOrgUnitPersons(final String name)
-          throws AppException {
-    Set<String> attachedPersons = new HashSet<String>();
-    for (Person person : persons.values()) {
-      if (person.getOrgUnitName().equals(name)) {
-        attachedPersons.add(person.getSysName());
+  /**
+   * Add a group to a bottom-up order, after its sub-groups.
+   *
+   * @param groupSysName the group system name
+   * @param related the groups to order
+   * @param visited the groups already ordered
+   * @param order the order
+   */
+  private void visitBottomUp(final String groupSysName,
+          final Set<String> related, final Set<String> visited,
+          final List<String> order) {
+    if (!visited.add(groupSysName)) {
+      return;
+    }
+    Set<String> children = groupsSubGroups.get(groupSysName);
+    if (children != null) {
+      for (String child : children) {
+        if (related.contains(child)) {
+          visitBottomUp(child, related, visited, order);
+        }
       }
     }
-    return Collections.unmodifiableCollection(attachedPersons);
+    order.add(groupSysName);
   }
 
-  @Override
-  public final boolean canCreateOrUpdateOrgUnit() {
-    return true;
+  /**
+   * Get a group and all its sub-groups, transitively.
+   *
+   * @param groupSysName the group system name
+   * @return the system names, as map keys
+   */
+  private Map<String, Boolean> subGroupsClosure(final String groupSysName) {
+    Map<String, Boolean> closure = new HashMap<String, Boolean>();
+    Deque<String> pending = new ArrayDeque<String>();
+    pending.add(groupSysName);
+    while (!pending.isEmpty()) {
+      String current = pending.poll();
+      if (closure.put(current, Boolean.TRUE) == null) {
+        Set<String> children = groupsSubGroups.get(current);
+        if (children != null) {
+          pending.addAll(children);
+        }
+      }
+    }
+    return closure;
   }
 
-  @Override
-  public final void createOrgUnit(final OrgUnit orgUnit) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(orgUnit.getName()).inField("orgUnit.name")
-            .isNotEmpty()
-            .isNotInMapKeys(orgUnits);
-    validation.finish();
-    orgUnits.put(orgUnit.getName(), orgUnit);
+  /**
+   * Tell if a key of an index maps to a non-empty set.
+   *
+   * @param index the index
+   * @param key the key
+   * @return true if the key has values
+   */
+  private static boolean hasValues(final Map<String, Set<String>> index,
+          final String key) {
+    Set<String> values = index.get(key);
+    return values != null && !values.isEmpty();
   }
 
-  @Override
-  public final void updateOrgUnit(final OrgUnit orgUnit) throws AppException {
-    Validation validation = new Validation();
-    validation.verifyThat(orgUnit.getName()).inField("orgUnit.name")
-            .isNotEmpty()
-            .isInMapKeys(orgUnits);
-    validation.finish();
-    orgUnits.put(orgUnit.getName(), orgUnit);
+  /**
+   * Add a value to the set mapped to a key, creating the set if needed.
+   *
+   * @param index the index
+   * @param key the key
+   * @param value the value
+   */
+  private void addToIndex(final Map<String, Set<String>> index,
+          final String key, final String value) {
+    Set<String> values = index.get(key);
+    if (values == null) {
+      values = newSet();
+      if (concurrent) {
+        Set<String> raced = ((ConcurrentMap<String, Set<String>>) index)
+                .putIfAbsent(key, values);
+        if (raced != null) {
+          values = raced;
+        }
+      } else {
+        index.put(key, values);
+      }
+    }
+    values.add(value);
+  }
+
+  /**
+   * Remove a value from the set mapped to a key.
+   *
+   * @param index the index
+   * @param key the key
+   * @param value the value
+   */
+  private void removeFromIndex(final Map<String, Set<String>> index,
+          final String key, final String value) {
+    Set<String> values = index.get(key);
+    if (values != null) {
+      values.remove(value);
+    }
+  }
+
+  /**
+   * Get the map a validation looks a key up in. The concurrent maps reject
+   * null keys, which are in no map: they are looked up in an empty one.
+   *
+   * @param map the map
+   * @param key the looked up key, may be null
+   * @return the map, or an empty one for a null key
+   */
+  private static Map<?, ?> keysOf(final Map<?, ?> map, final Object key) {
+    if (key == null) {
+      return Collections.emptyMap();
+    }
+    return map;
+  }
+
+  /**
+   * Create a map suited to the concurrency mode.
+   *
+   * @param <K> keys type
+   * @param <V> values type
+   * @return an empty map
+   */
+  private <K, V> Map<K, V> newMap() {
+    if (concurrent) {
+      return new ConcurrentHashMap<K, V>();
+    } else {
+      return new HashMap<K, V>();
+    }
+  }
+
+  /**
+   * Create a sorted set suited to the concurrency mode.
+   *
+   * @param <E> elements type
+   * @return an empty set
+   */
+  private <E> NavigableSet<E> newSortedSet() {
+    if (concurrent) {
+      return new ConcurrentSkipListSet<E>();
+    } else {
+      return new TreeSet<E>();
+    }
+  }
+
+  /**
+   * Create a set suited to the concurrency mode.
+   *
+   * @param <E> elements type
+   * @return an empty set
+   */
+  private <E> Set<E> newSet() {
+    if (concurrent) {
+      return Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+    } else {
+      return new HashSet<E>();
+    }
+  }
+
+  /**
+   * References to all the data of a system at a point in time, written in
+   * the layout of {@link MemAuthSystem#writeData(ObjectOutput)}. The
+   * persons, groups, organizational units and member sets are immutable, so
+   * copying their references is enough.
+   */
+  static final class DataCopy {
+
+    /**
+     * The persons, by identifier.
+     */
+    private Person[] persons;
+
+    /**
+     * Identifiers of the persons having a password.
+     */
+    private int[] passwordIds;
+
+    /**
+     * The stored passwords, in the order of their persons identifiers.
+     */
+    private String[] passwords;
+
+    /**
+     * The groups.
+     */
+    private Group[] groups;
+
+    /**
+     * Members identifiers, in the order of their groups.
+     */
+    private IntBitmap[] members;
+
+    /**
+     * The organizational units.
+     */
+    private OrgUnit[] orgUnits;
+
+    /**
+     * Sub-groups system names per group system name.
+     */
+    private Map<String, String[]> subGroups;
+
+    /**
+     * Parent unit name per organizational unit name.
+     */
+    private Map<String, String> orgUnitsParents;
+
+    /**
+     * Write the data.
+     *
+     * @param out the destination
+     * @throws IOException on write error
+     */
+    void writeTo(final ObjectOutput out) throws IOException {
+      out.writeInt(DATA_VERSION);
+      writeVarInt(out, persons.length);
+      for (Person person : persons) {
+        out.writeObject(person);
+      }
+      writeVarInt(out, passwordIds.length);
+      for (int i = 0; i < passwordIds.length; i++) {
+        writeVarInt(out, passwordIds[i]);
+        out.writeObject(passwords[i]);
+      }
+      writeVarInt(out, groups.length);
+      for (int i = 0; i < groups.length; i++) {
+        out.writeObject(groups[i]);
+        writeVarInt(out, members[i].cardinality());
+        IntBitmap.Cursor cursor = members[i].cursor();
+        while (cursor.hasNext()) {
+          writeVarInt(out, cursor.next());
+        }
+      }
+      writeVarInt(out, orgUnits.length);
+      for (OrgUnit orgUnit : orgUnits) {
+        out.writeObject(orgUnit);
+      }
+      writeVarInt(out, subGroups.size());
+      for (Map.Entry<String, String[]> entry : subGroups.entrySet()) {
+        out.writeUTF(entry.getKey());
+        writeVarInt(out, entry.getValue().length);
+        for (String child : entry.getValue()) {
+          out.writeUTF(child);
+        }
+      }
+      writeVarInt(out, orgUnitsParents.size());
+      for (Map.Entry<String, String> entry : orgUnitsParents.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Serialized form of a system: its configuration followed by its data in
+   * the compact layout of {@link MemAuthSystem#writeData(ObjectOutput)},
+   * instead of the default serialization of its maps.
+   */
+  private static final class SerializedForm implements Serializable {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Version of the configuration layout.
+     */
+    private static final int FORM_VERSION = 1;
+
+    /**
+     * The serialized or deserialized system.
+     */
+    private transient MemAuthSystem system;
+
+    /**
+     * Constructor.
+     *
+     * @param pSystem the system to serialize
+     */
+    SerializedForm(final MemAuthSystem pSystem) {
+      system = pSystem;
+    }
+
+    /**
+     * Write the system.
+     *
+     * @param out the stream
+     * @throws IOException on write error
+     */
+    private void writeObject(final ObjectOutputStream out)
+            throws IOException {
+      out.defaultWriteObject();
+      system.locks.lockAll();
+      try {
+        out.writeInt(FORM_VERSION);
+        out.writeBoolean(system.concurrent);
+        out.writeObject(system.passwordHasher);
+        out.writeObject(system.credentialCache);
+        out.writeInt(system.journalSnapshotRecords);
+        out.writeBoolean(system.version != null);
+        out.writeObject(system.tokenStore);
+        out.writeBoolean(system.persons instanceof OffHeapStore);
+        File directory = system.personsStoreDirectory;
+        out.writeObject(directory == null ? null : directory.getPath());
+        system.writeData(out);
+      } finally {
+        system.locks.unlockAll();
+      }
+    }
+
+    /**
+     * Read the system.
+     *
+     * @param in the stream
+     * @throws IOException on read error
+     * @throws ClassNotFoundException on unknown class
+     */
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+      in.defaultReadObject();
+      int version = in.readInt();
+      if (version != FORM_VERSION) {
+        throw new InvalidObjectException("Unknown form version " + version);
+      }
+      system = new MemAuthSystem(in.readBoolean());
+      system.passwordHasher = (PasswordHasher) in.readObject();
+      system.credentialCache = (CredentialCache) in.readObject();
+      system.journalSnapshotRecords = in.readInt();
+      boolean readSnapshots = in.readBoolean();
+      system.tokenStore = (TokenStore) in.readObject();
+      boolean offHeap = in.readBoolean();
+      String directory = (String) in.readObject();
+      if (offHeap) {
+        try {
+          system.setPersonsStore(PERSONS_STORE_OFF_HEAP, directory);
+        } catch (IllegalArgumentException ex) {
+          throw new InvalidObjectException(ex.getMessage());
+        }
+      }
+      system.readData(in);
+      system.setReadSnapshots(readSnapshots);
+    }
+
+    /**
+     * Resolve to the deserialized system.
+     *
+     * @return the system
+     */
+    private Object readResolve() {
+      return system;
+    }
   }
 
 }
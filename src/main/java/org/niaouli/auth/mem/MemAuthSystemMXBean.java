@@ -0,0 +1,154 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+/**
+ * Management interface of a {@link MemAuthSystem}, published by
+ * {@link MemAuthSystem#registerMBean(String)}.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public interface MemAuthSystemMXBean {
+
+  /**
+   * Tell if the system is healthy, as {@link MemAuthSystem#checkHealth()},
+   * but without starting a new period, so that polling it does not interfere
+   * with the checks of the application.
+   *
+   * @return true if healthy
+   */
+  boolean isHealthy();
+
+  /**
+   * Get the number of persons.
+   *
+   * @return the count
+   */
+  int getPersonCount();
+
+  /**
+   * Get the number of groups.
+   *
+   * @return the count
+   */
+  int getGroupCount();
+
+  /**
+   * Get the number of organizational units.
+   *
+   * @return the count
+   */
+  int getOrgUnitCount();
+
+  /**
+   * Get the number of group memberships.
+   *
+   * @return the count
+   */
+  long getMembershipCount();
+
+  /**
+   * Get a rough estimate of the heap used by the data.
+   *
+   * @return the size in bytes
+   */
+  long getEstimatedHeapBytes();
+
+  /**
+   * Get the size of the memory held outside of the heap by an off-heap
+   * persons store.
+   *
+   * @return the size in bytes
+   */
+  long getOffHeapBytes();
+
+  /**
+   * Get the number of credential checks answered by the verified credentials
+   * cache.
+   *
+   * @return the count
+   */
+  long getCredentialCacheHits();
+
+  /**
+   * Get the number of credential checks not answered by the verified
+   * credentials cache.
+   *
+   * @return the count
+   */
+  long getCredentialCacheMisses();
+
+  /**
+   * Get the number of credential checks rejected because too many were
+   * already waiting.
+   *
+   * @return the count
+   */
+  long getRejectedCredentialChecks();
+
+  /**
+   * Get the number of issued session tokens, including the expired ones not
+   * swept yet.
+   *
+   * @return the count
+   */
+  long getTokenCount();
+
+  /**
+   * Get the statistics of the credential checks of valid credentials.
+   *
+   * @return the statistics
+   */
+  OperationStats getSuccessfulCredentialChecks();
+
+  /**
+   * Get the statistics of the credential checks of invalid credentials, or
+   * that failed.
+   *
+   * @return the statistics
+   */
+  OperationStats getFailedCredentialChecks();
+
+  /**
+   * Get the statistics of the loads of single entities.
+   *
+   * @return the statistics
+   */
+  OperationStats getLoads();
+
+  /**
+   * Get the statistics of the listings and lookups.
+   *
+   * @return the statistics
+   */
+  OperationStats getFinds();
+
+  /**
+   * Get the statistics of the creations and updates.
+   *
+   * @return the statistics
+   */
+  OperationStats getMutations();
+
+  /**
+   * Get the statistics of the attachments and detachments of group members.
+   *
+   * @return the statistics
+   */
+  OperationStats getMembershipChanges();
+
+}
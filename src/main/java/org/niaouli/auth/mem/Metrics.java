@@ -0,0 +1,200 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+/**
+ * Counters and latency histograms of the operations of a
+ * {@link MemAuthSystem}.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class Metrics {
+
+  /**
+   * Kinds of measured operations.
+   */
+  enum Operation {
+    /**
+     * Credential checks of valid credentials.
+     */
+    CREDENTIALS_SUCCESS,
+    /**
+     * Credential checks of invalid credentials, or failed.
+     */
+    CREDENTIALS_FAILURE,
+    /**
+     * Loads of a single entity.
+     */
+    LOAD,
+    /**
+     * Listings and lookups.
+     */
+    FIND,
+    /**
+     * Creations and updates of persons, passwords, groups and
+     * organizational units.
+     */
+    MUTATION,
+    /**
+     * Attachments and detachments of group members.
+     */
+    MEMBERSHIP
+  }
+
+  /**
+   * Median.
+   */
+  private static final double P50 = 0.5;
+
+  /**
+   * 99th percentile.
+   */
+  private static final double P99 = 0.99;
+
+  /**
+   * 99.9th percentile.
+   */
+  private static final double P999 = 0.999;
+
+  /**
+   * Number of percents in a ratio of 1.
+   */
+  private static final int PERCENT = 100;
+
+  /**
+   * Latencies per operation kind.
+   */
+  private final LatencyHistogram[] histograms
+          = new LatencyHistogram[Operation.values().length];
+
+  /**
+   * Credential checks rejected because too many were already waiting.
+   */
+  private final StripedCounter rejected = new StripedCounter();
+
+  /**
+   * Snapshots of the histograms at the previous health check.
+   */
+  private long[][] healthSnapshots
+          = new long[Operation.values().length][LatencyHistogram.BUCKETS + 1];
+
+  /**
+   * Rejected credential checks at the previous health check.
+   */
+  private long healthRejected;
+
+  /**
+   * Constructor.
+   */
+  Metrics() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Record an operation.
+   *
+   * @param operation the operation kind
+   * @param nanos the operation latency
+   */
+  void record(final Operation operation, final long nanos) {
+    histograms[operation.ordinal()].record(nanos);
+  }
+
+  /**
+   * Record a rejected credential check.
+   */
+  void recordRejected() {
+    rejected.increment();
+  }
+
+  /**
+   * Get the number of rejected credential checks.
+   *
+   * @return the count
+   */
+  long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Get the statistics of an operation kind.
+   *
+   * @param operation the operation kind
+   * @return the statistics since the creation of the system
+   */
+  OperationStats getStats(final Operation operation) {
+    long[] snapshot = histograms[operation.ordinal()].snapshot();
+    long count = LatencyHistogram.count(snapshot);
+    long mean = 0L;
+    if (count > 0L) {
+      mean = snapshot[LatencyHistogram.TOTAL] / count;
+    }
+    return new OperationStats(count, mean,
+            LatencyHistogram.percentile(snapshot, P50),
+            LatencyHistogram.percentile(snapshot, P99),
+            LatencyHistogram.percentile(snapshot, P999),
+            LatencyHistogram.max(snapshot));
+  }
+
+  /**
+   * Tell if the operations since the previous health check went well: the
+   * 99th percentile latency of every operation kind stayed under a limit, and
+   * few credential checks were rejected.
+   *
+   * @param maxLatencyNanos the maximum 99th percentile latency
+   * @param maxRejectedPercent the maximum percentage of credential checks
+   * rejected
+   * @param advance true to start a new period for the next check, false to
+   * only look at the current one
+   * @return true if healthy
+   */
+  synchronized boolean isHealthy(final long maxLatencyNanos,
+          final int maxRejectedPercent, final boolean advance) {
+    boolean healthy = true;
+    long checks = 0L;
+    for (Operation operation : Operation.values()) {
+      long[] snapshot = histograms[operation.ordinal()].snapshot();
+      long[] period = LatencyHistogram.minus(snapshot,
+              healthSnapshots[operation.ordinal()]);
+      if (advance) {
+        healthSnapshots[operation.ordinal()] = snapshot;
+      }
+      // Bucket upper bounds are up to twice the latencies they hold
+      if (LatencyHistogram.percentileFloor(period, P99) > maxLatencyNanos) {
+        healthy = false;
+      }
+      if (operation == Operation.CREDENTIALS_SUCCESS
+              || operation == Operation.CREDENTIALS_FAILURE) {
+        checks += LatencyHistogram.count(period);
+      }
+    }
+    long rejectedNow = rejected.sum();
+    long rejectedPeriod = rejectedNow - healthRejected;
+    if (advance) {
+      healthRejected = rejectedNow;
+    }
+    // Rejected checks are also recorded as failed checks
+    if (rejectedPeriod > 0L
+            && rejectedPeriod * PERCENT > checks * maxRejectedPercent) {
+      healthy = false;
+    }
+    return healthy;
+  }
+
+}
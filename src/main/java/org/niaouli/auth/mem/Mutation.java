@@ -0,0 +1,385 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+
+/**
+ * A mutation applied to a {@link MemAuthSystem}, as recorded in its journal.
+ *
+ * Passwords are recorded as stored, that is hashed when the system hashes
+ * them.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class Mutation {
+
+  /**
+   * Mutation types.
+   */
+  enum Type {
+    /**
+     * Person creation.
+     */
+    CREATE_PERSON,
+    /**
+     * Person update.
+     */
+    UPDATE_PERSON,
+    /**
+     * Password update.
+     */
+    UPDATE_PASSWORD,
+    /**
+     * Group creation.
+     */
+    CREATE_GROUP,
+    /**
+     * Group update.
+     */
+    UPDATE_GROUP,
+    /**
+     * Person attached to a group.
+     */
+    ATTACH_MEMBER,
+    /**
+     * Person detached from a group.
+     */
+    DETACH_MEMBER,
+    /**
+     * Organizational unit creation.
+     */
+    CREATE_ORG_UNIT,
+    /**
+     * Organizational unit update.
+     */
+    UPDATE_ORG_UNIT,
+    /**
+     * Group attached to a parent group.
+     */
+    ATTACH_SUB_GROUP,
+    /**
+     * Group detached from a parent group.
+     */
+    DETACH_SUB_GROUP,
+    /**
+     * Organizational unit moved under another one.
+     */
+    MOVE_ORG_UNIT
+  }
+
+  /**
+   * The mutation type.
+   */
+  private final Type type;
+
+  /**
+   * The system name or the name of the mutated entity.
+   */
+  private final String key;
+
+  /**
+   * The stored password, the member or sub-group system name, or the parent
+   * organizational unit name, if relevant.
+   */
+  private final String value;
+
+  /**
+   * The new state of the mutated entity, if relevant.
+   */
+  private final Object entity;
+
+  /**
+   * Constructor.
+   *
+   * @param pType the mutation type
+   * @param pKey the system name or the name of the mutated entity
+   * @param pValue the stored password or the member system name
+   * @param pEntity the new state of the mutated entity
+   */
+  private Mutation(final Type pType, final String pKey, final String pValue,
+          final Object pEntity) {
+    type = pType;
+    key = pKey;
+    value = pValue;
+    entity = pEntity;
+  }
+
+  /**
+   * Create a person creation mutation.
+   *
+   * @param person the created person
+   * @return the mutation
+   */
+  static Mutation createPerson(final Person person) {
+    return new Mutation(Type.CREATE_PERSON, person.getSysName(), null, person);
+  }
+
+  /**
+   * Create a person update mutation.
+   *
+   * @param person the updated person
+   * @return the mutation
+   */
+  static Mutation updatePerson(final Person person) {
+    return new Mutation(Type.UPDATE_PERSON, person.getSysName(), null, person);
+  }
+
+  /**
+   * Create a password update mutation.
+   *
+   * @param sysName the person system name
+   * @param stored the stored password
+   * @return the mutation
+   */
+  static Mutation updatePassword(final String sysName, final String stored) {
+    return new Mutation(Type.UPDATE_PASSWORD, sysName, stored, null);
+  }
+
+  /**
+   * Create a group creation mutation.
+   *
+   * @param group the created group
+   * @return the mutation
+   */
+  static Mutation createGroup(final Group group) {
+    return new Mutation(Type.CREATE_GROUP, group.getSysName(), null, group);
+  }
+
+  /**
+   * Create a group update mutation.
+   *
+   * @param group the updated group
+   * @return the mutation
+   */
+  static Mutation updateGroup(final Group group) {
+    return new Mutation(Type.UPDATE_GROUP, group.getSysName(), null, group);
+  }
+
+  /**
+   * Create a group member attachment mutation.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return the mutation
+   */
+  static Mutation attachMember(final String groupSysName,
+          final String personSysName) {
+    return new Mutation(Type.ATTACH_MEMBER, groupSysName, personSysName, null);
+  }
+
+  /**
+   * Create a group member detachment mutation.
+   *
+   * @param groupSysName the group system name
+   * @param personSysName the person system name
+   * @return the mutation
+   */
+  static Mutation detachMember(final String groupSysName,
+          final String personSysName) {
+    return new Mutation(Type.DETACH_MEMBER, groupSysName, personSysName, null);
+  }
+
+  /**
+   * Create a sub-group attachment mutation.
+   *
+   * @param parentSysName the parent group system name
+   * @param childSysName the sub-group system name
+   * @return the mutation
+   */
+  static Mutation attachSubGroup(final String parentSysName,
+          final String childSysName) {
+    return new Mutation(Type.ATTACH_SUB_GROUP, parentSysName, childSysName,
+            null);
+  }
+
+  /**
+   * Create a sub-group detachment mutation.
+   *
+   * @param parentSysName the parent group system name
+   * @param childSysName the sub-group system name
+   * @return the mutation
+   */
+  static Mutation detachSubGroup(final String parentSysName,
+          final String childSysName) {
+    return new Mutation(Type.DETACH_SUB_GROUP, parentSysName, childSysName,
+            null);
+  }
+
+  /**
+   * Create an organizational unit creation mutation.
+   *
+   * @param orgUnit the created organizational unit
+   * @return the mutation
+   */
+  static Mutation createOrgUnit(final OrgUnit orgUnit) {
+    return new Mutation(Type.CREATE_ORG_UNIT, orgUnit.getName(), null,
+            orgUnit);
+  }
+
+  /**
+   * Create an organizational unit update mutation.
+   *
+   * @param orgUnit the updated organizational unit
+   * @return the mutation
+   */
+  static Mutation updateOrgUnit(final OrgUnit orgUnit) {
+    return new Mutation(Type.UPDATE_ORG_UNIT, orgUnit.getName(), null,
+            orgUnit);
+  }
+
+  /**
+   * Create an organizational unit move mutation.
+   *
+   * @param name the organizational unit name
+   * @param parentName the new parent unit name, null for none
+   * @return the mutation
+   */
+  static Mutation moveOrgUnit(final String name, final String parentName) {
+    return new Mutation(Type.MOVE_ORG_UNIT, name, parentName, null);
+  }
+
+  /**
+   * Get the mutation type.
+   *
+   * @return the type
+   */
+  Type getType() {
+    return type;
+  }
+
+  /**
+   * Get the system name or the name of the mutated entity.
+   *
+   * @return the key
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Get the stored password or the member system name.
+   *
+   * @return the value, null if not relevant
+   */
+  String getValue() {
+    return value;
+  }
+
+  /**
+   * Get the new state of the mutated entity.
+   *
+   * @return the entity, null if not relevant
+   */
+  Object getEntity() {
+    return entity;
+  }
+
+  /**
+   * Write the mutation. The entity is written with Java serialization.
+   *
+   * @param out the destination
+   * @throws IOException on write error
+   */
+  void writeTo(final DataOutput out) throws IOException {
+    out.writeByte(type.ordinal());
+    writeNullable(out, key);
+    writeNullable(out, value);
+    if (entity == null) {
+      out.writeInt(-1);
+    } else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objects = new ObjectOutputStream(bytes);
+      objects.writeObject(entity);
+      objects.close();
+      out.writeInt(bytes.size());
+      out.write(bytes.toByteArray());
+    }
+  }
+
+  /**
+   * Read a mutation written by {@link #writeTo(DataOutput)}.
+   *
+   * @param in the source
+   * @return the mutation
+   * @throws IOException on read error or unknown content
+   */
+  static Mutation readFrom(final DataInput in) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= Type.values().length) {
+      throw new IOException("Unknown mutation type " + ordinal);
+    }
+    Type type = Type.values()[ordinal];
+    String key = readNullable(in);
+    String value = readNullable(in);
+    Object entity = null;
+    int length = in.readInt();
+    if (length >= 0) {
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      ObjectInputStream objects = new FilteredObjectInputStream(
+              new ByteArrayInputStream(bytes));
+      try {
+        entity = objects.readObject();
+      } catch (ClassNotFoundException ex) {
+        throw new IOException("Unknown entity class", ex);
+      } finally {
+        objects.close();
+      }
+    }
+    return new Mutation(type, key, value, entity);
+  }
+
+  /**
+   * Write a string that may be null.
+   *
+   * @param out the destination
+   * @param text the string
+   * @throws IOException on write error
+   */
+  private static void writeNullable(final DataOutput out, final String text)
+          throws IOException {
+    out.writeBoolean(text != null);
+    if (text != null) {
+      out.writeUTF(text);
+    }
+  }
+
+  /**
+   * Read a string written by {@link #writeNullable(DataOutput, String)}.
+   *
+   * @param in the source
+   * @return the string
+   * @throws IOException on read error
+   */
+  private static String readNullable(final DataInput in) throws IOException {
+    if (in.readBoolean()) {
+      return in.readUTF();
+    }
+    return null;
+  }
+
+}
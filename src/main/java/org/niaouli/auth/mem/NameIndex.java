@@ -0,0 +1,514 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Inverted index of the persons full names, for substring searches.
+ *
+ * Names are normalized to lower case words of letters and digits, without
+ * accents. Each word is indexed by its trigrams, and by its first one and
+ * two characters for the queries shorter than a trigram. The postings are
+ * compressed bitmaps of persons identifiers: a search intersects the
+ * postings of the query grams, rarest first, then checks the candidates
+ * against their names, which also rules out the grams matched across
+ * different words.
+ *
+ * The normalized names are kept on heap, unless the index is given a
+ * source of the full names: an index of persons stored off heap reads them
+ * back from the store when checking the candidates, so that its heap use
+ * is the postings only.
+ *
+ * Updates of different persons may run concurrently; searches never lock.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class NameIndex {
+
+  /**
+   * Length of the grams indexing the words.
+   */
+  private static final int GRAM = 3;
+
+  /**
+   * Initial capacity of the identifiers lists of a batch, per gram.
+   */
+  private static final int INITIAL_GRAM_IDS = 8;
+
+  /**
+   * Prefix of the grams indexing the start of the words.
+   */
+  private static final char WORD_START = '\u0001';
+
+  /**
+   * Score of a name equal to the query.
+   */
+  private static final int EXACT_SCORE = 1000;
+
+  /**
+   * Score of a name starting with the query.
+   */
+  private static final int PREFIX_SCORE = 500;
+
+  /**
+   * Score of a query word starting a name word.
+   */
+  private static final int WORD_START_SCORE = 100;
+
+  /**
+   * Score of a query word found inside a name word.
+   */
+  private static final int INSIDE_SCORE = 10;
+
+  /**
+   * Persons identifiers per gram.
+   */
+  private final ConcurrentMap<String, IntBitmap> postings =
+          new ConcurrentHashMap<String, IntBitmap>();
+
+  /**
+   * Normalized names per person identifier, empty when read from the
+   * source.
+   */
+  private final ConcurrentMap<Integer, String> names =
+          new ConcurrentHashMap<Integer, String>();
+
+  /**
+   * Source of the full names, null to keep them in {@link #names}.
+   */
+  private final Source source;
+
+  /**
+   * Reads the full name of a person, when it is not kept by the index.
+   */
+  interface Source {
+
+    /**
+     * Get the full name of a person.
+     *
+     * @param id the person identifier
+     * @return the full name, null if none or if the person is unknown
+     */
+    String fullNameOf(int id);
+  }
+
+  /**
+   * Constructor of an index keeping the names.
+   */
+  NameIndex() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pSource the source of the full names, null to keep them
+   */
+  NameIndex(final Source pSource) {
+    source = pSource;
+  }
+
+  /**
+   * A search match.
+   */
+  static final class Match {
+
+    /**
+     * The person identifier.
+     */
+    private final int id;
+
+    /**
+     * The relevance.
+     */
+    private final int score;
+
+    /**
+     * The normalized name length, shorter names ranking first.
+     */
+    private final int length;
+
+    /**
+     * Constructor.
+     *
+     * @param pId the person identifier
+     * @param pScore the relevance
+     * @param pLength the normalized name length
+     */
+    Match(final int pId, final int pScore, final int pLength) {
+      id = pId;
+      score = pScore;
+      length = pLength;
+    }
+
+    /**
+     * Get the person identifier.
+     *
+     * @return the identifier
+     */
+    int getId() {
+      return id;
+    }
+  }
+
+  /**
+   * Orders the matches from the best to the worst.
+   */
+  private static final Comparator<Match> RANKING = new Comparator<Match>() {
+    @Override
+    public int compare(final Match first, final Match second) {
+      if (first.score != second.score) {
+        return first.score > second.score ? -1 : 1;
+      }
+      if (first.length != second.length) {
+        return first.length < second.length ? -1 : 1;
+      }
+      return first.id < second.id ? -1 : (first.id == second.id ? 0 : 1);
+    }
+  };
+
+  /**
+   * Index the new name of a person. The caller must hold the lock of the
+   * person.
+   *
+   * @param id the person identifier
+   * @param previousFullName the indexed full name, null if none
+   * @param fullName the full name, may be null
+   */
+  void update(final int id, final String previousFullName,
+          final String fullName) {
+    String name = normalize(fullName);
+    String previous = normalize(previousFullName);
+    if (source == null) {
+      if (name.isEmpty()) {
+        names.remove(id);
+      } else {
+        names.put(id, name);
+      }
+    }
+    if (name.equals(previous)) {
+      return;
+    }
+    Set<String> removed = grams(previous);
+    Set<String> added = grams(name);
+    Set<String> kept = new HashSet<String>(removed);
+    kept.retainAll(added);
+    removed.removeAll(kept);
+    added.removeAll(kept);
+    for (String gram : removed) {
+      IntBitmap ids = postings.get(gram);
+      while (ids != null) {
+        IntBitmap remaining = ids.remove(id);
+        if (remaining.cardinality() == 0
+                ? postings.remove(gram, ids)
+                : postings.replace(gram, ids, remaining)) {
+          break;
+        }
+        ids = postings.get(gram);
+      }
+    }
+    for (String gram : added) {
+      IntBitmap ids = postings.get(gram);
+      while (true) {
+        if (ids == null) {
+          // Only build the singleton for a new gram
+          ids = postings.putIfAbsent(gram, IntBitmap.singleton(id));
+          if (ids == null) {
+            break;
+          }
+        } else if (postings.replace(gram, ids, ids.add(id))) {
+          break;
+        } else {
+          ids = postings.get(gram);
+        }
+      }
+    }
+  }
+
+  /**
+   * Index the names of new persons at once, merging the postings of each
+   * gram in a single update instead of one per person. The caller must hold
+   * the locks of the persons.
+   *
+   * @param ids the persons identifiers, not indexed yet
+   * @param fullNames the full names, may be null, in identifiers order
+   */
+  void addAll(final int[] ids, final String[] fullNames) {
+    Map<String, GramIds> added = new HashMap<String, GramIds>();
+    for (int i = 0; i < ids.length; i++) {
+      String name = normalize(fullNames[i]);
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (source == null) {
+        names.put(ids[i], name);
+      }
+      for (String gram : grams(name)) {
+        GramIds gramIds = added.get(gram);
+        if (gramIds == null) {
+          gramIds = new GramIds();
+          added.put(gram, gramIds);
+        }
+        gramIds.add(ids[i]);
+      }
+    }
+    for (Map.Entry<String, GramIds> entry : added.entrySet()) {
+      String gram = entry.getKey();
+      IntBitmap batch = entry.getValue().toBitmap();
+      IntBitmap current = postings.putIfAbsent(gram, batch);
+      while (current != null
+              && !postings.replace(gram, current, current.or(batch))) {
+        current = postings.putIfAbsent(gram, batch);
+      }
+    }
+  }
+
+  /**
+   * Search the persons whose name contains every word of a query, as a
+   * substring, or as a word start for words shorter than a trigram.
+   *
+   * @param query the query
+   * @param limit the maximum number of matches
+   * @return the best matches, best first
+   */
+  List<Match> search(final String query, final int limit) {
+    String normalized = normalize(query);
+    if (normalized.isEmpty()) {
+      return Collections.emptyList();
+    }
+    String[] words = normalized.split(" ");
+    List<IntBitmap> lists = new ArrayList<IntBitmap>();
+    for (String gram : queryGrams(words)) {
+      IntBitmap ids = postings.get(gram);
+      if (ids == null) {
+        return Collections.emptyList();
+      }
+      lists.add(ids);
+    }
+    Collections.sort(lists, new Comparator<IntBitmap>() {
+      @Override
+      public int compare(final IntBitmap first, final IntBitmap second) {
+        return Integer.compare(first.cardinality(), second.cardinality());
+      }
+    });
+    IntBitmap candidates = lists.get(0);
+    for (int i = 1; i < lists.size() && candidates.cardinality() > 0; i++) {
+      candidates = candidates.and(lists.get(i));
+    }
+    PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1,
+            Collections.reverseOrder(RANKING));
+    IntBitmap.Cursor cursor = candidates.cursor();
+    while (cursor.hasNext()) {
+      int id = cursor.next();
+      String name = nameOf(id);
+      if (name == null) {
+        continue;
+      }
+      int score = score(name, normalized, words);
+      if (score > 0) {
+        best.add(new Match(id, score, name.length()));
+        if (best.size() > limit) {
+          best.poll();
+        }
+      }
+    }
+    Match[] ranked = best.toArray(new Match[best.size()]);
+    Arrays.sort(ranked, RANKING);
+    return Arrays.asList(ranked);
+  }
+
+  /**
+   * Get the normalized name of a person.
+   *
+   * @param id the person identifier
+   * @return the name, null if none
+   */
+  private String nameOf(final int id) {
+    if (source == null) {
+      return names.get(id);
+    }
+    String name = normalize(source.fullNameOf(id));
+    if (name.isEmpty()) {
+      return null;
+    }
+    return name;
+  }
+
+  /**
+   * Score a name against a query.
+   *
+   * @param name the normalized name
+   * @param query the normalized query
+   * @param words the query words
+   * @return the relevance, 0 if the name does not match
+   */
+  private static int score(final String name, final String query,
+          final String[] words) {
+    int score = 0;
+    for (String word : words) {
+      int index = name.indexOf(word);
+      boolean wordStart = false;
+      while (index >= 0 && !wordStart) {
+        wordStart = index == 0 || name.charAt(index - 1) == ' ';
+        if (!wordStart) {
+          index = name.indexOf(word, index + 1);
+        }
+      }
+      if (wordStart) {
+        score += WORD_START_SCORE;
+      } else if (word.length() >= GRAM && name.contains(word)) {
+        score += INSIDE_SCORE;
+      } else {
+        return 0;
+      }
+    }
+    if (name.equals(query)) {
+      score += EXACT_SCORE;
+    } else if (name.startsWith(query)) {
+      score += PREFIX_SCORE;
+    }
+    return score;
+  }
+
+  /**
+   * Get the grams indexing a name.
+   *
+   * @param name the normalized name, may be null
+   * @return the grams
+   */
+  private static Set<String> grams(final String name) {
+    Set<String> grams = new HashSet<String>();
+    if (name == null || name.isEmpty()) {
+      return grams;
+    }
+    for (String word : name.split(" ")) {
+      grams.add(WORD_START + word.substring(0, 1));
+      if (word.length() > 1) {
+        grams.add(WORD_START + word.substring(0, 2));
+      }
+      for (int i = 0; i + GRAM <= word.length(); i++) {
+        grams.add(word.substring(i, i + GRAM));
+      }
+    }
+    return grams;
+  }
+
+  /**
+   * Get the grams a name must be indexed by to match a query.
+   *
+   * @param words the query words
+   * @return the grams
+   */
+  private static Set<String> queryGrams(final String[] words) {
+    Set<String> grams = new HashSet<String>();
+    for (String word : words) {
+      if (word.length() < GRAM) {
+        grams.add(WORD_START + word);
+      } else {
+        for (int i = 0; i + GRAM <= word.length(); i++) {
+          grams.add(word.substring(i, i + GRAM));
+        }
+      }
+    }
+    return grams;
+  }
+
+  /**
+   * Normalize a name: lower case words of letters and digits, without
+   * accents, separated by single spaces.
+   *
+   * @param name the name, may be null
+   * @return the normalized name, empty if none
+   */
+  static String normalize(final String name) {
+    if (name == null) {
+      return "";
+    }
+    String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+    StringBuilder result = new StringBuilder(decomposed.length());
+    boolean space = true;
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        continue;
+      }
+      if (Character.isLetterOrDigit(c)) {
+        result.append(Character.toLowerCase(c));
+        space = false;
+      } else if (!space) {
+        result.append(' ');
+        space = true;
+      }
+    }
+    int length = result.length();
+    if (length > 0 && result.charAt(length - 1) == ' ') {
+      result.setLength(length - 1);
+    }
+    return result.toString();
+  }
+
+  /**
+   * The identifiers collected for a gram during a batched addition.
+   */
+  private static final class GramIds {
+
+    /**
+     * The identifiers, the first size ones are relevant.
+     */
+    private int[] ids = new int[INITIAL_GRAM_IDS];
+
+    /**
+     * The number of identifiers.
+     */
+    private int size;
+
+    /**
+     * Add an identifier.
+     *
+     * @param id the identifier
+     */
+    void add(final int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+
+    /**
+     * Get the identifiers as a bitmap.
+     *
+     * @return the bitmap
+     */
+    IntBitmap toBitmap() {
+      return IntBitmap.of(Arrays.copyOf(ids, size));
+    }
+  }
+
+}
@@ -0,0 +1,966 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+
+/**
+ * Map of values keyed by system names, holding its data outside of the heap
+ * so that millions of entries do not weigh on the garbage collections.
+ *
+ * Records are appended to arenas of direct buffers, or of memory-mapped
+ * files when a directory is given, and located by an open-addressing table
+ * of hashes and addresses, itself in a direct buffer. The values are encoded
+ * by a codec, and decoded on each lookup. A replaced record is left in its
+ * arena until the dead records outweigh the live ones, then the live ones
+ * are copied to a new arena.
+ *
+ * Mutations are serialized by a lock. Lookups are optimistic: they only
+ * lock when a mutation ran meanwhile. Iterators are weakly consistent.
+ * A removed entry is recorded with a negative value length, and keeps its
+ * slot so that the probe sequences through it stay intact. Null values are
+ * not supported.
+ *
+ * @param <V> values type
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class OffHeapStore<V> extends AbstractMap<String, V> {
+
+  /**
+   * Encoding of the stored values.
+   *
+   * @param <V> values type
+   */
+  interface Codec<V> {
+
+    /**
+     * Write a value.
+     *
+     * @param value the value
+     * @param out the destination
+     * @throws IOException on write error
+     */
+    void write(V value, DataOutput out) throws IOException;
+
+    /**
+     * Read a value written by {@link #write(Object, DataOutput)}.
+     *
+     * @param key the key of the value
+     * @param in the source
+     * @return the value
+     * @throws IOException on read error
+     */
+    V read(String key, DataInput in) throws IOException;
+  }
+
+  /**
+   * Codec of strings, such as the stored passwords.
+   */
+  static final Codec<String> STRINGS = new Codec<String>() {
+    @Override
+    public void write(final String value, final DataOutput out)
+            throws IOException {
+      writeString(out, value);
+    }
+
+    @Override
+    public String read(final String key, final DataInput in)
+            throws IOException {
+      return readString(in);
+    }
+  };
+
+  /**
+   * Codec of persons, keyed by their system names.
+   */
+  static final Codec<Person> PERSONS = new Codec<Person>() {
+    @Override
+    public void write(final Person value, final DataOutput out)
+            throws IOException {
+      writeString(out, value.getFullName());
+      writeString(out, value.getOrgUnitName());
+    }
+
+    @Override
+    public Person read(final String key, final DataInput in)
+            throws IOException {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(key);
+      builder.setFullName(readString(in));
+      builder.setOrgUnitName(readString(in));
+      return builder.build();
+    }
+  };
+
+  /**
+   * Size of a table slot: the key hash, then the record address.
+   */
+  private static final int SLOT_BYTES = 12;
+
+  /**
+   * Initial number of table slots, a power of two.
+   */
+  private static final int INITIAL_SLOTS = 1024;
+
+  /**
+   * Maximum number of table slots, so that the table fits in a buffer.
+   */
+  private static final int MAX_SLOTS = 1 << 27;
+
+  /**
+   * Size of the first arena chunk; the next ones double up to
+   * {@link #MAX_CHUNK_BYTES}.
+   */
+  private static final int FIRST_CHUNK_BYTES = 1 << 16;
+
+  /**
+   * Maximum size of an arena chunk.
+   */
+  private static final int MAX_CHUNK_BYTES = 1 << 26;
+
+  /**
+   * Dead records size under which an arena is never compacted.
+   */
+  private static final long MIN_COMPACTED_BYTES = 1L << 20;
+
+  /**
+   * Address of no record, marking the empty slots.
+   */
+  private static final long NONE = 0L;
+
+  /**
+   * Multiplier scattering the hashes of similar keys.
+   */
+  private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+  /**
+   * Size of a record length.
+   */
+  private static final int LENGTH_BYTES = 4;
+
+  /**
+   * Value length of the records of removed entries.
+   */
+  private static final int REMOVED_LENGTH = -1;
+
+  /**
+   * The values codec.
+   */
+  private final Codec<V> codec;
+
+  /**
+   * Directory of the memory-mapped files, null for direct buffers.
+   */
+  private final File directory;
+
+  /**
+   * Lock serializing the mutations.
+   */
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * The current table and arena.
+   */
+  private volatile Layout layout;
+
+  /**
+   * Number of entries.
+   */
+  private volatile int size;
+
+  /**
+   * Size of the live records, guarded by the lock.
+   */
+  private long liveBytes;
+
+  /**
+   * Size of the replaced records, guarded by the lock.
+   */
+  private long deadBytes;
+
+  /**
+   * A table, and the arena its addresses point to. The table is replaced
+   * when it grows, and both when the arena is compacted.
+   */
+  private static final class Layout {
+
+    /**
+     * The slots.
+     */
+    private final ByteBuffer slots;
+
+    /**
+     * Number of slots minus one.
+     */
+    private final int mask;
+
+    /**
+     * The records.
+     */
+    private final Arena arena;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of slots, a power of two
+     * @param pArena the records
+     */
+    Layout(final int capacity, final Arena pArena) {
+      slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+      mask = capacity - 1;
+      arena = pArena;
+    }
+
+    /**
+     * Get the address of a slot record.
+     *
+     * @param index the slot index
+     * @return the address, {@link #NONE} if the slot is empty
+     */
+    long address(final int index) {
+      return slots.getLong(index * SLOT_BYTES + LENGTH_BYTES);
+    }
+
+    /**
+     * Get the key hash of a slot.
+     *
+     * @param index the slot index
+     * @return the hash
+     */
+    int hash(final int index) {
+      return slots.getInt(index * SLOT_BYTES);
+    }
+
+    /**
+     * Fill a slot. The hash is written first, so that a slot with an address
+     * always has its hash.
+     *
+     * @param index the slot index
+     * @param hash the key hash
+     * @param address the record address
+     */
+    void set(final int index, final int hash, final long address) {
+      slots.putInt(index * SLOT_BYTES, hash);
+      slots.putLong(index * SLOT_BYTES + LENGTH_BYTES, address);
+    }
+
+    /**
+     * Get the index of the first empty slot for a hash.
+     *
+     * @param hash the key hash
+     * @return the slot index
+     */
+    int free(final int hash) {
+      int index = hash & mask;
+      while (address(index) != NONE) {
+        index = (index + 1) & mask;
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Records storage, made of chunks that are never moved nor released while
+   * reachable, so that an address read from a table stays readable.
+   */
+  private static final class Arena {
+
+    /**
+     * Directory of the memory-mapped files, null for direct buffers.
+     */
+    private final File directory;
+
+    /**
+     * The chunks.
+     */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    /**
+     * Offset of the free space in the last chunk.
+     */
+    private int position;
+
+    /**
+     * Total size of the chunks.
+     */
+    private volatile long reservedBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param pDirectory directory of the memory-mapped files, null for
+     * direct buffers
+     */
+    Arena(final File pDirectory) {
+      directory = pDirectory;
+    }
+
+    /**
+     * Reserve the space of a record.
+     *
+     * @param bytes the record size
+     * @return the record address
+     * @throws IOException if a file cannot be mapped
+     */
+    long allocate(final int bytes) throws IOException {
+      ByteBuffer[] current = chunks;
+      int last = current.length - 1;
+      if (last < 0 || current[last].capacity() - position < bytes) {
+        if (bytes > MAX_CHUNK_BYTES) {
+          throw new IllegalArgumentException("Record too large: " + bytes);
+        }
+        int capacity = FIRST_CHUNK_BYTES;
+        if (last >= 0) {
+          capacity = Math.min(current[last].capacity() * 2, MAX_CHUNK_BYTES);
+        }
+        ByteBuffer chunk = newChunk(Math.max(capacity, bytes + 1));
+        ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = chunk;
+        chunks = grown;
+        reservedBytes += chunk.capacity();
+        last++;
+        // The first byte is skipped so that no record has the address NONE.
+        position = last == 0 ? 1 : 0;
+      }
+      long address = ((long) last << Integer.SIZE) | position;
+      position += bytes;
+      return address;
+    }
+
+    /**
+     * Create a chunk. A file is mapped then deleted at once: the mapping
+     * keeps its pages until the chunk is collected.
+     *
+     * @param capacity the chunk size
+     * @return the chunk
+     * @throws IOException if the file cannot be mapped
+     */
+    private ByteBuffer newChunk(final int capacity) throws IOException {
+      if (directory == null) {
+        return ByteBuffer.allocateDirect(capacity);
+      }
+      File file = File.createTempFile("niaouli-auth-mem-", ".arena",
+              directory);
+      try {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+          return access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                  capacity);
+        } finally {
+          access.close();
+        }
+      } finally {
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+
+    /**
+     * Get the chunk of a record.
+     *
+     * @param address the record address
+     * @return the chunk
+     */
+    ByteBuffer chunk(final long address) {
+      return chunks[(int) (address >>> Integer.SIZE)];
+    }
+
+    /**
+     * Get the total size of the chunks.
+     *
+     * @return the size in bytes
+     */
+    long getReservedBytes() {
+      return reservedBytes;
+    }
+  }
+
+  /**
+   * A located record.
+   */
+  private static final class Location {
+
+    /**
+     * The arena of the record.
+     */
+    private final Arena arena;
+
+    /**
+     * The record address.
+     */
+    private final long address;
+
+    /**
+     * Constructor.
+     *
+     * @param pArena the arena of the record
+     * @param pAddress the record address
+     */
+    Location(final Arena pArena, final long pAddress) {
+      arena = pArena;
+      address = pAddress;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pCodec the values codec
+   * @param pDirectory directory of the memory-mapped files, null for direct
+   * buffers
+   */
+  OffHeapStore(final Codec<V> pCodec, final File pDirectory) {
+    codec = pCodec;
+    directory = pDirectory;
+    layout = new Layout(INITIAL_SLOTS, new Arena(directory));
+  }
+
+  /**
+   * Get the size of the memory held outside of the heap.
+   *
+   * @return the size in bytes
+   */
+  long getReservedBytes() {
+    Layout current = layout;
+    return current.slots.capacity() + current.arena.getReservedBytes();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    if (!(key instanceof String)) {
+      return false;
+    }
+    Location location = locate((String) key);
+    return location != null && !isRemoved(location.arena, location.address);
+  }
+
+  @Override
+  public V get(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    String sysName = (String) key;
+    Location location = locate(sysName);
+    if (location == null) {
+      return null;
+    }
+    return readValue(location.arena, location.address, sysName);
+  }
+
+  @Override
+  public V put(final String key, final V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = encode(value);
+    int hash = hash(key);
+    long stamp = lock.writeLock();
+    try {
+      Layout current = layout;
+      int index = find(current, hash, keyBytes);
+      V previous = null;
+      if (index >= 0) {
+        long address = current.address(index);
+        previous = readValue(current.arena, address, key);
+        int bytes = recordBytes(current.arena, address);
+        liveBytes -= bytes;
+        deadBytes += bytes;
+      } else {
+        if ((size + 1) * 2L > current.mask + 1L) {
+          current = grow(current);
+        }
+        index = current.free(hash);
+      }
+      current.set(index, hash, append(current.arena, keyBytes, valueBytes));
+      liveBytes += recordBytes(keyBytes.length, length(valueBytes));
+      if (previous == null) {
+        size++;
+      }
+      if (deadBytes > MIN_COMPACTED_BYTES && deadBytes > liveBytes) {
+        compact(current);
+      }
+      return previous;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public V remove(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    String sysName = (String) key;
+    byte[] keyBytes = sysName.getBytes(StandardCharsets.UTF_8);
+    long stamp = lock.writeLock();
+    try {
+      Layout current = layout;
+      int index = find(current, hash(sysName), keyBytes);
+      if (index < 0) {
+        return null;
+      }
+      long address = current.address(index);
+      V previous = readValue(current.arena, address, sysName);
+      if (previous == null) {
+        return null;
+      }
+      int bytes = recordBytes(current.arena, address);
+      liveBytes -= bytes;
+      deadBytes += bytes;
+      current.set(index, current.hash(index),
+              append(current.arena, keyBytes, null));
+      liveBytes += recordBytes(keyBytes.length, REMOVED_LENGTH);
+      size--;
+      if (deadBytes > MIN_COMPACTED_BYTES && deadBytes > liveBytes) {
+        compact(current);
+      }
+      return previous;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<String, V>> entrySet() {
+    return new AbstractSet<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Iterator over the keys of the table current at its creation, returning
+   * the current values.
+   */
+  private final class EntryIterator
+          implements Iterator<Map.Entry<String, V>> {
+
+    /**
+     * The iterated table.
+     */
+    private final Layout iterated = layout;
+
+    /**
+     * Index of the next slot to look at.
+     */
+    private int index;
+
+    /**
+     * The next entry, null if not looked for yet.
+     */
+    private Map.Entry<String, V> next;
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && index <= iterated.mask) {
+        String key = null;
+        long stamp = lock.readLock();
+        try {
+          long address = iterated.address(index);
+          if (address != NONE) {
+            key = readKey(iterated.arena, address);
+          }
+        } finally {
+          lock.unlockRead(stamp);
+        }
+        index++;
+        V value = key == null ? null : get(key);
+        if (value != null) {
+          next = new AbstractMap.SimpleImmutableEntry<String, V>(key, value);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, V> entry = next;
+      next = null;
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Locate the record of a key. The table is first probed without locking,
+   * and probed again under the lock if a mutation ran meanwhile, possibly
+   * making the probe read inconsistent data.
+   *
+   * @param key the key
+   * @return the record location, null if the key is unknown
+   */
+  private Location locate(final String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(key);
+    long stamp = lock.tryOptimisticRead();
+    Layout current = layout;
+    int index;
+    try {
+      index = find(current, hash, keyBytes);
+    } catch (RuntimeException ex) {
+      index = -1;
+      stamp = 0L;
+    }
+    long address = index >= 0 ? current.address(index) : NONE;
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        current = layout;
+        index = find(current, hash, keyBytes);
+        address = index >= 0 ? current.address(index) : NONE;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    if (address == NONE) {
+      return null;
+    }
+    return new Location(current.arena, address);
+  }
+
+  /**
+   * Find the slot of a key.
+   *
+   * @param current the table
+   * @param hash the key hash
+   * @param keyBytes the encoded key
+   * @return the slot index, or a negative value if the key is unknown
+   */
+  private static int find(final Layout current, final int hash,
+          final byte[] keyBytes) {
+    int index = hash & current.mask;
+    long address = current.address(index);
+    while (address != NONE) {
+      if (current.hash(index) == hash
+              && keyEquals(current.arena, address, keyBytes)) {
+        return index;
+      }
+      index = (index + 1) & current.mask;
+      address = current.address(index);
+    }
+    return -1;
+  }
+
+  /**
+   * Double the number of slots of a table. The caller must hold the lock.
+   *
+   * @param current the full table
+   * @return the new table, made current
+   */
+  private Layout grow(final Layout current) {
+    int capacity = (current.mask + 1) * 2;
+    if (capacity > MAX_SLOTS) {
+      throw new IllegalStateException("Off-heap store full");
+    }
+    Layout grown = new Layout(capacity, current.arena);
+    for (int i = 0; i <= current.mask; i++) {
+      long address = current.address(i);
+      if (address != NONE) {
+        int hash = current.hash(i);
+        grown.set(grown.free(hash), hash, address);
+      }
+    }
+    layout = grown;
+    return grown;
+  }
+
+  /**
+   * Copy the live records to a new arena. The caller must hold the lock.
+   *
+   * @param current the table
+   * @throws IOException if a file cannot be mapped
+   */
+  private void compact(final Layout current) throws IOException {
+    Layout compacted = new Layout(current.mask + 1, new Arena(directory));
+    for (int i = 0; i <= current.mask; i++) {
+      long address = current.address(i);
+      if (address != NONE) {
+        byte[] record = new byte[recordBytes(current.arena, address)];
+        ByteBuffer source = current.arena.chunk(address).duplicate();
+        source.position((int) address);
+        source.get(record);
+        long copy = compacted.arena.allocate(record.length);
+        ByteBuffer target = compacted.arena.chunk(copy).duplicate();
+        target.position((int) copy);
+        target.put(record);
+        compacted.set(i, current.hash(i), copy);
+      }
+    }
+    layout = compacted;
+    deadBytes = 0L;
+  }
+
+  /**
+   * Append a record to an arena: the key length and bytes, then the value
+   * length and bytes.
+   *
+   * @param arena the arena
+   * @param keyBytes the encoded key
+   * @param valueBytes the encoded value, null for a removed entry
+   * @return the record address
+   * @throws IOException if a file cannot be mapped
+   */
+  private static long append(final Arena arena, final byte[] keyBytes,
+          final byte[] valueBytes) throws IOException {
+    long address = arena.allocate(recordBytes(keyBytes.length,
+            length(valueBytes)));
+    ByteBuffer chunk = arena.chunk(address).duplicate();
+    chunk.position((int) address);
+    chunk.putInt(keyBytes.length).put(keyBytes);
+    chunk.putInt(length(valueBytes));
+    if (valueBytes != null) {
+      chunk.put(valueBytes);
+    }
+    return address;
+  }
+
+  /**
+   * Get the recorded length of an encoded value.
+   *
+   * @param valueBytes the encoded value, null for a removed entry
+   * @return the length, {@link #REMOVED_LENGTH} for a removed entry
+   */
+  private static int length(final byte[] valueBytes) {
+    if (valueBytes == null) {
+      return REMOVED_LENGTH;
+    }
+    return valueBytes.length;
+  }
+
+  /**
+   * Get the size of a record.
+   *
+   * @param keyLength the encoded key length
+   * @param valueLength the encoded value length, negative for a removed
+   * entry
+   * @return the size in bytes
+   */
+  private static int recordBytes(final int keyLength, final int valueLength) {
+    return LENGTH_BYTES + keyLength + LENGTH_BYTES + Math.max(valueLength, 0);
+  }
+
+  /**
+   * Get the size of a stored record.
+   *
+   * @param arena the arena
+   * @param address the record address
+   * @return the size in bytes
+   */
+  private static int recordBytes(final Arena arena, final long address) {
+    ByteBuffer chunk = arena.chunk(address);
+    int offset = (int) address;
+    int keyLength = chunk.getInt(offset);
+    return recordBytes(keyLength,
+            chunk.getInt(offset + LENGTH_BYTES + keyLength));
+  }
+
+  /**
+   * Tell if a record marks a removed entry.
+   *
+   * @param arena the arena
+   * @param address the record address
+   * @return true if removed
+   */
+  private static boolean isRemoved(final Arena arena, final long address) {
+    ByteBuffer chunk = arena.chunk(address);
+    int offset = (int) address;
+    return chunk.getInt(offset + LENGTH_BYTES + chunk.getInt(offset)) < 0;
+  }
+
+  /**
+   * Tell if a record has a key.
+   *
+   * @param arena the arena
+   * @param address the record address
+   * @param keyBytes the encoded key
+   * @return true if the keys are equal
+   */
+  private static boolean keyEquals(final Arena arena, final long address,
+          final byte[] keyBytes) {
+    ByteBuffer chunk = arena.chunk(address);
+    int offset = (int) address;
+    if (chunk.getInt(offset) != keyBytes.length) {
+      return false;
+    }
+    offset += LENGTH_BYTES;
+    for (int i = 0; i < keyBytes.length; i++) {
+      if (chunk.get(offset + i) != keyBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read the key of a record.
+   *
+   * @param arena the arena
+   * @param address the record address
+   * @return the key
+   */
+  private static String readKey(final Arena arena, final long address) {
+    ByteBuffer chunk = arena.chunk(address).duplicate();
+    chunk.position((int) address);
+    byte[] keyBytes = new byte[chunk.getInt()];
+    chunk.get(keyBytes);
+    return new String(keyBytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read the value of a record. Records are never modified, so they are
+   * read without locking.
+   *
+   * @param arena the arena
+   * @param address the record address
+   * @param key the record key
+   * @return the value, null for a removed entry
+   */
+  private V readValue(final Arena arena, final long address,
+          final String key) {
+    ByteBuffer chunk = arena.chunk(address).duplicate();
+    int offset = (int) address;
+    chunk.position(offset + LENGTH_BYTES + chunk.getInt(offset));
+    int length = chunk.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] valueBytes = new byte[length];
+    chunk.get(valueBytes);
+    try {
+      return codec.read(key, new DataInputStream(
+              new ByteArrayInputStream(valueBytes)));
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Encode a value.
+   *
+   * @param value the value
+   * @return the bytes
+   */
+  private byte[] encode(final V value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      codec.write(value, new DataOutputStream(bytes));
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Get the hash of a key, scattered so that linear probing does not
+   * cluster similar keys.
+   *
+   * @param key the key
+   * @return the hash
+   */
+  private static int hash(final String key) {
+    int h = key.hashCode() * HASH_MULTIPLIER;
+    return h ^ (h >>> (Integer.SIZE / 2));
+  }
+
+  /**
+   * Write a string that may be null, without length limit.
+   *
+   * @param out the destination
+   * @param text the string
+   * @throws IOException on write error
+   */
+  private static void writeString(final DataOutput out, final String text)
+          throws IOException {
+    if (text == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Read a string written by {@link #writeString(DataOutput, String)}.
+   *
+   * @param in the source
+   * @return the string
+   * @throws IOException on read error
+   */
+  private static String readString(final DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Statistics of a kind of operation of a {@link MemAuthSystem}: how many
+ * were run and how long they took. Latencies are estimated by power of two
+ * buckets, so they are accurate within a factor of two.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class OperationStats {
+
+  /**
+   * Number of operations.
+   */
+  private final long count;
+
+  /**
+   * Mean latency, in nanoseconds.
+   */
+  private final long meanNanos;
+
+  /**
+   * Median latency, in nanoseconds.
+   */
+  private final long p50Nanos;
+
+  /**
+   * 99th percentile latency, in nanoseconds.
+   */
+  private final long p99Nanos;
+
+  /**
+   * 99.9th percentile latency, in nanoseconds.
+   */
+  private final long p999Nanos;
+
+  /**
+   * Maximum latency, in nanoseconds.
+   */
+  private final long maxNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param pCount number of operations
+   * @param pMeanNanos mean latency
+   * @param pP50Nanos median latency
+   * @param pP99Nanos 99th percentile latency
+   * @param pP999Nanos 99.9th percentile latency
+   * @param pMaxNanos maximum latency
+   */
+  @ConstructorProperties({"count", "meanNanos", "p50Nanos", "p99Nanos",
+    "p999Nanos", "maxNanos"})
+  public OperationStats(final long pCount, final long pMeanNanos,
+          final long pP50Nanos, final long pP99Nanos, final long pP999Nanos,
+          final long pMaxNanos) {
+    count = pCount;
+    meanNanos = pMeanNanos;
+    p50Nanos = pP50Nanos;
+    p99Nanos = pP99Nanos;
+    p999Nanos = pP999Nanos;
+    maxNanos = pMaxNanos;
+  }
+
+  /**
+   * Get the number of operations.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Get the mean latency.
+   *
+   * @return the latency in nanoseconds
+   */
+  public long getMeanNanos() {
+    return meanNanos;
+  }
+
+  /**
+   * Get the median latency.
+   *
+   * @return the latency in nanoseconds
+   */
+  public long getP50Nanos() {
+    return p50Nanos;
+  }
+
+  /**
+   * Get the 99th percentile latency.
+   *
+   * @return the latency in nanoseconds
+   */
+  public long getP99Nanos() {
+    return p99Nanos;
+  }
+
+  /**
+   * Get the 99.9th percentile latency.
+   *
+   * @return the latency in nanoseconds
+   */
+  public long getP999Nanos() {
+    return p999Nanos;
+  }
+
+  /**
+   * Get the maximum latency.
+   *
+   * @return the latency in nanoseconds
+   */
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+}
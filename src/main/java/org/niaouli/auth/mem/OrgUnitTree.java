@@ -0,0 +1,297 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Hierarchy of the organizational units, encoded as nested label intervals
+ * so that a subtree is a range of labels.
+ *
+ * Each unit has an enter and an exit label, like the positions of its entry
+ * and exit in a depth-first tour, and the labels of its descendants lie
+ * between them. Labels are sparse: a unit added or moved under a parent
+ * takes labels in the free space after the last child of the parent, so
+ * that only the moved units are relabeled. When that space runs out, all the
+ * units are relabeled evenly.
+ *
+ * Mutations are serialized by the tree monitor. Reads never lock: a unit being
+ * moved is found in its previous or in its new place, never in none.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class OrgUnitTree {
+
+  /**
+   * Lowest label, reserved for the enter of the virtual root of all units.
+   */
+  private static final long ROOT_ENTER = 0L;
+
+  /**
+   * Highest label, reserved for the exit of the virtual root of all units.
+   */
+  private static final long ROOT_EXIT = Long.MAX_VALUE;
+
+  /**
+   * Maximum gap between consecutive labels of placed units, so that
+   * appending units does not halve the free space each time.
+   */
+  private static final long MAX_STEP = 1L << 32;
+
+  /**
+   * Parent unit name per unit name, for the units having a parent.
+   */
+  private final ConcurrentMap<String, String> parents =
+          new ConcurrentHashMap<String, String>();
+
+  /**
+   * Children units names set per unit name.
+   */
+  private final ConcurrentMap<String, Set<String>> children =
+          new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * The current labels, replaced when all the units are relabeled.
+   */
+  private volatile Labels labels = new Labels();
+
+  /**
+   * Labels of the units.
+   */
+  private static final class Labels {
+
+    /**
+     * Enter and exit labels per unit name.
+     */
+    private final ConcurrentMap<String, long[]> intervals =
+            new ConcurrentHashMap<String, long[]>();
+
+    /**
+     * Unit names by enter label.
+     */
+    private final NavigableMap<Long, String> enters =
+            new ConcurrentSkipListMap<Long, String>();
+
+    /**
+     * Unit names by exit label.
+     */
+    private final NavigableMap<Long, String> exits =
+            new ConcurrentSkipListMap<Long, String>();
+  }
+
+  /**
+   * Tell if a unit is known.
+   *
+   * @param name the unit name
+   * @return true if known
+   */
+  boolean contains(final String name) {
+    return labels.intervals.containsKey(name);
+  }
+
+  /**
+   * Add a unit, without parent.
+   *
+   * @param name the unit name
+   */
+  synchronized void add(final String name) {
+    if (!contains(name)) {
+      place(Collections.singletonList(name), null);
+    }
+  }
+
+  /**
+   * Get the parent of a unit.
+   *
+   * @param name the unit name
+   * @return the parent unit name, null if none
+   */
+  String parentOf(final String name) {
+    return parents.get(name);
+  }
+
+  /**
+   * Get the children of a unit.
+   *
+   * @param name the unit name
+   * @return the children units names
+   */
+  Set<String> childrenOf(final String name) {
+    Set<String> result = children.get(name);
+    if (result == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * Get a unit and all its descendants, in depth-first order.
+   *
+   * @param name the unit name
+   * @return the units names, empty if the unit is unknown
+   */
+  Collection<String> subtree(final String name) {
+    Labels current = labels;
+    long[] interval = current.intervals.get(name);
+    if (interval == null) {
+      return Collections.emptyList();
+    }
+    return current.enters.subMap(interval[0], true, interval[1], false)
+            .values();
+  }
+
+  /**
+   * Move a unit, with its descendants, under a new parent. The caller must
+   * make sure that the new parent is not in the subtree, and that no other
+   * move happens meanwhile.
+   *
+   * @param name the unit name
+   * @param parent the new parent unit name, null for none
+   */
+  synchronized void move(final String name, final String parent) {
+    String previous = parents.get(name);
+    if (parent == null ? previous == null : parent.equals(previous)) {
+      return;
+    }
+    List<String> moved = new ArrayList<String>(subtree(name));
+    place(moved, parent);
+    if (previous != null) {
+      children.get(previous).remove(name);
+    }
+    if (parent == null) {
+      parents.remove(name);
+    } else {
+      parents.put(name, parent);
+      Set<String> siblings = children.get(parent);
+      if (siblings == null) {
+        siblings = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        children.put(parent, siblings);
+      }
+      siblings.add(name);
+    }
+  }
+
+  /**
+   * Get the parent of every unit having one.
+   *
+   * @return the parent unit name per unit name
+   */
+  Map<String, String> parents() {
+    return Collections.unmodifiableMap(parents);
+  }
+
+  /**
+   * Label a subtree after the last child of a parent. The new labels are
+   * published before the previous ones are removed.
+   *
+   * @param subtree the subtree units, in depth-first order, the root first
+   * @param parent the parent unit name, null for none
+   */
+  private void place(final List<String> subtree, final String parent) {
+    Labels current = labels;
+    long enter = ROOT_ENTER;
+    long exit = ROOT_EXIT;
+    if (parent != null) {
+      long[] interval = current.intervals.get(parent);
+      enter = interval[0];
+      exit = interval[1];
+    }
+    Long last = current.exits.lowerKey(exit);
+    long low = enter;
+    if (last != null && last > enter) {
+      low = last;
+    }
+    // Keep at least half of the free space for the next siblings
+    long step = Math.min(MAX_STEP,
+            (exit - low) / 2 / (2L * subtree.size() + 1));
+    if (step < 1L) {
+      relabel();
+      place(subtree, parent);
+      return;
+    }
+    Map<String, long[]> previous = new HashMap<String, long[]>();
+    for (String unit : subtree) {
+      long[] interval = current.intervals.get(unit);
+      if (interval != null) {
+        previous.put(unit, interval);
+      }
+    }
+    long[] next = {low};
+    label(subtree.get(0), current, step, next);
+    for (Map.Entry<String, long[]> entry : previous.entrySet()) {
+      long[] interval = entry.getValue();
+      current.enters.remove(interval[0]);
+      current.exits.remove(interval[1]);
+    }
+  }
+
+  /**
+   * Label a unit and its descendants, depth first.
+   *
+   * @param name the unit name
+   * @param target the labels to update
+   * @param step the gap between consecutive labels
+   * @param next the last used label, updated
+   */
+  private void label(final String name, final Labels target,
+          final long step, final long[] next) {
+    long[] interval = new long[2];
+    next[0] += step;
+    interval[0] = next[0];
+    target.enters.put(interval[0], name);
+    Set<String> below = children.get(name);
+    if (below != null) {
+      for (String child : below) {
+        label(child, target, step, next);
+      }
+    }
+    next[0] += step;
+    interval[1] = next[0];
+    target.exits.put(interval[1], name);
+    target.intervals.put(name, interval);
+  }
+
+  /**
+   * Relabel all the units evenly over the first half of the labels, and
+   * publish the new labels at once.
+   */
+  private void relabel() {
+    Labels current = labels;
+    Labels relabeled = new Labels();
+    long step = (ROOT_EXIT - ROOT_ENTER) / 2 / (2L * current.intervals.size()
+            + 2);
+    long[] next = {ROOT_ENTER};
+    for (String name : current.intervals.keySet()) {
+      if (!parents.containsKey(name)) {
+        label(name, relabeled, step, next);
+      }
+    }
+    labels = relabeled;
+  }
+
+}
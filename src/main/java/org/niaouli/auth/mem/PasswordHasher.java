@@ -0,0 +1,348 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes passwords with PBKDF2, and verifies them on a bounded pool of worker
+ * threads so that a login storm cannot use more than a fixed share of the CPU.
+ *
+ * Hashed passwords are stored as
+ * <code>{PBKDF2-SHA256}iterations$salt$hash</code>, salt and hash being
+ * hexadecimal encoded. The iteration count is read back from the stored
+ * value, so the cost can be raised without invalidating existing passwords.
+ * Values stored as <code>{PBKDF2}iterations$salt$hash</code> by earlier
+ * versions are still verified with HMAC-SHA1.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class PasswordHasher implements Serializable {
+
+  /**
+   * Prefix of the stored values.
+   */
+  private static final String PREFIX = "{PBKDF2-SHA256}";
+
+  /**
+   * Prefix of the values stored with HMAC-SHA1.
+   */
+  private static final String SHA1_PREFIX = "{PBKDF2}";
+
+  /**
+   * Separator of the stored value parts.
+   */
+  private static final char SEPARATOR = '$';
+
+  /**
+   * JCE algorithm name.
+   */
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+  /**
+   * JCE algorithm name of the values stored with HMAC-SHA1.
+   */
+  private static final String SHA1_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  /**
+   * Salt length, in bytes.
+   */
+  private static final int SALT_LENGTH = 16;
+
+  /**
+   * Derived key length, in bits: the HMAC-SHA256 output length, so that a
+   * single PBKDF2 block is computed.
+   */
+  private static final int KEY_LENGTH = 256;
+
+  /**
+   * Derived key length of the values stored with HMAC-SHA1, in bits.
+   */
+  private static final int SHA1_KEY_LENGTH = 160;
+
+  /**
+   * Idle time after which a worker thread stops, in seconds.
+   */
+  private static final long KEEP_ALIVE = 60L;
+
+  /**
+   * Hexadecimal digits.
+   */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Salts generator.
+   */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Number of PBKDF2 iterations of the new hashes.
+   */
+  private final int iterations;
+
+  /**
+   * Number of verification worker threads.
+   */
+  private final int threads;
+
+  /**
+   * Maximum number of verifications waiting for a worker thread.
+   */
+  private final int queueDepth;
+
+  /**
+   * Verification workers, created on first use.
+   */
+  private transient volatile ThreadPoolExecutor executor;
+
+  /**
+   * Hash of a random password, verified in place of the missing ones so
+   * that the response time does not tell which persons exist. Created on
+   * first use.
+   */
+  private transient volatile String dummy;
+
+  /**
+   * Constructor.
+   *
+   * @param pIterations number of PBKDF2 iterations of the new hashes
+   * @param pThreads number of verification worker threads
+   * @param pQueueDepth maximum number of verifications waiting for a worker
+   */
+  PasswordHasher(final int pIterations, final int pThreads,
+          final int pQueueDepth) {
+    if (pIterations < 1 || pThreads < 1 || pQueueDepth < 1) {
+      throw new IllegalArgumentException(
+              "Iterations, threads and queue depth must be positive");
+    }
+    iterations = pIterations;
+    threads = pThreads;
+    queueDepth = pQueueDepth;
+  }
+
+  /**
+   * Hash a password with a new random salt, on the calling thread.
+   *
+   * @param password the password
+   * @return the value to store
+   */
+  String hash(final String password) {
+    byte[] salt = new byte[SALT_LENGTH];
+    RANDOM.nextBytes(salt);
+    StringBuilder stored = new StringBuilder(PREFIX);
+    stored.append(iterations).append(SEPARATOR);
+    appendHex(stored, salt);
+    stored.append(SEPARATOR);
+    appendHex(stored, derive(password, salt, iterations, ALGORITHM,
+            KEY_LENGTH));
+    return stored.toString();
+  }
+
+  /**
+   * Get a hash to verify when a person has no stored password, costing as
+   * much as a real verification.
+   *
+   * @return the hash of a random password
+   */
+  String getDummy() {
+    String current = dummy;
+    if (current == null) {
+      byte[] password = new byte[SALT_LENGTH];
+      RANDOM.nextBytes(password);
+      StringBuilder builder = new StringBuilder();
+      appendHex(builder, password);
+      current = hash(builder.toString());
+      dummy = current;
+    }
+    return current;
+  }
+
+  /**
+   * Verify a password on the calling thread.
+   *
+   * @param password the password to check, may be null
+   * @param stored the stored value
+   * @return true if the password matches
+   */
+  boolean verify(final String password, final String stored) {
+    if (password == null) {
+      return false;
+    }
+    String prefix;
+    String algorithm;
+    int keyLength;
+    if (stored.startsWith(PREFIX)) {
+      prefix = PREFIX;
+      algorithm = ALGORITHM;
+      keyLength = KEY_LENGTH;
+    } else if (stored.startsWith(SHA1_PREFIX)) {
+      prefix = SHA1_PREFIX;
+      algorithm = SHA1_ALGORITHM;
+      keyLength = SHA1_KEY_LENGTH;
+    } else {
+      return false;
+    }
+    int saltStart = stored.indexOf(SEPARATOR);
+    int hashStart = stored.indexOf(SEPARATOR, saltStart + 1);
+    if (saltStart < 0 || hashStart < 0) {
+      return false;
+    }
+    int storedIterations = Integer.parseInt(
+            stored.substring(prefix.length(), saltStart));
+    byte[] salt = parseHex(stored.substring(saltStart + 1, hashStart));
+    byte[] expected = parseHex(stored.substring(hashStart + 1));
+    return MessageDigest.isEqual(expected,
+            derive(password, salt, storedIterations, algorithm, keyLength));
+  }
+
+  /**
+   * Verify a password on a worker thread, waiting for the result.
+   *
+   * @param password the password to check, may be null
+   * @param stored the stored value
+   * @return true if the password matches
+   * @throws RejectedExecutionException if too many verifications are already
+   * waiting for a worker
+   */
+  boolean verifyInPool(final String password, final String stored) {
+    Future<Boolean> result = getExecutor().submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return verify(password, stored);
+      }
+    });
+    try {
+      return result.get();
+    } catch (InterruptedException ex) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException("Password verification failed",
+              ex.getCause());
+    }
+  }
+
+  /**
+   * Get the verification workers, creating them if needed.
+   *
+   * @return the executor
+   */
+  private ThreadPoolExecutor getExecutor() {
+    ThreadPoolExecutor current = executor;
+    if (current == null) {
+      synchronized (this) {
+        current = executor;
+        if (current == null) {
+          current = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE,
+                  TimeUnit.SECONDS,
+                  new ArrayBlockingQueue<Runnable>(queueDepth),
+                  new WorkerFactory(),
+                  new ThreadPoolExecutor.AbortPolicy());
+          current.allowCoreThreadTimeOut(true);
+          executor = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Derive a key from a password.
+   *
+   * @param password the password
+   * @param salt the salt
+   * @param count the iteration count
+   * @param algorithm the JCE algorithm name
+   * @param keyLength the derived key length, in bits
+   * @return the derived key
+   */
+  private static byte[] derive(final String password, final byte[] salt,
+          final int count, final String algorithm, final int keyLength) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, count,
+            keyLength);
+    try {
+      return SecretKeyFactory.getInstance(algorithm).generateSecret(spec)
+              .getEncoded();
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException(algorithm + " is not available", ex);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Append bytes in hexadecimal.
+   *
+   * @param builder the destination
+   * @param bytes the bytes
+   */
+  private static void appendHex(final StringBuilder builder,
+          final byte[] bytes) {
+    for (byte b : bytes) {
+      builder.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+  }
+
+  /**
+   * Parse hexadecimal bytes.
+   *
+   * @param hex the hexadecimal text
+   * @return the bytes
+   */
+  private static byte[] parseHex(final String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  /**
+   * Creates the daemon worker threads.
+   */
+  private static final class WorkerFactory implements ThreadFactory {
+
+    /**
+     * Counter used to name the threads.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable,
+              "niaouli-auth-mem-password-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
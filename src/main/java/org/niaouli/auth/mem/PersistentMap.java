@@ -0,0 +1,619 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash map with structural sharing: a hash array mapped trie. Each
+ * update returns a new map sharing all the nodes but the ones on the path to
+ * the updated key, so it costs a few small array copies whatever the size.
+ *
+ * Keys and values must not be null.
+ *
+ * @param <K> keys type
+ * @param <V> values type
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class PersistentMap<K, V> {
+
+  /**
+   * Number of hash bits consumed per trie level.
+   */
+  private static final int BITS = 5;
+
+  /**
+   * Mask of the hash bits of a trie level.
+   */
+  private static final int MASK = (1 << BITS) - 1;
+
+  /**
+   * Maximum trie depth: 7 levels of bitmap nodes plus a collision node.
+   */
+  private static final int MAX_DEPTH = 8;
+
+  /**
+   * The empty map.
+   */
+  @SuppressWarnings("rawtypes")
+  private static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+  /**
+   * The trie root, null when empty.
+   */
+  private final Node root;
+
+  /**
+   * The number of entries.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   *
+   * @param pRoot the trie root
+   * @param pSize the number of entries
+   */
+  private PersistentMap(final Node pRoot, final int pSize) {
+    root = pRoot;
+    size = pSize;
+  }
+
+  /**
+   * Get the empty map.
+   *
+   * @param <K> keys type
+   * @param <V> values type
+   * @return the empty map
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentMap<K, V> empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Get the number of entries.
+   *
+   * @return the size
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the value mapped to a key.
+   *
+   * @param key the key
+   * @return the value, null if the key is not mapped
+   */
+  @SuppressWarnings("unchecked")
+  V get(final Object key) {
+    if (root == null || key == null) {
+      return null;
+    }
+    return (V) root.find(0, hash(key), key);
+  }
+
+  /**
+   * Tell if a key is mapped.
+   *
+   * @param key the key
+   * @return true if it is mapped
+   */
+  boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Map a key to a value.
+   *
+   * @param key the key
+   * @param value the value
+   * @return the updated map
+   */
+  PersistentMap<K, V> put(final K key, final V value) {
+    boolean[] added = new boolean[1];
+    Node from = root;
+    if (from == null) {
+      from = BitmapNode.EMPTY;
+    }
+    Node updated = from.put(0, hash(key), key, value, added);
+    if (updated == root) {
+      return this;
+    }
+    if (added[0]) {
+      return new PersistentMap<K, V>(updated, size + 1);
+    }
+    return new PersistentMap<K, V>(updated, size);
+  }
+
+  /**
+   * Unmap a key.
+   *
+   * @param key the key
+   * @return the updated map
+   */
+  PersistentMap<K, V> remove(final Object key) {
+    if (root == null || key == null) {
+      return this;
+    }
+    Node updated = root.remove(0, hash(key), key);
+    if (updated == root) {
+      return this;
+    }
+    return new PersistentMap<K, V>(updated, size - 1);
+  }
+
+  /**
+   * Get the keys.
+   *
+   * @return an immutable set view
+   */
+  Set<K> keySet() {
+    return new AbstractSet<K>() {
+      @Override
+      public Iterator<K> iterator() {
+        return new TrieIterator<K>(root, true);
+      }
+
+      @Override
+      public boolean contains(final Object key) {
+        return containsKey(key);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Get the values.
+   *
+   * @return an immutable collection view
+   */
+  Collection<V> values() {
+    return new AbstractCollection<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new TrieIterator<V>(root, false);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Spread the hash of a key.
+   *
+   * @param key the key
+   * @return the hash
+   */
+  private static int hash(final Object key) {
+    int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Get the bit of a hash at a trie level.
+   *
+   * @param shift the level shift
+   * @param hash the hash
+   * @return the bit
+   */
+  private static int bitFor(final int shift, final int hash) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /**
+   * Trie node. The entries are stored as key and value pairs in an array; in
+   * bitmap nodes, a null key marks a child node stored in the value slot.
+   */
+  private abstract static class Node {
+
+    /**
+     * The key and value pairs.
+     */
+    protected final Object[] array;
+
+    /**
+     * Constructor.
+     *
+     * @param pArray the key and value pairs
+     */
+    Node(final Object[] pArray) {
+      array = pArray;
+    }
+
+    /**
+     * Find the value of a key.
+     *
+     * @param shift the level shift
+     * @param hash the key hash
+     * @param key the key
+     * @return the value, null if not found
+     */
+    abstract Object find(int shift, int hash, Object key);
+
+    /**
+     * Map a key to a value.
+     *
+     * @param shift the level shift
+     * @param hash the key hash
+     * @param key the key
+     * @param value the value
+     * @param added set to true if the key was not mapped
+     * @return the updated node
+     */
+    abstract Node put(int shift, int hash, Object key, Object value,
+            boolean[] added);
+
+    /**
+     * Unmap a key.
+     *
+     * @param shift the level shift
+     * @param hash the key hash
+     * @param key the key
+     * @return the updated node, null if it became empty
+     */
+    abstract Node remove(int shift, int hash, Object key);
+
+    /**
+     * Copy the pairs array with a slot changed.
+     *
+     * @param index the slot index
+     * @param value the slot value
+     * @return the new array
+     */
+    protected final Object[] copyWith(final int index, final Object value) {
+      Object[] copy = array.clone();
+      copy[index] = value;
+      return copy;
+    }
+
+    /**
+     * Copy the pairs array without a pair.
+     *
+     * @param pair the pair index
+     * @return the new array
+     */
+    protected final Object[] copyWithout(final int pair) {
+      Object[] copy = new Object[array.length - 2];
+      System.arraycopy(array, 0, copy, 0, 2 * pair);
+      System.arraycopy(array, 2 * pair + 2, copy, 2 * pair,
+              array.length - 2 * pair - 2);
+      return copy;
+    }
+  }
+
+  /**
+   * Node of up to 32 entries or children, indexed by 5 bits of the hashes.
+   */
+  private static final class BitmapNode extends Node {
+
+    /**
+     * The empty node.
+     */
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    /**
+     * The bits of the present entries or children.
+     */
+    private final int bitmap;
+
+    /**
+     * Constructor.
+     *
+     * @param pBitmap the bits of the present entries or children
+     * @param pArray the key and value pairs
+     */
+    BitmapNode(final int pBitmap, final Object[] pArray) {
+      super(pArray);
+      bitmap = pBitmap;
+    }
+
+    @Override
+    Object find(final int shift, final int hash, final Object key) {
+      int bit = bitFor(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+      Object entryKey = array[index];
+      if (entryKey == null) {
+        return ((Node) array[index + 1]).find(shift + BITS, hash, key);
+      }
+      if (key.equals(entryKey)) {
+        return array[index + 1];
+      }
+      return null;
+    }
+
+    @Override
+    Node put(final int shift, final int hash, final Object key,
+            final Object value, final boolean[] added) {
+      int bit = bitFor(shift, hash);
+      int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+      if ((bitmap & bit) == 0) {
+        added[0] = true;
+        Object[] copy = new Object[array.length + 2];
+        System.arraycopy(array, 0, copy, 0, index);
+        copy[index] = key;
+        copy[index + 1] = value;
+        System.arraycopy(array, index, copy, index + 2, array.length - index);
+        return new BitmapNode(bitmap | bit, copy);
+      }
+      Object entryKey = array[index];
+      Object entryValue = array[index + 1];
+      if (entryKey == null) {
+        Node child = ((Node) entryValue).put(shift + BITS, hash, key, value,
+                added);
+        if (child == entryValue) {
+          return this;
+        }
+        return new BitmapNode(bitmap, copyWith(index + 1, child));
+      }
+      if (key.equals(entryKey)) {
+        if (value == entryValue) {
+          return this;
+        }
+        return new BitmapNode(bitmap, copyWith(index + 1, value));
+      }
+      added[0] = true;
+      Node child = pair(shift + BITS, entryKey, entryValue, hash, key, value);
+      Object[] copy = copyWith(index, null);
+      copy[index + 1] = child;
+      return new BitmapNode(bitmap, copy);
+    }
+
+    @Override
+    Node remove(final int shift, final int hash, final Object key) {
+      int bit = bitFor(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+      Object entryKey = array[index];
+      if (entryKey == null) {
+        Node child = (Node) array[index + 1];
+        Node updated = child.remove(shift + BITS, hash, key);
+        if (updated == child) {
+          return this;
+        }
+        if (updated != null) {
+          return new BitmapNode(bitmap, copyWith(index + 1, updated));
+        }
+      } else if (!key.equals(entryKey)) {
+        return this;
+      }
+      if (bitmap == bit) {
+        return null;
+      }
+      return new BitmapNode(bitmap ^ bit, copyWithout(index / 2));
+    }
+
+    /**
+     * Create a node holding two entries.
+     *
+     * @param shift the level shift of the node
+     * @param key1 the first key
+     * @param value1 the first value
+     * @param hash2 the second key hash
+     * @param key2 the second key
+     * @param value2 the second value
+     * @return the node
+     */
+    private static Node pair(final int shift, final Object key1,
+            final Object value1, final int hash2, final Object key2,
+            final Object value2) {
+      int hash1 = hash(key1);
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1,
+                new Object[]{key1, value1, key2, value2});
+      }
+      boolean[] added = new boolean[1];
+      return EMPTY.put(shift, hash1, key1, value1, added)
+              .put(shift, hash2, key2, value2, added);
+    }
+  }
+
+  /**
+   * Node of the entries whose keys have the same hash.
+   */
+  private static final class CollisionNode extends Node {
+
+    /**
+     * The keys hash.
+     */
+    private final int hash;
+
+    /**
+     * Constructor.
+     *
+     * @param pHash the keys hash
+     * @param pArray the key and value pairs
+     */
+    CollisionNode(final int pHash, final Object[] pArray) {
+      super(pArray);
+      hash = pHash;
+    }
+
+    @Override
+    Object find(final int shift, final int keyHash, final Object key) {
+      int index = indexOf(key);
+      if (keyHash != hash || index < 0) {
+        return null;
+      }
+      return array[index + 1];
+    }
+
+    @Override
+    Node put(final int shift, final int keyHash, final Object key,
+            final Object value, final boolean[] added) {
+      if (keyHash != hash) {
+        // Push this node one level down, next to the new entry
+        Node nested = new BitmapNode(bitFor(shift, hash),
+                new Object[]{null, this});
+        return nested.put(shift, keyHash, key, value, added);
+      }
+      int index = indexOf(key);
+      if (index >= 0) {
+        if (array[index + 1] == value) {
+          return this;
+        }
+        return new CollisionNode(hash, copyWith(index + 1, value));
+      }
+      added[0] = true;
+      Object[] copy = new Object[array.length + 2];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      copy[array.length] = key;
+      copy[array.length + 1] = value;
+      return new CollisionNode(hash, copy);
+    }
+
+    @Override
+    Node remove(final int shift, final int keyHash, final Object key) {
+      int index = indexOf(key);
+      if (keyHash != hash || index < 0) {
+        return this;
+      }
+      if (array.length == 2) {
+        return null;
+      }
+      return new CollisionNode(hash, copyWithout(index / 2));
+    }
+
+    /**
+     * Find the index of a key in the pairs array.
+     *
+     * @param key the key
+     * @return the index, -1 if not found
+     */
+    private int indexOf(final Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Depth first iterator over the keys or the values of a trie.
+   *
+   * @param <E> elements type
+   */
+  private static final class TrieIterator<E> implements Iterator<E> {
+
+    /**
+     * Whether the keys or the values are iterated.
+     */
+    private final boolean keys;
+
+    /**
+     * The pairs arrays on the path to the next entry.
+     */
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+
+    /**
+     * The next pair index in each array of the path.
+     */
+    private final int[] positions = new int[MAX_DEPTH];
+
+    /**
+     * Depth of the current array, -1 when the iteration is over.
+     */
+    private int depth;
+
+    /**
+     * Constructor.
+     *
+     * @param root the trie root, may be null
+     * @param pKeys true to iterate over the keys, false for the values
+     */
+    TrieIterator(final Node root, final boolean pKeys) {
+      keys = pKeys;
+      if (root == null) {
+        depth = -1;
+      } else {
+        arrays[0] = root.array;
+        advance();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return depth >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E next() {
+      if (depth < 0) {
+        throw new NoSuchElementException();
+      }
+      Object[] array = arrays[depth];
+      int position = positions[depth];
+      positions[depth] = position + 2;
+      E element;
+      if (keys) {
+        element = (E) array[position];
+      } else {
+        element = (E) array[position + 1];
+      }
+      advance();
+      return element;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Move to the next entry, descending into the child nodes and ascending
+     * from the exhausted ones.
+     */
+    private void advance() {
+      while (depth >= 0) {
+        Object[] array = arrays[depth];
+        int position = positions[depth];
+        if (position >= array.length) {
+          depth--;
+        } else if (array[position] == null) {
+          positions[depth] = position + 2;
+          depth++;
+          arrays[depth] = ((Node) array[position + 1]).array;
+          positions[depth] = 0;
+        } else {
+          return;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task running a job on each index of a range, splitting the range
+ * in halves down to single indexes, and concatenating the results in index
+ * order.
+ *
+ * @param <T> results type
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class RangeTask<T> extends RecursiveTask<List<T>> {
+
+  /**
+   * Serialization version.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The job.
+   */
+  private final transient Job<T> job;
+
+  /**
+   * First index of the range.
+   */
+  private final int from;
+
+  /**
+   * Index after the last one of the range.
+   */
+  private final int to;
+
+  /**
+   * Job run on a single index.
+   *
+   * @param <T> results type
+   */
+  interface Job<T> {
+
+    /**
+     * Run the job.
+     *
+     * @param index the index
+     * @param results the results to complete
+     * @throws Exception on failure, thrown by the task in a
+     * {@link JobException}
+     */
+    void run(int index, List<T> results) throws Exception;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pJob the job
+   * @param pFrom first index of the range
+   * @param pTo index after the last one of the range
+   */
+  RangeTask(final Job<T> pJob, final int pFrom, final int pTo) {
+    job = pJob;
+    from = pFrom;
+    to = pTo;
+  }
+
+  @Override
+  protected List<T> compute() {
+    if (to - from <= 1) {
+      List<T> results = new ArrayList<T>();
+      if (to > from) {
+        try {
+          job.run(from, results);
+        } catch (RuntimeException ex) {
+          throw ex;
+        } catch (Exception ex) {
+          throw new JobException(ex);
+        }
+      }
+      return results;
+    }
+    int middle = (from + to) >>> 1;
+    RangeTask<T> left = new RangeTask<T>(job, from, middle);
+    left.fork();
+    List<T> right = new RangeTask<T>(job, middle, to).compute();
+    List<T> results = left.join();
+    results.addAll(right);
+    return results;
+  }
+
+  /**
+   * Checked exception thrown by a job, carried through the fork-join pool.
+   */
+  static final class JobException extends RuntimeException {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param cause the checked exception
+     */
+    JobException(final Exception cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized Exception getCause() {
+      return (Exception) super.getCause();
+    }
+  }
+
+}
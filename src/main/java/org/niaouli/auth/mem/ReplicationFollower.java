@@ -0,0 +1,514 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+import org.niaouli.exception.AppException;
+
+/**
+ * Read replica of a {@link MemAuthSystem} streamed by a
+ * {@link ReplicationLeader}.
+ *
+ * The follower applies the mutations of the leader in order, and reconnects
+ * after a failure, resuming from the last applied change. Snapshots are
+ * loaded into a new system, swapped in once complete: readers see either the
+ * previous data or the new one, never a partial load. The replica must not
+ * be mutated directly, and must be configured like the leader to verify its
+ * stored passwords. The follower and the leader authenticate each other
+ * with their shared secret, see {@link ReplicationLeader}.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class ReplicationFollower implements Closeable, Runnable {
+
+  /**
+   * Delay before reconnecting, in milliseconds.
+   */
+  private static final int RETRY_MILLIS = 1000;
+
+  /**
+   * Number of missed heartbeats after which the leader is considered lost.
+   */
+  private static final int MISSED_HEARTBEATS = 4;
+
+  /**
+   * Maximum time waiting for data while receiving a snapshot, during which
+   * the leader sends no heartbeat, in milliseconds.
+   */
+  private static final int SNAPSHOT_TIMEOUT_MILLIS = 60000;
+
+  /**
+   * The leader address.
+   */
+  private final InetSocketAddress leader;
+
+  /**
+   * The replica configuration.
+   */
+  private final Map<String, String> config;
+
+  /**
+   * The secret shared with the leader.
+   */
+  private final byte[] secret;
+
+  /**
+   * Creates the sockets.
+   */
+  private final SocketFactory factory;
+
+  /**
+   * The replication thread.
+   */
+  private final Thread replicator;
+
+  /**
+   * The current replica.
+   */
+  private volatile MemAuthSystem system;
+
+  /**
+   * Identifier of the leader change sequence numbers, 0 before the first
+   * snapshot.
+   */
+  private long epoch;
+
+  /**
+   * Sequence number of the last applied change.
+   */
+  private volatile long appliedSequence;
+
+  /**
+   * Sequence number of the last change of the leader, as last known.
+   */
+  private volatile long leaderSequence;
+
+  /**
+   * Last time the replica was known to be up to date, in milliseconds.
+   */
+  private volatile long upToDateMillis = System.currentTimeMillis();
+
+  /**
+   * The socket, null when disconnected.
+   */
+  private volatile Socket socket;
+
+  /**
+   * Whether the follower is connected to the leader.
+   */
+  private volatile boolean connected;
+
+  /**
+   * Whether the follower is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Start following a leader over plain TCP.
+   *
+   * @param pLeader the leader address
+   * @param pConfig the replica configuration, see
+   * {@link MemAuthSystem#configure(Map)}
+   * @param pSecret the secret shared with the leader, at least 16 bytes
+   */
+  public ReplicationFollower(final InetSocketAddress pLeader,
+          final Map<String, String> pConfig, final byte[] pSecret) {
+    this(pLeader, pConfig, pSecret, SocketFactory.getDefault());
+  }
+
+  /**
+   * Start following a leader.
+   *
+   * @param pLeader the leader address
+   * @param pConfig the replica configuration, see
+   * {@link MemAuthSystem#configure(Map)}
+   * @param pSecret the secret shared with the leader, at least 16 bytes
+   * @param pFactory creates the sockets, for example a
+   * {@link javax.net.ssl.SSLSocketFactory}
+   */
+  public ReplicationFollower(final InetSocketAddress pLeader,
+          final Map<String, String> pConfig, final byte[] pSecret,
+          final SocketFactory pFactory) {
+    leader = pLeader;
+    config = new HashMap<String, String>(pConfig);
+    secret = ReplicationLeader.checkSecret(pSecret);
+    factory = pFactory;
+    system = newReplica();
+    replicator = new Thread(this, "niaouli-auth-mem-replication-follower");
+    replicator.setDaemon(true);
+    replicator.start();
+  }
+
+  /**
+   * Get the current replica, to read from. A snapshot replaces it, so get it
+   * again for each read, or group of reads.
+   *
+   * @return the replica
+   */
+  public MemAuthSystem getSystem() {
+    return system;
+  }
+
+  /**
+   * Tell if the follower is connected to the leader.
+   *
+   * @return true if connected
+   */
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * Get the sequence number of the last applied change of the leader.
+   *
+   * @return the sequence number, 0 before the first snapshot
+   */
+  public long getAppliedSequence() {
+    return appliedSequence;
+  }
+
+  /**
+   * Get the number of known changes of the leader not applied yet.
+   *
+   * @return the number of changes
+   */
+  public long getLagChanges() {
+    return Math.max(0L, leaderSequence - appliedSequence);
+  }
+
+  /**
+   * Get the time since the replica was last known to be up to date,
+   * measured on the local clock.
+   *
+   * @return the lag in milliseconds, 0 when up to date
+   */
+  public long getLagMillis() {
+    if (connected && appliedSequence >= leaderSequence) {
+      return 0L;
+    }
+    return System.currentTimeMillis() - upToDateMillis;
+  }
+
+  /**
+   * Wait until a change of the leader is applied, for example to read a
+   * write made on the leader.
+   *
+   * @param sequence the change sequence number, see
+   * {@link MemAuthSystem#getLastChangeSequence()}
+   * @param timeout the maximum time to wait
+   * @param unit the timeout unit
+   * @return true if the change is applied
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean awaitSequence(final long sequence,
+          final long timeout, final TimeUnit unit)
+          throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (appliedSequence < sequence) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0L) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Stop following the leader. The replica keeps its data.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    disconnect();
+    replicator.interrupt();
+    try {
+      replicator.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Replication thread loop.
+   */
+  @Override
+  public void run() {
+    while (!closed) {
+      try {
+        follow();
+      } catch (IOException ex) {
+        // Reconnect
+      } finally {
+        disconnect();
+      }
+      if (!closed) {
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Connect to the leader and apply its messages until disconnected.
+   *
+   * @throws IOException on socket error or invalid message
+   */
+  private void follow() throws IOException {
+    Socket current = factory.createSocket();
+    socket = current;
+    if (closed) {
+      return;
+    }
+    current.connect(leader, ReplicationLeader.HEARTBEAT_MILLIS
+            * MISSED_HEARTBEATS);
+    current.setSoTimeout(ReplicationLeader.HEARTBEAT_MILLIS
+            * MISSED_HEARTBEATS);
+    current.setTcpNoDelay(true);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            current.getOutputStream()));
+    byte[] challenge = ReplicationLeader.newChallenge();
+    out.writeInt(ReplicationLeader.MAGIC);
+    out.write(challenge);
+    out.flush();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+            current.getInputStream()));
+    byte[] leaderChallenge = new byte[ReplicationLeader.CHALLENGE_BYTES];
+    in.readFully(leaderChallenge);
+    byte[] proof = new byte[ReplicationLeader.DIGEST_BYTES];
+    in.readFully(proof);
+    if (!MessageDigest.isEqual(proof, ReplicationLeader.sign(secret,
+            "leader", challenge, leaderChallenge))) {
+      throw new IOException("Leader not authenticated");
+    }
+    out.write(ReplicationLeader.sign(secret, "follower", leaderChallenge,
+            challenge));
+    out.writeLong(epoch);
+    out.writeLong(appliedSequence);
+    out.flush();
+    connected = true;
+    while (!closed) {
+      byte type = in.readByte();
+      switch (type) {
+        case ReplicationLeader.SNAPSHOT:
+          current.setSoTimeout(SNAPSHOT_TIMEOUT_MILLIS);
+          readSnapshot(in);
+          current.setSoTimeout(ReplicationLeader.HEARTBEAT_MILLIS
+                  * MISSED_HEARTBEATS);
+          break;
+        case ReplicationLeader.MUTATION:
+          readMutation(in);
+          break;
+        case ReplicationLeader.HEARTBEAT:
+          leaderSequence = Math.max(leaderSequence, in.readLong());
+          break;
+        default:
+          throw new IOException("Unknown message " + type);
+      }
+      if (appliedSequence >= leaderSequence) {
+        upToDateMillis = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Load a snapshot into a new replica, and swap it in.
+   *
+   * @param in the source
+   * @throws IOException on read error
+   */
+  private void readSnapshot(final DataInputStream in) throws IOException {
+    long snapshotEpoch = in.readLong();
+    MemAuthSystem replica = newReplica();
+    ChunkedInputStream chunks = new ChunkedInputStream(in);
+    ObjectInputStream objects = new FilteredObjectInputStream(chunks);
+    replica.readData(objects);
+    chunks.skipToEnd();
+    long seq = in.readLong();
+    synchronized (this) {
+      system = replica;
+      epoch = snapshotEpoch;
+      appliedSequence = seq;
+      leaderSequence = Math.max(leaderSequence, seq);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Apply a mutation to the replica.
+   *
+   * @param in the source
+   * @throws IOException on read error, or if the mutation does not follow
+   * the last applied one
+   */
+  private void readMutation(final DataInputStream in) throws IOException {
+    long seq = in.readLong();
+    Mutation mutation = Mutation.readFrom(in);
+    if (seq <= appliedSequence) {
+      return;
+    }
+    if (seq != appliedSequence + 1) {
+      epoch = 0L;
+      throw new IOException("Missing changes before " + seq);
+    }
+    try {
+      system.apply(mutation);
+    } catch (AppException ex) {
+      // Diverged: ask for a snapshot
+      epoch = 0L;
+      throw new IOException("Cannot apply change " + seq, ex);
+    }
+    synchronized (this) {
+      appliedSequence = seq;
+      leaderSequence = Math.max(leaderSequence, seq);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Close the socket, if any.
+   */
+  private void disconnect() {
+    connected = false;
+    Socket current = socket;
+    socket = null;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException ex) {
+        // Already broken
+      }
+    }
+  }
+
+  /**
+   * Create an empty configured replica.
+   *
+   * @return the replica
+   */
+  private MemAuthSystem newReplica() {
+    MemAuthSystem replica = new MemAuthSystem(true);
+    replica.configure(config);
+    return replica;
+  }
+
+  /**
+   * Stream reading the chunks written by a
+   * {@link ReplicationLeader.ChunkedOutputStream}, up to the empty one.
+   */
+  private static final class ChunkedInputStream extends InputStream {
+
+    /**
+     * The source, left open.
+     */
+    private final DataInputStream source;
+
+    /**
+     * Number of bytes left in the current chunk.
+     */
+    private int remaining;
+
+    /**
+     * Whether the empty chunk was read.
+     */
+    private boolean ended;
+
+    /**
+     * Constructor.
+     *
+     * @param pSource the source
+     */
+    ChunkedInputStream(final DataInputStream pSource) {
+      source = pSource;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      remaining--;
+      return source.readUnsignedByte();
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int count)
+            throws IOException {
+      if (count == 0) {
+        return 0;
+      }
+      if (!nextChunk()) {
+        return -1;
+      }
+      int read = source.read(bytes, offset, Math.min(count, remaining));
+      if (read < 0) {
+        throw new EOFException("Truncated snapshot");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    /**
+     * Skip the data left, up to the empty chunk.
+     *
+     * @throws IOException on read error
+     */
+    void skipToEnd() throws IOException {
+      while (nextChunk()) {
+        source.readFully(new byte[remaining]);
+        remaining = 0;
+      }
+    }
+
+    /**
+     * Start the next chunk, if the current one is done.
+     *
+     * @return false at the end of the chunks
+     * @throws IOException on read error or invalid chunk
+     */
+    private boolean nextChunk() throws IOException {
+      while (remaining == 0 && !ended) {
+        int length = source.readInt();
+        if (length < 0 || length > ReplicationLeader.CHUNK_BYTES) {
+          throw new IOException("Invalid snapshot chunk " + length);
+        }
+        remaining = length;
+        ended = length == 0;
+      }
+      return !ended;
+    }
+  }
+
+}
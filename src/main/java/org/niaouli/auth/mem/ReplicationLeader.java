@@ -0,0 +1,635 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ServerSocketFactory;
+
+/**
+ * Streams the mutations of a {@link MemAuthSystem} to
+ * {@link ReplicationFollower}s over TCP.
+ *
+ * A follower sends the last change it applied. If it comes from this system
+ * and is still buffered, the leader resumes with the following changes;
+ * otherwise it first sends a snapshot of the data. A follower falling behind
+ * by more than the buffered changes gets a new snapshot. Heartbeats tell the
+ * idle followers the last change sequence number, to measure their lag.
+ *
+ * Snapshots are streamed in chunks, while the mutations of the system go
+ * on: they only wait for the data to be copied.
+ *
+ * The leader and its followers share a secret: each side proves it knows it
+ * by answering a random challenge of the other with a HMAC before any data
+ * is sent, and the followers only deserialize the directory entities. The
+ * stream itself is not encrypted, and holds the stored passwords: give the
+ * leader and the followers TLS socket factories to protect it on untrusted
+ * networks. At most {@link #MAX_HANDSHAKES} connections are authenticated
+ * at a time: the others are closed right away.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public final class ReplicationLeader implements Closeable, Runnable {
+
+  /**
+   * Magic number starting the follower handshake.
+   */
+  static final int MAGIC = 0x4E415250;
+
+  /**
+   * Snapshot message.
+   */
+  static final byte SNAPSHOT = 1;
+
+  /**
+   * Mutation message.
+   */
+  static final byte MUTATION = 2;
+
+  /**
+   * Heartbeat message.
+   */
+  static final byte HEARTBEAT = 3;
+
+  /**
+   * Interval between heartbeats, in milliseconds.
+   */
+  static final int HEARTBEAT_MILLIS = 500;
+
+  /**
+   * Maximum size of a snapshot chunk, in bytes.
+   */
+  static final int CHUNK_BYTES = 64 * 1024;
+
+  /**
+   * Maximum time waiting for the other side during the handshake, in
+   * milliseconds.
+   */
+  static final int HANDSHAKE_MILLIS = 2000;
+
+  /**
+   * Maximum number of connections being authenticated at a time, so that
+   * unauthenticated clients cannot pile up threads.
+   */
+  public static final int MAX_HANDSHAKES = 8;
+
+  /**
+   * Length of the handshake challenges, in bytes.
+   */
+  static final int CHALLENGE_BYTES = 32;
+
+  /**
+   * Length of the handshake proofs, in bytes.
+   */
+  static final int DIGEST_BYTES = 32;
+
+  /**
+   * Minimum length of the shared secret, in bytes.
+   */
+  static final int MIN_SECRET_BYTES = 16;
+
+  /**
+   * JCE algorithm name of the handshake digest.
+   */
+  private static final String ALGORITHM = "HmacSHA256";
+
+  /**
+   * Source of the handshake challenges.
+   */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * The replicated system.
+   */
+  private final MemAuthSystem system;
+
+  /**
+   * The listening socket.
+   */
+  private final ServerSocket server;
+
+  /**
+   * The secret shared with the followers.
+   */
+  private final byte[] secret;
+
+  /**
+   * The connected followers.
+   */
+  private final Set<Connection> connections = Collections.newSetFromMap(
+          new ConcurrentHashMap<Connection, Boolean>());
+
+  /**
+   * Sends the heartbeats.
+   */
+  private final ScheduledExecutorService heartbeats;
+
+  /**
+   * The thread accepting the followers.
+   */
+  private final Thread acceptor;
+
+  /**
+   * Permits of the connections being authenticated.
+   */
+  private final Semaphore handshakes = new Semaphore(MAX_HANDSHAKES);
+
+  /**
+   * Whether the leader is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Start replicating a system over plain TCP.
+   *
+   * @param pSystem the system to replicate
+   * @param address the address to listen on, port 0 for any free port
+   * @param pSecret the secret shared with the followers, at least 16 bytes
+   * @throws IOException if the address cannot be bound
+   */
+  public ReplicationLeader(final MemAuthSystem pSystem,
+          final InetSocketAddress address, final byte[] pSecret)
+          throws IOException {
+    this(pSystem, address, pSecret, ServerSocketFactory.getDefault());
+  }
+
+  /**
+   * Start replicating a system.
+   *
+   * @param pSystem the system to replicate
+   * @param address the address to listen on, port 0 for any free port
+   * @param pSecret the secret shared with the followers, at least 16 bytes
+   * @param factory creates the listening socket, for example a
+   * {@link javax.net.ssl.SSLServerSocketFactory}
+   * @throws IOException if the address cannot be bound
+   */
+  public ReplicationLeader(final MemAuthSystem pSystem,
+          final InetSocketAddress address, final byte[] pSecret,
+          final ServerSocketFactory factory) throws IOException {
+    system = pSystem;
+    secret = checkSecret(pSecret);
+    server = factory.createServerSocket();
+    server.bind(address);
+    heartbeats = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable,
+                "niaouli-auth-mem-replication-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    heartbeats.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (Connection connection : connections) {
+          connection.heartbeat();
+        }
+      }
+    }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    acceptor = new Thread(this, "niaouli-auth-mem-replication");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Get the port listened on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Get the number of connected followers.
+   *
+   * @return the number of followers
+   */
+  public int getFollowerCount() {
+    return connections.size();
+  }
+
+  /**
+   * Stop replicating and disconnect the followers.
+   *
+   * @throws IOException on socket error
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    heartbeats.shutdown();
+    server.close();
+    try {
+      acceptor.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (Connection connection : connections) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Acceptor thread loop.
+   */
+  @Override
+  public void run() {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException ex) {
+        // Closed
+        return;
+      }
+      if (!handshakes.tryAcquire()) {
+        try {
+          socket.close();
+        } catch (IOException ex) {
+          // Already broken
+        }
+        continue;
+      }
+      // The handshake may send a snapshot: keep accepting meanwhile
+      Thread opener = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Connection connection = new Connection(socket);
+          try {
+            connection.open();
+          } catch (IOException ex) {
+            connection.close();
+          } finally {
+            connection.releaseHandshake();
+          }
+        }
+      }, "niaouli-auth-mem-replication-follower");
+      opener.setDaemon(true);
+      opener.start();
+    }
+  }
+
+  /**
+   * Connection of a follower, receiving the changes on the delivery thread
+   * of its subscription.
+   */
+  private final class Connection implements ChangeListener {
+
+    /**
+     * The socket.
+     */
+    private final Socket socket;
+
+    /**
+     * Guards the messages destination, so that messages do not interleave.
+     */
+    private final ReentrantLock sending = new ReentrantLock();
+
+    /**
+     * The messages destination.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Sequence number of the last change sent.
+     */
+    private long sentSequence;
+
+    /**
+     * The changes subscription.
+     */
+    private volatile ChangeSubscription subscription;
+
+    /**
+     * Whether the handshake permit was released. Only used by the thread
+     * opening the connection.
+     */
+    private boolean permitReleased;
+
+    /**
+     * Constructor.
+     *
+     * @param pSocket the socket
+     */
+    Connection(final Socket pSocket) {
+      socket = pSocket;
+    }
+
+    /**
+     * Read the follower handshake, send it a snapshot if needed, then
+     * subscribe to the changes.
+     *
+     * @throws IOException on socket error or unknown handshake
+     */
+    void open() throws IOException {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(HANDSHAKE_MILLIS);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+              socket.getInputStream()));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a follower");
+      }
+      byte[] followerChallenge = new byte[CHALLENGE_BYTES];
+      in.readFully(followerChallenge);
+      byte[] challenge = newChallenge();
+      DataOutputStream handshake = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream()));
+      handshake.write(challenge);
+      handshake.write(sign(secret, "leader", followerChallenge, challenge));
+      handshake.flush();
+      byte[] proof = new byte[DIGEST_BYTES];
+      in.readFully(proof);
+      if (!MessageDigest.isEqual(proof,
+              sign(secret, "follower", challenge, followerChallenge))) {
+        throw new IOException("Follower not authenticated");
+      }
+      // Sending the snapshot may take long: let others authenticate
+      releaseHandshake();
+      long epoch = in.readLong();
+      long applied = in.readLong();
+      socket.setSoTimeout(0);
+      sending.lock();
+      try {
+        out = handshake;
+        if (epoch == system.getChangeEpoch()
+                && applied <= system.getLastChangeSequence()) {
+          sentSequence = applied;
+        } else {
+          sendSnapshot();
+        }
+      } finally {
+        sending.unlock();
+      }
+      connections.add(this);
+      subscription = system.subscribe(this, sentSequence + 1);
+      if (closed) {
+        close();
+      }
+    }
+
+    @Override
+    public void onChanges(final List<ChangeEvent> events) {
+      sending.lock();
+      try {
+        for (ChangeEvent event : events) {
+          if (event.getSequence() > sentSequence) {
+            out.writeByte(MUTATION);
+            out.writeLong(event.getSequence());
+            event.getMutation().writeTo(out);
+            sentSequence = event.getSequence();
+          }
+        }
+        out.flush();
+      } catch (IOException ex) {
+        close();
+      } finally {
+        sending.unlock();
+      }
+    }
+
+    @Override
+    public void onChangesLost(final long firstLost, final long lastLost) {
+      sending.lock();
+      try {
+        sendSnapshot();
+      } catch (IOException ex) {
+        close();
+      } finally {
+        sending.unlock();
+      }
+    }
+
+    /**
+     * Send a heartbeat, unless a message is being sent: the heartbeats of
+     * the other followers must not wait for a snapshot.
+     */
+    void heartbeat() {
+      if (!sending.tryLock()) {
+        return;
+      }
+      try {
+        if (out != null) {
+          out.writeByte(HEARTBEAT);
+          out.writeLong(system.getLastChangeSequence());
+          out.flush();
+        }
+      } catch (IOException ex) {
+        close();
+      } finally {
+        sending.unlock();
+      }
+    }
+
+    /**
+     * Send a snapshot of the data: its epoch, the data in chunks ended by an
+     * empty one, then the sequence number of its last change. The caller
+     * must hold the sending lock.
+     *
+     * @throws IOException on socket error
+     */
+    private void sendSnapshot() throws IOException {
+      out.writeByte(SNAPSHOT);
+      out.writeLong(system.getChangeEpoch());
+      // The follower waits for the first chunk while the data is copied
+      out.flush();
+      ObjectOutputStream objects = new ObjectOutputStream(
+              new ChunkedOutputStream(out));
+      long seq = system.writeSnapshot(objects);
+      objects.close();
+      out.writeLong(seq);
+      out.flush();
+      sentSequence = seq;
+    }
+
+    /**
+     * Release the handshake permit, once the follower is authenticated or
+     * the handshake failed.
+     */
+    void releaseHandshake() {
+      if (!permitReleased) {
+        permitReleased = true;
+        handshakes.release();
+      }
+    }
+
+    /**
+     * Disconnect the follower.
+     */
+    void close() {
+      connections.remove(this);
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        // Already broken
+      }
+      ChangeSubscription current = subscription;
+      if (current != null) {
+        current.close();
+      }
+    }
+  }
+
+  /**
+   * Check a shared secret.
+   *
+   * @param secret the secret
+   * @return a copy of the secret
+   */
+  static byte[] checkSecret(final byte[] secret) {
+    if (secret == null || secret.length < MIN_SECRET_BYTES) {
+      throw new IllegalArgumentException("The shared secret must hold at least "
+              + MIN_SECRET_BYTES + " bytes");
+    }
+    return secret.clone();
+  }
+
+  /**
+   * Create a random handshake challenge.
+   *
+   * @return the challenge
+   */
+  static byte[] newChallenge() {
+    byte[] challenge = new byte[CHALLENGE_BYTES];
+    RANDOM.nextBytes(challenge);
+    return challenge;
+  }
+
+  /**
+   * Compute the proof that a side of the handshake knows the secret.
+   *
+   * @param secret the shared secret
+   * @param role the role of the proving side
+   * @param challenge the challenge of the other side
+   * @param ownChallenge the challenge of the proving side
+   * @return the proof, {@link #DIGEST_BYTES} long
+   */
+  static byte[] sign(final byte[] secret, final String role,
+          final byte[] challenge, final byte[] ownChallenge) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(secret, ALGORITHM));
+      mac.update(role.getBytes("UTF-8"));
+      mac.update(challenge);
+      return mac.doFinal(ownChallenge);
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException(ALGORITHM + " is not available", ex);
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException("UTF-8 is not available", ex);
+    }
+  }
+
+  /**
+   * Stream writing length-prefixed chunks, ended by an empty chunk on close,
+   * so that data of any size can be framed without knowing its length.
+   */
+  static final class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * The destination, left open on close.
+     */
+    private final DataOutputStream target;
+
+    /**
+     * The pending chunk.
+     */
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+
+    /**
+     * Number of bytes in the pending chunk.
+     */
+    private int length;
+
+    /**
+     * Constructor.
+     *
+     * @param pTarget the destination
+     */
+    ChunkedOutputStream(final DataOutputStream pTarget) {
+      target = pTarget;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (length == chunk.length) {
+        writeChunk();
+      }
+      chunk[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int count)
+            throws IOException {
+      int written = 0;
+      while (written < count) {
+        if (length == chunk.length) {
+          writeChunk();
+        }
+        int copied = Math.min(count - written, chunk.length - length);
+        System.arraycopy(bytes, offset + written, chunk, length, copied);
+        length += copied;
+        written += copied;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      writeChunk();
+      target.writeInt(0);
+    }
+
+    /**
+     * Write the pending chunk, if not empty.
+     *
+     * @throws IOException on write error
+     */
+    private void writeChunk() throws IOException {
+      if (length > 0) {
+        target.writeInt(length);
+        target.write(chunk, 0, length);
+        length = 0;
+      }
+    }
+  }
+
+}
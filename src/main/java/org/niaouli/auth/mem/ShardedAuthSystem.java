@@ -0,0 +1,509 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.niaouli.auth.AuthSystem;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.OrgUnit;
+import org.niaouli.auth.Person;
+import org.niaouli.exception.AppException;
+
+/**
+ * Authentication system partitioning the persons and their passwords by
+ * system name hash across several concurrent {@link MemAuthSystem} shards,
+ * so that each shard holds smaller maps, resized in shorter pauses, and
+ * mutations of different persons rarely contend.
+ *
+ * Operations on a person, including its group memberships, go to the shard
+ * of the person. Groups and organizational units are few: every shard holds
+ * all of them, so that each shard validates the memberships of its persons
+ * on its own. Listings of persons and exports run on all the shards in
+ * parallel, in a fork-join pool, and merge their results.
+ *
+ * The shards share a single password hasher, verified credentials cache and
+ * session tokens store, so that the configured threads, queue and cache
+ * sizes bound the whole system rather than each shard.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ShardedAuthSystem implements AuthSystem {
+
+  /**
+   * Version of the layout written by {@link #exportTo(OutputStream)}.
+   */
+  private static final int EXPORT_VERSION = 1;
+
+  /**
+   * Maximum number of shards of an import.
+   */
+  private static final int MAX_SHARDS = 1 << 16;
+
+  /**
+   * Maximum size of the export of a shard, the largest array size.
+   */
+  private static final int MAX_EXPORT_BYTES = Integer.MAX_VALUE - 8;
+
+  /**
+   * Size of the blocks in which the export of a shard is read.
+   */
+  private static final int READ_BLOCK_BYTES = 1 << 16;
+
+  /**
+   * The shards.
+   */
+  private final MemAuthSystem[] shards;
+
+  /**
+   * Runs the scans of the shards.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Serializes the mutations of the groups and organizational units, so
+   * that all the shards apply them in the same order.
+   */
+  private final Object directoryLock = new Object();
+
+  /**
+   * Create a system.
+   *
+   * @param shardCount the number of shards
+   */
+  public ShardedAuthSystem(final int shardCount) {
+    this(newShards(shardCount));
+  }
+
+  /**
+   * Create a system from existing shards.
+   *
+   * @param pShards the shards
+   */
+  private ShardedAuthSystem(final MemAuthSystem[] pShards) {
+    shards = pShards;
+    pool = new ForkJoinPool(Math.min(shards.length,
+            Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Get the number of shards.
+   *
+   * @return the number of shards
+   */
+  public final int getShardCount() {
+    return shards.length;
+  }
+
+  @Override
+  public final void configure(final Map<String, String> props) {
+    for (MemAuthSystem shard : shards) {
+      shard.configure(props);
+    }
+    shareCredentials();
+  }
+
+  /**
+   * Make all the shards use the password hasher, verified credentials cache
+   * and session tokens store of the first one.
+   */
+  private void shareCredentials() {
+    for (int i = 1; i < shards.length; i++) {
+      shards[i].shareCredentialsOf(shards[0]);
+    }
+  }
+
+  /**
+   * Get the number of credential checks answered by the shared verified
+   * credentials cache.
+   *
+   * @return the hits count, 0 when the cache is disabled
+   */
+  public final long getCredentialCacheHits() {
+    return shards[0].getCredentialCacheHits();
+  }
+
+  /**
+   * Check credentials and issue a session token, as
+   * {@link MemAuthSystem#issueToken(String, String)}.
+   *
+   * @param sysName the person system name
+   * @param password the password
+   * @return the token, null if the credentials are not valid
+   * @throws AppException if the system name is empty
+   * @throws IllegalStateException if the tokens are not enabled
+   */
+  public final String issueToken(final String sysName,
+          final String password) throws AppException {
+    return shardFor(sysName).issueToken(sysName, password);
+  }
+
+  /**
+   * Resolve a session token, as {@link MemAuthSystem#validateToken(String)}.
+   *
+   * @param token the token
+   * @return the person system name, null if the token is not valid
+   */
+  public final String validateToken(final String token) {
+    // The store is shared: any shard resolves any token
+    return shards[0].validateToken(token);
+  }
+
+  /**
+   * Revoke a session token, as {@link MemAuthSystem#revokeToken(String)}.
+   *
+   * @param token the token
+   */
+  public final void revokeToken(final String token) {
+    shards[0].revokeToken(token);
+  }
+
+  @Override
+  public final boolean checkHealth() {
+    boolean healthy = true;
+    for (MemAuthSystem shard : shards) {
+      // Check them all, so that each starts a new health period
+      healthy &= shard.checkHealth();
+    }
+    return healthy;
+  }
+
+  @Override
+  public final boolean checkCredentials(final String sysName,
+          final String password) throws AppException {
+    return shardFor(sysName).checkCredentials(sysName, password);
+  }
+
+  @Override
+  public final Person loadPerson(final String sysName) throws AppException {
+    return shardFor(sysName).loadPerson(sysName);
+  }
+
+  @Override
+  public final Collection<Person> findPersons() {
+    return Collections.unmodifiableList(scanAll(new RangeTask.Job<Person>() {
+      @Override
+      public void run(final int index, final List<Person> results) {
+        results.addAll(shards[index].findPersons());
+      }
+    }));
+  }
+
+  @Override
+  public final boolean canCreateOrUpdatePerson() {
+    return true;
+  }
+
+  @Override
+  public final boolean canUpdatePassword() {
+    return true;
+  }
+
+  @Override
+  public final void createPerson(final Person person) throws AppException {
+    shardFor(person.getSysName()).createPerson(person);
+  }
+
+  @Override
+  public final void updatePerson(final Person person) throws AppException {
+    shardFor(person.getSysName()).updatePerson(person);
+  }
+
+  @Override
+  public final void updatePersonPassword(final String sysName,
+          final String password) throws AppException {
+    shardFor(sysName).updatePersonPassword(sysName, password);
+  }
+
+  @Override
+  public final Group loadGroup(final String sysName) throws AppException {
+    return shards[0].loadGroup(sysName);
+  }
+
+  @Override
+  public final Collection<Group> findGroups() {
+    return shards[0].findGroups();
+  }
+
+  @Override
+  public final Collection<String> findGroupPersons(final String sysName)
+          throws AppException {
+    try {
+      return Collections.unmodifiableList(scanAll(new RangeTask.Job<String>() {
+        @Override
+        public void run(final int index, final List<String> results)
+                throws AppException {
+          results.addAll(shards[index].findGroupPersons(sysName));
+        }
+      }));
+    } catch (RangeTask.JobException ex) {
+      throw (AppException) ex.getCause();
+    }
+  }
+
+  @Override
+  public final void attachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    shardFor(personSysName).attachGroupMember(groupSysName, personSysName);
+  }
+
+  @Override
+  public final void detachGroupMember(final String groupSysName,
+          final String personSysName) throws AppException {
+    shardFor(personSysName).detachGroupMember(groupSysName, personSysName);
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateGroup() {
+    return true;
+  }
+
+  @Override
+  public final void createGroup(final Group group) throws AppException {
+    synchronized (directoryLock) {
+      // The first shard validates, the others then accept
+      for (MemAuthSystem shard : shards) {
+        shard.createGroup(group);
+      }
+    }
+  }
+
+  @Override
+  public final void updateGroup(final Group group) throws AppException {
+    synchronized (directoryLock) {
+      for (MemAuthSystem shard : shards) {
+        shard.updateGroup(group);
+      }
+    }
+  }
+
+  @Override
+  public final OrgUnit loadOrgUnit(final String name) throws AppException {
+    return shards[0].loadOrgUnit(name);
+  }
+
+  @Override
+  public final Collection<OrgUnit> findOrgUnits() {
+    return shards[0].findOrgUnits();
+  }
+
+  @Override
+  public final Collection<String> findOrgUnitPersons(final String name)
+          throws AppException {
+    try {
+      return Collections.unmodifiableList(scanAll(new RangeTask.Job<String>() {
+        @Override
+        public void run(final int index, final List<String> results)
+                throws AppException {
+          results.addAll(shards[index].findOrgUnitPersons(name));
+        }
+      }));
+    } catch (RangeTask.JobException ex) {
+      throw (AppException) ex.getCause();
+    }
+  }
+
+  @Override
+  public final boolean canCreateOrUpdateOrgUnit() {
+    return true;
+  }
+
+  @Override
+  public final void createOrgUnit(final OrgUnit orgUnit) throws AppException {
+    synchronized (directoryLock) {
+      for (MemAuthSystem shard : shards) {
+        shard.createOrgUnit(orgUnit);
+      }
+    }
+  }
+
+  @Override
+  public final void updateOrgUnit(final OrgUnit orgUnit) throws AppException {
+    synchronized (directoryLock) {
+      for (MemAuthSystem shard : shards) {
+        shard.updateOrgUnit(orgUnit);
+      }
+    }
+  }
+
+  /**
+   * Export all the data. The shards are serialized in parallel, each in the
+   * compact form of {@link MemAuthSystem}, then written one after the other.
+   *
+   * @param out the destination, left open
+   * @throws IOException on write error
+   */
+  public final void exportTo(final OutputStream out) throws IOException {
+    List<byte[]> exports;
+    try {
+      exports = scanAll(new RangeTask.Job<byte[]>() {
+        @Override
+        public void run(final int index, final List<byte[]> results)
+                throws IOException {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          ObjectOutputStream objects = new ObjectOutputStream(bytes);
+          objects.writeObject(shards[index]);
+          objects.close();
+          results.add(bytes.toByteArray());
+        }
+      });
+    } catch (RangeTask.JobException ex) {
+      throw (IOException) ex.getCause();
+    }
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(EXPORT_VERSION);
+    data.writeInt(exports.size());
+    for (byte[] export : exports) {
+      data.writeInt(export.length);
+      data.write(export);
+    }
+    data.flush();
+  }
+
+  /**
+   * Import data written by {@link #exportTo(OutputStream)}, deserializing
+   * the shards in parallel.
+   *
+   * @param in the source, left open
+   * @return the imported system
+   * @throws IOException on read error
+   */
+  public static ShardedAuthSystem importFrom(final InputStream in)
+          throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    int version = data.readInt();
+    if (version != EXPORT_VERSION) {
+      throw new InvalidObjectException("Unknown export version " + version);
+    }
+    int shardCount = data.readInt();
+    if (shardCount < 1 || shardCount > MAX_SHARDS) {
+      throw new InvalidObjectException("Invalid shard count " + shardCount);
+    }
+    final byte[][] exports = new byte[shardCount][];
+    for (int i = 0; i < exports.length; i++) {
+      exports[i] = readExport(data);
+    }
+    final MemAuthSystem[] shards = new MemAuthSystem[exports.length];
+    ShardedAuthSystem system = new ShardedAuthSystem(shards);
+    try {
+      system.scanAll(new RangeTask.Job<Void>() {
+        @Override
+        public void run(final int index, final List<Void> results)
+                throws IOException, ClassNotFoundException {
+          ObjectInputStream objects = new FilteredObjectInputStream(
+                  new ByteArrayInputStream(exports[index]), true);
+          shards[index] = (MemAuthSystem) objects.readObject();
+        }
+      });
+    } catch (RangeTask.JobException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Unknown class in export", ex.getCause());
+    }
+    system.shareCredentials();
+    return system;
+  }
+
+  /**
+   * Read the export of a shard. The bytes are read by blocks, so that a
+   * corrupt length fails on the end of the data rather than on a huge
+   * allocation.
+   *
+   * @param data the source
+   * @return the export
+   * @throws IOException on read error or invalid length
+   */
+  private static byte[] readExport(final DataInputStream data)
+          throws IOException {
+    int length = data.readInt();
+    if (length < 0 || length > MAX_EXPORT_BYTES) {
+      throw new InvalidObjectException("Invalid shard export length "
+              + length);
+    }
+    ByteArrayOutputStream export = new ByteArrayOutputStream(
+            Math.min(length, READ_BLOCK_BYTES));
+    byte[] block = new byte[Math.min(length, READ_BLOCK_BYTES)];
+    int left = length;
+    while (left > 0) {
+      int read = Math.min(left, block.length);
+      data.readFully(block, 0, read);
+      export.write(block, 0, read);
+      left -= read;
+    }
+    return export.toByteArray();
+  }
+
+  /**
+   * Get the shard of a person.
+   *
+   * @param sysName the person system name, may be null
+   * @return the shard
+   */
+  private MemAuthSystem shardFor(final String sysName) {
+    if (sysName == null) {
+      return shards[0];
+    }
+    int hash = sysName.hashCode();
+    hash ^= hash >>> 16;
+    return shards[(hash & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /**
+   * Create concurrent shards.
+   *
+   * @param shardCount the number of shards
+   * @return the shards
+   */
+  private static MemAuthSystem[] newShards(final int shardCount) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("Invalid shard count: "
+              + shardCount);
+    }
+    MemAuthSystem[] shards = new MemAuthSystem[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new MemAuthSystem(true);
+    }
+    return shards;
+  }
+
+  /**
+   * Run a scan on all the shards in parallel.
+   *
+   * @param <T> results type
+   * @param scan the scan
+   * @return the results, in shard order
+   */
+  private <T> List<T> scanAll(final RangeTask.Job<T> scan) {
+    return pool.invoke(new RangeTask<T>(scan, 0, shards.length));
+  }
+
+}
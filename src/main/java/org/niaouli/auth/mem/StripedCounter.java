@@ -0,0 +1,114 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated by many threads at once, without contention: each thread
+ * adds to one of several cells, each on its own cache line, and reading
+ * sums them.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class StripedCounter {
+
+  /**
+   * Number of longs per cache line.
+   */
+  static final int LINE_LONGS = 8;
+
+  /**
+   * Multiplier spreading the thread identifiers over the stripes.
+   */
+  private static final long SPREAD = 0x9E3779B97F4A7C15L;
+
+  /**
+   * Number of bits of the spread identifiers kept.
+   */
+  private static final int SPREAD_SHIFT = 32;
+
+  /**
+   * The cells, one every {@link #LINE_LONGS} longs.
+   */
+  private final AtomicLongArray cells;
+
+  /**
+   * Mask of the stripe indexes.
+   */
+  private final int mask;
+
+  /**
+   * Constructor.
+   */
+  StripedCounter() {
+    mask = stripes() - 1;
+    cells = new AtomicLongArray((mask + 1) * LINE_LONGS);
+  }
+
+  /**
+   * Add to the counter.
+   *
+   * @param delta the value to add
+   */
+  void add(final long delta) {
+    cells.addAndGet(stripe(mask) * LINE_LONGS, delta);
+  }
+
+  /**
+   * Add one to the counter.
+   */
+  void increment() {
+    add(1L);
+  }
+
+  /**
+   * Read the counter. Concurrent updates may or may not be seen.
+   *
+   * @return the sum of the cells
+   */
+  long sum() {
+    long sum = 0L;
+    for (int i = 0; i < cells.length(); i += LINE_LONGS) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * Get the number of stripes to use: a power of two, at least twice the
+   * number of processors.
+   *
+   * @return the number of stripes
+   */
+  static int stripes() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit(processors * 2 - 1) * 2;
+  }
+
+  /**
+   * Get the stripe of the current thread.
+   *
+   * @param stripeMask the mask of the stripe indexes
+   * @return the stripe index
+   */
+  static int stripe(final int stripeMask) {
+    long id = Thread.currentThread().getId();
+    return (int) ((id * SPREAD) >>> SPREAD_SHIFT) & stripeMask;
+  }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.Serializable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks picked by key hash, used to serialize compound mutations
+ * on a same key without holding a global lock.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class StripedLocks implements Serializable {
+
+  /**
+   * The locks, the array length being a power of two.
+   */
+  private final ReentrantLock[] stripes;
+
+  /**
+   * Constructor.
+   *
+   * @param count minimum number of stripes, rounded up to a power of two
+   */
+  StripedLocks(final int count) {
+    int size = 1;
+    while (size < count) {
+      size <<= 1;
+    }
+    stripes = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Get the lock guarding a key.
+   *
+   * @param key the key, may be null
+   * @return the lock of the stripe the key belongs to
+   */
+  Lock lockFor(final Object key) {
+    return stripes[indexFor(key)];
+  }
+
+  /**
+   * Acquire the locks guarding two keys, always in the same order so that
+   * concurrent callers cannot deadlock.
+   *
+   * @param first a key, may be null
+   * @param second another key, may be null
+   */
+  void lock(final Object first, final Object second) {
+    int firstIndex = indexFor(first);
+    int secondIndex = indexFor(second);
+    stripes[Math.min(firstIndex, secondIndex)].lock();
+    if (firstIndex != secondIndex) {
+      stripes[Math.max(firstIndex, secondIndex)].lock();
+    }
+  }
+
+  /**
+   * Release the locks acquired by {@link #lock(Object, Object)}.
+   *
+   * @param first a key, may be null
+   * @param second another key, may be null
+   */
+  void unlock(final Object first, final Object second) {
+    int firstIndex = indexFor(first);
+    int secondIndex = indexFor(second);
+    if (firstIndex != secondIndex) {
+      stripes[Math.max(firstIndex, secondIndex)].unlock();
+    }
+    stripes[Math.min(firstIndex, secondIndex)].unlock();
+  }
+
+  /**
+   * Acquire all the locks, in order, to apply a batch atomically with
+   * respect to the other mutations.
+   */
+  void lockAll() {
+    for (ReentrantLock stripe : stripes) {
+      stripe.lock();
+    }
+  }
+
+  /**
+   * Release the locks acquired by {@link #lockAll()}.
+   */
+  void unlockAll() {
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      stripes[i].unlock();
+    }
+  }
+
+  /**
+   * Compute the stripe index of a key.
+   *
+   * @param key the key, may be null
+   * @return the stripe index
+   */
+  private int indexFor(final Object key) {
+    if (key == null) {
+      return 0;
+    }
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return hash & (stripes.length - 1);
+  }
+
+}
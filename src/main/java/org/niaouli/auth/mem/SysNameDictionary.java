@@ -0,0 +1,172 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the persons system names, encoding them as dense positive
+ * integers in their creation order. Identifiers are never reused nor
+ * changed, so sets of identifiers stay valid forever.
+ *
+ * Lookups never lock; interning is serialized.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class SysNameDictionary {
+
+  /**
+   * Initial capacity of the names array.
+   */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * The identifiers, mapped by name.
+   */
+  private final Map<String, Integer> ids;
+
+  /**
+   * The names, indexed by identifier. Replaced when full, and always written
+   * before the identifier is published in {@link #ids}.
+   */
+  private volatile String[] names = new String[INITIAL_CAPACITY];
+
+  /**
+   * The number of names.
+   */
+  private volatile int size;
+
+  /**
+   * Constructor.
+   *
+   * @param concurrent true if the dictionary is shared between threads
+   */
+  SysNameDictionary(final boolean concurrent) {
+    if (concurrent) {
+      ids = new ConcurrentHashMap<String, Integer>();
+    } else {
+      ids = new HashMap<String, Integer>();
+    }
+  }
+
+  /**
+   * Get the number of names.
+   *
+   * @return the size
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the identifier of a name.
+   *
+   * @param name the name
+   * @return the identifier, -1 if the name is unknown
+   */
+  int idOf(final String name) {
+    if (name == null) {
+      return -1;
+    }
+    Integer id = ids.get(name);
+    if (id == null) {
+      return -1;
+    }
+    return id;
+  }
+
+  /**
+   * Get the name of an identifier.
+   *
+   * @param id the identifier
+   * @return the name
+   */
+  String nameOf(final int id) {
+    return names[id];
+  }
+
+  /**
+   * Get the identifier of a name, assigning the next one if it is unknown.
+   *
+   * @param name the name
+   * @return the identifier
+   */
+  synchronized int intern(final String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    int next = size;
+    String[] current = names;
+    if (next == current.length) {
+      current = Arrays.copyOf(current, next * 2);
+    }
+    current[next] = name;
+    names = current;
+    size = next + 1;
+    ids.put(name, next);
+    return next;
+  }
+
+  /**
+   * Get a view of the names of a set of identifiers.
+   *
+   * @param idSet the identifiers
+   * @return an immutable set of names
+   */
+  Set<String> names(final IntBitmap idSet) {
+    return new AbstractSet<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        final IntBitmap.Cursor cursor = idSet.cursor();
+        return new Iterator<String>() {
+          @Override
+          public boolean hasNext() {
+            return cursor.hasNext();
+          }
+
+          @Override
+          public String next() {
+            return nameOf(cursor.next());
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public boolean contains(final Object name) {
+        return name instanceof String && idSet.contains(idOf((String) name));
+      }
+
+      @Override
+      public int size() {
+        return idSet.cardinality();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+/**
+ * Source of the current time of the expiries and latencies, such as the
+ * ones of the session tokens and operations of a {@link MemAuthSystem}, so
+ * that tests can move it forward.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public interface Ticker {
+
+  /**
+   * The system time source, {@link System#nanoTime()}.
+   */
+  Ticker SYSTEM = new Ticker() {
+    @Override
+    public long read() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * Read the current time.
+   *
+   * @return the time, in nanoseconds since an arbitrary origin
+   */
+  long read();
+}
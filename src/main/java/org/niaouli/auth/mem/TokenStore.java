@@ -0,0 +1,456 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * Session tokens issued after successful credential checks.
+ *
+ * A token is a random opaque string mapped to the person it was issued to,
+ * so that validating it is a single hash lookup. It expires when it has not
+ * been validated for the idle time to live, or when it reaches the maximum
+ * time to live, whichever comes first. Expiry is always enforced on
+ * validation; the expired tokens are reclaimed in bulk by a timer wheel,
+ * swept by a daemon thread that only runs while tokens are alive.
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+final class TokenStore implements Serializable, Runnable {
+
+  /**
+   * Serialization version.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Number of random bytes of a token.
+   */
+  private static final int TOKEN_BYTES = 32;
+
+  /**
+   * Number of slots of the timer wheel, a power of two.
+   */
+  private static final int SLOTS = 512;
+
+  /**
+   * Divisor of the idle time to live giving the validation precision: a
+   * validation less than this fraction after the previous one does not
+   * extend the token.
+   */
+  private static final int REFRESH_DIVISOR = 64;
+
+  /**
+   * Source of the tokens.
+   */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Idle time to live, in nanoseconds.
+   */
+  private final long idleTtl;
+
+  /**
+   * Maximum time to live, in nanoseconds.
+   */
+  private final long maxTtl;
+
+  /**
+   * Duration of a timer wheel tick, in nanoseconds.
+   */
+  private final long tick;
+
+  /**
+   * Minimum time between two extensions of a token, in nanoseconds.
+   */
+  private final long refresh;
+
+  /**
+   * Source of the current time, the system one once deserialized.
+   */
+  private transient Ticker ticker;
+
+  /**
+   * Tokens, mapped by value.
+   */
+  private transient ConcurrentHashMap<String, Token> tokens;
+
+  /**
+   * Tokens, mapped by person system name, for the revocations. Only
+   * accessed through atomic map operations.
+   */
+  private transient ConcurrentHashMap<String, Set<Token>> personsTokens;
+
+  /**
+   * Timer wheel: each slot holds the tokens to check at a tick, modulo the
+   * number of slots. Each slot is guarded by itself.
+   */
+  private transient List<List<Token>> slots;
+
+  /**
+   * Time origin of the ticks, in nanoseconds.
+   */
+  private transient long origin;
+
+  /**
+   * Last swept tick.
+   */
+  private transient volatile long swept;
+
+  /**
+   * Whether the sweeper thread runs. Guarded by this.
+   */
+  private transient boolean sweeping;
+
+  /**
+   * Whether the store was closed. Guarded by this.
+   */
+  private transient boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param pIdleTtl idle time to live, in seconds
+   * @param pMaxTtl maximum time to live, in seconds
+   * @param pTick duration of a timer wheel tick, in seconds
+   * @param pTicker source of the current time
+   */
+  TokenStore(final long pIdleTtl, final long pMaxTtl, final long pTick,
+          final Ticker pTicker) {
+    if (pIdleTtl < 1 || pMaxTtl < 1 || pTick < 1) {
+      throw new IllegalArgumentException(
+              "Times to live and sweep interval must be positive");
+    }
+    idleTtl = TimeUnit.SECONDS.toNanos(pIdleTtl);
+    maxTtl = TimeUnit.SECONDS.toNanos(pMaxTtl);
+    tick = TimeUnit.SECONDS.toNanos(pTick);
+    refresh = idleTtl / REFRESH_DIVISOR;
+    ticker = pTicker;
+    init();
+  }
+
+  /**
+   * Issue a token.
+   *
+   * @param sysName the person system name
+   * @return the token
+   */
+  String issue(final String sysName) {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    RANDOM.nextBytes(bytes);
+    String value = Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(bytes);
+    long now = ticker.read();
+    final Token token = new Token(value, sysName, now, now + maxTtl);
+    personsTokens.compute(sysName,
+            new BiFunction<String, Set<Token>, Set<Token>>() {
+      @Override
+      public Set<Token> apply(final String key, final Set<Token> current) {
+        Set<Token> set = current;
+        if (set == null) {
+          set = new HashSet<Token>();
+        }
+        set.add(token);
+        return set;
+      }
+    });
+    tokens.put(value, token);
+    schedule(token);
+    startSweeper();
+    return value;
+  }
+
+  /**
+   * Validate a token, and extend its idle time to live.
+   *
+   * @param value the token
+   * @return the system name of the person it was issued to, null if it is
+   * unknown, revoked or expired
+   */
+  String validate(final String value) {
+    Token token = tokens.get(value);
+    if (token == null) {
+      return null;
+    }
+    long now = ticker.read();
+    if (token.isExpired(now, idleTtl)) {
+      remove(token);
+      return null;
+    }
+    // Skip most writes, to spare the cache line shared by the readers
+    if (now - token.lastAccess >= refresh) {
+      token.lastAccess = now;
+    }
+    return token.sysName;
+  }
+
+  /**
+   * Revoke a token.
+   *
+   * @param value the token
+   */
+  void revoke(final String value) {
+    Token token = tokens.get(value);
+    if (token != null) {
+      remove(token);
+    }
+  }
+
+  /**
+   * Revoke all the tokens of a person.
+   *
+   * @param sysName the person system name
+   */
+  void revokeAll(final String sysName) {
+    Set<Token> set = personsTokens.remove(sysName);
+    if (set != null) {
+      for (Token token : set) {
+        tokens.remove(token.value, token);
+      }
+    }
+  }
+
+  /**
+   * Get the number of tokens, including the expired ones not swept yet.
+   *
+   * @return the tokens count
+   */
+  int size() {
+    return tokens.size();
+  }
+
+  /**
+   * Revoke all the tokens and stop the sweeper.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    tokens.clear();
+    personsTokens.clear();
+  }
+
+  /**
+   * Sweep the timer wheel, until no token is left.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      synchronized (this) {
+        if (closed || tokens.isEmpty()) {
+          sweeping = false;
+          return;
+        }
+      }
+      long now = ticker.read();
+      long current = (now - origin) / tick;
+      // A full turn visits every slot, no need to catch up further
+      long from = Math.max(swept + 1, current - SLOTS + 1);
+      for (long t = from; t <= current; t++) {
+        swept = t;
+        sweep(slot(t), now);
+      }
+      LockSupport.parkNanos(origin + (current + 1) * tick - now);
+    }
+  }
+
+  /**
+   * Check the tokens of a timer wheel slot: drop the expired ones, and
+   * reschedule the others.
+   *
+   * @param slot the slot
+   * @param now the current time, in nanoseconds
+   */
+  private void sweep(final List<Token> slot, final long now) {
+    List<Token> due;
+    synchronized (slot) {
+      due = new ArrayList<Token>(slot);
+      slot.clear();
+    }
+    for (Token token : due) {
+      if (tokens.get(token.value) != token) {
+        continue;
+      }
+      if (token.isExpired(now, idleTtl)) {
+        remove(token);
+      } else {
+        schedule(token);
+      }
+    }
+  }
+
+  /**
+   * Put a token in the timer wheel slot of its expiration, or of the last
+   * tick of the current turn if it expires later.
+   *
+   * @param token the token
+   */
+  private void schedule(final Token token) {
+    long deadline = (token.deadline(idleTtl) - origin + tick - 1) / tick;
+    long next = swept + 1;
+    long at = Math.min(Math.max(deadline, next), next + SLOTS - 1);
+    List<Token> slot = slot(at);
+    synchronized (slot) {
+      slot.add(token);
+    }
+  }
+
+  /**
+   * Get the timer wheel slot of a tick.
+   *
+   * @param at the tick
+   * @return the slot
+   */
+  private List<Token> slot(final long at) {
+    return slots.get((int) (at & (SLOTS - 1)));
+  }
+
+  /**
+   * Remove a token.
+   *
+   * @param token the token
+   */
+  private void remove(final Token token) {
+    if (tokens.remove(token.value, token)) {
+      personsTokens.computeIfPresent(token.sysName,
+              new BiFunction<String, Set<Token>, Set<Token>>() {
+        @Override
+        public Set<Token> apply(final String key, final Set<Token> set) {
+          set.remove(token);
+          return set.isEmpty() ? null : set;
+        }
+      });
+    }
+  }
+
+  /**
+   * Start the sweeper thread, unless it runs.
+   */
+  private synchronized void startSweeper() {
+    if (!sweeping && !closed) {
+      sweeping = true;
+      Thread sweeper = new Thread(this, "niaouli-auth-mem-tokens");
+      sweeper.setDaemon(true);
+      sweeper.start();
+    }
+  }
+
+  /**
+   * Create the maps and the timer wheel.
+   */
+  private void init() {
+    tokens = new ConcurrentHashMap<String, Token>();
+    personsTokens = new ConcurrentHashMap<String, Set<Token>>();
+    slots = new ArrayList<List<Token>>(SLOTS);
+    for (int i = 0; i < SLOTS; i++) {
+      slots.add(new ArrayList<Token>());
+    }
+    origin = ticker.read();
+    swept = 0L;
+  }
+
+  /**
+   * Restore a deserialized store, without any token.
+   *
+   * @param in the stream
+   * @throws IOException on read error
+   * @throws ClassNotFoundException on unknown class
+   */
+  private void readObject(final ObjectInputStream in) throws IOException,
+          ClassNotFoundException {
+    in.defaultReadObject();
+    ticker = Ticker.SYSTEM;
+    init();
+  }
+
+  /**
+   * An issued token.
+   */
+  private static final class Token {
+
+    /**
+     * The token value.
+     */
+    private final String value;
+
+    /**
+     * The system name of the person it was issued to.
+     */
+    private final String sysName;
+
+    /**
+     * The absolute expiration time, in nanoseconds.
+     */
+    private final long expiresAt;
+
+    /**
+     * The last validation time, in nanoseconds.
+     */
+    private volatile long lastAccess;
+
+    /**
+     * Constructor.
+     *
+     * @param pValue the token value
+     * @param pSysName the person system name
+     * @param pIssuedAt the issue time, in nanoseconds
+     * @param pExpiresAt the absolute expiration time, in nanoseconds
+     */
+    Token(final String pValue, final String pSysName, final long pIssuedAt,
+            final long pExpiresAt) {
+      value = pValue;
+      sysName = pSysName;
+      expiresAt = pExpiresAt;
+      lastAccess = pIssuedAt;
+    }
+
+    /**
+     * Get the expiration time, given the current last validation.
+     *
+     * @param idleTtl the idle time to live, in nanoseconds
+     * @return the expiration time, in nanoseconds
+     */
+    long deadline(final long idleTtl) {
+      long idle = lastAccess + idleTtl;
+      return idle - expiresAt < 0 ? idle : expiresAt;
+    }
+
+    /**
+     * Tell if the token expired.
+     *
+     * @param now the current time, in nanoseconds
+     * @param idleTtl the idle time to live, in nanoseconds
+     * @return true if expired
+     */
+    boolean isExpired(final long now, final long idleTtl) {
+      return now - deadline(idleTtl) >= 0;
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.AsyncAuthSystem;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class AsyncTest {
+
+  private static final String JOHN = "john";
+  private static final String PASSWORD = "secret";
+
+  private final List<Runnable> tasks = new ArrayList<Runnable>();
+  private final Executor executor = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+  };
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(JOHN);
+    authSystem.createPerson(builder.build());
+    authSystem.updatePersonPassword(JOHN, PASSWORD);
+  }
+
+  @Test
+  public void testDefaultExecutor() throws Exception {
+    AsyncAuthSystem async = new AsyncAuthSystem(authSystem);
+    try {
+      assertThat(async.loadPerson(JOHN).get().getSysName())
+              .isEqualTo(JOHN);
+      assertThat(async.checkCredentials(JOHN, PASSWORD).get()).isTrue();
+      assertThat(async.findPersons().get()).hasSize(1);
+    } finally {
+      async.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailure() throws InterruptedException {
+    AsyncAuthSystem async = new AsyncAuthSystem(authSystem, executor);
+    CompletableFuture<Person> future = async.loadPerson("nobody");
+    runTasks();
+    try {
+      future.get();
+      throw new AssertionError("Expected a failure");
+    } catch (ExecutionException ex) {
+      assertThat(ex.getCause()).isInstanceOf(AppException.class);
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    AsyncAuthSystem async = new AsyncAuthSystem(authSystem, executor);
+    CompletableFuture<Person> first = async.loadPerson(JOHN);
+    CompletableFuture<Person> second = async.loadPerson(JOHN);
+    CompletableFuture<Boolean> check = async.checkCredentials(JOHN,
+            PASSWORD);
+    CompletableFuture<Boolean> sameCheck = async.checkCredentials(JOHN,
+            PASSWORD);
+    CompletableFuture<Boolean> otherCheck = async.checkCredentials(JOHN,
+            "wrong");
+    assertThat(tasks).hasSize(3);
+    runTasks();
+    assertThat(first.get()).isSameAs(second.get());
+    assertThat(check.get()).isTrue();
+    assertThat(sameCheck.get()).isTrue();
+    assertThat(otherCheck.get()).isFalse();
+
+    // Once completed, requests run again
+    async.loadPerson(JOHN);
+    assertThat(tasks).hasSize(1);
+  }
+
+  @Test
+  public void testPasswordUpdateEndsCoalescing() throws Exception {
+    AsyncAuthSystem async = new AsyncAuthSystem(authSystem, executor);
+    CompletableFuture<Boolean> check = async.checkCredentials(JOHN,
+            PASSWORD);
+    CompletableFuture<Void> update = async.updatePersonPassword(JOHN,
+            "changed");
+    // Run the update before the check started ahead of it
+    Runnable checkTask = tasks.remove(0);
+    runTasks();
+    update.get();
+    CompletableFuture<Boolean> later = async.checkCredentials(JOHN,
+            PASSWORD);
+    assertThat(tasks).hasSize(1);
+    runTasks();
+    checkTask.run();
+    assertThat(later.get()).isFalse();
+    assertThat(check.get()).isFalse();
+  }
+
+  @Test
+  public void testCancelDoesNotAffectOthers() throws Exception {
+    AsyncAuthSystem async = new AsyncAuthSystem(authSystem, executor);
+    CompletableFuture<Person> first = async.loadPerson(JOHN);
+    CompletableFuture<Person> second = async.loadPerson(JOHN);
+    first.cancel(false);
+    runTasks();
+    assertThat(second.get().getSysName()).isEqualTo(JOHN);
+  }
+
+  private void runTasks() {
+    List<Runnable> running = new ArrayList<Runnable>(tasks);
+    tasks.clear();
+    for (Runnable task : running) {
+      task.run();
+    }
+  }
+}
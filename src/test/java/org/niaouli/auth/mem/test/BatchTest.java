@@ -0,0 +1,148 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class BatchTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String LUC = "LUC";
+  private static final String PAUL = "PAUL";
+
+  private static final String IT = "IT";
+  private static final String AUDIT = "AUDIT";
+
+  private static final String MARKETING = "Marketing";
+
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() {
+    authSystem = new MemAuthSystem();
+  }
+
+  @Test
+  public void testCreatePersons() throws AppException {
+    authSystem.createPersons(Arrays.asList(person(JOHN), person(LUC)));
+    assertThat(authSystem.findPersons()).hasSize(2);
+    assertThat(authSystem.findOrgUnitPersons(MARKETING)).containsOnly(JOHN, LUC);
+  }
+
+  @Test
+  public void testCreatePersonsAllOrNothing() throws AppException {
+    authSystem.createPerson(person(PAUL));
+    try {
+      authSystem.createPersons(Arrays.asList(person(JOHN), person(PAUL)));
+    } catch (AppException ex) {
+      assertThat(authSystem.findPersons()).hasSize(1);
+      return;
+    }
+    throw new AssertionError("Batch with an existing person accepted");
+  }
+
+  @Test(expected = AppException.class)
+  public void testCreatePersonsDuplicate() throws AppException {
+    authSystem.createPersons(Arrays.asList(person(JOHN), person(JOHN)));
+  }
+
+  @Test
+  public void testCreateGroups() throws AppException {
+    authSystem.createGroups(Arrays.asList(group(IT), group(AUDIT)));
+    assertThat(authSystem.findGroups()).hasSize(2);
+  }
+
+  @Test(expected = AppException.class)
+  public void testCreateGroupsDuplicate() throws AppException {
+    authSystem.createGroups(Arrays.asList(group(IT), group(IT)));
+  }
+
+  @Test
+  public void testAttachGroupMembers() throws AppException {
+    authSystem.createPersons(Arrays.asList(person(JOHN), person(LUC)));
+    authSystem.createGroup(group(IT));
+    authSystem.attachGroupMembers(IT, Arrays.asList(JOHN, LUC));
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(JOHN, LUC);
+    assertThat(authSystem.findPersonGroups(LUC)).containsOnly(IT);
+  }
+
+  @Test
+  public void testAttachGroupMembersAllOrNothing() throws AppException {
+    authSystem.createPersons(Arrays.asList(person(JOHN), person(LUC)));
+    authSystem.createGroup(group(IT));
+    try {
+      authSystem.attachGroupMembers(IT, Arrays.asList(JOHN, PAUL));
+    } catch (AppException ex) {
+      assertThat(authSystem.findGroupPersons(IT)).isEmpty();
+      return;
+    }
+    throw new AssertionError("Batch with an unknown person accepted");
+  }
+
+  @Test
+  public void testUpdatePersonPasswords() throws AppException {
+    authSystem.createPersons(Arrays.asList(person(JOHN), person(LUC)));
+    Map<String, String> newPasswords = new HashMap<String, String>();
+    newPasswords.put(JOHN, PWD1);
+    newPasswords.put(LUC, PWD2);
+    authSystem.updatePersonPasswords(newPasswords);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.checkCredentials(LUC, PWD2)).isTrue();
+
+    newPasswords.put(PAUL, PWD1);
+    newPasswords.put(JOHN, PWD2);
+    try {
+      authSystem.updatePersonPasswords(newPasswords);
+    } catch (AppException ex) {
+      assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+      return;
+    }
+    throw new AssertionError("Batch with an unknown person accepted");
+  }
+
+  private Person person(String sysName) {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    builder.setOrgUnitName(MARKETING);
+    return builder.build();
+  }
+
+  private Group group(String sysName) {
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(sysName);
+    return builder.build();
+  }
+}
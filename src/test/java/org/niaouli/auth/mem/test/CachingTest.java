@@ -0,0 +1,234 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.AuthSystem;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.CachingAuthSystem;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class CachingTest {
+
+  private static final String JOHN = "john";
+  private static final String LUC = "luc";
+  private static final String ADMINS = "ADMINS";
+  private static final String IT = "IT";
+  private static final String HR = "HR";
+
+  private static final long LATENCY_MILLIS = 50L;
+  private static final int CALLERS = 16;
+
+  private MemAuthSystem backend;
+  private ConcurrentMap<String, AtomicInteger> calls;
+  private CachingAuthSystem authSystem;
+  private ExecutorService executor;
+
+  @Before
+  public void before() throws AppException {
+    backend = new MemAuthSystem(true);
+    backend.createOrgUnit(new OrgUnitBuilder().setName(IT).build());
+    backend.createOrgUnit(new OrgUnitBuilder().setName(HR).build());
+    backend.createPerson(new PersonBuilder().setSysName(JOHN)
+            .setFullName("John").setOrgUnitName(IT).build());
+    backend.createPerson(new PersonBuilder().setSysName(LUC)
+            .setOrgUnitName(IT).build());
+    backend.createGroup(new GroupBuilder().setSysName(ADMINS).build());
+    backend.attachGroupMember(ADMINS, JOHN);
+    calls = new ConcurrentHashMap<String, AtomicInteger>();
+    authSystem = new CachingAuthSystem(slow(backend));
+    executor = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testReadThrough() throws AppException {
+    assertThat(authSystem.loadPerson(JOHN).getFullName()).isEqualTo("John");
+    assertThat(authSystem.loadPerson(JOHN).getFullName()).isEqualTo("John");
+    assertThat(authSystem.findGroupPersons(ADMINS)).containsOnly(JOHN);
+    assertThat(authSystem.findGroupPersons(ADMINS)).containsOnly(JOHN);
+    assertThat(authSystem.loadOrgUnit(IT).getName()).isEqualTo(IT);
+    assertThat(authSystem.loadOrgUnit(IT).getName()).isEqualTo(IT);
+    assertThat(calls("loadPerson")).isEqualTo(1L);
+    assertThat(calls("findGroupPersons")).isEqualTo(1L);
+    assertThat(calls("loadOrgUnit")).isEqualTo(1L);
+    assertThat(authSystem.getHits()).isEqualTo(3L);
+    assertThat(authSystem.getLoads()).isEqualTo(3L);
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    List<Future<Person>> loads = new ArrayList<Future<Person>>();
+    for (int i = 0; i < CALLERS; i++) {
+      loads.add(executor.submit(new Callable<Person>() {
+        @Override
+        public Person call() throws AppException {
+          return authSystem.loadPerson(JOHN);
+        }
+      }));
+    }
+    for (Future<Person> load : loads) {
+      assertThat(load.get().getSysName()).isEqualTo(JOHN);
+    }
+    assertThat(calls("loadPerson")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testNegative() throws AppException {
+    for (int i = 0; i < 3; i++) {
+      try {
+        authSystem.loadPerson("unknown");
+      } catch (AppException ex) {
+        // Expected
+      }
+    }
+    assertThat(calls("loadPerson")).isEqualTo(1L);
+    authSystem.createPerson(new PersonBuilder().setSysName("unknown")
+            .build());
+    assertThat(authSystem.loadPerson("unknown").getSysName())
+            .isEqualTo("unknown");
+  }
+
+  @Test
+  public void testWriteInvalidates() throws AppException {
+    authSystem.loadPerson(JOHN);
+    assertThat(authSystem.findOrgUnitPersons(IT)).containsOnly(JOHN, LUC);
+    assertThat(authSystem.findOrgUnitPersons(HR)).isEmpty();
+    authSystem.updatePerson(new PersonBuilder().setSysName(JOHN)
+            .setFullName("Johnny").setOrgUnitName(HR).build());
+    assertThat(authSystem.loadPerson(JOHN).getFullName())
+            .isEqualTo("Johnny");
+    assertThat(authSystem.findOrgUnitPersons(IT)).containsOnly(LUC);
+    assertThat(authSystem.findOrgUnitPersons(HR)).containsOnly(JOHN);
+    authSystem.findGroupPersons(ADMINS);
+    authSystem.attachGroupMember(ADMINS, LUC);
+    assertThat(authSystem.findGroupPersons(ADMINS)).containsOnly(JOHN, LUC);
+  }
+
+  @Test
+  public void testUncachedUpdate() throws AppException {
+    assertThat(authSystem.findOrgUnitPersons(IT)).containsOnly(JOHN, LUC);
+    authSystem.updatePerson(new PersonBuilder().setSysName(LUC)
+            .setOrgUnitName(HR).build());
+    assertThat(authSystem.findOrgUnitPersons(IT)).containsOnly(JOHN);
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    configure(CachingAuthSystem.CACHE_PERSON_TTL, "1");
+    authSystem.loadPerson(JOHN);
+    authSystem.loadGroup(ADMINS);
+    backend.updatePerson(new PersonBuilder().setSysName(JOHN)
+            .setFullName("Changed").build());
+    assertThat(authSystem.loadPerson(JOHN).getFullName()).isEqualTo("John");
+    Thread.sleep(1100L);
+    assertThat(authSystem.loadPerson(JOHN).getFullName())
+            .isEqualTo("Changed");
+    authSystem.loadGroup(ADMINS);
+    assertThat(calls("loadPerson")).isEqualTo(2L);
+    assertThat(calls("loadGroup")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testSizeBound() throws AppException {
+    configure(CachingAuthSystem.CACHE_SIZE, "4");
+    for (int i = 0; i < 30; i++) {
+      backend.createPerson(new PersonBuilder().setSysName("p" + i).build());
+    }
+    for (int i = 0; i < 30; i++) {
+      authSystem.loadPerson("p" + i);
+    }
+    calls.clear();
+    for (int i = 0; i < 30; i++) {
+      authSystem.loadPerson("p" + i);
+    }
+    assertThat(calls("loadPerson")).isGreaterThan(20L);
+  }
+
+  @Test
+  public void testInvalidateAll() throws AppException {
+    authSystem.loadPerson(JOHN);
+    backend.updatePerson(new PersonBuilder().setSysName(JOHN)
+            .setFullName("Changed").build());
+    authSystem.invalidateAll();
+    assertThat(authSystem.loadPerson(JOHN).getFullName())
+            .isEqualTo("Changed");
+  }
+
+  private void configure(final String key, final String value) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(key, value);
+    authSystem.configure(props);
+  }
+
+  private long calls(final String method) {
+    AtomicInteger count = calls.get(method);
+    return count == null ? 0L : count.get();
+  }
+
+  private AuthSystem slow(final AuthSystem delegate) {
+    return (AuthSystem) Proxy.newProxyInstance(
+            AuthSystem.class.getClassLoader(),
+            new Class<?>[]{AuthSystem.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(final Object proxy, final Method method,
+              final Object[] args) throws Throwable {
+        AtomicInteger count = new AtomicInteger();
+        AtomicInteger previous = calls.putIfAbsent(method.getName(), count);
+        (previous == null ? count : previous).incrementAndGet();
+        Thread.sleep(LATENCY_MILLIS);
+        try {
+          return method.invoke(delegate, args);
+        } catch (InvocationTargetException ex) {
+          throw ex.getCause();
+        }
+      }
+    });
+  }
+
+}
@@ -0,0 +1,192 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.ChangeEvent;
+import org.niaouli.auth.mem.ChangeListener;
+import org.niaouli.auth.mem.ChangeSubscription;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ChangeTest {
+
+  private static final String JOHN = "john";
+  private static final String ADMINS = "ADMINS";
+
+  private MemAuthSystem authSystem;
+  private Recorder recorder;
+  private ChangeSubscription subscription;
+
+  @Before
+  public void before() {
+    authSystem = new MemAuthSystem(true);
+    recorder = new Recorder();
+  }
+
+  @After
+  public void after() {
+    if (subscription != null) {
+      subscription.close();
+    }
+  }
+
+  @Test
+  public void testEvents() throws Exception {
+    subscription = authSystem.subscribe(recorder);
+    recorder.expect(5);
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, "secret");
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(ADMINS);
+    authSystem.createGroup(builder.build());
+    authSystem.attachGroupMember(ADMINS, JOHN);
+    authSystem.detachGroupMember(ADMINS, JOHN);
+    recorder.await();
+
+    List<ChangeEvent> events = recorder.getEvents();
+    assertThat(events).hasSize(5);
+    for (int i = 0; i < events.size(); i++) {
+      assertThat(events.get(i).getSequence()).isEqualTo(i + 1);
+    }
+    assertThat(events.get(0).getType())
+            .isEqualTo(ChangeEvent.Type.PERSON_CREATED);
+    assertThat(events.get(0).getPerson().getSysName()).isEqualTo(JOHN);
+    assertThat(events.get(1).getType())
+            .isEqualTo(ChangeEvent.Type.PASSWORD_UPDATED);
+    assertThat(events.get(1).getKey()).isEqualTo(JOHN);
+    assertThat(events.get(2).getGroup().getSysName()).isEqualTo(ADMINS);
+    assertThat(events.get(3).getType())
+            .isEqualTo(ChangeEvent.Type.MEMBER_ATTACHED);
+    assertThat(events.get(3).getMemberSysName()).isEqualTo(JOHN);
+    assertThat(events.get(4).getType())
+            .isEqualTo(ChangeEvent.Type.MEMBER_DETACHED);
+    assertThat(authSystem.getLastChangeSequence()).isEqualTo(5L);
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      createPerson("person" + i);
+    }
+    recorder.expect(4);
+    subscription = authSystem.subscribe(recorder, 7L);
+    recorder.await();
+    assertThat(recorder.getEvents()).hasSize(4);
+    assertThat(recorder.getEvents().get(0).getPerson().getSysName())
+            .isEqualTo("person6");
+    assertThat(recorder.getLost()).isEmpty();
+    subscription.close();
+    assertThat(subscription.getNextSequence()).isEqualTo(11L);
+  }
+
+  @Test
+  public void testLost() throws Exception {
+    authSystem.configure(Collections.singletonMap(
+            MemAuthSystem.CHANGES_CAPACITY, "3"));
+    for (int i = 0; i < 10; i++) {
+      createPerson("person" + i);
+    }
+    recorder.expect(3);
+    subscription = authSystem.subscribe(recorder, 1L);
+    recorder.await();
+    assertThat(recorder.getLost()).containsExactly(1L, 7L);
+    assertThat(recorder.getEvents()).hasSize(3);
+    assertThat(recorder.getEvents().get(0).getSequence()).isEqualTo(8L);
+  }
+
+  @Test
+  public void testListenerFailure() throws Exception {
+    final CountDownLatch called = new CountDownLatch(1);
+    subscription = authSystem.subscribe(new ChangeListener() {
+      @Override
+      public void onChanges(final List<ChangeEvent> events) {
+        called.countDown();
+        throw new IllegalStateException("Broken listener");
+      }
+
+      @Override
+      public void onChangesLost(final long firstLost, final long lastLost) {
+      }
+    });
+    createPerson(JOHN);
+    assertThat(called.await(10, TimeUnit.SECONDS)).isTrue();
+    subscription.close();
+    assertThat(subscription.isClosed()).isTrue();
+    assertThat(subscription.getFailure()).isNotNull();
+    // Writers go on
+    createPerson("luc");
+  }
+
+  private void createPerson(String sysName) throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+  }
+
+  private static class Recorder implements ChangeListener {
+
+    private final List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+    private final List<Long> lost = new ArrayList<Long>();
+    private CountDownLatch latch;
+
+    void expect(int count) {
+      latch = new CountDownLatch(count);
+    }
+
+    void await() throws InterruptedException {
+      assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    synchronized List<ChangeEvent> getEvents() {
+      return new ArrayList<ChangeEvent>(events);
+    }
+
+    synchronized List<Long> getLost() {
+      return new ArrayList<Long>(lost);
+    }
+
+    @Override
+    public synchronized void onChanges(List<ChangeEvent> batch) {
+      events.addAll(batch);
+      for (int i = 0; i < batch.size(); i++) {
+        latch.countDown();
+      }
+    }
+
+    @Override
+    public synchronized void onChangesLost(long firstLost, long lastLost) {
+      lost.add(firstLost);
+      lost.add(lastLost);
+    }
+  }
+}
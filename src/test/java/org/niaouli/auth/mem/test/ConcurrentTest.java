@@ -0,0 +1,157 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ConcurrentTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String IT = "IT";
+  private static final String PWD1 = "x!m141M";
+
+  private static final int THREADS = 8;
+  private static final int PERSONS = 1000;
+
+  private MemAuthSystem authSystem;
+  private ExecutorService executor;
+
+  @Before
+  public void before() {
+    authSystem = new MemAuthSystem(true);
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testMode() throws AppException {
+    assertThat(authSystem.isConcurrent()).isTrue();
+    assertThat(new MemAuthSystem().isConcurrent()).isFalse();
+  }
+
+  @Test
+  public void testNullKeys() throws AppException {
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isFalse();
+    assertThat(authSystem.isGroupMember(null, JOHN)).isFalse();
+    assertThat(authSystem.isEffectiveGroupMember(null, JOHN)).isFalse();
+    assertThat(authSystem.findOrgUnitPersons(null)).isEmpty();
+  }
+
+  @Test
+  public void testNullPassword() throws AppException {
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    authSystem.updatePersonPassword(JOHN, null);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isFalse();
+    assertThat(authSystem.checkCredentials(JOHN, null)).isFalse();
+    Map<String, String> newPasswords = new HashMap<String, String>();
+    newPasswords.put(JOHN, null);
+    authSystem.updatePersonPasswords(newPasswords);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+  }
+
+  @Test(expected = AppException.class)
+  public void testLoadNull() throws AppException {
+    authSystem.loadPerson(null);
+  }
+
+  @Test
+  public void testCreateRace() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < THREADS; i++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            createPerson(JOHN);
+            created.incrementAndGet();
+          } catch (AppException ex) {
+            // Lost the race
+          }
+          return null;
+        }
+      });
+    }
+    for (Future<Void> future : executor.invokeAll(tasks)) {
+      future.get();
+    }
+    assertThat(created.get()).isEqualTo(1);
+    assertThat(authSystem.findPersons()).hasSize(1);
+  }
+
+  @Test
+  public void testConcurrentAttach() throws Exception {
+    GroupBuilder groupBuilder = new GroupBuilder();
+    groupBuilder.setSysName(IT);
+    authSystem.createGroup(groupBuilder.build());
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS; t++) {
+      final int offset = t;
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws AppException {
+          for (int i = offset; i < PERSONS; i += THREADS) {
+            String sysName = "P" + i;
+            createPerson(sysName);
+            authSystem.updatePersonPassword(sysName, PWD1);
+            authSystem.attachGroupMember(IT, sysName);
+            assertThat(authSystem.checkCredentials(sysName, PWD1)).isTrue();
+          }
+          return null;
+        }
+      });
+    }
+    for (Future<Void> future : executor.invokeAll(tasks)) {
+      future.get();
+    }
+    assertThat(authSystem.findPersons()).hasSize(PERSONS);
+    assertThat(authSystem.findGroupPersons(IT)).hasSize(PERSONS);
+  }
+
+  private void createPerson(String sysName) throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+  }
+}
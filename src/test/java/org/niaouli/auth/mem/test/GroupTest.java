@@ -114,6 +114,97 @@ public class GroupTest {
 
     }
 
+    @Test
+    public void testPersonGroups() throws AppException {
+        createGroup(IT);
+        createGroup(AUDIT);
+        createPerson(JOHN);
+        createPerson(LUC);
+
+        assertThat(authSystem.findPersonGroups(JOHN)).isEmpty();
+        authSystem.attachGroupMember(IT, JOHN);
+        authSystem.attachGroupMember(AUDIT, JOHN);
+        authSystem.attachGroupMember(AUDIT, LUC);
+        assertThat(authSystem.findPersonGroups(JOHN)).containsOnly(IT, AUDIT);
+        assertThat(authSystem.findPersonGroups(LUC)).containsOnly(AUDIT);
+
+        authSystem.detachGroupMember(IT, JOHN);
+        assertThat(authSystem.findPersonGroups(JOHN)).containsOnly(AUDIT);
+    }
+
+    @Test(expected = AppException.class)
+    public void testLoadNoGroup() throws AppException {
+        authSystem.loadGroup(IT);
+    }
+
+    @Test(expected = AppException.class)
+    public void testGroupPersonsBlankSysName() throws AppException {
+        createGroup("  ");
+        authSystem.findGroupPersons("  ");
+    }
+
+    @Test(expected = AppException.class)
+    public void testPersonGroupsNoPerson() throws AppException {
+        authSystem.findPersonGroups(JOHN);
+    }
+
+    @Test
+    public void testIsGroupMember() throws AppException {
+        createGroup(IT);
+        createPerson(JOHN);
+        createPerson(LUC);
+        authSystem.attachGroupMember(IT, JOHN);
+        assertThat(authSystem.isGroupMember(IT, JOHN)).isTrue();
+        assertThat(authSystem.isGroupMember(IT, LUC)).isFalse();
+        assertThat(authSystem.isGroupMember(AUDIT, JOHN)).isFalse();
+        assertThat(authSystem.isGroupMember(null, null)).isFalse();
+        authSystem.detachGroupMember(IT, JOHN);
+        assertThat(authSystem.isGroupMember(IT, JOHN)).isFalse();
+    }
+
+    @Test
+    public void testPersonsInAllGroups() throws AppException {
+        createGroup(IT);
+        createGroup(AUDIT);
+        createPerson(JOHN);
+        createPerson(LUC);
+        authSystem.attachGroupMember(IT, JOHN);
+        authSystem.attachGroupMember(IT, LUC);
+        authSystem.attachGroupMember(AUDIT, LUC);
+        assertThat(authSystem.findPersonsInAllGroups(IT, AUDIT))
+                .containsOnly(LUC);
+        assertThat(authSystem.findPersonsInAllGroups(IT))
+                .containsOnly(JOHN, LUC);
+    }
+
+    @Test(expected = AppException.class)
+    public void testPersonsInAllGroupsNoGroup() throws AppException {
+        createGroup(IT);
+        authSystem.findPersonsInAllGroups(IT, AUDIT);
+    }
+
+    @Test
+    public void testLargeGroups() throws AppException {
+        createGroup(IT);
+        createGroup(AUDIT);
+        for (int i = 0; i < 20000; i++) {
+            createPerson("P" + i);
+            authSystem.attachGroupMember(IT, "P" + i);
+            if (i % 3 == 0) {
+                authSystem.attachGroupMember(AUDIT, "P" + i);
+            }
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            authSystem.detachGroupMember(IT, "P" + i);
+        }
+        assertThat(authSystem.findGroupPersons(IT)).hasSize(10000);
+        assertThat(authSystem.isGroupMember(IT, "P1")).isTrue();
+        assertThat(authSystem.isGroupMember(IT, "P2")).isFalse();
+        // Odd multiples of 3
+        assertThat(authSystem.findPersonsInAllGroups(IT, AUDIT))
+                .hasSize(3333);
+    }
+
     private void createGroup(String sysName) throws AppException {
         GroupBuilder builder = new GroupBuilder();
         builder.setSysName(sysName);
@@ -0,0 +1,240 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.mem.DirectoryImporter;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ImportTest {
+
+  private static final int PERSONS = 500;
+
+  private static final int CHUNK_BYTES = 256;
+
+  private File file;
+  private MemAuthSystem authSystem;
+  private ForkJoinPool pool;
+  private DirectoryImporter importer;
+
+  @Before
+  public void before() throws IOException {
+    file = File.createTempFile("import", ".txt");
+    authSystem = new MemAuthSystem(true);
+    pool = new ForkJoinPool(4);
+    importer = new DirectoryImporter(authSystem, CHUNK_BYTES, pool);
+  }
+
+  @After
+  public void after() {
+    pool.shutdownNow();
+    file.delete();
+  }
+
+  @Test
+  public void testCsv() throws Exception {
+    StringBuilder csv = new StringBuilder();
+    csv.append("# members first, the importer does not care\r\n");
+    for (int i = 0; i < PERSONS; i++) {
+      csv.append("member,").append(i % 2 == 0 ? "EVEN" : "ODD").append(',')
+              .append(sysName(i)).append("\r\n");
+    }
+    csv.append("subGroup,ALL,EVEN\r\nsubGroup,ALL,ODD\r\n");
+    csv.append("group,ALL,\"All, really\"\r\ngroup,EVEN\r\ngroup,ODD\r\n");
+    csv.append("\r\n");
+    for (int i = 0; i < PERSONS; i++) {
+      csv.append("person,").append(sysName(i)).append(",\"Person \"\"")
+              .append(i).append("\"\"\",IT,pwd").append(i).append("\r\n");
+    }
+    csv.append("orgUnit,IT,COMPANY\norgUnit,COMPANY\n");
+    write(csv.toString());
+    final List<long[]> reports = new ArrayList<long[]>();
+    long records = importer.importCsv(file, new DirectoryImporter.Progress() {
+      @Override
+      public void onProgress(final long readBytes, final long totalBytes,
+              final long recordCount) {
+        reports.add(new long[]{readBytes, totalBytes, recordCount});
+      }
+    });
+    assertThat(records).isEqualTo(PERSONS * 2 + 7);
+    long[] last = reports.get(reports.size() - 1);
+    assertThat(reports.size()).isGreaterThan(2L);
+    assertThat(last[0]).isEqualTo(last[1]);
+    assertThat(last[1]).isEqualTo(2 * file.length());
+    assertThat(last[2]).isEqualTo(records);
+    assertThat(authSystem.getPersonCount()).isEqualTo(PERSONS);
+    assertThat(authSystem.loadPerson(sysName(7)).getFullName())
+            .isEqualTo("Person \"7\"");
+    assertThat(authSystem.checkCredentials(sysName(7), "pwd7")).isTrue();
+    assertThat(authSystem.loadGroup("ALL").getDescription())
+            .isEqualTo("All, really");
+    assertThat(authSystem.findGroupPersons("EVEN")).hasSize(PERSONS / 2);
+    assertThat(authSystem.findEffectiveGroupPersons("ALL")).hasSize(PERSONS);
+    assertThat(authSystem.findOrgUnitParent("IT")).isEqualTo("COMPANY");
+    assertThat(authSystem.findOrgUnitTreePersons("COMPANY"))
+            .hasSize(PERSONS);
+  }
+
+  @Test
+  public void testLdif() throws Exception {
+    StringBuilder ldif = new StringBuilder("version: 1\n\n");
+    ldif.append("dn: ou=IT,ou=COMPANY,dc=example,dc=org\n")
+            .append("objectClass: organizationalUnit\nou: IT\n\n");
+    ldif.append("dn: ou=COMPANY,dc=example,dc=org\n")
+            .append("objectClass: organizationalUnit\nou: COMPANY\n\n");
+    ldif.append("dn: cn=staff,ou=groups,dc=example,dc=org\n")
+            .append("objectClass: groupOfNames\ncn: staff\n")
+            .append("description: Every\n  one\n");
+    for (int i = 0; i < PERSONS; i++) {
+      ldif.append("member: uid=").append(sysName(i))
+              .append(",ou=IT,ou=COMPANY,dc=example,dc=org\n");
+    }
+    ldif.append("member: cn=admins,ou=groups,dc=example,dc=org\n\n");
+    ldif.append("dn: cn=admins,ou=groups,dc=example,dc=org\n")
+            .append("objectClass: posixGroup\ncn: admins\n")
+            .append("memberUid: ").append(sysName(1)).append("\n\n");
+    for (int i = 0; i < PERSONS; i++) {
+      ldif.append("# person ").append(i).append('\n')
+              .append("dn: uid=").append(sysName(i))
+              .append(",ou=IT,ou=COMPANY,dc=example,dc=org\n")
+              .append("objectClass: top\nobjectClass: inetOrgPerson\n")
+              .append("uid: ").append(sysName(i)).append('\n')
+              .append("cn:: UGVyc29ubmUgw6k=\n")
+              .append("userPassword: pwd").append(i).append("\n\n");
+    }
+    write(ldif.toString());
+    long records = importer.importLdif(file, null);
+    assertThat(records).isEqualTo(PERSONS + 4);
+    assertThat(authSystem.getPersonCount()).isEqualTo(PERSONS);
+    assertThat(authSystem.loadPerson(sysName(3)).getFullName())
+            .isEqualTo("Personne \u00e9");
+    assertThat(authSystem.loadPerson(sysName(3)).getOrgUnitName())
+            .isEqualTo("IT");
+    assertThat(authSystem.checkCredentials(sysName(3), "pwd3")).isTrue();
+    assertThat(authSystem.loadGroup("staff").getDescription())
+            .isEqualTo("Every one");
+    assertThat(authSystem.findGroupPersons("staff")).hasSize(PERSONS);
+    assertThat(authSystem.findSubGroups("staff")).containsOnly("admins");
+    assertThat(authSystem.findGroupPersons("admins"))
+            .containsOnly(sysName(1));
+    assertThat(authSystem.findOrgUnitParent("IT")).isEqualTo("COMPANY");
+  }
+
+  @Test
+  public void testLdifPasswordSchemes() throws Exception {
+    StringBuilder ldif = new StringBuilder("version: 1\n\n");
+    String[] passwords = {"{SSHA}W6ph5Mm5Pz8GgiULbPgzG37mj9g=",
+      "{CLEARTEXT}secret", "{not hashed}secret"};
+    for (int i = 0; i < passwords.length; i++) {
+      ldif.append("dn: uid=").append(sysName(i)).append(",dc=example,dc=org\n")
+              .append("objectClass: person\n")
+              .append("uid: ").append(sysName(i)).append('\n')
+              .append("userPassword: ").append(passwords[i]).append("\n\n");
+    }
+    write(ldif.toString());
+    importer.importLdif(file, null);
+    assertThat(authSystem.getPersonCount()).isEqualTo(3);
+    assertThat(authSystem.checkCredentials(sysName(0), passwords[0]))
+            .isFalse();
+    assertThat(authSystem.checkCredentials(sysName(1), "secret")).isTrue();
+    assertThat(authSystem.checkCredentials(sysName(2), passwords[2]))
+            .isTrue();
+  }
+
+  @Test
+  public void testHashedPasswords() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH,
+            MemAuthSystem.PASSWORD_HASH_PBKDF2);
+    props.put(MemAuthSystem.PASSWORD_HASH_ITERATIONS, "1000");
+    authSystem.configure(props);
+    write("person,john,John,,secret\n");
+    importer.importCsv(file, null);
+    assertThat(authSystem.checkCredentials("john", "secret")).isTrue();
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidRecord() throws Exception {
+    write("person,john\nmanager,john,luc\n");
+    importer.importCsv(file, null);
+  }
+
+  @Test
+  public void testInvalidRecordHidesPassword() throws Exception {
+    write("person,john,John,,\"secret\n");
+    try {
+      importer.importCsv(file, null);
+    } catch (IOException ex) {
+      assertThat(ex.getMessage()).doesNotContain("secret").contains("line 1");
+      write("dn: cn=john\nobjectClass: person\nuserPassword:: secret=x\n");
+      try {
+        importer.importLdif(file, null);
+      } catch (IOException ldifEx) {
+        assertThat(ldifEx.getMessage()).doesNotContain("secret");
+        return;
+      }
+    }
+    throw new AssertionError("Invalid record imported");
+  }
+
+  @Test(expected = AppException.class)
+  public void testRejectedRecord() throws Exception {
+    write("person,john\nperson,john\n");
+    importer.importCsv(file, null);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    write("");
+    assertThat(importer.importCsv(file, null)).isEqualTo(0L);
+    assertThat(importer.importLdif(file, null)).isEqualTo(0L);
+  }
+
+  private void write(final String text) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+            "UTF-8");
+    try {
+      writer.write(text);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String sysName(final int i) {
+    return "person" + i;
+  }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class JournalTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String LUC = "LUC";
+  private static final String IT = "IT";
+  private static final String MARKETING = "Marketing";
+  private static final String FULLNAME = "Someone's name";
+
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+
+  private File directory;
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws IOException {
+    directory = File.createTempFile("journal", "");
+    directory.delete();
+    authSystem = open();
+  }
+
+  @After
+  public void after() throws IOException {
+    authSystem.closeJournal();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    populate();
+    authSystem = reopen();
+    checkPopulated();
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    populate();
+    authSystem.snapshot();
+    assertThat(new File(directory, "journal.log").length()).isEqualTo(0L);
+    authSystem.updatePersonPassword(LUC, PWD1);
+    authSystem = reopen();
+    checkPopulated();
+    assertThat(authSystem.checkCredentials(LUC, PWD1)).isTrue();
+  }
+
+  @Test
+  public void testAutomaticSnapshot() throws Exception {
+    authSystem.closeJournal();
+    authSystem = new MemAuthSystem(true);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.JOURNAL_SNAPSHOT_RECORDS, "2");
+    authSystem.configure(props);
+    authSystem.openJournal(directory);
+    populate();
+    authSystem = reopen();
+    assertThat(new File(directory, "snapshot.bin").exists()).isTrue();
+    checkPopulated();
+  }
+
+  @Test
+  public void testTornTail() throws Exception {
+    populate();
+    authSystem.closeJournal();
+    FileOutputStream log = new FileOutputStream(new File(directory,
+            "journal.log"), true);
+    log.write(new byte[]{0, 0, 0, 42, 0, 0});
+    log.close();
+    authSystem = open();
+    checkPopulated();
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    authSystem = reopen();
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+  }
+
+  @Test
+  public void testCorruptLength() throws Exception {
+    populate();
+    authSystem.closeJournal();
+    FileOutputStream log = new FileOutputStream(new File(directory,
+            "journal.log"), true);
+    log.write(new byte[]{0x7f, -1, -1, -1, 0, 0, 0, 0, 0, 0, 0, 42, 0, 0});
+    log.close();
+    authSystem = open();
+    checkPopulated();
+  }
+
+  @Test(expected = IOException.class)
+  public void testSequenceRegression() throws Exception {
+    populate();
+    authSystem.closeJournal();
+    File file = new File(directory, "journal.log");
+    byte[] records = Files.readAllBytes(file.toPath());
+    FileOutputStream log = new FileOutputStream(file, true);
+    log.write(records);
+    log.close();
+    authSystem = open();
+  }
+
+  @Test
+  public void testSnapshotKeepsLaterRecords() throws Exception {
+    populate();
+    authSystem.snapshot();
+    authSystem.updatePersonPassword(LUC, PWD1);
+    authSystem.snapshot();
+    authSystem.updatePersonPassword(LUC, PWD2);
+    authSystem = reopen();
+    checkPopulated();
+    assertThat(authSystem.checkCredentials(LUC, PWD2)).isTrue();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotEmpty() throws Exception {
+    authSystem.closeJournal();
+    authSystem.createPerson(new PersonBuilder().setSysName(JOHN).build());
+    authSystem.openJournal(directory);
+  }
+
+  private MemAuthSystem open() throws IOException {
+    MemAuthSystem opened = new MemAuthSystem(true);
+    opened.openJournal(directory);
+    return opened;
+  }
+
+  private MemAuthSystem reopen() throws IOException {
+    authSystem.closeJournal();
+    return open();
+  }
+
+  private void populate() throws AppException {
+    OrgUnitBuilder orgUnitBuilder = new OrgUnitBuilder();
+    orgUnitBuilder.setName(MARKETING);
+    authSystem.createOrgUnit(orgUnitBuilder.build());
+    GroupBuilder groupBuilder = new GroupBuilder();
+    groupBuilder.setSysName(IT);
+    authSystem.createGroup(groupBuilder.build());
+    for (String sysName : new String[]{JOHN, LUC}) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName);
+      authSystem.createPerson(builder.build());
+      authSystem.attachGroupMember(IT, sysName);
+    }
+    PersonBuilder builder = new PersonBuilder(authSystem.loadPerson(JOHN));
+    builder.setFullName(FULLNAME);
+    builder.setOrgUnitName(MARKETING);
+    authSystem.updatePerson(builder.build());
+    authSystem.updatePersonPassword(JOHN, PWD2);
+    authSystem.detachGroupMember(IT, LUC);
+  }
+
+  private void checkPopulated() throws AppException {
+    assertThat(authSystem.findPersons()).hasSize(2);
+    assertThat(authSystem.loadPerson(JOHN).getFullName()).isEqualTo(FULLNAME);
+    assertThat(authSystem.findOrgUnits()).hasSize(1);
+    assertThat(authSystem.findOrgUnitPersons(MARKETING)).containsOnly(JOHN);
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(JOHN);
+    assertThat(authSystem.findPersonGroups(JOHN)).containsOnly(IT);
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isTrue();
+  }
+}
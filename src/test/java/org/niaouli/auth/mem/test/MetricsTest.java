@@ -0,0 +1,160 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.auth.mem.Ticker;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class MetricsTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String IT = "IT";
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+  private static final long LATENCY_NANOS = 600000000L;
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(JOHN);
+    authSystem.createPerson(builder.build());
+    authSystem.updatePersonPassword(JOHN, PWD1);
+  }
+
+  @Test
+  public void testCounts() throws AppException {
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(IT);
+    authSystem.createGroup(builder.build());
+    authSystem.attachGroupMember(IT, JOHN);
+    authSystem.loadPerson(JOHN);
+    authSystem.findPersons();
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isFalse();
+    assertThat(authSystem.checkCredentials("nobody", PWD2)).isFalse();
+
+    assertThat(authSystem.getMutations().getCount()).isEqualTo(3L);
+    assertThat(authSystem.getMembershipChanges().getCount()).isEqualTo(1L);
+    assertThat(authSystem.getLoads().getCount()).isEqualTo(1L);
+    assertThat(authSystem.getFinds().getCount()).isEqualTo(1L);
+    assertThat(authSystem.getSuccessfulCredentialChecks().getCount())
+            .isEqualTo(1L);
+    assertThat(authSystem.getFailedCredentialChecks().getCount())
+            .isEqualTo(2L);
+    assertThat(authSystem.getMutations().getMaxNanos())
+            .isGreaterThan(0L);
+    assertThat(authSystem.getPersonCount()).isEqualTo(1);
+    assertThat(authSystem.getGroupCount()).isEqualTo(1);
+    assertThat(authSystem.getMembershipCount()).isEqualTo(1L);
+    assertThat(authSystem.getEstimatedHeapBytes()).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testFailedLoadIsMeasured() {
+    try {
+      authSystem.loadPerson("nobody");
+    } catch (AppException ex) {
+      assertThat(authSystem.getLoads().getCount()).isEqualTo(1L);
+      return;
+    }
+    throw new AssertionError("Unknown person loaded");
+  }
+
+  @Test
+  public void testHealth() throws AppException {
+    assertThat(authSystem.checkHealth()).isTrue();
+    configure(MemAuthSystem.HEALTH_MAX_LATENCY, "0");
+    authSystem.loadPerson(JOHN);
+    // Every latency is over 0 ms, until the next check
+    assertThat(authSystem.isHealthy()).isFalse();
+    assertThat(authSystem.isHealthy()).isFalse();
+    assertThat(authSystem.checkHealth()).isFalse();
+    assertThat(authSystem.checkHealth()).isTrue();
+  }
+
+  @Test
+  public void testHealthLatencyLimit() throws AppException {
+    // Every operation lasts 600 ms
+    authSystem.setTicker(new Ticker() {
+      private long now = 1L;
+
+      @Override
+      public long read() {
+        now += LATENCY_NANOS;
+        return now;
+      }
+    });
+    configure(MemAuthSystem.HEALTH_MAX_LATENCY, "1000");
+    for (int i = 0; i < 100; i++) {
+      authSystem.loadPerson(JOHN);
+    }
+    assertThat(authSystem.getLoads().getP99Nanos())
+            .isGreaterThanOrEqualTo(LATENCY_NANOS);
+    assertThat(authSystem.checkHealth()).isTrue();
+    configure(MemAuthSystem.HEALTH_MAX_LATENCY, "500");
+    authSystem.loadPerson(JOHN);
+    assertThat(authSystem.checkHealth()).isFalse();
+  }
+
+  @Test
+  public void testDisabled() throws AppException {
+    configure(MemAuthSystem.METRICS, "false");
+    authSystem.loadPerson(JOHN);
+    assertThat(authSystem.getLoads().getCount()).isEqualTo(0L);
+    assertThat(authSystem.checkHealth()).isTrue();
+  }
+
+  @Test
+  public void testMBean() throws JMException {
+    authSystem.registerMBean("test");
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+              "org.niaouli.auth.mem:type=MemAuthSystem,name=\"test\"");
+      assertThat(server.getAttribute(name, "PersonCount")).isEqualTo(1);
+      assertThat(server.getAttribute(name, "Loads")).isNotNull();
+    } finally {
+      authSystem.unregisterMBean();
+    }
+  }
+
+  private void configure(String key, String value) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(key, value);
+    authSystem.configure(props);
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class NestedGroupTest {
+
+  private static final String JOHN = "john";
+  private static final String LUC = "luc";
+  private static final String ANN = "ann";
+
+  private static final String COMPANY = "COMPANY";
+  private static final String IT = "IT";
+  private static final String DEV = "DEV";
+  private static final String OPS = "OPS";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    for (String sysName : new String[]{JOHN, LUC, ANN}) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName);
+      authSystem.createPerson(builder.build());
+    }
+    for (String sysName : new String[]{COMPANY, IT, DEV, OPS}) {
+      GroupBuilder builder = new GroupBuilder();
+      builder.setSysName(sysName);
+      authSystem.createGroup(builder.build());
+    }
+    // COMPANY > IT > DEV, OPS
+    authSystem.attachSubGroup(COMPANY, IT);
+    authSystem.attachSubGroup(IT, DEV);
+    authSystem.attachSubGroup(IT, OPS);
+  }
+
+  @Test
+  public void testEffectiveMembers() throws AppException {
+    authSystem.attachGroupMember(DEV, JOHN);
+    authSystem.attachGroupMember(COMPANY, ANN);
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, JOHN)).isTrue();
+    assertThat(authSystem.isEffectiveGroupMember(IT, JOHN)).isTrue();
+    assertThat(authSystem.isEffectiveGroupMember(OPS, JOHN)).isFalse();
+    assertThat(authSystem.isEffectiveGroupMember(IT, ANN)).isFalse();
+    assertThat(authSystem.isGroupMember(COMPANY, JOHN)).isFalse();
+    assertThat(authSystem.findEffectiveGroupPersons(COMPANY))
+            .containsOnly(JOHN, ANN);
+    assertThat(authSystem.findSubGroups(IT)).containsOnly(DEV, OPS);
+  }
+
+  @Test
+  public void testDetachKeepsOtherPaths() throws AppException {
+    authSystem.attachGroupMember(DEV, JOHN);
+    authSystem.attachGroupMember(OPS, JOHN);
+    authSystem.detachGroupMember(DEV, JOHN);
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, JOHN)).isTrue();
+    authSystem.detachGroupMember(OPS, JOHN);
+    assertThat(authSystem.isEffectiveGroupMember(IT, JOHN)).isFalse();
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, JOHN)).isFalse();
+  }
+
+  @Test
+  public void testSubGroupChanges() throws AppException {
+    authSystem.attachGroupMember(DEV, JOHN);
+    authSystem.attachGroupMember(IT, LUC);
+    authSystem.detachSubGroup(IT, DEV);
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, JOHN)).isFalse();
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, LUC)).isTrue();
+    authSystem.attachSubGroup(COMPANY, DEV);
+    assertThat(authSystem.isEffectiveGroupMember(COMPANY, JOHN)).isTrue();
+    assertThat(authSystem.isEffectiveGroupMember(IT, JOHN)).isFalse();
+  }
+
+  @Test(expected = AppException.class)
+  public void testSelfCycle() throws AppException {
+    authSystem.attachSubGroup(IT, IT);
+  }
+
+  @Test
+  public void testIndirectCycle() throws AppException {
+    try {
+      authSystem.attachSubGroup(DEV, COMPANY);
+      throw new AssertionError("Expected a cycle");
+    } catch (AppException ex) {
+      // Unchanged
+      assertThat(authSystem.findSubGroups(DEV)).isEmpty();
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    authSystem.attachGroupMember(DEV, JOHN);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(authSystem);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    MemAuthSystem copy = (MemAuthSystem) in.readObject();
+    assertThat(copy.isEffectiveGroupMember(COMPANY, JOHN)).isTrue();
+    assertThat(copy.findSubGroups(COMPANY)).containsOnly(IT);
+  }
+}
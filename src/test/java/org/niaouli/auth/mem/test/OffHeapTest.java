@@ -0,0 +1,246 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class OffHeapTest {
+
+  private static final int PERSONS = 5000;
+
+  private static final int GROWTH_PERSONS = 50000;
+
+  private static final String OU = "OU";
+
+  private File directory;
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws IOException {
+    directory = File.createTempFile("offheap", "");
+    directory.delete();
+    directory.mkdir();
+    authSystem = new MemAuthSystem(true);
+  }
+
+  @After
+  public void after() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testDirect() throws AppException {
+    configure(null);
+    populate();
+    checkPopulated();
+  }
+
+  @Test
+  public void testMapped() throws AppException {
+    configure(directory.getPath());
+    populate();
+    checkPopulated();
+    assertThat(directory.listFiles().length).isEqualTo(0L);
+  }
+
+  @Test
+  public void testUpdates() throws AppException {
+    configure(null);
+    populate();
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < PERSONS; i++) {
+        authSystem.updatePersonPassword(sysName(i), "password" + round);
+      }
+    }
+    authSystem.updatePerson(new PersonBuilder().setSysName(sysName(0))
+            .setFullName("Renamed").build());
+    assertThat(authSystem.checkCredentials(sysName(1), "password9")).isTrue();
+    assertThat(authSystem.checkCredentials(sysName(1), "password8"))
+            .isFalse();
+    assertThat(authSystem.loadPerson(sysName(0)).getFullName())
+            .isEqualTo("Renamed");
+    assertThat(authSystem.loadPerson(sysName(0)).getOrgUnitName()).isNull();
+    assertThat(authSystem.getPersonCount()).isEqualTo(PERSONS);
+    // The search reads the names from the store
+    assertThat(authSystem.searchPersons("renamed", 10)).hasSize(1);
+    assertThat(authSystem.searchPersons("person 1234", 10).get(0)
+            .getSysName()).isEqualTo(sysName(1234));
+  }
+
+  @Test
+  public void testNullPassword() throws AppException {
+    configure(null);
+    populate();
+    authSystem.updatePersonPassword(sysName(1), null);
+    assertThat(authSystem.checkCredentials(sysName(1), "password1"))
+            .isFalse();
+    assertThat(authSystem.getPersonCount()).isEqualTo(PERSONS);
+    authSystem.updatePersonPassword(sysName(1), "password1");
+    assertThat(authSystem.checkCredentials(sysName(1), "password1")).isTrue();
+  }
+
+  @Test
+  public void testFindPersons() throws AppException {
+    configure(null);
+    populate();
+    List<String> sysNames = new ArrayList<String>();
+    for (Person person : authSystem.findPersons()) {
+      sysNames.add(person.getSysName());
+    }
+    assertThat(sysNames).hasSize(PERSONS);
+    assertThat(sysNames).contains(sysName(0), sysName(PERSONS - 1));
+  }
+
+  @Test
+  public void testUnknown() throws AppException {
+    configure(null);
+    populate();
+    assertThat(authSystem.checkCredentials("unknown", "password"))
+            .isFalse();
+  }
+
+  @Test
+  public void testCredentialCache() throws AppException {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PERSONS_STORE,
+            MemAuthSystem.PERSONS_STORE_OFF_HEAP);
+    props.put(MemAuthSystem.CREDENTIAL_CACHE_SIZE, "10");
+    authSystem.configure(props);
+    populate();
+    assertThat(authSystem.checkCredentials(sysName(1), "password1")).isTrue();
+    assertThat(authSystem.checkCredentials(sysName(1), "password1")).isTrue();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(1L);
+    authSystem.updatePersonPassword(sysName(1), "changed");
+    assertThat(authSystem.checkCredentials(sysName(1), "password1"))
+            .isFalse();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testHeapFlat() throws AppException {
+    long onHeap = heapGrowth(new MemAuthSystem(true));
+    configure(null);
+    long offHeap = heapGrowth(authSystem);
+    // Only the identifiers, sorted system names and postings stay on heap
+    assertThat(offHeap).isLessThan(onHeap / 3);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotEmpty() throws AppException {
+    populate();
+    configure(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownStore() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PERSONS_STORE, "disk");
+    authSystem.configure(props);
+  }
+
+  private void configure(final String path) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PERSONS_STORE,
+            MemAuthSystem.PERSONS_STORE_OFF_HEAP);
+    if (path != null) {
+      props.put(MemAuthSystem.PERSONS_STORE_DIRECTORY, path);
+    }
+    authSystem.configure(props);
+    authSystem.configure(props);
+  }
+
+  private void populate() throws AppException {
+    authSystem.createOrgUnit(new OrgUnitBuilder().setName(OU).build());
+    for (int i = 0; i < PERSONS; i++) {
+      authSystem.createPerson(new PersonBuilder().setSysName(sysName(i))
+              .setFullName("Person \u00e9 " + i).setOrgUnitName(OU).build());
+      authSystem.updatePersonPassword(sysName(i), "password" + i);
+    }
+  }
+
+  private void checkPopulated() throws AppException {
+    assertThat(authSystem.getPersonCount()).isEqualTo(PERSONS);
+    assertThat(authSystem.getOffHeapBytes()).isPositive();
+    for (int i = 0; i < PERSONS; i++) {
+      Person person = authSystem.loadPerson(sysName(i));
+      assertThat(person.getSysName()).isEqualTo(sysName(i));
+      assertThat(person.getFullName()).isEqualTo("Person \u00e9 " + i);
+      assertThat(person.getOrgUnitName()).isEqualTo(OU);
+      assertThat(authSystem.checkCredentials(sysName(i), "password" + i))
+              .isTrue();
+    }
+    assertThat(authSystem.findOrgUnitPersons(OU)).hasSize(PERSONS);
+  }
+
+  private static long heapGrowth(final MemAuthSystem system)
+          throws AppException {
+    addPersons(system, 0);
+    long before = usedHeap();
+    addPersons(system, GROWTH_PERSONS);
+    return usedHeap() - before;
+  }
+
+  private static void addPersons(final MemAuthSystem system,
+          final int first) throws AppException {
+    Map<String, String> passwords = new HashMap<String, String>();
+    List<Person> newPersons = new ArrayList<Person>();
+    for (int i = first; i < first + GROWTH_PERSONS; i++) {
+      newPersons.add(new PersonBuilder().setSysName(sysName(i))
+              .setFullName("Person with a long full name, number " + i)
+              .build());
+      passwords.put(sysName(i), "a rather long password " + i);
+    }
+    system.createPersons(newPersons);
+    system.updatePersonPasswords(passwords);
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+            .getUsed();
+  }
+
+  private static String sysName(final int i) {
+    return "person" + i;
+  }
+
+}
@@ -21,6 +21,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.niaouli.auth.OrgUnit;
 import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.PersonBuilder;
 import org.niaouli.auth.mem.MemAuthSystem;
 import org.niaouli.exception.AppException;
 
@@ -31,6 +32,10 @@ import org.niaouli.exception.AppException;
 public class OrgUnitTest {
 
     private static final String MARKETING = "Marketing";
+    private static final String SALES = "Sales";
+
+    private static final String JOHN = "JOHN";
+    private static final String LUC = "LUC";
 
     private MemAuthSystem authSystem;
 
@@ -48,6 +53,33 @@ public class OrgUnitTest {
         assertThat(authSystem.findOrgUnits()).are(new OrgUnitNameCondition(MARKETING));
     }
 
+    @Test
+    public void testPersons() throws AppException {
+        createOrgUnit(MARKETING);
+        createOrgUnit(SALES);
+        assertThat(authSystem.findOrgUnitPersons(MARKETING)).isEmpty();
+        createPerson(JOHN, MARKETING);
+        createPerson(LUC, null);
+        assertThat(authSystem.findOrgUnitPersons(MARKETING)).containsOnly(JOHN);
+        assertThat(authSystem.findOrgUnitPersons(SALES)).isEmpty();
+
+        PersonBuilder builder = new PersonBuilder(authSystem.loadPerson(JOHN));
+        builder.setOrgUnitName(SALES);
+        authSystem.updatePerson(builder.build());
+        builder = new PersonBuilder(authSystem.loadPerson(LUC));
+        builder.setOrgUnitName(SALES);
+        authSystem.updatePerson(builder.build());
+        assertThat(authSystem.findOrgUnitPersons(MARKETING)).isEmpty();
+        assertThat(authSystem.findOrgUnitPersons(SALES)).containsOnly(JOHN, LUC);
+    }
+
+    private void createPerson(String sysName, String orgUnitName) throws AppException {
+        PersonBuilder builder = new PersonBuilder();
+        builder.setSysName(sysName);
+        builder.setOrgUnitName(orgUnitName);
+        authSystem.createPerson(builder.build());
+    }
+
     private void createOrgUnit(String name) throws AppException {
         OrgUnitBuilder builder = new OrgUnitBuilder();
         builder.setName(name);
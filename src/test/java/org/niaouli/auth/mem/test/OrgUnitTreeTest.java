@@ -0,0 +1,152 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class OrgUnitTreeTest {
+
+  private static final String JOHN = "john";
+  private static final String LUC = "luc";
+  private static final String ANN = "ann";
+
+  private static final String COMPANY = "Company";
+  private static final String MARKETING = "Marketing";
+  private static final String WEB = "Web";
+  private static final String SALES = "Sales";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    for (String name : new String[]{COMPANY, MARKETING, WEB, SALES}) {
+      createOrgUnit(name);
+    }
+    authSystem.moveOrgUnit(MARKETING, COMPANY);
+    authSystem.moveOrgUnit(WEB, MARKETING);
+    authSystem.moveOrgUnit(SALES, COMPANY);
+    createPerson(JOHN, MARKETING);
+    createPerson(LUC, WEB);
+    createPerson(ANN, SALES);
+  }
+
+  @Test
+  public void testHierarchy() throws AppException {
+    assertThat(authSystem.findOrgUnitParent(WEB)).isEqualTo(MARKETING);
+    assertThat(authSystem.findOrgUnitParent(COMPANY)).isNull();
+    assertThat(authSystem.findOrgUnitChildren(COMPANY))
+            .containsOnly(MARKETING, SALES);
+  }
+
+  @Test
+  public void testTreePersons() throws AppException {
+    assertThat(authSystem.findOrgUnitTreePersons(MARKETING))
+            .containsOnly(JOHN, LUC);
+    assertThat(authSystem.findOrgUnitTreePersons(COMPANY))
+            .containsOnly(JOHN, LUC, ANN);
+    assertThat(authSystem.findOrgUnitTreePersons(WEB)).containsOnly(LUC);
+    assertThat(authSystem.findOrgUnitPersons(MARKETING)).containsOnly(JOHN);
+  }
+
+  @Test
+  public void testMove() throws AppException {
+    authSystem.moveOrgUnit(MARKETING, SALES);
+    assertThat(authSystem.findOrgUnitTreePersons(SALES))
+            .containsOnly(JOHN, LUC, ANN);
+    assertThat(authSystem.findOrgUnitChildren(COMPANY)).containsOnly(SALES);
+    authSystem.moveOrgUnit(WEB, null);
+    assertThat(authSystem.findOrgUnitTreePersons(COMPANY))
+            .containsOnly(JOHN, ANN);
+    assertThat(authSystem.findOrgUnitParent(WEB)).isNull();
+  }
+
+  @Test
+  public void testManyMoves() throws AppException {
+    for (int i = 0; i < 200; i++) {
+      String name = "Team" + i;
+      createOrgUnit(name);
+      authSystem.moveOrgUnit(name, WEB);
+      createPerson("person" + i, name);
+    }
+    for (int i = 0; i < 200; i += 2) {
+      authSystem.moveOrgUnit("Team" + i, "Team" + (i + 1));
+    }
+    assertThat(authSystem.findOrgUnitTreePersons(COMPANY)).hasSize(203);
+    assertThat(authSystem.findOrgUnitTreePersons("Team1"))
+            .containsOnly("person0", "person1");
+    assertThat(authSystem.findOrgUnitChildren(WEB)).hasSize(100);
+  }
+
+  @Test(expected = AppException.class)
+  public void testMoveUnderItself() throws AppException {
+    authSystem.moveOrgUnit(MARKETING, MARKETING);
+  }
+
+  @Test
+  public void testMoveUnderDescendant() throws AppException {
+    try {
+      authSystem.moveOrgUnit(COMPANY, WEB);
+      throw new AssertionError("Expected a cycle");
+    } catch (AppException ex) {
+      assertThat(authSystem.findOrgUnitParent(COMPANY)).isNull();
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(authSystem);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    MemAuthSystem copy = (MemAuthSystem) in.readObject();
+    assertThat(copy.findOrgUnitParent(WEB)).isEqualTo(MARKETING);
+    assertThat(copy.findOrgUnitTreePersons(COMPANY))
+            .containsOnly(JOHN, LUC, ANN);
+  }
+
+  private void createOrgUnit(String name) throws AppException {
+    OrgUnitBuilder builder = new OrgUnitBuilder();
+    builder.setName(name);
+    authSystem.createOrgUnit(builder.build());
+  }
+
+  private void createPerson(String sysName, String orgUnitName)
+          throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    builder.setOrgUnitName(orgUnitName);
+    authSystem.createPerson(builder.build());
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class PageTest {
+
+  private static final String JO = "jo";
+  private static final String JOAN = "joan";
+  private static final String JOE = "joe";
+  private static final String JOHN = "john";
+  private static final String LUC = "luc";
+  private static final String ANN = "ann";
+
+  private static final String IT = "IT";
+  private static final String IT_AUDIT = "IT-AUDIT";
+  private static final String MARKETING = "MARKETING";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    for (String sysName : new String[]{LUC, JOHN, ANN, JOE, JO, JOAN}) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName);
+      authSystem.createPerson(builder.build());
+    }
+    for (String sysName : new String[]{MARKETING, IT_AUDIT, IT}) {
+      GroupBuilder builder = new GroupBuilder();
+      builder.setSysName(sysName);
+      authSystem.createGroup(builder.build());
+    }
+  }
+
+  @Test
+  public void testAll() {
+    assertThat(personNames(authSystem.findPersons(null, null, 10)))
+            .containsExactly(ANN, JO, JOAN, JOE, JOHN, LUC);
+  }
+
+  @Test
+  public void testPrefix() {
+    assertThat(personNames(authSystem.findPersons(JO, null, 10)))
+            .containsExactly(JO, JOAN, JOE, JOHN);
+    assertThat(personNames(authSystem.findPersons("joh", null, 10)))
+            .containsExactly(JOHN);
+    assertThat(authSystem.findPersons("x", null, 10)).isEmpty();
+  }
+
+  @Test
+  public void testPages() {
+    List<Person> page = authSystem.findPersons(JO, null, 3);
+    assertThat(personNames(page)).containsExactly(JO, JOAN, JOE);
+    page = authSystem.findPersons(JO, JOE, 3);
+    assertThat(personNames(page)).containsExactly(JOHN);
+    page = authSystem.findPersons(JO, JOHN, 3);
+    assertThat(page).isEmpty();
+  }
+
+  @Test
+  public void testGroups() {
+    List<Group> page = authSystem.findGroups(IT, null, 10);
+    assertThat(groupNames(page)).containsExactly(IT, IT_AUDIT);
+    page = authSystem.findGroups(null, IT, 1);
+    assertThat(groupNames(page)).containsExactly(IT_AUDIT);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLimit() {
+    authSystem.findPersons(JO, null, 0);
+  }
+
+  private List<String> personNames(List<Person> persons) {
+    List<String> names = new ArrayList<String>();
+    for (Person person : persons) {
+      names.add(person.getSysName());
+    }
+    return names;
+  }
+
+  private List<String> groupNames(List<Group> groups) {
+    List<String> names = new ArrayList<String>();
+    for (Group group : groups) {
+      names.add(group.getSysName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class PasswordTest {
+
+  private static final String JOHN = "JOHN";
+
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+  private static final String EMPTY = "";
+
+  private static final int CALLERS = 16;
+
+  private MemAuthSystem authSystem;
+  private ExecutorService executor;
+
+  @Before
+  public void before() {
+    authSystem = new MemAuthSystem(true);
+    executor = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testHashed() throws AppException {
+    configure("1000", "2", "8");
+    createPerson(JOHN);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isFalse();
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isFalse();
+    assertThat(authSystem.checkCredentials(JOHN, EMPTY)).isFalse();
+    assertThat(authSystem.checkCredentials(JOHN, null)).isFalse();
+    authSystem.updatePersonPassword(JOHN, PWD2);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isFalse();
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isTrue();
+  }
+
+  @Test
+  public void testCostChange() throws AppException {
+    configure("1000", "1", "1");
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    configure("2000", "1", "1");
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+  }
+
+  @Test
+  public void testLoadShedding() throws Exception {
+    configure("200000", "1", "1");
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    List<Callable<Boolean>> logins = new ArrayList<Callable<Boolean>>();
+    for (int i = 0; i < CALLERS; i++) {
+      logins.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws AppException {
+          return authSystem.checkCredentials(JOHN, PWD1);
+        }
+      });
+    }
+    int accepted = 0;
+    int rejected = 0;
+    for (Future<Boolean> login : executor.invokeAll(logins)) {
+      try {
+        assertThat(login.get()).isTrue();
+        accepted++;
+      } catch (ExecutionException ex) {
+        assertThat(ex.getCause() instanceof RejectedExecutionException)
+                .isTrue();
+        rejected++;
+      }
+    }
+    assertThat(accepted).isGreaterThan(0);
+    assertThat(rejected).isGreaterThan(0);
+  }
+
+  @Test
+  public void testUnknownPersonVerified() throws Exception {
+    configure("200000", "1", "1");
+    List<Callable<Boolean>> logins = new ArrayList<Callable<Boolean>>();
+    for (int i = 0; i < CALLERS; i++) {
+      logins.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws AppException {
+          return authSystem.checkCredentials(JOHN, PWD1);
+        }
+      });
+    }
+    int rejected = 0;
+    for (Future<Boolean> login : executor.invokeAll(logins)) {
+      try {
+        assertThat(login.get()).isFalse();
+      } catch (ExecutionException ex) {
+        assertThat(ex.getCause() instanceof RejectedExecutionException)
+                .isTrue();
+        rejected++;
+      }
+    }
+    // Unknown persons load the verification pool like the known ones
+    assertThat(rejected).isGreaterThan(0);
+  }
+
+  @Test
+  public void testCredentialCache() throws AppException {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH, MemAuthSystem.PASSWORD_HASH_PBKDF2);
+    props.put(MemAuthSystem.PASSWORD_HASH_ITERATIONS, "1000");
+    props.put(MemAuthSystem.CREDENTIAL_CACHE_SIZE, "10");
+    authSystem.configure(props);
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(0L);
+    assertThat(authSystem.getCredentialCacheMisses()).isEqualTo(1L);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(1L);
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isFalse();
+    assertThat(authSystem.getCredentialCacheMisses()).isEqualTo(2L);
+
+    authSystem.updatePersonPassword(JOHN, PWD2);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isFalse();
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isTrue();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testCredentialCacheDisabled() throws AppException {
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PWD1);
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.checkCredentials(JOHN, PWD1)).isTrue();
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(0L);
+    assertThat(authSystem.getCredentialCacheMisses()).isEqualTo(0L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownHash() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH, "rot13");
+    authSystem.configure(props);
+  }
+
+  private void configure(String iterations, String threads, String queue) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH, MemAuthSystem.PASSWORD_HASH_PBKDF2);
+    props.put(MemAuthSystem.PASSWORD_HASH_ITERATIONS, iterations);
+    props.put(MemAuthSystem.PASSWORD_VERIFY_THREADS, threads);
+    props.put(MemAuthSystem.PASSWORD_VERIFY_QUEUE, queue);
+    authSystem.configure(props);
+  }
+
+  private void createPerson(String sysName) throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+  }
+}
@@ -104,6 +104,21 @@ public class PersonTest {
     authSystem.updatePersonPassword(JOHN, PWD1);
   }
 
+  @Test(expected = AppException.class)
+  public void testLoadNoPerson() throws AppException {
+    authSystem.loadPerson(JOHN);
+  }
+
+  @Test(expected = AppException.class)
+  public void testLoadEmptySysName() throws AppException {
+    authSystem.loadPerson(EMPTY);
+  }
+
+  @Test(expected = AppException.class)
+  public void testCheckCredentialsEmptySysName() throws AppException {
+    authSystem.checkCredentials(EMPTY, PWD1);
+  }
+
   public void testCheckCredentials() throws AppException {
     createPerson(JOHN);
     assertThat(authSystem.checkCredentials(null, null)).isFalse();
@@ -0,0 +1,209 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.auth.mem.ReplicationFollower;
+import org.niaouli.auth.mem.ReplicationLeader;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ReplicationTest {
+
+  private static final String JOHN = "john";
+  private static final String PASSWORD = "secret";
+  private static final String ADMINS = "ADMINS";
+  private static final Map<String, String> CONFIG = Collections.emptyMap();
+  private static final byte[] SECRET = bytes("0123456789abcdef");
+
+  private MemAuthSystem authSystem;
+  private ReplicationLeader leader;
+  private ReplicationFollower follower;
+
+  @Before
+  public void before() throws IOException {
+    authSystem = new MemAuthSystem(true);
+    leader = new ReplicationLeader(authSystem, new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), 0), SECRET);
+  }
+
+  @After
+  public void after() throws IOException {
+    if (follower != null) {
+      follower.close();
+    }
+    leader.close();
+  }
+
+  @Test
+  public void testSnapshotThenDelta() throws Exception {
+    createPerson(JOHN);
+    authSystem.updatePersonPassword(JOHN, PASSWORD);
+    follower = new ReplicationFollower(address(), CONFIG, SECRET);
+    awaitLeader();
+    assertThat(follower.getSystem().loadPerson(JOHN).getSysName())
+            .isEqualTo(JOHN);
+    assertThat(follower.getSystem().checkCredentials(JOHN, PASSWORD))
+            .isTrue();
+
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(ADMINS);
+    authSystem.createGroup(builder.build());
+    authSystem.attachGroupMember(ADMINS, JOHN);
+    awaitLeader();
+    assertThat(follower.getSystem().findGroupPersons(ADMINS))
+            .containsExactly(JOHN);
+    assertThat(follower.getLagChanges()).isEqualTo(0L);
+    assertThat(follower.isConnected()).isTrue();
+  }
+
+  @Test
+  public void testResumeAfterReconnect() throws Exception {
+    follower = new ReplicationFollower(address(), CONFIG, SECRET);
+    createPerson(JOHN);
+    awaitLeader();
+    MemAuthSystem replica = follower.getSystem();
+    leader.close();
+    createPerson("luc");
+    leader = new ReplicationLeader(authSystem, address(), SECRET);
+    awaitLeader();
+    // Resumed with the missing change, no new snapshot
+    assertThat(follower.getSystem()).isSameAs(replica);
+    assertThat(replica.loadPerson("luc").getSysName()).isEqualTo("luc");
+  }
+
+  @Test
+  public void testSnapshotWhenTooFarBehind() throws Exception {
+    authSystem.configure(Collections.singletonMap(
+            MemAuthSystem.CHANGES_CAPACITY, "2"));
+    follower = new ReplicationFollower(address(), CONFIG, SECRET);
+    createPerson(JOHN);
+    awaitLeader();
+    MemAuthSystem replica = follower.getSystem();
+    leader.close();
+    for (int i = 0; i < 5; i++) {
+      createPerson("person" + i);
+    }
+    leader = new ReplicationLeader(authSystem, address(), SECRET);
+    awaitLeader();
+    assertThat(follower.getSystem()).isNotSameAs(replica);
+    assertThat(follower.getSystem().findPersons()).hasSize(6);
+  }
+
+  @Test
+  public void testLargeSnapshot() throws Exception {
+    // Larger than a snapshot chunk
+    List<Person> persons = new ArrayList<Person>();
+    for (int i = 0; i < 5000; i++) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName("person" + i);
+      persons.add(builder.build());
+    }
+    authSystem.createPersons(persons);
+    authSystem.updatePersonPassword("person4999", PASSWORD);
+    follower = new ReplicationFollower(address(), CONFIG, SECRET);
+    awaitLeader();
+    assertThat(follower.getSystem().findPersons()).hasSize(5000);
+    assertThat(follower.getSystem().checkCredentials("person4999",
+            PASSWORD)).isTrue();
+    createPerson(JOHN);
+    awaitLeader();
+    assertThat(follower.getSystem().loadPerson(JOHN).getSysName())
+            .isEqualTo(JOHN);
+  }
+
+  @Test
+  public void testWrongSecret() throws Exception {
+    createPerson(JOHN);
+    follower = new ReplicationFollower(address(), CONFIG,
+            bytes("fedcba9876543210"));
+    Thread.sleep(1500L);
+    assertThat(follower.getAppliedSequence()).isEqualTo(0L);
+    assertThat(leader.getFollowerCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPendingHandshakesBounded() throws Exception {
+    createPerson(JOHN);
+    List<Socket> idle = new ArrayList<Socket>();
+    try {
+      for (int i = 0; i < ReplicationLeader.MAX_HANDSHAKES; i++) {
+        idle.add(new Socket(address().getAddress(), address().getPort()));
+      }
+      Thread.sleep(200L);
+      Socket extra = new Socket(address().getAddress(), address().getPort());
+      try {
+        extra.setSoTimeout(1000);
+        assertThat(extra.getInputStream().read()).isEqualTo(-1);
+      } finally {
+        extra.close();
+      }
+    } finally {
+      for (Socket socket : idle) {
+        socket.close();
+      }
+    }
+    follower = new ReplicationFollower(address(), CONFIG, SECRET);
+    awaitLeader();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShortSecret() throws IOException {
+    follower = new ReplicationFollower(address(), CONFIG, bytes("short"));
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private InetSocketAddress address() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+            leader.getPort());
+  }
+
+  private void awaitLeader() throws InterruptedException {
+    assertThat(follower.awaitSequence(authSystem.getLastChangeSequence(),
+            10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private void createPerson(String sysName) throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class SearchTest {
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    create("john", "John Smith");
+    create("jane", "Jane Smithson");
+    create("luc", "Luc B\u00e9renger");
+    create("ann", "Ann-Marie Johnson");
+    create("bob", null);
+  }
+
+  @Test
+  public void testSubstring() {
+    assertThat(search("mith", 10)).containsOnly("john", "jane");
+    assertThat(search("OHN", 10)).containsOnly("john", "ann");
+  }
+
+  @Test
+  public void testAccents() {
+    assertThat(search("berenger", 10)).containsExactly("luc");
+    assertThat(search("B\u00c9R", 10)).containsExactly("luc");
+  }
+
+  @Test
+  public void testShortWords() {
+    assertThat(search("j s", 10)).containsOnly("john", "jane");
+    assertThat(search("ma", 10)).containsExactly("ann");
+    assertThat(search("mi", 10)).isEmpty();
+  }
+
+  @Test
+  public void testAllWords() {
+    assertThat(search("smith john", 10)).containsExactly("john");
+    assertThat(search("ann johnson", 10)).containsExactly("ann");
+    assertThat(search("smith luc", 10)).isEmpty();
+  }
+
+  @Test
+  public void testRanking() throws AppException {
+    create("johnny", "Johnny");
+    create("john2", "John");
+    assertThat(search("john", 10))
+            .containsExactly("john2", "johnny", "john", "ann");
+    assertThat(search("john", 2)).containsExactly("john2", "johnny");
+  }
+
+  @Test
+  public void testUpdate() throws AppException {
+    authSystem.updatePerson(new PersonBuilder().setSysName("john")
+            .setFullName("Jack Black").build());
+    assertThat(search("smith", 10)).containsExactly("jane");
+    assertThat(search("black", 10)).containsExactly("john");
+    authSystem.updatePerson(new PersonBuilder().setSysName("john")
+            .build());
+    assertThat(search("black", 10)).isEmpty();
+  }
+
+  @Test
+  public void testBatch() throws AppException {
+    authSystem.createPersons(Arrays.asList(
+            new PersonBuilder().setSysName("max")
+            .setFullName("Max Power").build(),
+            new PersonBuilder().setSysName("min")
+            .setFullName("Min Power").build()));
+    assertThat(search("power", 10)).containsOnly("max", "min");
+  }
+
+  @Test
+  public void testEmpty() {
+    assertThat(search("", 10)).isEmpty();
+    assertThat(search(" - ", 10)).isEmpty();
+    assertThat(search("zzz", 10)).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLimit() {
+    authSystem.searchPersons("john", 0);
+  }
+
+  private void create(final String sysName, final String fullName)
+          throws AppException {
+    authSystem.createPerson(new PersonBuilder().setSysName(sysName)
+            .setFullName(fullName).build());
+  }
+
+  private List<String> search(final String query, final int limit) {
+    List<String> sysNames = new ArrayList<String>();
+    for (Person person : authSystem.searchPersons(query, limit)) {
+      sysNames.add(person.getSysName());
+    }
+    return sysNames;
+  }
+
+}
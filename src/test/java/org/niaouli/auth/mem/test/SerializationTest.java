@@ -0,0 +1,140 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class SerializationTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String LUC = "LUC";
+  private static final String IT = "IT";
+  private static final String AUDIT = "AUDIT";
+  private static final String MARKETING = "Marketing";
+
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    MemAuthSystem copy = roundTrip(populate(new MemAuthSystem()));
+    assertThat(copy.isConcurrent()).isFalse();
+    checkPopulated(copy);
+  }
+
+  @Test
+  public void testConcurrentRoundTrip() throws Exception {
+    MemAuthSystem copy = roundTrip(populate(new MemAuthSystem(true)));
+    assertThat(copy.isConcurrent()).isTrue();
+    checkPopulated(copy);
+  }
+
+  @Test
+  public void testHashedRoundTrip() throws Exception {
+    MemAuthSystem authSystem = new MemAuthSystem();
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PASSWORD_HASH, MemAuthSystem.PASSWORD_HASH_PBKDF2);
+    props.put(MemAuthSystem.PASSWORD_HASH_ITERATIONS, "1000");
+    authSystem.configure(props);
+    MemAuthSystem copy = roundTrip(populate(authSystem));
+    checkPopulated(copy);
+    copy.updatePersonPassword(LUC, PWD1);
+    assertThat(copy.checkCredentials(LUC, PWD1)).isTrue();
+  }
+
+  @Test
+  public void testOffHeapRoundTrip() throws Exception {
+    MemAuthSystem authSystem = new MemAuthSystem(true);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.PERSONS_STORE,
+            MemAuthSystem.PERSONS_STORE_OFF_HEAP);
+    authSystem.configure(props);
+    MemAuthSystem copy = roundTrip(populate(authSystem));
+    checkPopulated(copy);
+    assertThat(copy.getOffHeapBytes()).isPositive();
+  }
+
+  @Test
+  public void testEmptyRoundTrip() throws Exception {
+    MemAuthSystem copy = roundTrip(new MemAuthSystem());
+    assertThat(copy.findPersons()).isEmpty();
+    assertThat(copy.findGroups()).isEmpty();
+    assertThat(copy.findOrgUnits()).isEmpty();
+  }
+
+  static MemAuthSystem roundTrip(MemAuthSystem authSystem)
+          throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(authSystem);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    return (MemAuthSystem) in.readObject();
+  }
+
+  private MemAuthSystem populate(MemAuthSystem authSystem)
+          throws AppException {
+    OrgUnitBuilder orgUnitBuilder = new OrgUnitBuilder();
+    orgUnitBuilder.setName(MARKETING);
+    authSystem.createOrgUnit(orgUnitBuilder.build());
+    for (String sysName : new String[]{IT, AUDIT}) {
+      GroupBuilder builder = new GroupBuilder();
+      builder.setSysName(sysName);
+      authSystem.createGroup(builder.build());
+    }
+    for (String sysName : new String[]{JOHN, LUC}) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName);
+      builder.setOrgUnitName(MARKETING);
+      authSystem.createPerson(builder.build());
+      authSystem.attachGroupMember(IT, sysName);
+    }
+    authSystem.updatePersonPassword(JOHN, PWD2);
+    return authSystem;
+  }
+
+  private void checkPopulated(MemAuthSystem authSystem) throws AppException {
+    assertThat(authSystem.findPersons()).hasSize(2);
+    assertThat(authSystem.findGroups()).hasSize(2);
+    assertThat(authSystem.findOrgUnits()).hasSize(1);
+    assertThat(authSystem.findOrgUnitPersons(MARKETING)).containsOnly(JOHN, LUC);
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(JOHN, LUC);
+    assertThat(authSystem.findGroupPersons(AUDIT)).isEmpty();
+    assertThat(authSystem.findPersonGroups(LUC)).containsOnly(IT);
+    assertThat(authSystem.checkCredentials(JOHN, PWD2)).isTrue();
+    assertThat(authSystem.checkCredentials(LUC, PWD2)).isFalse();
+  }
+}
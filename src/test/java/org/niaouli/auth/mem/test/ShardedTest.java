@@ -0,0 +1,184 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.OrgUnitBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.auth.mem.ShardedAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class ShardedTest {
+
+  private static final int PERSONS = 100;
+  private static final String PASSWORD = "secret";
+  private static final String ADMINS = "ADMINS";
+  private static final String SALES = "SALES";
+
+  private ShardedAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new ShardedAuthSystem(4);
+    OrgUnitBuilder orgUnitBuilder = new OrgUnitBuilder();
+    orgUnitBuilder.setName(SALES);
+    authSystem.createOrgUnit(orgUnitBuilder.build());
+    GroupBuilder groupBuilder = new GroupBuilder();
+    groupBuilder.setSysName(ADMINS);
+    authSystem.createGroup(groupBuilder.build());
+    for (int i = 0; i < PERSONS; i++) {
+      PersonBuilder builder = new PersonBuilder();
+      builder.setSysName(sysName(i));
+      if (i % 2 == 0) {
+        builder.setOrgUnitName(SALES);
+      }
+      authSystem.createPerson(builder.build());
+      authSystem.updatePersonPassword(sysName(i), PASSWORD);
+      if (i % 10 == 0) {
+        authSystem.attachGroupMember(ADMINS, sysName(i));
+      }
+    }
+  }
+
+  @Test
+  public void testPointOperations() throws AppException {
+    assertThat(authSystem.loadPerson(sysName(42)).getSysName())
+            .isEqualTo(sysName(42));
+    assertThat(authSystem.checkCredentials(sysName(7), PASSWORD)).isTrue();
+    assertThat(authSystem.checkCredentials(sysName(7), "wrong")).isFalse();
+    assertThat(authSystem.loadGroup(ADMINS).getSysName()).isEqualTo(ADMINS);
+    assertThat(authSystem.loadOrgUnit(SALES).getName()).isEqualTo(SALES);
+    assertThat(authSystem.checkHealth()).isTrue();
+  }
+
+  @Test
+  public void testSharedCredentials() throws AppException {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.CREDENTIAL_CACHE_SIZE, "1000");
+    props.put(MemAuthSystem.TOKEN_IDLE_TTL, "60");
+    authSystem.configure(props);
+    for (int i = 0; i < PERSONS; i++) {
+      assertThat(authSystem.checkCredentials(sysName(i), PASSWORD)).isTrue();
+      assertThat(authSystem.checkCredentials(sysName(i), PASSWORD)).isTrue();
+    }
+    assertThat(authSystem.getCredentialCacheHits()).isEqualTo(PERSONS);
+    List<String> tokens = new ArrayList<String>();
+    for (int i = 0; i < PERSONS; i++) {
+      tokens.add(authSystem.issueToken(sysName(i), PASSWORD));
+    }
+    for (int i = 0; i < PERSONS; i++) {
+      assertThat(authSystem.validateToken(tokens.get(i)))
+              .isEqualTo(sysName(i));
+    }
+    authSystem.updatePersonPassword(sysName(7), "changed");
+    assertThat(authSystem.validateToken(tokens.get(7))).isNull();
+    authSystem.revokeToken(tokens.get(8));
+    assertThat(authSystem.validateToken(tokens.get(8))).isNull();
+  }
+
+  @Test
+  public void testScans() throws AppException {
+    assertThat(authSystem.findPersons()).hasSize(PERSONS);
+    assertThat(authSystem.findOrgUnitPersons(SALES)).hasSize(PERSONS / 2)
+            .contains(sysName(0), sysName(98));
+    assertThat(authSystem.findGroupPersons(ADMINS)).hasSize(PERSONS / 10)
+            .contains(sysName(0), sysName(90));
+    authSystem.detachGroupMember(ADMINS, sysName(90));
+    assertThat(authSystem.findGroupPersons(ADMINS))
+            .hasSize(PERSONS / 10 - 1).doesNotContain(sysName(90));
+  }
+
+  @Test(expected = AppException.class)
+  public void testLoadUnknownPerson() throws AppException {
+    authSystem.loadPerson("nobody");
+  }
+
+  @Test(expected = AppException.class)
+  public void testScanUnknownGroup() throws AppException {
+    authSystem.findGroupPersons("UNKNOWN");
+  }
+
+  @Test(expected = AppException.class)
+  public void testDuplicateGroup() throws AppException {
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(ADMINS);
+    authSystem.createGroup(builder.build());
+  }
+
+  @Test
+  public void testExport() throws IOException, AppException {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.TOKEN_IDLE_TTL, "60");
+    props.put(MemAuthSystem.CREDENTIAL_CACHE_SIZE, "10");
+    authSystem.configure(props);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    authSystem.exportTo(out);
+    ShardedAuthSystem imported = ShardedAuthSystem.importFrom(
+            new ByteArrayInputStream(out.toByteArray()));
+    assertThat(imported.getShardCount()).isEqualTo(4);
+    assertThat(sysNames(imported.findPersons()))
+            .isEqualTo(sysNames(authSystem.findPersons()));
+    assertThat(imported.findGroupPersons(ADMINS)).hasSize(PERSONS / 10);
+    assertThat(imported.checkCredentials(sysName(3), PASSWORD)).isTrue();
+    for (int i = 0; i < PERSONS; i++) {
+      String token = imported.issueToken(sysName(i), PASSWORD);
+      assertThat(imported.validateToken(token)).isEqualTo(sysName(i));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptExport() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    authSystem.exportTo(out);
+    byte[] bytes = out.toByteArray();
+    // Length of the first shard export, after the version and count
+    bytes[8] = (byte) 0x7f;
+    ShardedAuthSystem.importFrom(new ByteArrayInputStream(bytes));
+  }
+
+  private static String sysName(int i) {
+    return "person" + i;
+  }
+
+  private static List<String> sysNames(Collection<Person> persons) {
+    List<String> names = new ArrayList<String>();
+    for (Person person : persons) {
+      names.add(person.getSysName());
+    }
+    Collections.sort(names);
+    return names;
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.Group;
+import org.niaouli.auth.GroupBuilder;
+import org.niaouli.auth.Person;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.DirectoryVersion;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class SnapshotTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String LUC = "LUC";
+
+  // Same hash code
+  private static final String AA = "Aa";
+  private static final String BB = "BB";
+
+  private static final String IT = "IT";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() {
+    authSystem = new MemAuthSystem();
+    configure("true");
+  }
+
+  @Test
+  public void testPointInTimeListings() throws AppException {
+    createPerson(JOHN);
+    authSystem.createGroup(group(IT));
+    authSystem.attachGroupMember(IT, JOHN);
+    Collection<Person> persons = authSystem.findPersons();
+    Collection<Group> groups = authSystem.findGroups();
+    Collection<String> members = authSystem.findGroupPersons(IT);
+
+    createPerson(LUC);
+    authSystem.attachGroupMember(IT, LUC);
+    authSystem.detachGroupMember(IT, JOHN);
+    assertThat(persons).hasSize(1);
+    assertThat(groups).hasSize(1);
+    assertThat(members).containsOnly(JOHN);
+    assertThat(authSystem.findPersons()).hasSize(2);
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(LUC);
+  }
+
+  @Test
+  public void testMutateWhileIterating() throws AppException {
+    for (int i = 0; i < 100; i++) {
+      createPerson("P" + i);
+    }
+    int count = 0;
+    for (Person person : authSystem.findPersons()) {
+      createPerson(person.getSysName() + "-copy");
+      count++;
+    }
+    assertThat(count).isEqualTo(100);
+    assertThat(authSystem.findPersons()).hasSize(200);
+  }
+
+  @Test
+  public void testVersion() throws AppException {
+    createPerson(JOHN);
+    DirectoryVersion version = authSystem.getDirectoryVersion();
+    createPerson(LUC);
+    assertThat(version.getPerson(JOHN)).isNotNull();
+    assertThat(version.getPerson(LUC)).isNull();
+    assertThat(authSystem.getDirectoryVersion().getPerson(LUC)).isNotNull();
+  }
+
+  @Test
+  public void testHashCollisions() throws AppException {
+    authSystem.createGroup(group(IT));
+    createPerson(AA);
+    createPerson(BB);
+    authSystem.attachGroupMember(IT, AA);
+    authSystem.attachGroupMember(IT, BB);
+    assertThat(authSystem.findPersons()).hasSize(2);
+    authSystem.detachGroupMember(IT, AA);
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(BB);
+    authSystem.detachGroupMember(IT, BB);
+    assertThat(authSystem.findGroupPersons(IT)).isEmpty();
+  }
+
+  @Test
+  public void testManyMembers() throws AppException {
+    authSystem.createGroup(group(IT));
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 5000; i++) {
+      createPerson("P" + i);
+      authSystem.attachGroupMember(IT, "P" + i);
+      if (i % 3 != 0) {
+        expected.add("P" + i);
+      }
+    }
+    for (int i = 0; i < 5000; i += 3) {
+      authSystem.detachGroupMember(IT, "P" + i);
+    }
+    assertThat(authSystem.findGroupPersons(IT)).hasSize(expected.size());
+    assertThat(authSystem.findGroupPersons(IT)).containsOnly(
+            expected.toArray(new String[expected.size()]));
+  }
+
+  @Test
+  public void testEnableOnExistingData() throws AppException {
+    configure("false");
+    createPerson(JOHN);
+    authSystem.createGroup(group(IT));
+    authSystem.attachGroupMember(IT, JOHN);
+    configure("true");
+    assertThat(authSystem.getDirectoryVersion().findGroupPersons(IT))
+            .containsOnly(JOHN);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSnapshotModeOff() {
+    configure("false");
+    authSystem.getDirectoryVersion();
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testImmutable() throws AppException {
+    createPerson(JOHN);
+    authSystem.findPersons().clear();
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    createPerson(JOHN);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(authSystem);
+    out.close();
+    MemAuthSystem copy = (MemAuthSystem) new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertThat(copy.getDirectoryVersion().getPerson(JOHN)).isNotNull();
+  }
+
+  private void configure(String readSnapshots) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.READ_SNAPSHOTS, readSnapshots);
+    authSystem.configure(props);
+  }
+
+  private void createPerson(String sysName) throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+  }
+
+  private Group group(String sysName) {
+    GroupBuilder builder = new GroupBuilder();
+    builder.setSysName(sysName);
+    return builder.build();
+  }
+}
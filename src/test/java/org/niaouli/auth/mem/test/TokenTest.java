@@ -0,0 +1,201 @@
+/**
+ * This file is part of Niaouli Auth Mem.
+ *
+ * Niaouli Auth Mem is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * Niaouli Auth Mem is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Niaouli Auth Mem. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.niaouli.auth.mem.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.niaouli.auth.PersonBuilder;
+import org.niaouli.auth.mem.MemAuthSystem;
+import org.niaouli.auth.mem.Ticker;
+import org.niaouli.exception.AppException;
+
+/**
+ *
+ * @author Arnaud Rolly <github@niaouli.org>
+ */
+public class TokenTest {
+
+  private static final String JOHN = "JOHN";
+  private static final String JANE = "JANE";
+
+  private static final String PWD1 = "x!m141M";
+  private static final String PWD2 = "POOl::k";
+
+  private MemAuthSystem authSystem;
+
+  @Before
+  public void before() throws AppException {
+    authSystem = new MemAuthSystem(true);
+    createPerson(JOHN, PWD1);
+    createPerson(JANE, PWD2);
+  }
+
+  @Test
+  public void testIssueAndValidate() throws AppException {
+    configure("60", "3600");
+    assertThat(authSystem.issueToken(JOHN, PWD2)).isNull();
+    assertThat(authSystem.issueToken("NOBODY", PWD1)).isNull();
+    String token = authSystem.issueToken(JOHN, PWD1);
+    assertThat(token).isNotNull();
+    assertThat(authSystem.issueToken(JOHN, PWD1)).isNotEqualTo(token);
+    assertThat(authSystem.validateToken(token)).isEqualTo(JOHN);
+    assertThat(authSystem.validateToken(token + "x")).isNull();
+    assertThat(authSystem.validateToken(null)).isNull();
+    assertThat(authSystem.getTokenCount()).isEqualTo(2);
+    authSystem.revokeToken(token);
+    assertThat(authSystem.validateToken(token)).isNull();
+    assertThat(authSystem.getTokenCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRevokedOnPasswordUpdate() throws AppException {
+    configure("60", "3600");
+    String first = authSystem.issueToken(JOHN, PWD1);
+    String second = authSystem.issueToken(JOHN, PWD1);
+    String other = authSystem.issueToken(JANE, PWD2);
+    authSystem.updatePersonPassword(JOHN, PWD2);
+    assertThat(authSystem.validateToken(first)).isNull();
+    assertThat(authSystem.validateToken(second)).isNull();
+    assertThat(authSystem.validateToken(other)).isEqualTo(JANE);
+    Map<String, String> newPasswords = new HashMap<String, String>();
+    newPasswords.put(JANE, PWD1);
+    authSystem.updatePersonPasswords(newPasswords);
+    assertThat(authSystem.validateToken(other)).isNull();
+    assertThat(authSystem.getTokenCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testIdleExpiry() throws Exception {
+    ManualTicker ticker = new ManualTicker();
+    authSystem.setTicker(ticker);
+    configure("1", "3600");
+    String active = authSystem.issueToken(JOHN, PWD1);
+    String idle = authSystem.issueToken(JANE, PWD2);
+    for (int i = 0; i < 4; i++) {
+      ticker.advance(400L);
+      assertThat(authSystem.validateToken(active)).isEqualTo(JOHN);
+    }
+    assertThat(authSystem.validateToken(idle)).isNull();
+  }
+
+  @Test
+  public void testMaxExpiry() throws Exception {
+    ManualTicker ticker = new ManualTicker();
+    authSystem.setTicker(ticker);
+    configure("1", "2");
+    String token = authSystem.issueToken(JOHN, PWD1);
+    for (int i = 0; i < 4; i++) {
+      ticker.advance(400L);
+      assertThat(authSystem.validateToken(token)).isEqualTo(JOHN);
+    }
+    ticker.advance(600L);
+    assertThat(authSystem.validateToken(token)).isNull();
+  }
+
+  @Test
+  public void testSweep() throws Exception {
+    configure("1", "3600");
+    for (int i = 0; i < 1000; i++) {
+      authSystem.issueToken(JOHN, PWD1);
+    }
+    assertThat(authSystem.getTokenCount()).isEqualTo(1000);
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (authSystem.getTokenCount() > 0
+            && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100L);
+    }
+    assertThat(authSystem.getTokenCount()).isEqualTo(0);
+    String token = authSystem.issueToken(JOHN, PWD1);
+    assertThat(authSystem.validateToken(token)).isEqualTo(JOHN);
+  }
+
+  @Test
+  public void testReconfigured() throws AppException {
+    configure("60", "3600");
+    String token = authSystem.issueToken(JOHN, PWD1);
+    configure("60", "3600");
+    assertThat(authSystem.validateToken(token)).isNull();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDisabled() throws AppException {
+    assertThat(authSystem.validateToken("token")).isNull();
+    authSystem.issueToken(JOHN, PWD1);
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    configure("60", "3600");
+    String token = authSystem.issueToken(JOHN, PWD1);
+    MemAuthSystem copy = serializeAndDeserialize();
+    assertThat(copy.validateToken(token)).isNull();
+    String copyToken = copy.issueToken(JOHN, PWD1);
+    assertThat(copy.validateToken(copyToken)).isEqualTo(JOHN);
+  }
+
+  private void configure(String idleTtl, String maxTtl) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(MemAuthSystem.TOKEN_IDLE_TTL, idleTtl);
+    props.put(MemAuthSystem.TOKEN_MAX_TTL, maxTtl);
+    authSystem.configure(props);
+  }
+
+  private void createPerson(String sysName, String password)
+          throws AppException {
+    PersonBuilder builder = new PersonBuilder();
+    builder.setSysName(sysName);
+    authSystem.createPerson(builder.build());
+    authSystem.updatePersonPassword(sysName, password);
+  }
+
+  private MemAuthSystem serializeAndDeserialize() throws IOException,
+          ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(authSystem);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    return (MemAuthSystem) in.readObject();
+  }
+
+  private static final class ManualTicker implements Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    void advance(final long millis) {
+      nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+
+}